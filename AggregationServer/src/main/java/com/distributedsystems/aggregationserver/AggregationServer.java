@@ -13,16 +13,57 @@ public class AggregationServer {
     private final int port;
     private final LamportClock clock = new LamportClock();
     private final ExecutorService clientPool = Executors.newCachedThreadPool();
+    private final RequestScheduler requestScheduler;
+    private final ServerConfig config;
+    private volatile StationStore store;
+    private StationViews views;
+    private Replication replication;
+    private IdempotencyCache idempotency;
+    private PutRateLimits putLimits;
+    // expiry and rate limit sweeps
+    private ScheduledExecutorService scheduler;
+    // anti entropy syncs, null without peers
+    private ScheduledExecutorService syncScheduler;
 
     public AggregationServer(int port) {
-        this.port = port;
+        this(new ServerConfig(port));
+    }
+
+    /**
+     * Creates an aggregation server using the provided options
+     * @param config server options
+     */
+    public AggregationServer(ServerConfig config) {
+        this.port = config.port;
+        this.requestScheduler = new RequestScheduler(config.readThreads, config.writeThreads);
+        this.config = config;
     }
 
 
     public static void main(String[] args) throws IOException {
-        int port = 4567;
-        if (args.length > 0) port = Integer.parseInt(args[0]);
-        new AggregationServer(port).start();
+        new AggregationServer(ServerConfig.fromArgs(args)).start();
+    }
+
+    /**
+     * Creates the station store selected by config.storage, keeping its files under FileManager.DATA_DIR
+     *
+     * @param config server options
+     * @return the store
+     * @throws IOException if the store can't be opened
+     */
+    static StationStore createStore(ServerConfig config) throws IOException {
+        switch (config.storage) {
+            case "memory":
+                return new MemoryStationStore();
+            case "log":
+                return new LogStructuredStationStore(FileManager.DATA_DIR);
+            case "segment":
+                return new SegmentStationStore(new File(FileManager.DATA_DIR, "segments"));
+            case "offheap":
+                return new OffHeapStationStore();
+            default:
+                return new FileManager(FileManager.DATA_DIR, config.writeBehindMillis);
+        }
     }
 
     public void stop() {
@@ -32,7 +73,25 @@ public class AggregationServer {
             }
         } catch (IOException ignored) {}
 
+        if (replication != null) {
+            replication.stop();
+        }
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        if (syncScheduler != null) {
+            syncScheduler.shutdownNow();
+        }
         clientPool.shutdownNow();
+        requestScheduler.shutdown();
+
+        // write behind updates accepted before the stop must reach the disk
+        if (store != null) {
+            store.close();
+        }
+        if (views != null) {
+            views.close();
+        }
     }
 
     /**
@@ -40,11 +99,52 @@ public class AggregationServer {
      * @throws IOException if the socket fails
      */
     public void start() throws IOException {
-        int maxLamport = FileManager.reloadStationsOnStartup();
+        NotifyingStationStore notifyingStore = new NotifyingStationStore(createStore(config));
+        views = new StationViews(config);
+        views.register(notifyingStore);
+        ReplicationLog replicationLog = new ReplicationLog(config.replicationLogSize);
+        notifyingStore.addListener(replicationLog);
+        store = notifyingStore;
+        replication = new Replication(replicationLog, store, clock, config.replicaOf);
+        idempotency = new IdempotencyCache(config.idempotencyKeys, config.idempotencyTtlMillis);
+        putLimits = new PutRateLimits(config);
+        int maxLamport = store.reload();
         clock.update(maxLamport);
+        if (views.merkleEnabled) {
+            views.merkle.load(store);
+        }
+        if (config.importFile != null) {
+            StationSnapshot.ImportResult imported = StationSnapshot.importInto(new File(config.importFile), store);
+            clock.update(imported.maxLamport);
+            System.out.println("Imported " + imported.imported + " stations from " + config.importFile
+                    + " (" + imported.stale + " older than the stored version were skipped)");
+        }
 
-        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
-        scheduler.scheduleAtFixedRate(new FileManager.StaleDataRemover(SECONDS_UNTIL_STALE), 5, 5, TimeUnit.SECONDS);
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        // a backup removes stations when its primary's expiries arrive, it only expires them itself once promoted
+        Runnable staleDataRemover = new FileManager.StaleDataRemover(store, SECONDS_UNTIL_STALE);
+        scheduler.scheduleAtFixedRate(() -> {
+            if (!replication.isBackup()) staleDataRemover.run();
+        }, 5, 5, TimeUnit.SECONDS);
+        scheduler.scheduleAtFixedRate(putLimits::sweep, 5, 5, TimeUnit.SECONDS);
+        replication.start();
+        if (!config.antiEntropyPeers.isEmpty()) {
+            AntiEntropy antiEntropy = new AntiEntropy(views.merkle, store, clock);
+            // own thread, a sync after a long partition must not hold up expiry
+            syncScheduler = Executors.newSingleThreadScheduledExecutor();
+            syncScheduler.scheduleWithFixedDelay(() -> {
+                for (String peer : config.antiEntropyPeers) {
+                    try {
+                        AntiEntropy.SyncResult result = antiEntropy.syncWith(peer);
+                        if (result.differingBuckets > 0) {
+                            System.out.println("Anti entropy with " + peer + ": " + result);
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        System.err.println("Anti entropy with " + peer + " failed: " + e.getMessage());
+                    }
+                }
+            }, config.antiEntropyMillis, config.antiEntropyMillis, TimeUnit.MILLISECONDS);
+        }
 
         serverSocket = new ServerSocket(port);
         System.out.println("Aggregation Server started on port " + port);
@@ -52,7 +152,8 @@ public class AggregationServer {
         while (!serverSocket.isClosed()) {
             try {
                 Socket clientSocket = serverSocket.accept();
-                clientPool.submit(new ClientHandler(clientSocket, clock));
+                clientPool.submit(new ClientHandler(clientSocket, clock, requestScheduler, store, views, config, replication,
+                        idempotency, putLimits));
             } catch (IOException e) {
                 if (serverSocket.isClosed()) {
                     System.out.println("Server stopped.");
@@ -0,0 +1,202 @@
+package com.distributedsystems.aggregationserver;
+
+import com.distributedsystems.shared.HttpHelper;
+import com.distributedsystems.shared.LamportClock;
+import com.distributedsystems.shared.SimpleJsonUtil;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Anti Entropy: brings this server and a peer to the same stations by comparing their StationMerkleTrees.
+ *
+ * A sync walks both trees from the root, one level per request (GET /merkle?nodes=..), and only descends into nodes
+ * whose hashes differ. For the differing leaves it fetches the peer's id : lamport lists (GET /merkle/bucket) and then
+ * moves the newer version of each station across: stations the peer has newer are read with GET /merkle/records and
+ * stored here, stations this server has newer are PUT on the peer with their lamport. The work done grows with the
+ * number of differing stations, not with the number of stations.
+ *
+ * A station held by only one side is copied to the other - without tombstones an expiry can't be told apart from a
+ * station the other side never received, so a station expired on one side comes back until it expires again.
+ * A peer that is a backup refuses PUTs, so a sync with it only pulls.
+ */
+public class AntiEntropy {
+    // most station ids per GET /merkle/records
+    static final int RECORD_BATCH = 256;
+
+    private final StationMerkleTree tree;
+    private final StationStore store;
+    private final LamportClock clock;
+
+    /**
+     * Result of one sync
+     */
+    public static final class SyncResult {
+        public int requests;
+        public int differingBuckets;
+        public int pulled;
+        public int pushed;
+
+        @Override
+        public String toString() {
+            return differingBuckets + " of " + StationMerkleTree.LEAVES + " buckets differed, pulled " + pulled
+                    + ", pushed " + pushed + " stations in " + requests + " requests";
+        }
+    }
+
+    /**
+     * Creates the sync of one server
+     *
+     * @param tree the server's tree, registered on its store
+     * @param store the server's store
+     * @param clock the server's lamport clock
+     */
+    public AntiEntropy(StationMerkleTree tree, StationStore store, LamportClock clock) {
+        this.tree = tree;
+        this.store = store;
+        this.clock = clock;
+    }
+
+    /**
+     * Runs one sync with a peer
+     * @param peer "host:port" of the peer
+     * @return what was compared and moved
+     * @throws IOException if the peer can't be reached or answers with an error
+     */
+    public SyncResult syncWith(String peer) throws IOException {
+        SyncResult result = new SyncResult();
+        int idx = peer.lastIndexOf(':');
+        try (Socket socket = new Socket(peer.substring(0, idx), Integer.parseInt(peer.substring(idx + 1)))) {
+            // requests are small and sent one after the other, don't let Nagle hold each one back
+            socket.setTcpNoDelay(true);
+            List<Integer> differing = differingLeaves(socket, result);
+            result.differingBuckets = differing.size();
+            if (differing.isEmpty()) return result;
+
+            List<String> pull = new ArrayList<>();
+            List<String> push = new ArrayList<>();
+            Map<String, String> remote = get(socket, "/merkle/bucket?leaves=" + join(differing), result);
+            Map<String, Integer> remoteLamports = new HashMap<>();
+            for (Map.Entry<String, String> station : remote.entrySet()) {
+                remoteLamports.put(station.getKey(), Integer.parseInt(station.getValue()));
+            }
+            for (int leaf : differing) {
+                Map<String, Integer> local = tree.bucket(leaf);
+                for (Map.Entry<String, Integer> station : local.entrySet()) {
+                    Integer theirs = remoteLamports.remove(station.getKey());
+                    if (theirs == null || theirs < station.getValue()) push.add(station.getKey());
+                    else if (theirs > station.getValue()) pull.add(station.getKey());
+                }
+            }
+            // what is left is only on the peer
+            pull.addAll(remoteLamports.keySet());
+
+            for (int start = 0; start < pull.size(); start += RECORD_BATCH) {
+                result.pulled += pullRecords(socket, pull.subList(start, Math.min(pull.size(), start + RECORD_BATCH)), result);
+            }
+            for (String stationId : push) {
+                if (!pushRecord(socket, stationId, result)) break;
+                result.pushed++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Compares the trees level by level
+     * @return the leaves (bucket numbers) whose hashes differ
+     */
+    private List<Integer> differingLeaves(Socket socket, SyncResult result) throws IOException {
+        List<Integer> frontier = List.of(1);
+        for (int level = 0; level <= StationMerkleTree.DEPTH; level++) {
+            Map<String, String> remote = get(socket, "/merkle?nodes=" + join(frontier), result);
+            List<Integer> differing = new ArrayList<>();
+            for (int node : frontier) {
+                String theirs = remote.get(String.valueOf(node));
+                if (theirs == null || Long.parseUnsignedLong(theirs, 16) != tree.hash(node)) differing.add(node);
+            }
+            if (differing.isEmpty()) return differing;
+            if (level == StationMerkleTree.DEPTH) {
+                List<Integer> leaves = new ArrayList<>();
+                for (int node : differing) {
+                    leaves.add(node - StationMerkleTree.LEAVES);
+                }
+                return leaves;
+            }
+            frontier = new ArrayList<>();
+            for (int node : differing) {
+                frontier.add(2 * node);
+                frontier.add(2 * node + 1);
+            }
+        }
+        return List.of();
+    }
+
+    /**
+     * Reads stations from the peer and stores them, the store keeps whichever version is newer
+     * @return the number of stations stored
+     */
+    private int pullRecords(Socket socket, List<String> stationIds, SyncResult result) throws IOException {
+        StringBuilder ids = new StringBuilder();
+        for (String stationId : stationIds) {
+            if (ids.length() > 0) ids.append(',');
+            ids.append(URLEncoder.encode(stationId, StandardCharsets.UTF_8));
+        }
+        int stored = 0;
+        for (Map.Entry<String, String> station : get(socket, "/merkle/records?ids=" + ids, result).entrySet()) {
+            Map<String, String> record = SimpleJsonUtil.parse(station.getValue());
+            int lamport = Integer.parseInt(record.get("lamport"));
+            if (store.updateStation(station.getKey(), lamport, SimpleJsonUtil.parse(record.get("data")))
+                    != StationStore.UpdateResult.STALE) {
+                stored++;
+            }
+            clock.update(lamport);
+        }
+        return stored;
+    }
+
+    /**
+     * PUTs one station on the peer with its lamport
+     * @return false if the peer refuses updates (it is a backup)
+     */
+    private boolean pushRecord(Socket socket, String stationId, SyncResult result) throws IOException {
+        Integer lamport = tree.lamport(stationId);
+        String data = store.readSingleStation(stationId).get(stationId);
+        if (lamport == null || data == null) return true; // expired since the comparison
+
+        Map<String, String> headers = new HashMap<>();
+        headers.put("X-Lamport-Clock", String.valueOf(lamport));
+        headers.put("Content-Type", "application/json");
+        HttpHelper.Response res = HttpHelper.sendRequest(socket, "PUT", "/", headers, data);
+        result.requests++;
+        if (res.status.startsWith("503")) {
+            System.out.println("Peer refuses updates, not pushing " + stationId + " or later stations");
+            return false;
+        }
+        if (!res.status.startsWith("200") && !res.status.startsWith("201")) {
+            throw new IOException("Peer refused station " + stationId + ": " + res.status);
+        }
+        return true;
+    }
+
+    private static Map<String, String> get(Socket socket, String path, SyncResult result) throws IOException {
+        HttpHelper.Response res = HttpHelper.sendRequest(socket, "GET", path, null, "");
+        result.requests++;
+        if (!res.status.startsWith("200")) {
+            throw new IOException("GET " + path.substring(0, path.indexOf('?')) + " answered " + res.status);
+        }
+        return SimpleJsonUtil.parse(res.body);
+    }
+
+    private static String join(List<Integer> numbers) {
+        StringBuilder joined = new StringBuilder();
+        for (int number : numbers) {
+            if (joined.length() > 0) joined.append(',');
+            joined.append(number);
+        }
+        return joined.toString();
+    }
+}
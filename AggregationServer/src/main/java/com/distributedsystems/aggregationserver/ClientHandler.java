@@ -6,8 +6,13 @@ import com.distributedsystems.shared.SimpleJsonUtil;
 
 import java.io.*;
 import java.net.Socket;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Client Handler: Allows Aggregation Server to start threads to handle clients requests.
@@ -15,20 +20,62 @@ import java.util.Map;
 public class ClientHandler implements Runnable {
     private final Socket socket;
     private final LamportClock clock;
-    private static final FileManager fileManager = new FileManager();
+    private final RequestScheduler scheduler;
+    private final StationStore store;
+    private final StationViews views;
+    private final ServerConfig config;
+    private final Replication replication;
+    private final IdempotencyCache idempotency;
+    private final PutRateLimits putLimits;
+    private final RateLimiter.Bucket connectionBucket;
+    private final String client;
+
+    // concurrent GETs for the same station (or for all stations) share one read of the data
+    // keys are "all" or "station:<id>"
+    private static final SingleFlight<String, String> getFlights = new SingleFlight<>();
+
+    // stations per page of a paged GET "/" - limit defaults to DEFAULT_PAGE_SIZE and is capped at MAX_PAGE_SIZE
+    static final int DEFAULT_PAGE_SIZE = 100;
+    static final int MAX_PAGE_SIZE = 1000;
+
+    // stations read and sent per chunk when streaming every station
+    static final int STREAM_BATCH_SIZE = 256;
 
     /**
      * Creates an instance of the ClientHandler with provided socket and a reference to the server lamport clock
      * @param socket the client socket that spawned this thread
      * @param clock the server lamport clock
+     * @param scheduler the read / write lanes requests are handled on
+     * @param store where station data is kept
+     * @param views data derived from station updates, e.g. history
+     * @param config server options
+     * @param replication the server's primary / backup role and log
+     * @param idempotency responses of recent PUTs by Idempotency-Key
+     * @param putLimits per connection and per station PUT rate limits
      */
-    public ClientHandler(Socket socket, LamportClock clock) {
+    public ClientHandler(Socket socket, LamportClock clock, RequestScheduler scheduler, StationStore store,
+                         StationViews views, ServerConfig config, Replication replication,
+                         IdempotencyCache idempotency, PutRateLimits putLimits) {
         this.socket = socket;
         this.clock = clock;
+        this.scheduler = scheduler;
+        this.store = store;
+        this.views = views;
+        this.config = config;
+        this.replication = replication;
+        this.idempotency = idempotency;
+        this.putLimits = putLimits;
+        this.connectionBucket = putLimits.connectionBucket();
+        this.client = socket.getInetAddress() == null ? "unknown" : socket.getInetAddress().getHostAddress();
     }
 
     /**
      * Executed upon thread start - receives client requests and handles them while the socket is connected
+     * PUTs are handled on the scheduler's write lane and GETs on its read lane, this thread waits for each
+     * request to finish so responses are sent in request order
+     * A PUT over the connection's rate limit is answered with 429 on this thread, unless it repeats the
+     * Idempotency-Key of a PUT that was applied - that gets the earlier response
+     * GET /replicate is served on this thread instead, it streams to a backup until the connection closes
      */
     @Override
     public void run() {
@@ -46,35 +93,94 @@ public class ClientHandler implements Runnable {
                 String method = req.method.toUpperCase();
                 switch (method) {
                     case "PUT":
-                        handlePut(req, out);
+                        // a retry of a PUT that was applied gets its response again, even over the limit
+                        IdempotencyCache.Result previous = previousResponse(req);
+                        if (previous != null) {
+                            HttpHelper.sendResponse(out, previous.status, clock.get(), previous.body);
+                            break;
+                        }
+                        // checked before queueing, a client over its limit doesn't take a place on the write lane
+                        long wait = putLimits.checkConnection(connectionBucket, client);
+                        if (wait > 0) {
+                            sendTooManyRequests(out, wait, "this connection sends updates too fast");
+                            break;
+                        }
+                        scheduler.run(RequestScheduler.Lane.WRITE, () -> handlePut(req, out));
                         break;
                     case "GET":
-                        handleGet(req, out);
+                        if (req.path.equals("/replicate")) {
+                            out.flush();
+                            replication.serve(socket, req);
+                            return;
+                        }
+                        scheduler.run(RequestScheduler.Lane.READ, () -> handleGet(req, out));
+                        break;
+                    case "POST":
+                        scheduler.run(RequestScheduler.Lane.WRITE, () -> handlePost(req, out));
+                        break;
+                    case "DELETE":
+                        scheduler.run(RequestScheduler.Lane.WRITE, () -> handleDelete(req, out));
                         break;
                     default:
                         HttpHelper.sendResponse(out, "400 Bad Request", clock.get(),
                                 "Unsupported method: " + req.method);
                 }
             }
-        } catch (IOException e) {
+        } catch (IOException | ExecutionException e) {
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
     /**
-     * Handles a put request - extracts necessary data and calls the FileManager to update the specified file
+     * @param req a PUT request
+     * @return the response to an earlier successful PUT with the request's Idempotency-Key, null if there is none
+     */
+    private IdempotencyCache.Result previousResponse(HttpHelper.Request req) {
+        String idempotencyKey = req.headers.get("Idempotency-Key");
+        return idempotencyKey == null ? null : idempotency.get(idempotencyKey);
+    }
+
+    /**
+     * @return the server's id index, or without one (--id-index=false) an index of the stored ids built for this
+     *         request
+     */
+    private StationIdIndex stationIds() {
+        return views.idIndexEnabled ? views.ids : StationIdIndex.of(store);
+    }
+
+    /**
+     * Handles a put request - extracts necessary data and calls the station store to update the specified station
      *                          Sends 201 if a new file was created,
      *                          200 if a file was updated or if a stale update was ignored
      *                          400 if the request is missing a body or a station id
+     *                          503 if this server is a backup, PUTs go to the primary
+     *                          429 with Retry-After if the station is updated faster than its rate limit
+     *                          413 if the station's record doesn't fit in the store (segment and offheap storage)
+     *                          A PUT repeating the Idempotency-Key of an earlier successful PUT gets that PUT's
+     *                          response again and the store is not touched
      *
      * @param req the http request sent from the content server
      * @param out the output stream to respond on
      */
     private void handlePut(HttpHelper.Request req, PrintWriter out) {
+        if (replication.isBackup()) {
+            HttpHelper.sendResponse(out, "503 Service Unavailable", clock.get(),
+                    "{\"reason\": \"this server is a backup, send updates to the primary\"}");
+            return;
+        }
         if (req.body == null || req.body.isEmpty()) {
             HttpHelper.sendResponse(out, "400 Bad Request", clock.get(), "No Body");
             return;
         }
+        String idempotencyKey = req.headers.get("Idempotency-Key");
+        // looked up again, the first attempt may have finished while this one was queued
+        IdempotencyCache.Result previous = previousResponse(req);
+        if (previous != null) {
+            HttpHelper.sendResponse(out, previous.status, clock.get(), previous.body);
+            return;
+        }
         try {
             Map<String, String> json = SimpleJsonUtil.parse(req.body);
             String stationId = json.get("id");
@@ -86,36 +192,126 @@ public class ClientHandler implements Runnable {
                 HttpHelper.sendResponse(out, "400 Bad Request", clock.get(), "Missing station ID");
                 return;
             }
+            long wait = putLimits.checkStation(stationId, client);
+            if (wait > 0) {
+                sendTooManyRequests(out, wait, "station " + stationId + " is updated too fast");
+                return;
+            }
 
             // update file using lamport from request - ensures most recent update is always the update available
-            FileManager.UpdateResult result = fileManager.updateStation(stationId, requestLamport, json);
+            StationStore.UpdateResult result = store.updateStation(stationId, requestLamport, json);
 
+            String status;
+            String body;
             switch (result) {
                 case CREATED:
-                    HttpHelper.sendResponse(out, "201 Created", clock.get(),
-                            "New station " + stationId + " created");
+                    status = "201 Created";
+                    body = "New station " + stationId + " created";
                     break;
                 case UPDATED:
-                    HttpHelper.sendResponse(out, "200 OK", clock.get(),
-                            "Updated station " + stationId);
+                    status = "200 OK";
+                    body = "Updated station " + stationId;
                     break;
-                case STALE:
-                    HttpHelper.sendResponse(out, "200 OK", clock.get(),
-                            "Stale update ignored");
+                default:
+                    status = "200 OK";
+                    body = "Stale update ignored";
                     break;
             }
+            // only successful PUTs are remembered, a failed one may succeed when retried
+            if (idempotencyKey != null) {
+                idempotency.put(idempotencyKey, status, body);
+            }
+            HttpHelper.sendResponse(out, status, clock.get(), body);
 
+        } catch (RecordTooLargeException e) {
+            Map<String, String> body = new HashMap<>();
+            body.put("reason", e.getMessage());
+            HttpHelper.sendResponse(out, "413 Payload Too Large", clock.get(), SimpleJsonUtil.stringify(body));
         } catch (Exception e) {
             HttpHelper.sendResponse(out, "500 Internal Server Error", clock.get(), "");
         }
     }
 
+    /**
+     * Sends 429 Too Many Requests with a Retry-After header
+     * @param out the output stream to respond on
+     * @param waitNanos time until the request would be allowed
+     * @param reason why the request was refused
+     */
+    private void sendTooManyRequests(PrintWriter out, long waitNanos, String reason) {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Retry-After", PutRateLimits.retryAfterSeconds(waitNanos));
+        Map<String, String> body = new HashMap<>();
+        body.put("reason", reason);
+        HttpHelper.sendResponse(out, "429 Too Many Requests", clock.get(), headers, SimpleJsonUtil.stringify(body));
+    }
+
+    /**
+     * Handles a delete request - removes the station named in the stationId header, used by ShardRebalancer once a
+     * station has been copied to the shard that owns it now
+     *                          200 with "removed" true if the station was stored, false if it wasn't
+     *                          400 if the request has no stationId header
+     *                          503 if this server is a backup
+     *
+     * @param req request sent to server
+     * @param out the output stream to send response on
+     */
+    private void handleDelete(HttpHelper.Request req, PrintWriter out) {
+        if (replication.isBackup()) {
+            HttpHelper.sendResponse(out, "503 Service Unavailable", clock.get(),
+                    "{\"reason\": \"this server is a backup, send updates to the primary\"}");
+            return;
+        }
+        String stationId = req.headers.get("stationId");
+        if (!req.path.equals("/") || stationId == null) {
+            HttpHelper.sendResponse(out, "400 Bad Request", clock.get(), "{\"reason\": \"DELETE / needs a stationId header\"}");
+            return;
+        }
+        Map<String, String> body = new HashMap<>();
+        body.put("removed", String.valueOf(store.removeStation(stationId)));
+        HttpHelper.sendResponse(out, "200 OK", clock.get(), SimpleJsonUtil.stringify(body));
+    }
+
+    /**
+     * Handles Post Requests:
+     *      - promoting a backup to primary using "/promote" - it stops following its primary and accepts PUTs
+     *
+     * @param req request sent to server
+     * @param out the output stream to send response on
+     */
+    private void handlePost(HttpHelper.Request req, PrintWriter out) {
+        if (!req.path.equals("/promote")) {
+            HttpHelper.sendResponse(out, "400 Not Found", clock.get(), "{\"reason\": \"requested path is not implemented\"}");
+            return;
+        }
+        boolean promoted = replication.promote();
+        Map<String, String> body = new HashMap<>();
+        body.put("role", "primary");
+        body.put("promoted", String.valueOf(promoted));
+        HttpHelper.sendResponse(out, "200 OK", clock.get(), SimpleJsonUtil.stringify(body));
+    }
+
     /**
      * Handles Get Requests:
      *      - getting lamport clock using "/lamport"
+     *      - getting read / write lane and replication metrics using "/metrics"
+     *      - getting past observations of a station using "/history?stationId=..&from=..&to=..&since=..&until=.."
+     *      - getting minute / hour / day aggregates of a station using "/rollups?stationId=..&resolution=..&field=.."
+     *      - getting an aggregate over all stations (or one state) using "/aggregate?field=..&fn=..&state=.."
+     *      - getting the stations matching numeric predicates using "/scan?where=field:op:value,.."
+     *      - getting a snapshot of every station using "/export"
+     *      - comparing station trees with a peer using "/merkle?nodes=..", "/merkle/bucket?leaves=.." and
+     *        "/merkle/records?ids=..", see AntiEntropy
+     *      - getting the k stations nearest a point using "/nearest?lat=..&lon=..&k=.."
+     *      - getting the stations inside a bounding box using "/bbox?minLat=..&minLon=..&maxLat=..&maxLon=.."
      *      - default path i.e. "/" sends all data if no stationId is provided
      *      - default path i.e. "/" sends specific station data if id provided
+     *      - default path i.e. "/?state=..&time_zone=.." sends the stations matching every filter on an indexed field
+     *      - default path i.e. "/?limit=..&cursor=..&fields=.." sends one page of stations, with only some fields
      *      * both default path "/" return a json with station ID followed by the associated data
+     *      * concurrent "/" requests for the same station (or for all stations) share a single read
+     *      * with at least config.streamThreshold stations, "/" for all stations is streamed in chunks instead
+     *      * "/" responses are gzip compressed for clients that accept gzip, see sendBody
      *
      * @param req request sent to server
      * @param out the output stream to send response on
@@ -128,18 +324,544 @@ public class ClientHandler implements Runnable {
                 body.put("lamport", String.valueOf(clock.get()));
                 HttpHelper.sendResponse(out, "200 OK", clock.get(), SimpleJsonUtil.stringify(body));
                 break;
+            case "/metrics":
+                Map<String, String> metrics = scheduler.metrics();
+                metrics.put("get.coalesced", String.valueOf(getFlights.sharedCount()));
+                metrics.put("put.deduplicated", String.valueOf(idempotency.hitCount()));
+                putLimits.addMetrics(metrics);
+                replication.addMetrics(metrics);
+                HttpHelper.sendResponse(out, "200 OK", clock.get(), SimpleJsonUtil.stringify(metrics));
+                break;
             case "/":
+                if (!req.query.isEmpty()) {
+                    handleQueriedGet(req, out);
+                    break;
+                }
+
+                long version = store.version();
                 if (req.headers.containsKey("stationId")){
-                    Map<String, String> singleStation = fileManager.readSingleStation(req.headers.get("stationId"));
-                    HttpHelper.sendResponse(out, "200 OK", clock.get(), SimpleJsonUtil.stringify(singleStation));
+                    String stationId = req.headers.get("stationId");
+                    if (!store.coalesceReads()) {
+                        sendStationPayload(stationId, out);
+                        break;
+                    }
+                    String singleStation = getFlights.run("station:" + stationId, version,
+                            () -> SimpleJsonUtil.stringify(store.readSingleStation(stationId)));
+                    sendBody(req, out, singleStation);
                     break;
                 }
 
-                Map<String, String> allStations = fileManager.readAllStations();
-                HttpHelper.sendResponse(out, "200 OK", clock.get(), SimpleJsonUtil.stringify(allStations));
+                StationIdIndex ids = stationIds();
+                if (ids.size() >= config.streamThreshold) {
+                    streamAllStations(req, out, ids);
+                    break;
+                }
+
+                // the body (and its gzip encoding) is reused by every GET until the data changes
+                EncodedBody allStations = views.responses.get("all", version);
+                if (allStations == null) {
+                    allStations = new EncodedBody(version, getFlights.run("all", version, store::readAllStationsJson));
+                    views.responses.put("all", allStations);
+                }
+                sendBody(req, out, allStations);
+                break;
+            case "/history":
+                handleHistory(req, out);
+                break;
+            case "/rollups":
+                handleRollups(req, out);
+                break;
+            case "/aggregate":
+                handleAggregate(req, out);
+                break;
+            case "/scan":
+                handleScan(req, out);
+                break;
+            case "/export":
+                handleExport(out);
+                break;
+            case "/merkle":
+            case "/merkle/bucket":
+            case "/merkle/records":
+                handleMerkle(req, out);
+                break;
+            case "/nearest":
+            case "/bbox":
+                if (!views.spatialEnabled) {
+                    HttpHelper.sendResponse(out, "400 Bad Request", clock.get(),
+                            "{\"reason\": \"this server runs without the spatial index (--spatial-index=false)\"}");
+                } else if (req.path.equals("/nearest")) {
+                    handleNearest(req, out);
+                } else {
+                    handleBoundingBox(req, out);
+                }
                 break;
             default:
                 HttpHelper.sendResponse(out, "400 Not Found", clock.get(), "{\"reason\": \"requested path is not implemented\"}");
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Sends a 200 OK json body - gzip compressed if the client accepts gzip and the body is at least
+     * config.gzipMinBytes, smaller bodies gain little from compression
+     *
+     * @param req request sent to server
+     * @param out the output stream to send response on
+     * @param json the body
+     */
+    private void sendBody(HttpHelper.Request req, PrintWriter out, String json) {
+        sendBody(req, out, new EncodedBody(-1, json));
+    }
+
+    /**
+     * Sends a 200 OK json body, using (and keeping) its gzip encoding if the client accepts gzip and the body is at
+     * least config.gzipMinBytes
+     *
+     * @param req request sent to server
+     * @param out the output stream to send response on
+     * @param body the body
+     */
+    private void sendBody(HttpHelper.Request req, PrintWriter out, EncodedBody body) {
+        boolean gzip = config.gzipMinBytes >= 0 && body.identity.length >= config.gzipMinBytes
+                && HttpHelper.acceptsGzip(req.headers);
+        out.flush();
+        try {
+            if (gzip) {
+                HttpHelper.sendResponse(socket.getOutputStream(), "200 OK", clock.get(), "gzip", ByteBuffer.wrap(body.gzip()));
+            } else {
+                HttpHelper.sendResponse(socket.getOutputStream(), "200 OK", clock.get(), ByteBuffer.wrap(body.identity));
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to send response: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sends every station with Transfer-Encoding: chunked - stations are read in batches of STREAM_BATCH_SIZE in id
+     * order and each batch is sent as it is read, so neither the first byte nor the memory used waits on the number
+     * of stations. The response is not a snapshot: a station updated during the stream is sent as it was when its
+     * batch was read. Clients that accept gzip get one gzip stream, flushed at the end of every batch.
+     *
+     * @param req request sent to server
+     * @param out the output stream to send response on
+     * @param ids ids of the stations to send
+     */
+    private void streamAllStations(HttpHelper.Request req, PrintWriter out, StationIdIndex ids) {
+        out.flush();
+        boolean gzip = config.gzipMinBytes >= 0 && HttpHelper.acceptsGzip(req.headers);
+        try (HttpHelper.ChunkedOutputStream chunked = HttpHelper.startChunkedResponse(socket.getOutputStream(), "200 OK",
+                clock.get(), gzip ? "gzip" : null);
+             OutputStream body = gzip ? new GZIPOutputStream(chunked, 16 * 1024, true) : chunked) {
+            boolean first = true;
+            String after = null;
+            List<String> batch;
+            while (!(batch = ids.page(after, STREAM_BATCH_SIZE)).isEmpty()) {
+                for (String stationId : batch) {
+                    byte[] payload = copyPayload(stationId);
+                    if (payload == null) continue;
+                    body.write(((first ? "{\"" : ",\"") + stationId + "\":").getBytes(StandardCharsets.UTF_8));
+                    body.write(payload);
+                    first = false;
+                }
+                body.flush();
+                after = batch.get(batch.size() - 1);
+            }
+            body.write((first ? "{}" : "}").getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            System.err.println("Failed to stream stations: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Handles a GET "/" with query parameters:
+     *      - cursor / limit: pages through the stations in id order, responding with
+     *        {"stations":{..},"next_cursor":".."} - next_cursor is left out on the last page
+     *      - fields: comma separated keys, only these keys of each station are returned
+     *      - any other parameter filters on an indexed field, only the matching stations are read
+     * A stationId header returns that station with fields applied.
+     *
+     * @param req request sent to server
+     * @param out the output stream to send response on
+     */
+    private void handleQueriedGet(HttpHelper.Request req, PrintWriter out) {
+        Map<String, String> filters = new HashMap<>(req.query);
+        String cursor = filters.remove("cursor");
+        String limitParam = filters.remove("limit");
+        String fieldsParam = filters.remove("fields");
+        List<String> fields = fieldsParam == null || fieldsParam.isEmpty() ? null : List.of(fieldsParam.split(","));
+
+        if (req.headers.containsKey("stationId")) {
+            String stationId = req.headers.get("stationId");
+            Map<String, String> station = store.readSingleStation(stationId);
+            station.replaceAll((id, data) -> project(data, fields));
+            sendBody(req, out, SimpleJsonUtil.stringify(station));
+            return;
+        }
+
+        Set<String> matching = null;
+        if (!filters.isEmpty()) {
+            try {
+                matching = views.indexes.find(filters);
+            } catch (IllegalArgumentException e) {
+                HttpHelper.sendResponse(out, "400 Bad Request", clock.get(),
+                        "{\"reason\": \"filters must be on indexed fields " + views.indexes.fields() + "\"}");
+                return;
+            }
+        }
+
+        if (cursor == null && limitParam == null) {
+            Collection<String> stationIds = matching != null ? matching : stationIds().page(null, Integer.MAX_VALUE);
+            sendBody(req, out, SimpleJsonUtil.stringify(readStations(stationIds, filters, fields)));
+            return;
+        }
+
+        String after;
+        int limit;
+        try {
+            after = cursor == null || cursor.isEmpty() ? null : StationIdIndex.decodeCursor(cursor);
+            limit = limitParam == null ? DEFAULT_PAGE_SIZE : Integer.parseInt(limitParam);
+            if (limit <= 0) throw new IllegalArgumentException("limit must be positive");
+        } catch (IllegalArgumentException e) {
+            // also covers NumberFormatException and bad base64
+            HttpHelper.sendResponse(out, "400 Bad Request", clock.get(),
+                    "{\"reason\": \"cursor must come from next_cursor and limit must be a positive integer\"}");
+            return;
+        }
+        limit = Math.min(limit, MAX_PAGE_SIZE);
+
+        List<String> page = matching != null
+                ? StationIdIndex.page(new TreeSet<>(matching), after, limit)
+                : stationIds().page(after, limit);
+        Map<String, String> body = new LinkedHashMap<>();
+        body.put("stations", SimpleJsonUtil.stringify(readStations(page, filters, fields)));
+        if (page.size() == limit) {
+            body.put("next_cursor", StationIdIndex.encodeCursor(page.get(page.size() - 1)));
+        }
+        sendBody(req, out, SimpleJsonUtil.stringify(body));
+    }
+
+    /**
+     * Reads stations one by one, skipping any that expired or no longer match filters since their ids were looked up
+     *
+     * @param stationIds stations to read
+     * @param filters field : value filters the stations must still match
+     * @param fields keys to keep in each station, null for all
+     * @return stationId : data in the order of stationIds
+     */
+    private Map<String, String> readStations(Collection<String> stationIds, Map<String, String> filters, List<String> fields) {
+        Map<String, String> stations = new LinkedHashMap<>();
+        for (String stationId : stationIds) {
+            String data = store.readSingleStation(stationId).get(stationId);
+            if (data == null) continue;
+            if (filters.isEmpty() && fields == null) {
+                stations.put(stationId, data);
+                continue;
+            }
+            // parsed once for the filter check and the projection
+            Map<String, String> json = SimpleJsonUtil.parse(data);
+            if (StationIndexes.matches(json, filters)) {
+                stations.put(stationId, fields == null ? data : project(json, fields));
+            }
+        }
+        return stations;
+    }
+
+    /**
+     * Keeps only some keys of a station's data
+     *
+     * @param data station data as a json string
+     * @param fields keys to keep, null for all
+     * @return the projected data as a json string
+     */
+    private static String project(String data, List<String> fields) {
+        if (fields == null) return data;
+        return project(SimpleJsonUtil.parse(data), fields);
+    }
+
+    /**
+     * Keeps only some keys of a station's parsed data
+     *
+     * @param json station data
+     * @param fields keys to keep
+     * @return the projected data as a json string
+     */
+    private static String project(Map<String, String> json, List<String> fields) {
+        Map<String, String> projected = new LinkedHashMap<>();
+        for (String field : fields) {
+            String value = json.get(field);
+            if (value != null) projected.put(field, value);
+        }
+        return SimpleJsonUtil.stringify(projected);
+    }
+
+    /**
+     * Handles a history query - returns a station's past observations with lamport between from and to and write time
+     * (epoch millis) between since and until, every bound is inclusive and optional
+     *
+     * @param req request sent to server
+     * @param out the output stream to send response on
+     */
+    private void handleHistory(HttpHelper.Request req, PrintWriter out) {
+        String stationId = req.query.get("stationId");
+        if (stationId == null || stationId.isEmpty()) {
+            HttpHelper.sendResponse(out, "400 Bad Request", clock.get(), "{\"reason\": \"stationId is required\"}");
+            return;
+        }
+        try {
+            long from = Long.parseLong(req.query.getOrDefault("from", "0"));
+            long to = Long.parseLong(req.query.getOrDefault("to", String.valueOf(Long.MAX_VALUE)));
+            long since = Long.parseLong(req.query.getOrDefault("since", "0"));
+            long until = Long.parseLong(req.query.getOrDefault("until", String.valueOf(Long.MAX_VALUE)));
+
+            List<StationHistory.Observation> observations = views.history.query(stationId, from, to, since, until);
+            HttpHelper.sendResponse(out, "200 OK", clock.get(), StationHistory.toJson(stationId, observations));
+        } catch (NumberFormatException e) {
+            HttpHelper.sendResponse(out, "400 Bad Request", clock.get(), "{\"reason\": \"range bounds must be numbers\"}");
+        } catch (IOException e) {
+            HttpHelper.sendResponse(out, "500 Internal Server Error", clock.get(), "");
+        }
+    }
+
+    /**
+     * Handles a rollup query - returns a station's buckets of one resolution (minute, hour or day - default hour) whose
+     * start time (epoch millis) is between since and until, for one field or for every aggregated field
+     *
+     * @param req request sent to server
+     * @param out the output stream to send response on
+     */
+    private void handleRollups(HttpHelper.Request req, PrintWriter out) {
+        String stationId = req.query.get("stationId");
+        if (stationId == null || stationId.isEmpty()) {
+            HttpHelper.sendResponse(out, "400 Bad Request", clock.get(), "{\"reason\": \"stationId is required\"}");
+            return;
+        }
+        try {
+            StationRollups.Resolution resolution = StationRollups.Resolution.valueOf(
+                    req.query.getOrDefault("resolution", "hour").toUpperCase(Locale.ROOT));
+            long since = Long.parseLong(req.query.getOrDefault("since", "0"));
+            long until = Long.parseLong(req.query.getOrDefault("until", String.valueOf(Long.MAX_VALUE)));
+
+            List<StationRollups.Bucket> buckets = views.rollups.query(stationId, resolution, req.query.get("field"), since, until);
+            HttpHelper.sendResponse(out, "200 OK", clock.get(), StationRollups.toJson(stationId, resolution, buckets));
+        } catch (IllegalArgumentException e) {
+            // also covers NumberFormatException
+            HttpHelper.sendResponse(out, "400 Bad Request", clock.get(),
+                    "{\"reason\": \"resolution must be minute, hour or day and since / until must be numbers\"}");
+        }
+    }
+
+    /**
+     * Handles the anti entropy requests of a peer (see AntiEntropy):
+     *      - "/merkle?nodes=1,2,.." returns {"node":"hash as hex",..} for nodes of the StationMerkleTree
+     *      - "/merkle/bucket?leaves=0,5,.." returns {"id":"lamport",..} for every station in the buckets
+     *      - "/merkle/records?ids=a,b,.." returns {"id":{"lamport":"..","data":{station json}},..} for the stations
+     *        that are stored
+     *
+     * @param req request sent to server
+     * @param out the output stream to send response on
+     */
+    private void handleMerkle(HttpHelper.Request req, PrintWriter out) {
+        if (!views.merkleEnabled) {
+            HttpHelper.sendResponse(out, "400 Bad Request", clock.get(),
+                    "{\"reason\": \"this server runs without the merkle tree (--merkle-tree=false)\"}");
+            return;
+        }
+        Map<String, String> body = new HashMap<>();
+        try {
+            switch (req.path) {
+                case "/merkle":
+                    for (String node : req.query.getOrDefault("nodes", "1").split(",")) {
+                        body.put(node, Long.toHexString(views.merkle.hash(Integer.parseInt(node))));
+                    }
+                    break;
+                case "/merkle/bucket":
+                    for (String leaf : req.query.getOrDefault("leaves", "").split(",")) {
+                        if (leaf.isEmpty()) continue;
+                        for (Map.Entry<String, Integer> station : views.merkle.bucket(Integer.parseInt(leaf)).entrySet()) {
+                            body.put(station.getKey(), String.valueOf(station.getValue()));
+                        }
+                    }
+                    break;
+                default:
+                    for (String stationId : req.query.getOrDefault("ids", "").split(",")) {
+                        // lamport is read before the data, so a concurrent update pairs newer data with the older
+                        // lamport and the next sync fixes it, never the other way round
+                        Integer lamport = views.merkle.lamport(stationId);
+                        String data = lamport == null ? null : store.readSingleStation(stationId).get(stationId);
+                        if (data == null) continue;
+                        Map<String, String> record = new HashMap<>();
+                        record.put("lamport", String.valueOf(lamport));
+                        record.put("data", data);
+                        body.put(stationId, SimpleJsonUtil.stringify(record));
+                    }
+            }
+            HttpHelper.sendResponse(out, "200 OK", clock.get(), SimpleJsonUtil.stringify(body));
+        } catch (IllegalArgumentException e) {
+            HttpHelper.sendResponse(out, "400 Bad Request", clock.get(),
+                    "{\"reason\": \"nodes and leaves must be lists of numbers inside the tree\"}");
+        }
+    }
+
+    /**
+     * Handles a predicate scan - returns the ids of the stations matching every predicate in where, each in the form
+     * field:op:value with op one of gt, ge, lt, le, eq or ne (e.g. "rel_hum:gt:80,wind_spd_kmh:gt:40")
+     *
+     * @param req request sent to server
+     * @param out the output stream to send response on
+     */
+    private void handleScan(HttpHelper.Request req, PrintWriter out) {
+        String where = req.query.get("where");
+        try {
+            if (where == null || where.isEmpty()) throw new IllegalArgumentException("where is required");
+            List<String> stationIds = views.columns.scan(StationColumns.Predicate.parseAll(where));
+            HttpHelper.sendResponse(out, "200 OK", clock.get(), StationColumns.toJson(stationIds));
+        } catch (IllegalArgumentException e) {
+            // also covers NumberFormatException
+            HttpHelper.sendResponse(out, "400 Bad Request", clock.get(), "{\"reason\": \"where must be field:op:value,.. "
+                    + "with a field in " + views.columns.fields() + " and op one of gt, ge, lt, le, eq or ne\"}");
+        }
+    }
+
+    /**
+     * Handles an export - copies every station into a snapshot file (see StationSnapshot)
+     * and sends the file with FileChannel.transferTo. The file is deleted once it has been sent.
+     *
+     * @param out the output stream to send response on
+     */
+    private void handleExport(PrintWriter out) {
+        File snapshot = null;
+        try {
+            List<StationSnapshot.Entry> entries = store.snapshot();
+            snapshot = File.createTempFile("stations-", ".snapshot");
+            long length = StationSnapshot.write(entries, snapshot);
+            System.out.println("Exporting " + entries.size() + " stations (" + length + " bytes)");
+
+            out.flush();
+            OutputStream rawOut = socket.getOutputStream();
+            HttpHelper.sendResponseHead(rawOut, "200 OK", clock.get(), "application/octet-stream", length);
+            // a socket opened through a channel gets a true zero copy transfer, a plain socket is copied in blocks
+            WritableByteChannel target = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(rawOut);
+            StationSnapshot.transfer(snapshot, target);
+            rawOut.flush();
+        } catch (IOException e) {
+            System.err.println("Failed to export stations: " + e.getMessage());
+        } finally {
+            if (snapshot != null && !snapshot.delete()) {
+                System.err.println("Failed to delete " + snapshot);
+            }
+        }
+    }
+
+    /**
+     * Handles a nearest station query - returns the k (default 5) stations closest to lat / lon, nearest first
+     *
+     * @param req request sent to server
+     * @param out the output stream to send response on
+     */
+    private void handleNearest(HttpHelper.Request req, PrintWriter out) {
+        try {
+            double lat = Double.parseDouble(req.query.get("lat"));
+            double lon = Double.parseDouble(req.query.get("lon"));
+            int k = Integer.parseInt(req.query.getOrDefault("k", "5"));
+            if (k <= 0 || !Double.isFinite(lat) || !Double.isFinite(lon)) throw new NumberFormatException("bad point or k");
+
+            List<StationSpatialIndex.Location> nearest = views.spatial.nearest(lat, lon, k);
+            HttpHelper.sendResponse(out, "200 OK", clock.get(), StationSpatialIndex.toJson(nearest));
+        } catch (NumberFormatException | NullPointerException e) {
+            HttpHelper.sendResponse(out, "400 Bad Request", clock.get(),
+                    "{\"reason\": \"lat and lon must be numbers and k a positive integer\"}");
+        }
+    }
+
+    /**
+     * Handles a bounding box query - returns every station with minLat <= lat <= maxLat and minLon <= lon <= maxLon
+     *
+     * @param req request sent to server
+     * @param out the output stream to send response on
+     */
+    private void handleBoundingBox(HttpHelper.Request req, PrintWriter out) {
+        try {
+            double minLat = Double.parseDouble(req.query.get("minLat"));
+            double minLon = Double.parseDouble(req.query.get("minLon"));
+            double maxLat = Double.parseDouble(req.query.get("maxLat"));
+            double maxLon = Double.parseDouble(req.query.get("maxLon"));
+            if (minLat > maxLat || minLon > maxLon) throw new NumberFormatException("empty box");
+
+            List<StationSpatialIndex.Location> inBox = views.spatial.inBox(minLat, minLon, maxLat, maxLon);
+            HttpHelper.sendResponse(out, "200 OK", clock.get(), StationSpatialIndex.toJson(inBox));
+        } catch (NumberFormatException | NullPointerException e) {
+            HttpHelper.sendResponse(out, "400 Bad Request", clock.get(),
+                    "{\"reason\": \"minLat, minLon, maxLat and maxLon must be numbers with min <= max\"}");
+        }
+    }
+
+    /**
+     * Handles a cross station aggregate query - min, max, avg or count of a field over the current data of every
+     * station, or of the stations in one state
+     *
+     * @param req request sent to server
+     * @param out the output stream to send response on
+     */
+    private void handleAggregate(HttpHelper.Request req, PrintWriter out) {
+        String field = req.query.get("field");
+        String fn = req.query.getOrDefault("fn", "avg");
+        String state = req.query.get("state");
+        StationAggregates.Result result;
+        try {
+            result = views.aggregates.query(field, StationAggregates.Function.valueOf(fn.toUpperCase(Locale.ROOT)), state);
+        } catch (IllegalArgumentException | NullPointerException e) {
+            HttpHelper.sendResponse(out, "400 Bad Request", clock.get(), "{\"reason\": \"field must be one of "
+                    + views.aggregates.fields() + " and fn one of min, max, avg or count\"}");
+            return;
+        }
+
+        Map<String, String> body = new HashMap<>();
+        body.put("field", field);
+        body.put("fn", fn.toLowerCase(Locale.ROOT));
+        if (state != null) body.put("state", state);
+        body.put("count", String.valueOf(result.count));
+        body.put("value", result.value == null ? "" : String.valueOf(result.value));
+        HttpHelper.sendResponse(out, "200 OK", clock.get(), SimpleJsonUtil.stringify(body));
+    }
+
+    /**
+     * Copies a station's stored bytes out of the store. The copy is taken while the store holds its lock for the
+     * station (a segment station's read lock, the off heap table's read lock) and is written to the socket after the
+     * lock is released, so a slow client never holds up updates.
+     *
+     * @param stationId station to copy
+     * @return the station's json as utf-8, null if the station isn't stored
+     * @throws IOException if the store fails
+     */
+    private byte[] copyPayload(String stationId) throws IOException {
+        byte[][] copy = new byte[1][];
+        store.withStationPayload(stationId, payload -> {
+            copy[0] = new byte[payload.remaining()];
+            payload.duplicate().get(copy[0]);
+        });
+        return copy[0];
+    }
+
+    /**
+     * Sends a single station's data by copying its stored bytes to the socket - used with stores whose reads are
+     * cheap enough not to coalesce, the stored bytes are copied once and never decoded into a String
+     *
+     * @param stationId station to send
+     * @param out the output stream to send an empty response on if the station doesn't exist
+     */
+    private void sendStationPayload(String stationId, PrintWriter out) {
+        byte[] prefix = ("{\"" + stationId + "\":").getBytes(StandardCharsets.UTF_8);
+        byte[] suffix = "}".getBytes(StandardCharsets.UTF_8);
+        try {
+            byte[] payload = copyPayload(stationId);
+            if (payload == null) {
+                HttpHelper.sendResponse(out, "200 OK", clock.get(), "{}");
+                return;
+            }
+            HttpHelper.sendResponse(socket.getOutputStream(), "200 OK", clock.get(), ByteBuffer.wrap(prefix),
+                    ByteBuffer.wrap(payload), ByteBuffer.wrap(suffix));
+        } catch (IOException e) {
+            System.err.println("Failed to send station " + stationId + ": " + e.getMessage());
+        }
+    }
+}
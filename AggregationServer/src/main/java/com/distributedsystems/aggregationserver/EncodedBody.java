@@ -0,0 +1,50 @@
+package com.distributedsystems.aggregationserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encoded Body: a response body as utf-8 bytes, plus its gzip encoding which is made the first time a client asks
+ * for it and then kept - a cached body is only ever compressed once.
+ */
+public class EncodedBody {
+    // data version the body was built at, see StationStore.version()
+    public final long version;
+    public final byte[] identity;
+    private volatile byte[] gzip;
+
+    /**
+     * @param version data version the body was built at, -1 if the body is not cached
+     * @param json the body
+     */
+    public EncodedBody(long version, String json) {
+        this.version = version;
+        this.identity = json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the body gzip compressed
+     */
+    public byte[] gzip() {
+        byte[] compressed = gzip;
+        if (compressed == null) {
+            // two threads may both compress on a race, both results are the same
+            compressed = compress(identity);
+            gzip = compressed;
+        }
+        return compressed;
+    }
+
+    static byte[] compress(byte[] bytes) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, bytes.length / 4));
+        try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+            out.write(bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // can't happen writing to memory
+        }
+        return compressed.toByteArray();
+    }
+}
@@ -6,37 +6,123 @@ import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 
 /**
  * File manager: Handles file updates and ensures that read / write locks are managed correctly and ensure correct ordering
+ *
+ * Station files are sharded over two levels of directories by a hash of the station id (<data dir>/ab/cd/<id>.rec) so
+ * no directory grows with the number of stations. The ids of all stored stations are kept in an append only manifest
+ * (<data dir>/stations.manifest) so a restart never has to walk the directory tree. Each file holds one binary
+ * StationRecord - json files written by older versions are converted on startup.
+ * All state belongs to the instance, so servers in one JVM can each have a FileManager over their own directory.
+ * SegmentStationStore and OffHeapStationStore are the memory mapped and off heap alternatives.
  */
-public class FileManager {
+public class FileManager implements StationStore {
+    // directory used by stores created without one
     public static File DATA_DIR = new File("data");
 
+    private static final String MANIFEST_NAME = "stations.manifest";
+    private static final String TMP_DIR_NAME = "tmp";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    // Write behind: delay before retrying a failed flush, doubled after each failure up to the max
+    private static final long FLUSH_RETRY_MILLIS = 100;
+    private static final long MAX_FLUSH_RETRY_MILLIS = 30_000;
+
     // Read Write Locks for stations ensures PUT GET PUT write order get cannot read until put writes, put cannot write until get reads.
-    private static final ConcurrentHashMap<String, ReentrantReadWriteLock> stationLocks = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ReentrantReadWriteLock> stationLocks = new ConcurrentHashMap<>();
 
     // Stores when a station was last written to - if data is stale we remove the file
-    private static final ConcurrentHashMap<String, Instant> stationLastWrite = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Instant> stationLastWrite = new ConcurrentHashMap<>();
+
+    // Lamport of the version on disk for each station - saves reading the file to reject stale updates
+    private final ConcurrentHashMap<String, Integer> stationLamport = new ConcurrentHashMap<>();
+
+    // Write behind: accepted updates that are visible to GETs but not yet written to disk (latest version only)
+    private final ConcurrentHashMap<String, PendingWrite> pendingWrites = new ConcurrentHashMap<>();
+
+    // Write behind: stations with a flush scheduled, and when each station was last flushed
+    private final Set<String> flushScheduled = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<String, Long> lastFlushMillis = new ConcurrentHashMap<>();
+
+    // Station ids recorded in the manifest
+    private final Set<String> manifestIds = ConcurrentHashMap.newKeySet();
+
+    // Incremented every time the visible station data changes - lets readers tell whether a result is up to date
+    private final AtomicLong dataVersion = new AtomicLong();
+
+    private final File dataDir;
+    private final long writeBehindMillis;
+    private final ScheduledExecutorService flusher;
+
+    /**
+     * An accepted update waiting to be written to disk
+     */
+    private static final class PendingWrite {
+        final int lamport;
+        final String data;
+
+        PendingWrite(int lamport, String data) {
+            this.lamport = lamport;
+            this.data = data;
+        }
+    }
 
     /**
      * Initialises the data store folder in project root
      */
     public FileManager() {
-        if (!DATA_DIR.exists() && !DATA_DIR.mkdirs()) {
+        this(DATA_DIR);
+    }
+
+    /**
+     * Initialises a store in a data directory, writing every update to disk before it is acknowledged
+     * @param dataDir directory holding the station files
+     */
+    public FileManager(File dataDir) {
+        this(dataDir, 0);
+    }
+
+    /**
+     * Initialises a store in a data directory with write behind persistence - accepted updates are kept in memory and
+     * visible to GETs immediately, each station is written to disk at most once per interval and only its latest
+     * version is written.
+     * Durability: an accepted update is on disk at most writeBehindMillis (plus the time of the write) after it was
+     * accepted - if the server crashes, updates accepted in that window are lost. A write that fails is retried with
+     * backoff, the update stays pending and visible until it is on disk. close writes everything out and stops the
+     * flush thread, it is called when the server stops.
+     *
+     * @param dataDir directory holding the station files
+     * @param writeBehindMillis minimum time between writes of the same station, 0 writes every update immediately
+     */
+    public FileManager(File dataDir, long writeBehindMillis) {
+        if (!dataDir.exists() && !dataDir.mkdirs()) {
             throw new RuntimeException("Failed to create data directory");
         }
+        this.dataDir = dataDir;
+        this.writeBehindMillis = writeBehindMillis;
+        this.flusher = writeBehindMillis <= 0 ? null : Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "write-behind-flusher");
+            t.setDaemon(true);
+            return t;
+        });
     }
 
-    public enum UpdateResult { CREATED, UPDATED, STALE }
-
     /**
-     * Updates a station file - locks file and checks if it needs to be updated (cur lamport < new lamport)
+     * Updates a station file - checks if it needs to be updated (cur lamport < new lamport)
+     * The new version is written to a temp file before the station is locked, the write lock is only held to
+     * re-check the lamport and rename the temp file into place, so readers of the station never wait on disk io
+     * In write behind mode the update is only stored in memory here and written to disk later
      * Updates stationLastWrite if file is updated - used for removing stale files
      *
      * @param stationId station Id to be updated
@@ -45,62 +131,411 @@ public class FileManager {
      * @return information about the update
      * @throws IOException if file write errors occur
      */
+    @Override
     public UpdateResult updateStation(String stationId, int lamport, Map<String, String> json) throws IOException {
+        File file = stationFile(stationId);
+
+        // cheap check first so stale updates don't pay for a write at all
+        if (lamport <= currentLamport(stationId, file)) {
+            return UpdateResult.STALE;
+        }
+
+        String data = SimpleJsonUtil.stringify(json);
+        boolean writeBehind = writeBehindMillis > 0;
+        File tmp = writeBehind ? null : writeTempFile(stationId, lamport, data);
+
         ReentrantReadWriteLock lock = stationLocks.computeIfAbsent(stationId, k -> new ReentrantReadWriteLock());
         lock.writeLock().lock();
         try {
-            File file = new File(DATA_DIR, stationId + ".json");
-            boolean createNewFile = !file.exists();
+            // another PUT may have been applied while the temp file was written
+            if (lamport <= currentLamport(stationId, file)) {
+                if (tmp != null) Files.deleteIfExists(tmp.toPath());
+                return UpdateResult.STALE;
+            }
+
+            if (writeBehind) {
+                pendingWrites.put(stationId, new PendingWrite(lamport, data));
+                scheduleFlush(stationId);
+            } else {
+                moveIntoPlace(stationId, tmp, file);
+            }
+            stationLamport.put(stationId, lamport);
+            dataVersion.incrementAndGet();
+
+            boolean isNew = !stationLastWrite.containsKey(stationId);
+            stationLastWrite.put(stationId, Instant.now());
+            return isNew ? UpdateResult.CREATED : UpdateResult.UPDATED;
+
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes a station version to a uniquely named temp file - concurrent writers for the same station
+     * can't clobber each other
+     *
+     * @param stationId station being written
+     * @param lamport lamport of the version
+     * @param data station data as a json string
+     * @return the temp file, ready to be renamed into place
+     * @throws IOException if the write fails
+     */
+    private File writeTempFile(String stationId, int lamport, String data) throws IOException {
+        StationRecord record = new StationRecord(lamport, System.currentTimeMillis(), data.getBytes(StandardCharsets.UTF_8));
+        return writeTempFile(stationId, record);
+    }
+
+    private File writeTempFile(String stationId, StationRecord record) throws IOException {
+        File tmpDir = new File(dataDir, TMP_DIR_NAME);
+        if (!tmpDir.exists() && !tmpDir.mkdirs()) {
+            throw new IOException("Failed to create " + tmpDir);
+        }
+        File tmp = File.createTempFile("station-" + stationId + ".", ".tmp", tmpDir);
+        Files.write(tmp.toPath(), record.encode());
+        return tmp;
+    }
+
+    /**
+     * Renames a temp file over a station's file - the station is added to the manifest first so a crash can't leave
+     * a file the manifest doesn't know about. Must be called while holding the station's write lock.
+     *
+     * @param stationId station being written
+     * @param tmp temp file holding the new version
+     * @param file the station's file
+     * @throws IOException if the rename fails
+     */
+    private void moveIntoPlace(String stationId, File tmp, File file) throws IOException {
+        File shard = file.getParentFile();
+        if (!shard.exists() && !shard.mkdirs()) {
+            throw new IOException("Failed to create " + shard);
+        }
+        addToManifest(stationId);
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns the file a station is stored in - <data dir>/xx/yy/<id>.rec where xx and yy are taken from a
+     * CRC32 of the id
+     *
+     * @param stationId the station
+     * @return the station's file
+     */
+    File stationFile(String stationId) {
+        return new File(shardDir(stationId), stationId + ".rec");
+    }
+
+    /**
+     * Returns where older versions stored a station as json in the sharded layout - <data dir>/xx/yy/<id>.json
+     *
+     * @param stationId the station
+     * @return the station's old json file
+     */
+    File legacyStationFile(String stationId) {
+        return new File(shardDir(stationId), stationId + ".json");
+    }
 
-            if (!createNewFile) {
-                String existing = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
-                Map<String, String> existingJson = SimpleJsonUtil.parse(existing);
-                int oldLamport = Integer.parseInt(existingJson.getOrDefault("lamport", "0"));
+    private File shardDir(String stationId) {
+        return new File(dataDir, shardPath(stationId));
+    }
 
-                if (lamport <= oldLamport) {
-                    return UpdateResult.STALE;
+    /**
+     * Returns the two level shard directory for a station - "xx/yy" where xx and yy are taken from a CRC32 of the id
+     *
+     * @param stationId the station
+     * @return the shard path relative to a data directory
+     */
+    static String shardPath(String stationId) {
+        CRC32 crc = new CRC32();
+        crc.update(stationId.getBytes(StandardCharsets.UTF_8));
+        int hash = (int) crc.getValue();
+        return new String(new char[] {
+                HEX[(hash >>> 12) & 0xf], HEX[(hash >>> 8) & 0xf], File.separatorChar, HEX[(hash >>> 4) & 0xf], HEX[hash & 0xf]
+        });
+    }
+
+    private void addToManifest(String stationId) throws IOException {
+        if (manifestIds.add(stationId)) {
+            appendToManifest("+" + stationId);
+        }
+    }
+
+    private void removeFromManifest(String stationId) throws IOException {
+        if (manifestIds.remove(stationId)) {
+            appendToManifest("-" + stationId);
+        }
+    }
+
+    private synchronized void appendToManifest(String line) throws IOException {
+        try (FileWriter fw = new FileWriter(new File(dataDir, MANIFEST_NAME), StandardCharsets.UTF_8, true)) {
+            fw.write(line + "\n");
+        }
+    }
+
+    /**
+     * Reads the station ids from the manifest - "+id" lines add a station and "-id" lines remove it
+     *
+     * @return ids of the stations in the manifest
+     * @throws IOException if the manifest can't be read
+     */
+    Set<String> readManifest() throws IOException {
+        Set<String> ids = new LinkedHashSet<>();
+        File manifest = new File(dataDir, MANIFEST_NAME);
+        if (!manifest.exists()) return ids;
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(manifest, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() < 2) continue;
+                String stationId = line.substring(1);
+                if (line.charAt(0) == '+') {
+                    ids.add(stationId);
+                } else if (line.charAt(0) == '-') {
+                    ids.remove(stationId);
                 }
             }
+        }
+        return ids;
+    }
 
-            Map<String, String> wrapped = new HashMap<>();
-            wrapped.put("lamport", String.valueOf(lamport));
-            wrapped.put("data", SimpleJsonUtil.stringify(json));
+    /**
+     * Replaces the manifest with one "+id" line per station, dropping the history of removed stations
+     *
+     * @param ids ids of the stations currently stored
+     * @throws IOException if the manifest can't be written
+     */
+    private synchronized void rewriteManifest(Collection<String> ids) throws IOException {
+        File tmp = new File(dataDir, MANIFEST_NAME + ".tmp");
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(tmp, StandardCharsets.UTF_8))) {
+            for (String stationId : ids) {
+                writer.write("+" + stationId);
+                writer.newLine();
+            }
+        }
+        Files.move(tmp.toPath(), new File(dataDir, MANIFEST_NAME).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        manifestIds.clear();
+        manifestIds.addAll(ids);
+    }
 
-            File tmp = new File(DATA_DIR, stationId + ".tmp");
-            try (FileWriter fw = new FileWriter(tmp)) {
-                fw.write(SimpleJsonUtil.stringify(wrapped));
+    /**
+     * Moves station files left in the root of the data directory by the old flat layout into their shard directories and
+     * records them in the manifest - they are still json and are converted by convertLegacyRecords.
+     * Safe to run again if it was interrupted.
+     *
+     * @return the number of stations moved
+     * @throws IOException if a file can't be moved
+     */
+    int migrateFlatLayout() throws IOException {
+        File[] flatFiles = dataDir.listFiles((dir, name) -> name.endsWith(".json"));
+        if (flatFiles == null) return 0;
+
+        manifestIds.addAll(readManifest());
+        for (File flat : flatFiles) {
+            String stationId = flat.getName().substring(0, flat.getName().length() - ".json".length());
+            moveIntoPlace(stationId, flat, legacyStationFile(stationId));
+        }
+        if (flatFiles.length > 0) {
+            System.out.println("Migrated " + flatFiles.length + " stations to the sharded data layout");
+        }
+        return flatFiles.length;
+    }
+
+    /**
+     * Converts station files written as json by older versions ({"lamport":"..","data":{station json}}) into
+     * binary records. A json file is only removed once its record is in place, so this is safe to run again if it was
+     * interrupted. Files that can't be converted are left where they are.
+     *
+     * @param stationIds stations to check
+     * @return the number of stations converted
+     */
+    int convertLegacyRecords(Collection<String> stationIds) {
+        int converted = 0;
+        for (String stationId : stationIds) {
+            File legacy = legacyStationFile(stationId);
+            if (!legacy.exists()) continue;
+            try {
+                // a record next to the json file was written after the upgrade, so it is newer
+                if (!stationFile(stationId).exists()) {
+                    String json = new String(Files.readAllBytes(legacy.toPath()), StandardCharsets.UTF_8);
+                    StationRecord record = StationRecord.fromLegacyJson(json, legacy.lastModified());
+                    Files.move(writeTempFile(stationId, record).toPath(), stationFile(stationId).toPath(),
+                            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    converted++;
+                }
+                Files.delete(legacy.toPath());
+            } catch (Exception e) {
+                System.err.println("Failed to convert " + legacy + ": " + e.getMessage());
             }
+        }
+        if (converted > 0) {
+            System.out.println("Converted " + converted + " station files to the binary record format");
+        }
+        return converted;
+    }
 
-            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    /**
+     * Schedules a flush for a station unless one is already scheduled - the flush runs once the interval since the
+     * station's previous flush has passed. Must be called while holding the station's write lock.
+     *
+     * @param stationId station with a pending write
+     */
+    private void scheduleFlush(String stationId) {
+        if (!flushScheduled.add(stationId)) return;
 
-            boolean isNew = !stationLastWrite.containsKey(stationId);
-            stationLastWrite.put(stationId, Instant.now());
-            return isNew ? UpdateResult.CREATED : UpdateResult.UPDATED;
+        long dueAt = lastFlushMillis.getOrDefault(stationId, 0L) + writeBehindMillis;
+        scheduleFlush(stationId, Math.max(0, dueAt - System.currentTimeMillis()), 0);
+    }
+
+    /**
+     * Schedules a flush whose flag is already set - a failed flush schedules itself again after a backoff
+     *
+     * @param stationId station with a pending write
+     * @param delayMillis time until the flush runs
+     * @param failures number of times the flush has failed in a row
+     */
+    private void scheduleFlush(String stationId, long delayMillis, int failures) {
+        flusher.schedule(() -> {
+            // clear the flag first - an update arriving while we write schedules the next flush
+            flushScheduled.remove(stationId);
+            try {
+                flushStation(stationId);
+            } catch (IOException e) {
+                long retryMillis = Math.min(MAX_FLUSH_RETRY_MILLIS, FLUSH_RETRY_MILLIS << Math.min(failures, 16));
+                System.err.println("Failed to persist station " + stationId + ", retrying in " + retryMillis + " ms: "
+                        + e.getMessage());
+                // an update since the flag was cleared may have scheduled a flush already
+                if (flushScheduled.add(stationId)) {
+                    scheduleFlush(stationId, retryMillis, failures + 1);
+                }
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
 
+    /**
+     * Writes the pending version of a station to disk, if it has one - it stays pending if the write fails
+     *
+     * @param stationId station to flush
+     * @throws IOException if the write fails
+     */
+    private void flushStation(String stationId) throws IOException {
+        PendingWrite pending = pendingWrites.get(stationId);
+        if (pending == null) return;
+        lastFlushMillis.put(stationId, System.currentTimeMillis());
+
+        File tmp = writeTempFile(stationId, pending.lamport, pending.data);
+        ReentrantReadWriteLock lock = stationLocks.computeIfAbsent(stationId, k -> new ReentrantReadWriteLock());
+        lock.writeLock().lock();
+        try {
+            // only write if nothing replaced the version we took - a newer one has its own flush scheduled and an
+            // expired station must not be brought back
+            if (pendingWrites.get(stationId) != pending) {
+                Files.deleteIfExists(tmp.toPath());
+                return;
+            }
+            try {
+                moveIntoPlace(stationId, tmp, stationFile(stationId));
+            } catch (IOException e) {
+                Files.deleteIfExists(tmp.toPath());
+                throw e;
+            }
+            pendingWrites.remove(stationId, pending);
         } finally {
             lock.writeLock().unlock();
         }
     }
 
+    /**
+     * Stops the write behind thread, dropping its scheduled flushes and retries, then writes every pending update
+     */
+    @Override
+    public void close() {
+        if (flusher != null) {
+            flusher.shutdownNow();
+            try {
+                // a flush interrupted part way leaves its update pending, the flush below writes it
+                flusher.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Writes every pending write behind update to disk
+     */
+    @Override
+    public void flush() {
+        for (String stationId : pendingWrites.keySet()) {
+            try {
+                flushStation(stationId);
+            } catch (IOException e) {
+                System.err.println("Failed to persist station " + stationId + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Returns the lamport of the version currently stored for a station, reading it from disk only if the
+     * station has not been seen since startup
+     *
+     * @param stationId station to check
+     * @param file the station's file
+     * @return the stored lamport or -1 if there is no stored version
+     * @throws IOException if the file can't be read
+     */
+    private int currentLamport(String stationId, File file) throws IOException {
+        Integer cached = stationLamport.get(stationId);
+        if (cached != null) return cached;
+        if (!file.exists()) return -1;
+
+        // only the record header is read
+        return (int) StationRecord.readLamport(file);
+    }
+
+    @Override
+    public long version() {
+        return dataVersion.get();
+    }
+
+    @Override
+    public boolean removeStation(String stationId) {
+        return removeIfOlder(stationId, Instant.MAX);
+    }
+
     /**
      * Reads data from a single station
      *
      * @param stationId station to read data for
      * @return a map of stationId : data as json string
      */
+    @Override
     public Map<String, String> readSingleStation(String stationId) {
         Map<String, String> flatMap = new HashMap<>();
-        File file = new File(DATA_DIR, stationId + ".json");
-        if (!file.exists()) {
+        PendingWrite pending = pendingWrites.get(stationId);
+        if (pending != null) {
+            flatMap.put(stationId, pending.data);
+            return flatMap;
+        }
+        File file = stationFile(stationId);
+        if (!file.exists() && !stationLamport.containsKey(stationId)) {
             return flatMap;
         }
         ReentrantReadWriteLock lock = stationLocks.computeIfAbsent(stationId, k -> new ReentrantReadWriteLock());
         lock.readLock().lock();
         try {
-            String json = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
-            Map<String, String> content = SimpleJsonUtil.parse(json);
-            flatMap.put(stationId, content.get("data"));
-        } catch (IOException ignored) {}
+            // a write behind flush takes the pending write and moves its file into place under the write lock, so
+            // look again now that it can't be half way through
+            pending = pendingWrites.get(stationId);
+            if (pending != null) {
+                flatMap.put(stationId, pending.data);
+            } else if (file.exists()) {
+                flatMap.put(stationId, StationRecord.read(file).data());
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to read station " + stationId + ": " + e.getMessage());
+        }
         finally {
             lock.readLock().unlock();
         }
@@ -108,62 +543,80 @@ public class FileManager {
     }
 
     /**
-     * Reads data from all stations and returns them together
+     * Reads data from all stations and returns them together - walks the known stations rather than listing the
+     * data directory
      *
      * @return a map of stationId : data as json string
      */
+    @Override
     public Map<String, String> readAllStations() {
         Map<String, String> flatMap = new HashMap<>();
-        File[] files = DATA_DIR.listFiles((dir, name) -> name.endsWith(".json"));
-        if (files != null) {
-            for (File f : files) {
-                String stationId = f.getName().replace(".json", "");
-
-                ReentrantReadWriteLock lock = stationLocks.computeIfAbsent(stationId, k -> new ReentrantReadWriteLock());
-                lock.readLock().lock();
-                try {
-                    Map<String, String> content = SimpleJsonUtil.parse(new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8));
-                    flatMap.put(stationId, content.get("data"));
-
-                } catch (IOException ignored) {}
-                finally {
-                    lock.readLock().unlock();
-                }
-            }
+        for (String stationId : stationLamport.keySet()) {
+            flatMap.putAll(readSingleStation(stationId));
         }
         return flatMap;
     }
 
+    /**
+     * Calls visitor for every known station with its lamport and last write time
+     *
+     * @param visitor called once per station
+     */
+    @Override
+    public void forEachStation(StationVisitor visitor) {
+        for (Map.Entry<String, Integer> station : stationLamport.entrySet()) {
+            String data = readSingleStation(station.getKey()).get(station.getKey());
+            if (data == null) continue;
+            Instant lastWrite = stationLastWrite.get(station.getKey());
+            visitor.visit(station.getKey(), station.getValue(), lastWrite == null ? 0 : lastWrite.toEpochMilli(), data);
+        }
+    }
+
     /**
      * Called when a server starts up and will read all exisiting files on the disc and update
-     * lock and timestamp maps.
+     * lock and timestamp maps. Stations are found through the manifest, a data directory in the old flat layout is
+     * migrated first.
      *
      * @return the maximum lamport clock present in data
      */
-    public static int reloadStationsOnStartup() {
+    @Override
+    public int reload() {
         int maxLamport = 0;
 
-        File[] files = DATA_DIR.listFiles((dir, name) -> name.endsWith(".json"));
-        if (files == null) return 0;
-
-        for (File file : files) {
-            try {
-                String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
-                Map<String, String> wrapped = SimpleJsonUtil.parse(content);
+        // temp files are left behind if the server stopped mid write - they were never renamed so never applied
+        File[] leftovers = new File(dataDir, TMP_DIR_NAME).listFiles();
+        if (leftovers != null) {
+            for (File leftover : leftovers) {
+                leftover.delete();
+            }
+        }
 
-                // stationId is filename (strip .json)
-                String stationId = file.getName().replace(".json", "");
+        Set<String> stationIds;
+        try {
+            migrateFlatLayout();
+            stationIds = readManifest();
+        } catch (IOException e) {
+            System.err.println("Failed to read station manifest: " + e.getMessage());
+            return 0;
+        }
+        convertLegacyRecords(stationIds);
 
-                int lamport = Integer.parseInt(wrapped.getOrDefault("lamport", "0"));
+        List<String> reloaded = new ArrayList<>();
+        for (String stationId : stationIds) {
+            File file = stationFile(stationId);
+            if (!file.exists()) continue;
+            try {
+                // read checks the record's CRC
+                int lamport = (int) StationRecord.read(file).lamport;
                 maxLamport = Math.max(maxLamport, lamport);
 
-                // data was wrapped as JSON string, unwrap
-                String dataJson = wrapped.get("data");
-                Map<String, String> ignored = SimpleJsonUtil.parse(dataJson); // test that data can be parsed
-
                 // put into memory structures
                 stationLastWrite.put(stationId, Instant.now());
+                stationLamport.put(stationId, lamport);
                 stationLocks.putIfAbsent(stationId, new ReentrantReadWriteLock());
+                reloaded.add(stationId);
+
+                dataVersion.incrementAndGet();
 
                 System.out.println("Reloaded station " + stationId + " (lamport=" + lamport + ")");
             } catch (Exception e) {
@@ -171,44 +624,95 @@ public class FileManager {
             }
         }
 
+        // compact the manifest down to the stations that actually came back
+        try {
+            rewriteManifest(reloaded);
+        } catch (IOException e) {
+            System.err.println("Failed to rewrite station manifest: " + e.getMessage());
+        }
+
         return maxLamport;
     }
 
+    /**
+     * Removes every station that has not been written since a point in time - its file is deleted and it is
+     * dropped from the manifest
+     *
+     * @param olderThanMillis epoch millis - stations last written before this are removed
+     * @return ids of the stations removed
+     */
+    @Override
+    public List<String> expireStations(long olderThanMillis) {
+        Instant removeOlderThan = Instant.ofEpochMilli(olderThanMillis);
+        List<String> removed = new ArrayList<>();
+        for (String stationId : stationLastWrite.keySet()) {
+            if (removeIfOlder(stationId, removeOlderThan)) {
+                removed.add(stationId);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Removes a station if it has not been written since a point in time - its file is deleted and it is dropped
+     * from the manifest
+     *
+     * @param stationId station to remove
+     * @param removeOlderThan the station is removed if it was last written before this
+     * @return true if the station was removed
+     */
+    private boolean removeIfOlder(String stationId, Instant removeOlderThan) {
+        ReentrantReadWriteLock lock = stationLocks.computeIfAbsent(stationId, k -> new ReentrantReadWriteLock());
+        lock.writeLock().lock();
+        try {
+            Instant lastWrite = stationLastWrite.get(stationId);
+            if (lastWrite == null || !lastWrite.isBefore(removeOlderThan)) {
+                return false;
+            }
+            pendingWrites.remove(stationId);
+            lastFlushMillis.remove(stationId);
+            File file = stationFile(stationId);
+            if (file.exists()){
+                if (file.delete()){
+                    System.out.println("Data for station: " + stationId + " expired");
+                } else {
+                    System.out.println("Failed to delete data for station: " + stationId);
+                    return false;
+                }
+            }
+            stationLastWrite.remove(stationId);
+            stationLamport.remove(stationId);
+            dataVersion.incrementAndGet();
+            removeFromManifest(stationId);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Failed to update manifest for station " + stationId + ": " + e.getMessage());
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
     /**
      * Internal Runnable class that can be executed on a thread to remove stale data
      */
     public static class StaleDataRemover implements Runnable {
         int dataExpirationSeconds;
+        private final StationStore store;
 
         /**
-         * Creates a StaleDataRemoverObject that removes data after it has not been updated after time
+         * Creates a StaleDataRemoverObject that removes data from a store after it has not been updated after time
+         * @param store the store to remove data from
          * @param dataExpirationSeconds the time that data has to be untouched before it becomes stale
          */
-        StaleDataRemover(int dataExpirationSeconds){
+        StaleDataRemover(StationStore store, int dataExpirationSeconds){
+            this.store = store;
             this.dataExpirationSeconds = dataExpirationSeconds;
         }
 
-        private void removeStaleData(){
-            Instant removeOlderThan = Instant.now().minusSeconds(dataExpirationSeconds);
-            for (Map.Entry<String, Instant> entry : stationLastWrite.entrySet()){
-                stationLocks.get(entry.getKey()).writeLock().lock();
-                if (entry.getValue().isBefore(removeOlderThan)){
-                    File file = new File(DATA_DIR, entry.getKey() + ".json");
-                    if (file.exists()){
-                        if (file.delete()){
-                            System.out.println("Data for station: " + entry.getKey() + " expired");
-                        } else {
-                            System.out.println("Failed to delete data for station: " + entry.getKey());
-                        }
-                    }
-                }
-                stationLocks.get(entry.getKey()).writeLock().unlock();
-            }
-        }
-
         @Override
         public void run() {
-            removeStaleData();
+            store.expireStations(Instant.now().minusSeconds(dataExpirationSeconds).toEpochMilli());
         }
     }
 
@@ -0,0 +1,104 @@
+package com.distributedsystems.aggregationserver;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Idempotency Cache: the response sent for each recent PUT that carried an Idempotency-Key header. A PUT repeating a
+ * key is answered with the original response without touching the store, so a content server retrying a PUT whose
+ * response it lost costs a map lookup instead of a write.
+ *
+ * Keys are kept for ttlMillis and at most capacity of them are kept, the oldest go first. Every key lives for the same
+ * time, so insertion order is also expiry order and expired keys are dropped from the head of the map.
+ */
+public class IdempotencyCache {
+    private final int capacity;
+    private final long ttlNanos;
+    private final LinkedHashMap<String, Result> results = new LinkedHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * The response sent for a key
+     */
+    public static final class Result {
+        public final String status;
+        public final String body;
+        final long storedAtNanos;
+
+        Result(String status, String body, long storedAtNanos) {
+            this.status = status;
+            this.body = body;
+            this.storedAtNanos = storedAtNanos;
+        }
+    }
+
+    /**
+     * @param capacity most keys kept, 0 turns the cache off
+     * @param ttlMillis time a key is kept for
+     */
+    public IdempotencyCache(int capacity, long ttlMillis) {
+        this.capacity = capacity;
+        this.ttlNanos = ttlMillis * 1_000_000L;
+    }
+
+    /**
+     * @param key idempotency key of a request
+     * @return the response sent for key, or null if key wasn't seen or has expired
+     */
+    public Result get(String key) {
+        return get(key, System.nanoTime());
+    }
+
+    synchronized Result get(String key, long nowNanos) {
+        expire(nowNanos);
+        Result result = results.get(key);
+        if (result != null) hits.incrementAndGet();
+        return result;
+    }
+
+    /**
+     * Remembers the response sent for key
+     * @param key idempotency key of the request
+     * @param status response status
+     * @param body response body
+     */
+    public void put(String key, String status, String body) {
+        put(key, status, body, System.nanoTime());
+    }
+
+    synchronized void put(String key, String status, String body, long nowNanos) {
+        if (capacity <= 0) return;
+        expire(nowNanos);
+        // a key stored again moves to the tail, it expires after the newest entry
+        results.remove(key);
+        results.put(key, new Result(status, body, nowNanos));
+        if (results.size() > capacity) {
+            Iterator<String> eldest = results.keySet().iterator();
+            eldest.next();
+            eldest.remove();
+        }
+    }
+
+    private void expire(long nowNanos) {
+        Iterator<Map.Entry<String, Result>> entries = results.entrySet().iterator();
+        while (entries.hasNext() && nowNanos - entries.next().getValue().storedAtNanos >= ttlNanos) {
+            entries.remove();
+        }
+    }
+
+    /**
+     * @return number of keys currently kept
+     */
+    public synchronized int size() {
+        return results.size();
+    }
+
+    /**
+     * @return number of requests answered from the cache
+     */
+    public long hitCount() {
+        return hits.get();
+    }
+}
@@ -0,0 +1,401 @@
+package com.distributedsystems.aggregationserver;
+
+import com.distributedsystems.shared.SimpleJsonUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Log Structured Station Store: every accepted update is appended to a single log file, an in-memory index maps each
+ * station to the position of its latest record. Writes are sequential appends no matter how many stations there are,
+ * reads are one positional read, and a restart replays the log to rebuild the index.
+ *
+ *      - expiry appends a remove record so an expired station stays removed after a replay
+ *      - once the log is more than twice the size of the live records it is compacted: the live records are copied to
+ *        a new log which is renamed over the old one
+ *      - appends reach the page cache straight away (safe from a server crash) and the disk when the OS writes them
+ *        back or flush is called - a record torn by an OS crash fails its CRC and the log is cut off before it
+ *
+ * Record layout:
+ *      0   int     CRC32 of the rest of the record
+ *      4   byte    type (PUT or REMOVE)
+ *      5   int     lamport
+ *      9   long    write time in epoch millis
+ *      17  short   id length
+ *      19  int     payload length
+ *      23  bytes   id
+ *      ..  bytes   payload
+ */
+public class LogStructuredStationStore implements StationStore {
+    static final String LOG_NAME = "stations.log";
+
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final int HEADER_SIZE = 23;
+    private static final long MIN_COMPACTION_BYTES = 1024 * 1024;
+
+    /**
+     * Position and metadata of a station's latest record in the log
+     */
+    private static final class Entry {
+        final int lamport;
+        final long lastWriteMillis;
+        final long offset;
+        final int idLength;
+        final int payloadLength;
+
+        Entry(int lamport, long lastWriteMillis, long offset, int idLength, int payloadLength) {
+            this.lamport = lamport;
+            this.lastWriteMillis = lastWriteMillis;
+            this.offset = offset;
+            this.idLength = idLength;
+            this.payloadLength = payloadLength;
+        }
+
+        int recordLength() {
+            return HEADER_SIZE + idLength + payloadLength;
+        }
+    }
+
+    private final File logFile;
+    private final ConcurrentHashMap<String, Entry> index = new ConcurrentHashMap<>();
+    private final AtomicLong dataVersion = new AtomicLong();
+
+    // read lock: reading a record, write lock: swapping in a compacted log - appends synchronize on the store
+    private final ReentrantReadWriteLock logLock = new ReentrantReadWriteLock();
+    private FileChannel log;
+    private long logSize;
+    private long liveBytes;
+
+    /**
+     * Opens (or creates) the log in a directory - call reload to rebuild the index from an existing log
+     *
+     * @param dir directory holding the log
+     * @throws IOException if the log can't be opened
+     */
+    public LogStructuredStationStore(File dir) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        this.logFile = new File(dir, LOG_NAME);
+        this.log = open(logFile);
+        this.logSize = log.size();
+    }
+
+    private static FileChannel open(File file) throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    @Override
+    public UpdateResult updateStation(String stationId, int lamport, Map<String, String> json) throws IOException {
+        Entry current = index.get(stationId);
+        // cheap check first so stale updates don't take the append lock
+        if (current != null && lamport <= current.lamport) {
+            return UpdateResult.STALE;
+        }
+        byte[] payload = SimpleJsonUtil.stringify(json).getBytes(StandardCharsets.UTF_8);
+
+        synchronized (this) {
+            current = index.get(stationId);
+            if (current != null && lamport <= current.lamport) {
+                return UpdateResult.STALE;
+            }
+            Entry entry = append(PUT, stationId, lamport, System.currentTimeMillis(), payload);
+            index.put(stationId, entry);
+            liveBytes += entry.recordLength() - (current == null ? 0 : current.recordLength());
+            dataVersion.incrementAndGet();
+            compactIfNeeded();
+            return current == null ? UpdateResult.CREATED : UpdateResult.UPDATED;
+        }
+    }
+
+    /**
+     * Appends one record to the end of the log - must be called while synchronized on the store
+     *
+     * @return the index entry for the record
+     */
+    private Entry append(byte type, String stationId, int lamport, long writeMillis, byte[] payload) throws IOException {
+        byte[] id = stationId.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + id.length + payload.length);
+        record.putInt(0);
+        record.put(type);
+        record.putInt(lamport);
+        record.putLong(writeMillis);
+        record.putShort((short) id.length);
+        record.putInt(payload.length);
+        record.put(id);
+        record.put(payload);
+        record.putInt(0, crc(record.array(), 4, record.capacity() - 4));
+        record.flip();
+
+        long offset = logSize;
+        while (record.hasRemaining()) {
+            log.write(record, offset + record.position());
+        }
+        logSize += record.capacity();
+        return new Entry(lamport, writeMillis, offset, id.length, payload.length);
+    }
+
+    private static int crc(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Reads the payload of a station's latest record
+     *
+     * @param stationId station to read
+     * @return the payload, or null if the station isn't stored
+     * @throws IOException if the log can't be read
+     */
+    private ByteBuffer readPayload(String stationId) throws IOException {
+        logLock.readLock().lock();
+        try {
+            Entry entry = index.get(stationId);
+            if (entry == null) return null;
+
+            ByteBuffer payload = ByteBuffer.allocate(entry.payloadLength);
+            long position = entry.offset + HEADER_SIZE + entry.idLength;
+            while (payload.hasRemaining()) {
+                if (log.read(payload, position + payload.position()) < 0) {
+                    throw new IOException("Log ends inside the record for station " + stationId);
+                }
+            }
+            return payload.flip();
+        } finally {
+            logLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, String> readSingleStation(String stationId) {
+        Map<String, String> flatMap = new HashMap<>();
+        try {
+            ByteBuffer payload = readPayload(stationId);
+            if (payload != null) {
+                flatMap.put(stationId, StandardCharsets.UTF_8.decode(payload).toString());
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to read station " + stationId + ": " + e.getMessage());
+        }
+        return flatMap;
+    }
+
+    @Override
+    public boolean withStationPayload(String stationId, PayloadConsumer consumer) throws IOException {
+        ByteBuffer payload = readPayload(stationId);
+        if (payload == null) return false;
+        consumer.accept(payload);
+        return true;
+    }
+
+    @Override
+    public Map<String, String> readAllStations() {
+        Map<String, String> flatMap = new HashMap<>();
+        for (String stationId : index.keySet()) {
+            flatMap.putAll(readSingleStation(stationId));
+        }
+        return flatMap;
+    }
+
+    @Override
+    public void forEachStation(StationVisitor visitor) {
+        for (Map.Entry<String, Entry> station : index.entrySet()) {
+            try {
+                ByteBuffer payload = readPayload(station.getKey());
+                if (payload == null) continue;
+                Entry entry = station.getValue();
+                visitor.visit(station.getKey(), entry.lamport, entry.lastWriteMillis,
+                        StandardCharsets.UTF_8.decode(payload).toString());
+            } catch (IOException e) {
+                System.err.println("Failed to read station " + station.getKey() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public synchronized List<String> expireStations(long olderThanMillis) {
+        List<String> removed = new ArrayList<>();
+        for (Map.Entry<String, Entry> station : index.entrySet()) {
+            Entry entry = station.getValue();
+            if (entry.lastWriteMillis >= olderThanMillis) continue;
+            try {
+                append(REMOVE, station.getKey(), entry.lamport, System.currentTimeMillis(), new byte[0]);
+            } catch (IOException e) {
+                System.err.println("Failed to expire station " + station.getKey() + ": " + e.getMessage());
+                continue;
+            }
+            index.remove(station.getKey());
+            liveBytes -= entry.recordLength();
+            dataVersion.incrementAndGet();
+            removed.add(station.getKey());
+            System.out.println("Data for station: " + station.getKey() + " expired");
+        }
+        try {
+            compactIfNeeded();
+        } catch (IOException e) {
+            System.err.println("Failed to compact " + logFile + ": " + e.getMessage());
+        }
+        return removed;
+    }
+
+    @Override
+    public synchronized boolean removeStation(String stationId) {
+        Entry entry = index.get(stationId);
+        if (entry == null) return false;
+        try {
+            append(REMOVE, stationId, entry.lamport, System.currentTimeMillis(), new byte[0]);
+            index.remove(stationId);
+            liveBytes -= entry.recordLength();
+            dataVersion.incrementAndGet();
+            compactIfNeeded();
+        } catch (IOException e) {
+            System.err.println("Failed to remove station " + stationId + ": " + e.getMessage());
+            return !index.containsKey(stationId);
+        }
+        return true;
+    }
+
+    /**
+     * Replays the log to rebuild the index - the log is cut off at the first record that is torn or fails its CRC
+     *
+     * @return the maximum lamport clock present in the log
+     */
+    @Override
+    public synchronized int reload() {
+        index.clear();
+        liveBytes = 0;
+        int maxLamport = 0;
+        long position = 0;
+        try {
+            long size = log.size();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (position + HEADER_SIZE <= size) {
+                header.clear();
+                readFully(header, position);
+                int idLength = header.getShort(17);
+                int payloadLength = header.getInt(19);
+                if (idLength < 0 || payloadLength < 0 || position + HEADER_SIZE + idLength + payloadLength > size) break;
+
+                ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + idLength + payloadLength);
+                readFully(record, position);
+                if (crc(record.array(), 4, record.capacity() - 4) != record.getInt(0)) break;
+
+                String stationId = new String(record.array(), HEADER_SIZE, idLength, StandardCharsets.UTF_8);
+                int lamport = record.getInt(5);
+                Entry previous;
+                if (record.get(4) == PUT) {
+                    // reloaded stations get a full expiry period, as they do with the other stores
+                    Entry entry = new Entry(lamport, System.currentTimeMillis(), position, idLength, payloadLength);
+                    previous = index.put(stationId, entry);
+                    liveBytes += entry.recordLength();
+                    maxLamport = Math.max(maxLamport, lamport);
+                } else {
+                    previous = index.remove(stationId);
+                }
+                if (previous != null) liveBytes -= previous.recordLength();
+                position += record.capacity();
+            }
+
+            if (position < size) {
+                System.err.println("Discarding " + (size - position) + " bytes of torn records at the end of " + logFile);
+                log.truncate(position);
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to replay " + logFile + ": " + e.getMessage());
+        }
+        logSize = position;
+        dataVersion.incrementAndGet();
+        for (Map.Entry<String, Entry> station : index.entrySet()) {
+            System.out.println("Reloaded station " + station.getKey() + " (lamport=" + station.getValue().lamport + ")");
+        }
+        return maxLamport;
+    }
+
+    private void readFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            if (log.read(buf, position + buf.position()) < 0) {
+                throw new IOException("Unexpected end of " + logFile);
+            }
+        }
+    }
+
+    /**
+     * Rewrites the log with only the live records once it is more than twice their size - must be called while
+     * synchronized on the store. Readers keep reading the old log until the new one is swapped in.
+     */
+    private void compactIfNeeded() throws IOException {
+        if (logSize < MIN_COMPACTION_BYTES || logSize < liveBytes * 2) return;
+
+        File compacted = new File(logFile.getParentFile(), LOG_NAME + ".compact");
+        Map<String, Entry> moved = new HashMap<>();
+        long position = 0;
+        try (FileChannel out = FileChannel.open(compacted.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (Map.Entry<String, Entry> station : index.entrySet()) {
+                Entry entry = station.getValue();
+                ByteBuffer record = ByteBuffer.allocate(entry.recordLength());
+                readFully(record, entry.offset);
+                record.flip();
+                while (record.hasRemaining()) {
+                    out.write(record, position + record.position());
+                }
+                moved.put(station.getKey(), new Entry(entry.lamport, entry.lastWriteMillis, position,
+                        entry.idLength, entry.payloadLength));
+                position += entry.recordLength();
+            }
+            out.force(true);
+        }
+
+        logLock.writeLock().lock();
+        try {
+            Files.move(compacted.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.close();
+            log = open(logFile);
+            index.putAll(moved);
+            logSize = position;
+            liveBytes = position;
+        } finally {
+            logLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public long version() {
+        return dataVersion.get();
+    }
+
+    /**
+     * Forces the log to disk
+     */
+    @Override
+    public synchronized void flush() {
+        try {
+            log.force(false);
+        } catch (IOException e) {
+            System.err.println("Failed to force " + logFile + " to disk: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return size of the log file in bytes
+     */
+    long logSize() {
+        return logSize;
+    }
+}
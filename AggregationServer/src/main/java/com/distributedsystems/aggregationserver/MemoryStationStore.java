@@ -0,0 +1,125 @@
+package com.distributedsystems.aggregationserver;
+
+import com.distributedsystems.shared.SimpleJsonUtil;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memory Station Store: keeps every station in a heap map and writes nothing to disk. The fastest store, but stations
+ * are lost on restart and only come back with the next PUT from their content server.
+ */
+public class MemoryStationStore implements StationStore {
+
+    /**
+     * One stored version of a station - replaced as a whole on every update so readers never see half an update
+     */
+    private static final class Record {
+        final int lamport;
+        final long lastWriteMillis;
+        final String data;
+
+        Record(int lamport, long lastWriteMillis, String data) {
+            this.lamport = lamport;
+            this.lastWriteMillis = lastWriteMillis;
+            this.data = data;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Record> stations = new ConcurrentHashMap<>();
+    private final AtomicLong dataVersion = new AtomicLong();
+
+    @Override
+    public UpdateResult updateStation(String stationId, int lamport, Map<String, String> json) {
+        Record update = new Record(lamport, System.currentTimeMillis(), SimpleJsonUtil.stringify(json));
+        UpdateResult[] result = new UpdateResult[1];
+
+        // compute runs atomically per key, so the lamport check and the replace can't interleave with another PUT
+        stations.compute(stationId, (id, current) -> {
+            if (current == null) {
+                result[0] = UpdateResult.CREATED;
+                return update;
+            }
+            if (lamport <= current.lamport) {
+                result[0] = UpdateResult.STALE;
+                return current;
+            }
+            result[0] = UpdateResult.UPDATED;
+            return update;
+        });
+
+        if (result[0] != UpdateResult.STALE) dataVersion.incrementAndGet();
+        return result[0];
+    }
+
+    @Override
+    public Map<String, String> readSingleStation(String stationId) {
+        Map<String, String> flatMap = new HashMap<>();
+        Record record = stations.get(stationId);
+        if (record != null) {
+            flatMap.put(stationId, record.data);
+        }
+        return flatMap;
+    }
+
+    @Override
+    public Map<String, String> readAllStations() {
+        Map<String, String> flatMap = new HashMap<>();
+        for (Map.Entry<String, Record> entry : stations.entrySet()) {
+            flatMap.put(entry.getKey(), entry.getValue().data);
+        }
+        return flatMap;
+    }
+
+    @Override
+    public void forEachStation(StationVisitor visitor) {
+        for (Map.Entry<String, Record> entry : stations.entrySet()) {
+            Record record = entry.getValue();
+            visitor.visit(entry.getKey(), record.lamport, record.lastWriteMillis, record.data);
+        }
+    }
+
+    @Override
+    public List<String> expireStations(long olderThanMillis) {
+        List<String> removed = new ArrayList<>();
+        for (Map.Entry<String, Record> entry : stations.entrySet()) {
+            // remove(key, value) fails if an update replaced the record since it was read
+            if (entry.getValue().lastWriteMillis < olderThanMillis && stations.remove(entry.getKey(), entry.getValue())) {
+                dataVersion.incrementAndGet();
+                removed.add(entry.getKey());
+                System.out.println("Data for station: " + entry.getKey() + " expired");
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public boolean removeStation(String stationId) {
+        if (stations.remove(stationId) == null) return false;
+        dataVersion.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Nothing is stored on disk so there is nothing to reload
+     * @return 0
+     */
+    @Override
+    public int reload() {
+        return 0;
+    }
+
+    @Override
+    public long version() {
+        return dataVersion.get();
+    }
+
+    @Override
+    public boolean coalesceReads() {
+        return false;
+    }
+}
@@ -0,0 +1,169 @@
+package com.distributedsystems.aggregationserver;
+
+import com.distributedsystems.shared.SimpleJsonUtil;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Notifying Station Store: wraps a store and tells listeners about every accepted update and expired station.
+ *
+ * An update and its notification happen under a lock for the station (one of LOCK_STRIPES locks picked by the id's
+ * hash), so listeners see a station's updates in the order the store applied them and an expiry is never reported
+ * after the station has been created again.
+ *
+ * snapshot() copies the stations without stopping updates, each station as it was when it was copied. Replication
+ * notes the log position before the copy and sends the entries logged during it again, so a backup still converges.
+ */
+public class NotifyingStationStore implements StationStore {
+    private static final int LOCK_STRIPES = 1024;
+
+    private final StationStore store;
+    private final List<StationListener> listeners = new CopyOnWriteArrayList<>();
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    /**
+     * Wraps a store
+     * @param store the store that keeps the data
+     */
+    public NotifyingStationStore(StationStore store) {
+        this.store = store;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * @param listener listener to tell about updates and expiries from now on
+     */
+    public void addListener(StationListener listener) {
+        listeners.add(listener);
+    }
+
+    private Object lockFor(String stationId) {
+        return locks[(stationId.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
+
+    @Override
+    public UpdateResult updateStation(String stationId, int lamport, Map<String, String> json) throws IOException {
+        if (listeners.isEmpty()) {
+            return store.updateStation(stationId, lamport, json);
+        }
+        synchronized (lockFor(stationId)) {
+            UpdateResult result = store.updateStation(stationId, lamport, json);
+            if (result != UpdateResult.STALE) {
+                long now = System.currentTimeMillis();
+                Map<String, String> readOnly = Collections.unmodifiableMap(json);
+                for (StationListener listener : listeners) {
+                    listener.stationUpdated(stationId, lamport, now, readOnly);
+                }
+            }
+            return result;
+        }
+    }
+
+    @Override
+    public List<String> expireStations(long olderThanMillis) {
+        List<String> expired = store.expireStations(olderThanMillis);
+        List<String> notified = new ArrayList<>();
+        for (String stationId : expired) {
+            synchronized (lockFor(stationId)) {
+                // an update between the expiry and here created the station again and has been reported already
+                if (!store.readSingleStation(stationId).isEmpty()) continue;
+                for (StationListener listener : listeners) {
+                    listener.stationExpired(stationId);
+                }
+                notified.add(stationId);
+            }
+        }
+        return notified;
+    }
+
+    @Override
+    public boolean removeStation(String stationId) {
+        synchronized (lockFor(stationId)) {
+            if (!store.removeStation(stationId)) return false;
+            for (StationListener listener : listeners) {
+                listener.stationExpired(stationId);
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public Map<String, String> readSingleStation(String stationId) {
+        return store.readSingleStation(stationId);
+    }
+
+    @Override
+    public boolean withStationPayload(String stationId, PayloadConsumer consumer) throws IOException {
+        return store.withStationPayload(stationId, consumer);
+    }
+
+    @Override
+    public void forEachStation(StationVisitor visitor) {
+        store.forEachStation(visitor);
+    }
+
+    /**
+     * Copies every station while updates and expiries carry on - each station is copied whole, but stations updated
+     * during the copy may be in it before or after the update
+     * @return one entry per station
+     */
+    @Override
+    public List<StationSnapshot.Entry> snapshot() {
+        return store.snapshot();
+    }
+
+    @Override
+    public Map<String, String> readAllStations() {
+        return store.readAllStations();
+    }
+
+    @Override
+    public String readAllStationsJson() {
+        return store.readAllStationsJson();
+    }
+
+    /**
+     * Reloads the store and tells listeners about every station it loaded, each station is parsed once for all of them
+     * @return the maximum lamport clock present in the stored data
+     */
+    @Override
+    public int reload() {
+        int maxLamport = store.reload();
+        if (!listeners.isEmpty()) {
+            for (Map.Entry<String, String> station : store.readAllStations().entrySet()) {
+                Map<String, String> json = Collections.unmodifiableMap(SimpleJsonUtil.parse(station.getValue()));
+                for (StationListener listener : listeners) {
+                    listener.stationReloaded(station.getKey(), json);
+                }
+            }
+        }
+        return maxLamport;
+    }
+
+    @Override
+    public long version() {
+        return store.version();
+    }
+
+    @Override
+    public boolean coalesceReads() {
+        return store.coalesceReads();
+    }
+
+    @Override
+    public void flush() {
+        store.flush();
+    }
+
+    @Override
+    public void close() {
+        store.close();
+    }
+}
@@ -0,0 +1,157 @@
+package com.distributedsystems.aggregationserver;
+
+import com.distributedsystems.shared.SimpleJsonUtil;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Off Heap Station Store: keeps station id, lamport, last write time and data in an OffHeapStationTable so the heap
+ * doesn't grow with the number of stations (the limit is -XX:MaxDirectMemorySize). Nothing is written to disk:
+ * stations are lost on restart and come back with the next PUT from their content server, which has to happen
+ * within the expiry time anyway.
+ *
+ * Only this primary copy is off heap - the StationViews registered on the server keep their own state on the heap,
+ * and turning them off is up to the server options.
+ */
+public class OffHeapStationStore implements StationStore {
+    private final OffHeapStationTable table;
+    private final AtomicLong dataVersion = new AtomicLong();
+
+    /**
+     * Creates an empty store using 16 MB arena chunks
+     */
+    public OffHeapStationStore() {
+        this(new OffHeapStationTable());
+    }
+
+    /**
+     * @param table the table to keep stations in
+     */
+    OffHeapStationStore(OffHeapStationTable table) {
+        this.table = table;
+    }
+
+    @Override
+    public UpdateResult updateStation(String stationId, int lamport, Map<String, String> json) throws IOException {
+        // the table checks the lamport and stores the update under its own lock
+        UpdateResult result = table.putIfNewer(stationId, lamport, System.currentTimeMillis(),
+                SimpleJsonUtil.stringify(json).getBytes(StandardCharsets.UTF_8));
+        if (result != UpdateResult.STALE) dataVersion.incrementAndGet();
+        return result;
+    }
+
+    @Override
+    public Map<String, String> readSingleStation(String stationId) {
+        Map<String, String> flatMap = new HashMap<>();
+        table.read(stationId, (id, lamport, lastWrite, payload) ->
+                flatMap.put(id, StandardCharsets.UTF_8.decode(payload).toString()));
+        return flatMap;
+    }
+
+    /**
+     * Passes a station's data to consumer as a view of the table's arena, while holding the table's read lock - every
+     * update waits for the consumer
+     *
+     * @param stationId station to read
+     * @param consumer called with the data if the station exists - must not keep the buffer or block
+     * @return true if the station exists and consumer was called
+     * @throws IOException if the consumer throws
+     */
+    @Override
+    public boolean withStationPayload(String stationId, PayloadConsumer consumer) throws IOException {
+        try {
+            return table.read(stationId, (id, lamport, lastWrite, payload) -> {
+                try {
+                    consumer.accept(payload);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    public Map<String, String> readAllStations() {
+        Map<String, String> flatMap = new HashMap<>();
+        table.forEach((id, lamport, lastWrite, payload) ->
+                flatMap.put(id, StandardCharsets.UTF_8.decode(payload).toString()));
+        return flatMap;
+    }
+
+    /**
+     * Builds the json straight from the table without an intermediate map
+     *
+     * @return json object holding every station
+     */
+    @Override
+    public String readAllStationsJson() {
+        StringBuilder sb = new StringBuilder("{");
+        table.forEach((id, lamport, lastWrite, payload) -> {
+            if (sb.length() > 1) sb.append(",");
+            sb.append("\"").append(id).append("\":").append(StandardCharsets.UTF_8.decode(payload));
+        });
+        return sb.append("}").toString();
+    }
+
+    @Override
+    public void forEachStation(StationVisitor visitor) {
+        table.forEach((id, lamport, lastWrite, payload) ->
+                visitor.visit(id, lamport, lastWrite, StandardCharsets.UTF_8.decode(payload).toString()));
+    }
+
+    @Override
+    public List<String> expireStations(long olderThanMillis) {
+        List<String> expired = new ArrayList<>();
+        table.forEach((id, lamport, lastWrite, payload) -> {
+            if (lastWrite < olderThanMillis) expired.add(id);
+        });
+        List<String> removed = new ArrayList<>();
+        for (String stationId : expired) {
+            // an update since the walk keeps the station
+            if (table.remove(stationId, olderThanMillis)) {
+                dataVersion.incrementAndGet();
+                removed.add(stationId);
+                System.out.println("Data for station: " + stationId + " expired");
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public boolean removeStation(String stationId) {
+        if (!table.remove(stationId)) return false;
+        dataVersion.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Nothing is stored on disk so there is nothing to reload
+     * @return 0
+     */
+    @Override
+    public int reload() {
+        return 0;
+    }
+
+    @Override
+    public long version() {
+        return dataVersion.get();
+    }
+
+    /**
+     * A read from the table is a memory copy, not worth sharing
+     */
+    @Override
+    public boolean coalesceReads() {
+        return false;
+    }
+}
@@ -0,0 +1,362 @@
+package com.distributedsystems.aggregationserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Off Heap Station Table: stores station id, lamport, last write time and payload in direct ByteBuffers so the
+ * garbage collector never has to trace per-station objects - heap usage does not grow with the number of stations.
+ *
+ *      - index: open addressing (linear probing) table in one direct buffer, 16 bytes per entry
+ *               [long record ref + 1 (0 = empty, -1 = deleted)][int id hash][int unused]
+ *      - arena: records bump allocated from 16 MB direct chunks, a record ref is (chunk << 32 | offset)
+ *               [int capacity][int lamport][long last write millis][short id length][int payload length][id][payload]
+ *      - record capacities are powers of two, a freed record goes on the free list for its size and its ref to the
+ *        next free record is stored inside it - so the free lists don't use the heap either
+ *      - chunks are never released: freed records are only reused by records of the same size class, so direct
+ *        memory stays at its high water mark until the table is dropped
+ *
+ * Updates take the table's write lock, reads take its read lock. Payload buffers given to visitors are views of the
+ * arena and are only valid during the call.
+ */
+public class OffHeapStationTable {
+    private static final int DEFAULT_CHUNK_SIZE = 16 * 1024 * 1024;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int ENTRY_SIZE = 16;
+    private static final int MIN_RECORD_SIZE = 64;
+
+    private static final int CAPACITY_OFFSET = 0;
+    private static final int LAMPORT_OFFSET = 4;
+    private static final int NEXT_FREE_OFFSET = 4; // reuses lamport + write time once a record is freed
+    private static final int WRITE_TIME_OFFSET = 8;
+    private static final int ID_LENGTH_OFFSET = 16;
+    private static final int PAYLOAD_LENGTH_OFFSET = 18;
+    private static final int HEADER_SIZE = 22;
+
+    private static final long EMPTY = 0;
+    private static final long DELETED = -1;
+
+    /**
+     * Visits one station's record - the payload buffer is only valid during the call
+     */
+    public interface RecordVisitor {
+        void visit(String stationId, int lamport, long lastWriteMillis, ByteBuffer payload);
+    }
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final int chunkSize;
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private final long[] freeHeads = new long[32];
+    private int chunkOffset;
+
+    private ByteBuffer index;
+    private int capacity;
+    private int size;
+    private int deleted;
+
+    /**
+     * Creates an empty table using 16 MB arena chunks
+     */
+    public OffHeapStationTable() {
+        this(DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Creates an empty table
+     * @param chunkSize bytes per arena chunk - also the largest record the table can hold
+     */
+    public OffHeapStationTable(int chunkSize) {
+        this.chunkSize = chunkSize;
+        this.capacity = INITIAL_CAPACITY;
+        this.index = ByteBuffer.allocateDirect(capacity * ENTRY_SIZE);
+        this.chunks.add(ByteBuffer.allocateDirect(chunkSize));
+    }
+
+    /**
+     * Stores a station's record if lamport is newer than the stored one. The record is overwritten in place when the
+     * new payload fits in its current allocation.
+     *
+     * @param stationId station to store
+     * @param lamport lamport of the update
+     * @param writeMillis time of the update
+     * @param payload station data as utf-8 json
+     * @return CREATED for a new station, UPDATED if replaced, STALE if the stored lamport is the same or newer
+     * @throws RecordTooLargeException if the record is bigger than an arena chunk
+     */
+    public StationStore.UpdateResult putIfNewer(String stationId, int lamport, long writeMillis, byte[] payload) throws IOException {
+        byte[] id = stationId.getBytes(StandardCharsets.UTF_8);
+        int recordSize = sizeClass(HEADER_SIZE + id.length + payload.length);
+        if (recordSize > chunkSize) {
+            throw new RecordTooLargeException("Station " + stationId + " record is larger than " + chunkSize + " bytes");
+        }
+
+        lock.writeLock().lock();
+        try {
+            int hash = hash(id);
+            int slot = find(id, hash);
+            long ref = slot >= 0 ? index.getLong(slot * ENTRY_SIZE) - 1 : -1;
+
+            if (ref >= 0) {
+                ByteBuffer chunk = chunk(ref);
+                int offset = offset(ref);
+                if (lamport <= chunk.getInt(offset + LAMPORT_OFFSET)) {
+                    return StationStore.UpdateResult.STALE;
+                }
+                if (chunk.getInt(offset + CAPACITY_OFFSET) < recordSize) {
+                    free(ref);
+                    ref = allocate(recordSize);
+                    index.putLong(slot * ENTRY_SIZE, ref + 1);
+                }
+                writeRecord(ref, id, lamport, writeMillis, payload);
+                return StationStore.UpdateResult.UPDATED;
+            }
+
+            if ((size + deleted + 1) * 10L > capacity * 6L) {
+                resize();
+            }
+            ref = allocate(recordSize);
+            writeRecord(ref, id, lamport, writeMillis, payload);
+            insert(hash, ref);
+            size++;
+            return StationStore.UpdateResult.CREATED;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param stationId station to check
+     * @return the stored lamport, -1 if the station isn't stored
+     */
+    public int lamport(String stationId) {
+        lock.readLock().lock();
+        try {
+            long ref = lookup(stationId);
+            return ref < 0 ? -1 : chunk(ref).getInt(offset(ref) + LAMPORT_OFFSET);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Visits a single station's record
+     * @param stationId station to read
+     * @param visitor called with the record if the station is stored
+     * @return true if the station is stored
+     */
+    public boolean read(String stationId, RecordVisitor visitor) {
+        lock.readLock().lock();
+        try {
+            long ref = lookup(stationId);
+            if (ref < 0) return false;
+            visitRecord(ref, visitor);
+            return true;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Visits every stored station's record
+     * @param visitor called once per station
+     */
+    public void forEach(RecordVisitor visitor) {
+        lock.readLock().lock();
+        try {
+            for (int slot = 0; slot < capacity; slot++) {
+                long ref = index.getLong(slot * ENTRY_SIZE) - 1;
+                if (ref >= 0) {
+                    visitRecord(ref, visitor);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a station
+     * @param stationId station to remove
+     * @return true if the station was stored
+     */
+    public boolean remove(String stationId) {
+        return remove(stationId, Long.MAX_VALUE);
+    }
+
+    /**
+     * Removes a station if it has not been written since a point in time - used for expiry so an update that
+     * arrives after the expiry scan is not removed
+     *
+     * @param stationId station to remove
+     * @param writtenBeforeMillis only remove the station if its last write is before this time
+     * @return true if the station was removed
+     */
+    public boolean remove(String stationId, long writtenBeforeMillis) {
+        byte[] id = stationId.getBytes(StandardCharsets.UTF_8);
+        lock.writeLock().lock();
+        try {
+            int slot = find(id, hash(id));
+            if (slot < 0) return false;
+            long ref = index.getLong(slot * ENTRY_SIZE) - 1;
+            if (chunk(ref).getLong(offset(ref) + WRITE_TIME_OFFSET) >= writtenBeforeMillis) return false;
+            free(ref);
+            index.putLong(slot * ENTRY_SIZE, DELETED);
+            size--;
+            deleted++;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of stored stations
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private long lookup(String stationId) {
+        byte[] id = stationId.getBytes(StandardCharsets.UTF_8);
+        int slot = find(id, hash(id));
+        return slot < 0 ? -1 : index.getLong(slot * ENTRY_SIZE) - 1;
+    }
+
+    /**
+     * Linear probe for a station id
+     * @return the index slot holding the station, -1 if it isn't stored
+     */
+    private int find(byte[] id, int hash) {
+        int mask = capacity - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            long stored = index.getLong(slot * ENTRY_SIZE);
+            if (stored == EMPTY) return -1;
+            if (stored != DELETED && index.getInt(slot * ENTRY_SIZE + 8) == hash && idEquals(stored - 1, id)) {
+                return slot;
+            }
+        }
+    }
+
+    private void insert(int hash, long ref) {
+        int mask = capacity - 1;
+        int slot = hash & mask;
+        while (true) {
+            long stored = index.getLong(slot * ENTRY_SIZE);
+            if (stored == EMPTY || stored == DELETED) break;
+            slot = (slot + 1) & mask;
+        }
+        if (index.getLong(slot * ENTRY_SIZE) == DELETED) deleted--;
+        index.putLong(slot * ENTRY_SIZE, ref + 1);
+        index.putInt(slot * ENTRY_SIZE + 8, hash);
+    }
+
+    /**
+     * Doubles the index (or just rehashes it if most of the load is deleted entries)
+     */
+    private void resize() {
+        ByteBuffer old = index;
+        int oldCapacity = capacity;
+        if (size * 10L > capacity * 3L) {
+            capacity *= 2;
+        }
+        index = ByteBuffer.allocateDirect(capacity * ENTRY_SIZE);
+        deleted = 0;
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            long stored = old.getLong(slot * ENTRY_SIZE);
+            if (stored != EMPTY && stored != DELETED) {
+                insert(old.getInt(slot * ENTRY_SIZE + 8), stored - 1);
+            }
+        }
+    }
+
+    private boolean idEquals(long ref, byte[] id) {
+        ByteBuffer chunk = chunk(ref);
+        int offset = offset(ref);
+        if (chunk.getShort(offset + ID_LENGTH_OFFSET) != id.length) return false;
+        for (int i = 0; i < id.length; i++) {
+            if (chunk.get(offset + HEADER_SIZE + i) != id[i]) return false;
+        }
+        return true;
+    }
+
+    private void writeRecord(long ref, byte[] id, int lamport, long writeMillis, byte[] payload) {
+        ByteBuffer chunk = chunk(ref);
+        int offset = offset(ref);
+        chunk.putInt(offset + LAMPORT_OFFSET, lamport);
+        chunk.putLong(offset + WRITE_TIME_OFFSET, writeMillis);
+        chunk.putShort(offset + ID_LENGTH_OFFSET, (short) id.length);
+        chunk.putInt(offset + PAYLOAD_LENGTH_OFFSET, payload.length);
+        chunk.put(offset + HEADER_SIZE, id);
+        chunk.put(offset + HEADER_SIZE + id.length, payload);
+    }
+
+    private void visitRecord(long ref, RecordVisitor visitor) {
+        ByteBuffer chunk = chunk(ref);
+        int offset = offset(ref);
+        int idLength = chunk.getShort(offset + ID_LENGTH_OFFSET);
+        byte[] id = new byte[idLength];
+        chunk.get(offset + HEADER_SIZE, id);
+        ByteBuffer payload = chunk.slice(offset + HEADER_SIZE + idLength, chunk.getInt(offset + PAYLOAD_LENGTH_OFFSET))
+                .asReadOnlyBuffer();
+        visitor.visit(new String(id, StandardCharsets.UTF_8), chunk.getInt(offset + LAMPORT_OFFSET),
+                chunk.getLong(offset + WRITE_TIME_OFFSET), payload);
+    }
+
+    /**
+     * Takes a record of the given size class from its free list, or from the end of the current chunk
+     */
+    private long allocate(int recordSize) {
+        int sizeClass = Integer.numberOfTrailingZeros(recordSize);
+        long free = freeHeads[sizeClass] - 1;
+        if (free >= 0) {
+            freeHeads[sizeClass] = chunk(free).getLong(offset(free) + NEXT_FREE_OFFSET);
+            return free;
+        }
+
+        if (chunkOffset + recordSize > chunkSize) {
+            chunks.add(ByteBuffer.allocateDirect(chunkSize));
+            chunkOffset = 0;
+        }
+        long ref = ((long) (chunks.size() - 1) << 32) | chunkOffset;
+        chunkOffset += recordSize;
+        chunk(ref).putInt(offset(ref) + CAPACITY_OFFSET, recordSize);
+        return ref;
+    }
+
+    private void free(long ref) {
+        ByteBuffer chunk = chunk(ref);
+        int offset = offset(ref);
+        int sizeClass = Integer.numberOfTrailingZeros(chunk.getInt(offset + CAPACITY_OFFSET));
+        chunk.putLong(offset + NEXT_FREE_OFFSET, freeHeads[sizeClass]);
+        freeHeads[sizeClass] = ref + 1;
+    }
+
+    private ByteBuffer chunk(long ref) {
+        return chunks.get((int) (ref >>> 32));
+    }
+
+    private static int offset(long ref) {
+        return (int) ref;
+    }
+
+    private static int sizeClass(int bytes) {
+        return Math.max(MIN_RECORD_SIZE, Integer.highestOneBit(bytes - 1) << 1);
+    }
+
+    private static int hash(byte[] id) {
+        int h = 1;
+        for (byte b : id) {
+            h = 31 * h + b;
+        }
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,99 @@
+package com.distributedsystems.aggregationserver;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Put Rate Limits: the rate limits in front of PUT - one bucket per connection and one per station id, so a content
+ * server stuck in a tight loop is slowed down before it reaches the store, without holding up other content servers.
+ * A limit with a rate of 0 or less is off. Rejected PUTs are counted per client address for GET /metrics, for at most
+ * MAX_COUNTED_CLIENTS addresses - rejections of any further client are counted under "other".
+ */
+public class PutRateLimits {
+    static final int MAX_COUNTED_CLIENTS = 1024;
+    static final String OTHER_CLIENTS = "other";
+
+    private final RateLimiter perConnection;
+    private final RateLimiter perStation;
+    private final LongAdder rejected = new LongAdder();
+    private final ConcurrentHashMap<String, LongAdder> rejectedByClient = new ConcurrentHashMap<>();
+
+    /**
+     * @param config server options, the put rate and burst options are used
+     */
+    public PutRateLimits(ServerConfig config) {
+        this.perConnection = config.connectionPutRate > 0
+                ? new RateLimiter(config.connectionPutRate, config.connectionPutBurst) : null;
+        this.perStation = config.stationPutRate > 0
+                ? new RateLimiter(config.stationPutRate, config.stationPutBurst) : null;
+    }
+
+    /**
+     * @return the bucket of a new connection, null if connections aren't limited
+     */
+    public RateLimiter.Bucket connectionBucket() {
+        return perConnection == null ? null : perConnection.newBucket();
+    }
+
+    /**
+     * Checks a PUT against its connection's limit
+     * @param connection bucket from connectionBucket
+     * @param client address of the client, for counting rejections
+     * @return 0 if the PUT is allowed, otherwise nanoseconds until it would be
+     */
+    public long checkConnection(RateLimiter.Bucket connection, String client) {
+        if (connection == null) return 0;
+        return counted(perConnection.tryAcquire(connection, System.nanoTime()), client);
+    }
+
+    /**
+     * Checks a PUT against its station's limit
+     * @param stationId station being updated
+     * @param client address of the client, for counting rejections
+     * @return 0 if the PUT is allowed, otherwise nanoseconds until it would be
+     */
+    public long checkStation(String stationId, String client) {
+        if (perStation == null) return 0;
+        return counted(perStation.tryAcquire(stationId, System.nanoTime()), client);
+    }
+
+    private long counted(long waitNanos, String client) {
+        if (waitNanos <= 0) return waitNanos;
+        rejected.increment();
+        LongAdder count = rejectedByClient.get(client);
+        if (count == null) {
+            // the size check can race, the map may go a few entries over the limit but never keeps growing
+            String key = rejectedByClient.size() < MAX_COUNTED_CLIENTS ? client : OTHER_CLIENTS;
+            count = rejectedByClient.computeIfAbsent(key, c -> new LongAdder());
+        }
+        count.increment();
+        return waitNanos;
+    }
+
+    /**
+     * Drops the buckets of stations that haven't been updated for a while
+     */
+    public void sweep() {
+        if (perStation != null) perStation.sweep(System.nanoTime());
+    }
+
+    /**
+     * Adds put.rejected (every client) and put.rejected.<client> to metrics
+     * @param metrics metrics being built
+     */
+    public void addMetrics(Map<String, String> metrics) {
+        for (Map.Entry<String, LongAdder> client : rejectedByClient.entrySet()) {
+            metrics.put("put.rejected." + client.getKey(), String.valueOf(client.getValue().sum()));
+        }
+        metrics.put("put.rejected", String.valueOf(rejected.sum()));
+    }
+
+    /**
+     * @param waitNanos time until a rejected PUT would be allowed
+     * @return value of the Retry-After header, whole seconds rounded up
+     */
+    static String retryAfterSeconds(long waitNanos) {
+        return String.valueOf(Math.max(1, (waitNanos + 999_999_999L) / 1_000_000_000L));
+    }
+}
@@ -0,0 +1,119 @@
+package com.distributedsystems.aggregationserver;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rate Limiter: token buckets of ratePerSecond requests with room for burst requests at once, kept as a generic cell
+ * rate algorithm (GCRA). A bucket is a single AtomicLong holding the theoretical arrival time of the next request,
+ * so a check is one read and one compare-and-set, without locks or a refill thread.
+ *
+ *      - each request moves the arrival time interval = 1s / ratePerSecond forward from max(arrival time, now)
+ *      - a request is allowed while the arrival time stays within burst intervals of now
+ *      - a bucket whose arrival time has passed is full again, which is what sweep removes
+ *      - sweep retires a bucket (compare-and-set to RETIRED) before removing it, so a check that fetched the bucket
+ *        just before cannot spend a token in it that is then lost with it - the check takes the key's new bucket
+ */
+public class RateLimiter {
+    // arrival time of a bucket removed by sweep, no token can be taken from it
+    private static final long RETIRED = Long.MAX_VALUE;
+
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+    /**
+     * One token bucket
+     */
+    public static final class Bucket {
+        // theoretical arrival time of the next request in System.nanoTime, MIN_VALUE for a full bucket
+        private final AtomicLong arrival = new AtomicLong(Long.MIN_VALUE);
+    }
+
+    /**
+     * @param ratePerSecond requests allowed per second over time
+     * @param burst requests allowed at once
+     */
+    public RateLimiter(double ratePerSecond, int burst) {
+        this.intervalNanos = Math.max(1, (long) (1_000_000_000L / ratePerSecond));
+        this.toleranceNanos = intervalNanos * Math.max(1, burst);
+    }
+
+    /**
+     * @return a bucket that is not shared by key, e.g. for one connection
+     */
+    public Bucket newBucket() {
+        return new Bucket();
+    }
+
+    /**
+     * @param key e.g. a station id
+     * @return the bucket of key, created full on first use
+     */
+    public Bucket bucket(String key) {
+        Bucket bucket = buckets.get(key);
+        return bucket != null ? bucket : buckets.computeIfAbsent(key, k -> new Bucket());
+    }
+
+    /**
+     * Takes a token from the bucket of key
+     * @param key e.g. a station id
+     * @param nowNanos System.nanoTime
+     * @return 0 if the request is allowed, otherwise nanoseconds until it would be
+     */
+    public long tryAcquire(String key, long nowNanos) {
+        while (true) {
+            long waitNanos = acquire(bucket(key), nowNanos);
+            // retired by a concurrent sweep, the next lookup finds the key's new bucket
+            if (waitNanos >= 0) return waitNanos;
+        }
+    }
+
+    /**
+     * Takes a token from bucket, for buckets from newBucket - keyed buckets go through tryAcquire(key, nowNanos)
+     * @param bucket the bucket
+     * @param nowNanos System.nanoTime
+     * @return 0 if the request is allowed, otherwise nanoseconds until it would be
+     */
+    public long tryAcquire(Bucket bucket, long nowNanos) {
+        return Math.max(0, acquire(bucket, nowNanos));
+    }
+
+    /**
+     * @return 0 if the request is allowed, nanoseconds until it would be, or -1 if bucket was retired
+     */
+    private long acquire(Bucket bucket, long nowNanos) {
+        while (true) {
+            long arrival = bucket.arrival.get();
+            if (arrival == RETIRED) return -1;
+            long next = Math.max(arrival, nowNanos) + intervalNanos;
+            long early = next - nowNanos - toleranceNanos;
+            if (early > 0) return early;
+            if (bucket.arrival.compareAndSet(arrival, next)) return 0;
+        }
+    }
+
+    /**
+     * Drops the buckets of keys that are full again, they are created full when next used
+     * @param nowNanos System.nanoTime
+     */
+    public void sweep(long nowNanos) {
+        for (Map.Entry<String, Bucket> entry : buckets.entrySet()) {
+            Bucket bucket = entry.getValue();
+            long arrival = bucket.arrival.get();
+            boolean idle = arrival == Long.MIN_VALUE || (arrival != RETIRED && arrival - nowNanos <= 0);
+            // the compare-and-set fails if a check took a token since, then the bucket stays
+            if (idle && bucket.arrival.compareAndSet(arrival, RETIRED)) {
+                buckets.remove(entry.getKey(), bucket);
+            }
+        }
+    }
+
+    /**
+     * @return number of keys with a bucket
+     */
+    public int size() {
+        return buckets.size();
+    }
+}
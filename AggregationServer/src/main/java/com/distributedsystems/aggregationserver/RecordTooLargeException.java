@@ -0,0 +1,15 @@
+package com.distributedsystems.aggregationserver;
+
+import java.io.IOException;
+
+/**
+ * Thrown by a store when a station's record can't fit in its storage (a segment slot or an off heap arena chunk).
+ * Retrying the same update fails again, so a PUT that hits it is answered with 413 Payload Too Large.
+ */
+public class RecordTooLargeException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public RecordTooLargeException(String message) {
+        super(message);
+    }
+}
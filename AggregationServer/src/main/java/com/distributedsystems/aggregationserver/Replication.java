@@ -0,0 +1,373 @@
+package com.distributedsystems.aggregationserver;
+
+import com.distributedsystems.shared.HttpHelper;
+import com.distributedsystems.shared.LamportClock;
+import com.distributedsystems.shared.SimpleJsonUtil;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Replication: primary / backup replication by shipping the ReplicationLog.
+ *
+ * Every server keeps a ReplicationLog and can serve it on GET /replicate?from=<seq>&log=<id>. The response is a
+ * stream of binary frames that ends when either side closes the connection:
+ *      UPDATE          long seq, utf id, int lamport, long write millis, int length, bytes data
+ *      EXPIRE          long seq, utf id
+ *      SNAPSHOT_BEGIN  (no fields) - every station follows as a SNAPSHOT_ENTRY
+ *      SNAPSHOT_ENTRY  utf id, int lamport, long write millis, int length, bytes data
+ *      SNAPSHOT_END    long seq - the snapshot holds every change up to this seq
+ *      HEARTBEAT       long seq of the primary's last entry, long primary time in millis
+ *
+ * A backup (started with --replica-of=host:port) follows its primary on a thread of its own, applies the frames in
+ * order through its store and serves GETs, but refuses PUTs until it is promoted. A backup asking for entries the
+ * primary no longer keeps, or for a log the primary did not write (the primary restarted), gets a snapshot first.
+ * Entries logged while the snapshot is taken are sent again after it - applying them twice is harmless because
+ * updates are lamport checked and the stream is applied in order.
+ */
+public class Replication {
+    static final byte UPDATE = 1;
+    static final byte EXPIRE = 2;
+    static final byte SNAPSHOT_BEGIN = 3;
+    static final byte SNAPSHOT_ENTRY = 4;
+    static final byte SNAPSHOT_END = 5;
+    static final byte HEARTBEAT = 6;
+
+    // a primary with nothing to send sends a heartbeat this often, so backups can tell an idle primary from a dead one
+    static final long HEARTBEAT_MILLIS = 1000;
+    // most log entries written per flush
+    static final int BATCH_SIZE = 512;
+    // time a backup waits before reconnecting to its primary
+    static final long RETRY_MILLIS = 500;
+
+    private final ReplicationLog log;
+    private final StationStore store;
+    private final LamportClock clock;
+    // identifies this run of the server's log - sequence numbers restart with the server
+    private final String logId = UUID.randomUUID().toString();
+    private final AtomicInteger connectedBackups = new AtomicInteger();
+
+    // backup state, primary is null once the server is (or has been promoted to) a primary
+    private volatile String primary;
+    private volatile Thread follower;
+    private volatile Socket followerSocket;
+    private volatile boolean connected = false;
+    private volatile long appliedSeq = 0;
+    private volatile long primarySeq = 0;
+    private volatile long lastAppliedWriteMillis = 0;
+    private volatile long lastContactMillis = 0;
+    private String primaryLogId = "";
+
+    /**
+     * Creates the replication state of a server
+     *
+     * @param log the server's log, registered on its store
+     * @param store the server's store
+     * @param clock the server's lamport clock
+     * @param primary host:port of the primary to follow, null for a primary
+     */
+    public Replication(ReplicationLog log, StationStore store, LamportClock clock, String primary) {
+        this.log = log;
+        this.store = store;
+        this.clock = clock;
+        this.primary = primary;
+    }
+
+    /**
+     * @return true while the server is a backup that refuses PUTs
+     */
+    public boolean isBackup() {
+        return primary != null;
+    }
+
+    /**
+     * Starts following the primary if the server is a backup
+     */
+    public synchronized void start() {
+        if (primary == null || follower != null) return;
+        follower = new Thread(this::follow, "replication-follower");
+        follower.setDaemon(true);
+        follower.start();
+    }
+
+    /**
+     * Stops following the primary and makes the server a primary that accepts PUTs. Updates the backup has applied
+     * are kept, anything the old primary accepted after the last applied entry is lost.
+     *
+     * @return true if the server was a backup
+     */
+    public synchronized boolean promote() {
+        if (primary == null) return false;
+        System.out.println("Promoted to primary, stopped following " + primary + " at seq " + appliedSeq);
+        primary = null;
+        stop();
+        return true;
+    }
+
+    /**
+     * Stops the follower thread, if there is one
+     */
+    public synchronized void stop() {
+        Thread thread = follower;
+        follower = null;
+        if (thread == null) return;
+        thread.interrupt();
+        Socket socket = followerSocket;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     * Adds the replication metrics for GET /metrics
+     * @param metrics metrics to add to
+     */
+    public void addMetrics(Map<String, String> metrics) {
+        String primary = this.primary;
+        metrics.put("replication.role", primary == null ? "primary" : "backup");
+        metrics.put("replication.seq", String.valueOf(log.lastSeq()));
+        metrics.put("replication.backups", String.valueOf(connectedBackups.get()));
+        if (primary == null) return;
+
+        long applied = appliedSeq;
+        long behind = Math.max(0, primarySeq - applied);
+        metrics.put("replication.primary", primary);
+        metrics.put("replication.connected", String.valueOf(connected));
+        metrics.put("replication.applied_seq", String.valueOf(applied));
+        metrics.put("replication.primary_seq", String.valueOf(primarySeq));
+        metrics.put("replication.lag_updates", String.valueOf(behind));
+        // age of the last applied update while entries are outstanding, 0 when caught up
+        long lagMillis = behind == 0 || lastAppliedWriteMillis == 0 ? 0 : System.currentTimeMillis() - lastAppliedWriteMillis;
+        metrics.put("replication.lag_ms", String.valueOf(Math.max(0, lagMillis)));
+        long contact = lastContactMillis;
+        metrics.put("replication.last_contact_ms",
+                String.valueOf(contact == 0 ? -1 : System.currentTimeMillis() - contact));
+    }
+
+    /**
+     * Serves GET /replicate - streams the log to a backup until the connection closes. Runs on the connection's
+     * own thread, not a read lane, because the response never finishes.
+     *
+     * @param socket connection from the backup
+     * @param req the request, from=<seq> is the first entry wanted and log=<id> the log it came from
+     */
+    public void serve(Socket socket, HttpHelper.Request req) {
+        long from;
+        try {
+            from = Long.parseLong(req.query.getOrDefault("from", "1"));
+        } catch (NumberFormatException e) {
+            from = 1;
+        }
+        boolean sameLog = logId.equals(req.query.get("log"));
+
+        connectedBackups.incrementAndGet();
+        System.out.println("Backup " + socket.getRemoteSocketAddress() + " following from seq " + from);
+        try {
+            OutputStream rawOut = socket.getOutputStream();
+            String head = "HTTP/1.1 200 OK\r\n"
+                    + "Content-Type: application/octet-stream\r\n"
+                    + "X-Lamport-Clock: " + clock.get() + "\r\n"
+                    + "X-Replication-Log: " + logId + "\r\n"
+                    + "Connection: close\r\n"
+                    + "\r\n";
+            rawOut.write(head.getBytes(StandardCharsets.UTF_8));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(rawOut, 64 * 1024));
+
+            long next = sameLog && from >= 1 && from <= log.lastSeq() + 1 ? from : -1;
+            while (!socket.isClosed()) {
+                List<ReplicationLog.Entry> entries = next < 0 ? null : log.read(next, BATCH_SIZE, HEARTBEAT_MILLIS);
+                if (entries == null) {
+                    next = sendSnapshot(out) + 1;
+                    continue;
+                }
+                for (ReplicationLog.Entry entry : entries) {
+                    writeEntry(out, entry);
+                    next = entry.seq + 1;
+                }
+                out.writeByte(HEARTBEAT);
+                out.writeLong(log.lastSeq());
+                out.writeLong(System.currentTimeMillis());
+                out.flush();
+            }
+        } catch (IOException e) {
+            System.out.println("Backup " + socket.getRemoteSocketAddress() + " disconnected: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            connectedBackups.decrementAndGet();
+        }
+    }
+
+    /**
+     * Sends every station
+     * @param out stream to the backup
+     * @return the seq of the last entry the snapshot is known to hold
+     */
+    private long sendSnapshot(DataOutputStream out) throws IOException {
+        long seq = log.lastSeq();
+        List<StationSnapshot.Entry> entries = store.snapshot();
+        out.writeByte(SNAPSHOT_BEGIN);
+        for (StationSnapshot.Entry entry : entries) {
+            out.writeByte(SNAPSHOT_ENTRY);
+            out.writeUTF(entry.stationId);
+            out.writeInt((int) entry.record.lamport);
+            out.writeLong(entry.record.writeMillis);
+            out.writeInt(entry.record.payload.length);
+            out.write(entry.record.payload);
+        }
+        out.writeByte(SNAPSHOT_END);
+        out.writeLong(seq);
+        out.flush();
+        System.out.println("Sent a snapshot of " + entries.size() + " stations at seq " + seq);
+        return seq;
+    }
+
+    private static void writeEntry(DataOutputStream out, ReplicationLog.Entry entry) throws IOException {
+        if (entry.type == ReplicationLog.Type.EXPIRE) {
+            out.writeByte(EXPIRE);
+            out.writeLong(entry.seq);
+            out.writeUTF(entry.stationId);
+            return;
+        }
+        byte[] data = entry.data.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(UPDATE);
+        out.writeLong(entry.seq);
+        out.writeUTF(entry.stationId);
+        out.writeInt(entry.lamport);
+        out.writeLong(entry.writeMillis);
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    /**
+     * Follower thread - connects to the primary and applies its stream, reconnecting until promoted
+     */
+    private void follow() {
+        while (primary != null && !Thread.currentThread().isInterrupted()) {
+            String target = primary;
+            int idx = target.lastIndexOf(':');
+            try (Socket socket = new Socket(target.substring(0, idx), Integer.parseInt(target.substring(idx + 1)))) {
+                followerSocket = socket;
+                String request = "GET /replicate?from=" + (appliedSeq + 1) + "&log=" + primaryLogId + " HTTP/1.1\r\n"
+                        + "Host: " + target + "\r\n"
+                        + "X-Lamport-Clock: " + clock.get() + "\r\n"
+                        + "\r\n";
+                OutputStream out = socket.getOutputStream();
+                out.write(request.getBytes(StandardCharsets.UTF_8));
+                out.flush();
+
+                InputStream in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+                HttpHelper.Response res = HttpHelper.readResponseHead(in);
+                if (!res.status.startsWith("200")) {
+                    throw new IOException("primary answered " + res.status);
+                }
+                String responseLog = HttpHelper.header(res.headers, "X-Replication-Log");
+                primaryLogId = responseLog == null ? "" : responseLog;
+                connected = true;
+                System.out.println("Following primary " + target + " from seq " + (appliedSeq + 1));
+                applyStream(new DataInputStream(in));
+            } catch (IOException | RuntimeException e) {
+                if (primary != null) {
+                    System.err.println("Lost primary " + target + ": " + e.getMessage());
+                }
+            } finally {
+                connected = false;
+                followerSocket = null;
+            }
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Applies frames until the stream ends
+     * @param in stream from the primary, after the response head
+     */
+    private void applyStream(DataInputStream in) throws IOException {
+        Set<String> snapshotIds = null;
+        while (primary != null) {
+            byte type = in.readByte();
+            lastContactMillis = System.currentTimeMillis();
+            switch (type) {
+                case UPDATE: {
+                    long seq = in.readLong();
+                    String stationId = in.readUTF();
+                    int lamport = in.readInt();
+                    long writeMillis = in.readLong();
+                    apply(stationId, lamport, readData(in));
+                    appliedSeq = seq;
+                    lastAppliedWriteMillis = writeMillis;
+                    break;
+                }
+                case EXPIRE: {
+                    long seq = in.readLong();
+                    store.removeStation(in.readUTF());
+                    appliedSeq = seq;
+                    break;
+                }
+                case SNAPSHOT_BEGIN:
+                    snapshotIds = new HashSet<>();
+                    break;
+                case SNAPSHOT_ENTRY: {
+                    String stationId = in.readUTF();
+                    int lamport = in.readInt();
+                    in.readLong();
+                    apply(stationId, lamport, readData(in));
+                    if (snapshotIds != null) snapshotIds.add(stationId);
+                    break;
+                }
+                case SNAPSHOT_END: {
+                    long seq = in.readLong();
+                    int removed = snapshotIds == null ? 0 : removeMissing(snapshotIds);
+                    System.out.println("Applied a snapshot at seq " + seq + ", removed " + removed + " stations the primary does not have");
+                    snapshotIds = null;
+                    appliedSeq = seq;
+                    primarySeq = Math.max(primarySeq, seq);
+                    break;
+                }
+                case HEARTBEAT:
+                    primarySeq = in.readLong();
+                    in.readLong();
+                    break;
+                default:
+                    throw new IOException("Unknown replication frame " + type);
+            }
+        }
+    }
+
+    private static String readData(DataInputStream in) throws IOException {
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+    private void apply(String stationId, int lamport, String data) throws IOException {
+        store.updateStation(stationId, lamport, SimpleJsonUtil.parse(data));
+        clock.update(lamport);
+    }
+
+    /**
+     * Removes the stations that are not in a snapshot from the primary
+     * @param snapshotIds ids in the snapshot
+     * @return the number of stations removed
+     */
+    private int removeMissing(Set<String> snapshotIds) {
+        List<String> missing = new ArrayList<>();
+        store.forEachStation((stationId, lamport, writeMillis, data) -> {
+            if (!snapshotIds.contains(stationId)) missing.add(stationId);
+        });
+        int removed = 0;
+        for (String stationId : missing) {
+            if (store.removeStation(stationId)) removed++;
+        }
+        return removed;
+    }
+}
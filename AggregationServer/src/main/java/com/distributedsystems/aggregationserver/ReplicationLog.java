@@ -0,0 +1,101 @@
+package com.distributedsystems.aggregationserver;
+
+import com.distributedsystems.shared.SimpleJsonUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Replication Log: the recent updates and expiries accepted by this server, numbered by a sequence that starts at 1
+ * and never repeats while the server runs. Primaries stream the log to their backups (see Replication).
+ *
+ * Only the last `capacity` entries are kept in a ring. A backup that asks for an entry that has already been
+ * overwritten gets a full snapshot instead.
+ */
+public class ReplicationLog implements StationListener {
+
+    enum Type { UPDATE, EXPIRE }
+
+    /**
+     * One logged change - data is null for an expiry
+     */
+    public static final class Entry {
+        public final long seq;
+        public final Type type;
+        public final String stationId;
+        public final int lamport;
+        public final long writeMillis;
+        public final String data;
+
+        Entry(long seq, Type type, String stationId, int lamport, long writeMillis, String data) {
+            this.seq = seq;
+            this.type = type;
+            this.stationId = stationId;
+            this.lamport = lamport;
+            this.writeMillis = writeMillis;
+            this.data = data;
+        }
+    }
+
+    private final Entry[] ring;
+    // sequence number the next entry gets
+    private long nextSeq = 1;
+
+    /**
+     * Creates an empty log
+     * @param capacity number of recent entries kept
+     */
+    public ReplicationLog(int capacity) {
+        this.ring = new Entry[Math.max(1, capacity)];
+    }
+
+    @Override
+    public void stationUpdated(String stationId, int lamport, long writeMillis, Map<String, String> json) {
+        append(Type.UPDATE, stationId, lamport, writeMillis, SimpleJsonUtil.stringify(json));
+    }
+
+    @Override
+    public void stationExpired(String stationId) {
+        append(Type.EXPIRE, stationId, 0, System.currentTimeMillis(), null);
+    }
+
+    private synchronized void append(Type type, String stationId, int lamport, long writeMillis, String data) {
+        ring[(int) (nextSeq % ring.length)] = new Entry(nextSeq, type, stationId, lamport, writeMillis, data);
+        nextSeq++;
+        notifyAll();
+    }
+
+    /**
+     * @return the sequence number of the last entry, 0 if nothing has been logged
+     */
+    public synchronized long lastSeq() {
+        return nextSeq - 1;
+    }
+
+    /**
+     * Returns the entries from a sequence number on, waiting up to waitMillis if there are none yet
+     *
+     * @param fromSeq first sequence number wanted
+     * @param max most entries returned
+     * @param waitMillis how long to wait for a new entry if fromSeq has not been logged yet
+     * @return the entries in sequence order, empty if none arrived in time, null if fromSeq is no longer kept
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized List<Entry> read(long fromSeq, int max, long waitMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + waitMillis;
+        while (fromSeq >= nextSeq) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) return List.of();
+            wait(remaining);
+        }
+        long oldest = Math.max(1, nextSeq - ring.length);
+        if (fromSeq < oldest) return null;
+
+        List<Entry> entries = new ArrayList<>();
+        for (long seq = fromSeq; seq < nextSeq && entries.size() < max; seq++) {
+            entries.add(ring[(int) (seq % ring.length)]);
+        }
+        return entries;
+    }
+}
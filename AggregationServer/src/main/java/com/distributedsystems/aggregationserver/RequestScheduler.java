@@ -0,0 +1,100 @@
+package com.distributedsystems.aggregationserver;
+
+import com.distributedsystems.shared.LatencyRecorder;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Request Scheduler: runs request handling on one of two separately sized thread pools (lanes)
+ *      - READ lane handles GETs, WRITE lane handles PUTs
+ *      - each lane has its own queue so a burst of PUTs never queues in front of a GET
+ *      - the read lane is the larger pool and its threads run at a higher priority than the write lane
+ *      - latency (queue wait + handling time) is recorded per lane
+ */
+public class RequestScheduler {
+    public enum Lane { READ, WRITE }
+
+    private final ThreadPoolExecutor readPool;
+    private final ThreadPoolExecutor writePool;
+    private final LatencyRecorder readLatency = new LatencyRecorder();
+    private final LatencyRecorder writeLatency = new LatencyRecorder();
+
+    /**
+     * Creates the read and write lanes
+     * @param readThreads number of threads handling GET requests
+     * @param writeThreads number of threads handling PUT requests
+     */
+    public RequestScheduler(int readThreads, int writeThreads) {
+        readPool = newLane("read", readThreads, Thread.NORM_PRIORITY + 1);
+        writePool = newLane("write", writeThreads, Thread.NORM_PRIORITY - 1);
+    }
+
+    private static ThreadPoolExecutor newLane(String name, int threads, int priority) {
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread t = new Thread(r, name + "-lane-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            t.setPriority(priority);
+            return t;
+        };
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), factory);
+    }
+
+    /**
+     * Runs a task on a lane and waits for it to finish - used by connection threads so requests on a single
+     * connection are still handled in order
+     *
+     * @param lane the lane to run the task on
+     * @param task the request handling to run
+     * @throws InterruptedException if interrupted while waiting for the task
+     * @throws ExecutionException if the task throws
+     */
+    public void run(Lane lane, Runnable task) throws InterruptedException, ExecutionException {
+        long queuedAt = System.nanoTime();
+        LatencyRecorder latency = lane == Lane.READ ? readLatency : writeLatency;
+        Future<?> future = pool(lane).submit(() -> {
+            try {
+                task.run();
+            } finally {
+                latency.record(System.nanoTime() - queuedAt);
+            }
+        });
+        future.get();
+    }
+
+    /**
+     * Collects queue depth and latency percentiles for both lanes
+     * @return map of metric name : value
+     */
+    public Map<String, String> metrics() {
+        Map<String, String> metrics = new HashMap<>();
+        addMetrics(metrics, "read", readPool, readLatency);
+        addMetrics(metrics, "write", writePool, writeLatency);
+        return metrics;
+    }
+
+    private static void addMetrics(Map<String, String> metrics, String name, ThreadPoolExecutor pool, LatencyRecorder latency) {
+        metrics.put(name + ".threads", String.valueOf(pool.getMaximumPoolSize()));
+        metrics.put(name + ".queued", String.valueOf(pool.getQueue().size()));
+        metrics.put(name + ".count", String.valueOf(latency.count()));
+        metrics.put(name + ".p50_ms", String.format("%.3f", latency.percentileMillis(50)));
+        metrics.put(name + ".p99_ms", String.format("%.3f", latency.percentileMillis(99)));
+        metrics.put(name + ".max_ms", String.format("%.3f", latency.percentileMillis(100)));
+    }
+
+    private ExecutorService pool(Lane lane) {
+        return lane == Lane.READ ? readPool : writePool;
+    }
+
+    /**
+     * Stops both lanes - in flight requests are interrupted
+     */
+    public void shutdown() {
+        readPool.shutdownNow();
+        writePool.shutdownNow();
+    }
+}
@@ -0,0 +1,31 @@
+package com.distributedsystems.aggregationserver;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Response Cache: the last body built for each cacheable response (e.g. every station), tagged with the data version
+ * it was built at. A body is served again until the data version changes, along with its gzip encoding.
+ */
+public class ResponseCache {
+    private final ConcurrentHashMap<String, EncodedBody> bodies = new ConcurrentHashMap<>();
+
+    /**
+     * @param key response key
+     * @param version current data version
+     * @return the cached body if it was built at version, otherwise null
+     */
+    public EncodedBody get(String key, long version) {
+        EncodedBody body = bodies.get(key);
+        return body != null && body.version == version ? body : null;
+    }
+
+    /**
+     * Caches body unless a body built at a newer version is already cached
+     *
+     * @param key response key
+     * @param body body to cache
+     */
+    public void put(String key, EncodedBody body) {
+        bodies.merge(key, body, (current, update) -> update.version >= current.version ? update : current);
+    }
+}
@@ -0,0 +1,213 @@
+package com.distributedsystems.aggregationserver;
+
+import com.distributedsystems.shared.SimpleJsonUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Segment Station Store: keeps station records in memory mapped segment files (see SegmentStore) instead of one file
+ * each. An update reaches the page cache as soon as it is accepted (safe from a server crash) and the disk when the OS
+ * writes the page back or the server stops.
+ *
+ * A station's read write lock keeps a write and a read of its slot apart, SegmentStore doesn't lock per station.
+ */
+public class SegmentStationStore implements StationStore {
+    private final SegmentStore segments;
+
+    private final ConcurrentHashMap<String, ReentrantReadWriteLock> stationLocks = new ConcurrentHashMap<>();
+
+    // Lamport and last write time of every stored station - the lamport check never touches the mapping
+    private final ConcurrentHashMap<String, Integer> stationLamport = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Long> stationLastWrite = new ConcurrentHashMap<>();
+
+    private final AtomicLong dataVersion = new AtomicLong();
+
+    /**
+     * Opens (or creates) the segment files in a directory
+     * @param dir directory holding the segment files, e.g. DATA_DIR/segments
+     * @throws IOException if the segments can't be opened
+     */
+    public SegmentStationStore(File dir) throws IOException {
+        this.segments = new SegmentStore(dir);
+    }
+
+    private ReentrantReadWriteLock lockFor(String stationId) {
+        return stationLocks.computeIfAbsent(stationId, k -> new ReentrantReadWriteLock());
+    }
+
+    @Override
+    public UpdateResult updateStation(String stationId, int lamport, Map<String, String> json) throws IOException {
+        Integer current = stationLamport.get(stationId);
+        if (current != null && lamport <= current) {
+            return UpdateResult.STALE;
+        }
+        byte[] payload = SimpleJsonUtil.stringify(json).getBytes(StandardCharsets.UTF_8);
+
+        ReentrantReadWriteLock lock = lockFor(stationId);
+        lock.writeLock().lock();
+        try {
+            current = stationLamport.get(stationId);
+            if (current != null && lamport <= current) {
+                return UpdateResult.STALE;
+            }
+            long now = System.currentTimeMillis();
+            segments.write(stationId, lamport, now, payload);
+            stationLamport.put(stationId, lamport);
+            stationLastWrite.put(stationId, now);
+            dataVersion.incrementAndGet();
+            return current == null ? UpdateResult.CREATED : UpdateResult.UPDATED;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, String> readSingleStation(String stationId) {
+        Map<String, String> flatMap = new HashMap<>();
+        String data = read(stationId);
+        if (data != null) {
+            flatMap.put(stationId, data);
+        }
+        return flatMap;
+    }
+
+    private String read(String stationId) {
+        if (!stationLamport.containsKey(stationId)) return null;
+        ReentrantReadWriteLock lock = lockFor(stationId);
+        lock.readLock().lock();
+        try {
+            ByteBuffer payload = segments.read(stationId);
+            return payload == null ? null : StandardCharsets.UTF_8.decode(payload).toString();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Passes a station's data as utf-8 bytes to consumer while holding the station's read lock. The buffer is a view
+     * of the memory mapping, so the consumer can copy it without building a String first. Updates of the station
+     * wait for the consumer.
+     *
+     * @param stationId station to read
+     * @param consumer called with the data if the station exists - must not keep the buffer or block
+     * @return true if the station exists and consumer was called
+     * @throws IOException if the consumer throws
+     */
+    @Override
+    public boolean withStationPayload(String stationId, PayloadConsumer consumer) throws IOException {
+        if (!stationLamport.containsKey(stationId)) return false;
+        ReentrantReadWriteLock lock = lockFor(stationId);
+        lock.readLock().lock();
+        try {
+            ByteBuffer payload = segments.read(stationId);
+            if (payload == null) return false;
+            consumer.accept(payload);
+            return true;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, String> readAllStations() {
+        Map<String, String> flatMap = new HashMap<>();
+        for (String stationId : stationLamport.keySet()) {
+            String data = read(stationId);
+            if (data != null) flatMap.put(stationId, data);
+        }
+        return flatMap;
+    }
+
+    @Override
+    public void forEachStation(StationVisitor visitor) {
+        for (Map.Entry<String, Integer> station : stationLamport.entrySet()) {
+            String data = read(station.getKey());
+            if (data == null) continue;
+            visitor.visit(station.getKey(), station.getValue(), stationLastWrite.getOrDefault(station.getKey(), 0L), data);
+        }
+    }
+
+    @Override
+    public List<String> expireStations(long olderThanMillis) {
+        List<String> removed = new ArrayList<>();
+        for (String stationId : stationLastWrite.keySet()) {
+            if (removeIfOlder(stationId, olderThanMillis)) {
+                System.out.println("Data for station: " + stationId + " expired");
+                removed.add(stationId);
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public boolean removeStation(String stationId) {
+        return removeIfOlder(stationId, Long.MAX_VALUE);
+    }
+
+    private boolean removeIfOlder(String stationId, long olderThanMillis) {
+        ReentrantReadWriteLock lock = lockFor(stationId);
+        lock.writeLock().lock();
+        try {
+            Long lastWrite = stationLastWrite.get(stationId);
+            if (lastWrite == null || lastWrite >= olderThanMillis) {
+                return false;
+            }
+            segments.remove(stationId);
+            stationLastWrite.remove(stationId);
+            stationLamport.remove(stationId);
+            dataVersion.incrementAndGet();
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Rebuilds the segment index from the slots on disk - torn slots are discarded
+     * @return the maximum lamport clock present in the segments
+     */
+    @Override
+    public int reload() {
+        int maxLamport = 0;
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Integer> entry : segments.load().entrySet()) {
+            stationLastWrite.put(entry.getKey(), now);
+            stationLamport.put(entry.getKey(), entry.getValue());
+            maxLamport = Math.max(maxLamport, entry.getValue());
+            dataVersion.incrementAndGet();
+            System.out.println("Reloaded station " + entry.getKey() + " (lamport=" + entry.getValue() + ")");
+        }
+        return maxLamport;
+    }
+
+    @Override
+    public long version() {
+        return dataVersion.get();
+    }
+
+    /**
+     * A read from the mapping is a memory copy, not worth sharing
+     */
+    @Override
+    public boolean coalesceReads() {
+        return false;
+    }
+
+    /**
+     * Forces the segments to disk - mapped writes are already in the page cache, this protects them from an OS crash
+     */
+    @Override
+    public void flush() {
+        segments.force();
+    }
+}
@@ -0,0 +1,250 @@
+package com.distributedsystems.aggregationserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Segment Store: keeps station records in fixed size slots inside memory mapped segment files.
+ *      - each segment file holds SLOTS_PER_SEGMENT slots of SLOT_SIZE bytes and is mapped with FileChannel.map
+ *      - an in-memory index maps station id to slot number, rebuilt by scanning the slots on open
+ *      - an update is written to a free slot, the index is switched to it once the tail stamp is written and only
+ *        then is the old slot freed - a crash part way through an update leaves the previous version intact
+ *      - every slot starts and ends with the same version stamp, a slot whose stamps differ was torn by a crash
+ *        part way through a write and is discarded
+ *      - a crash after an update but before its old slot is freed leaves two intact slots, load keeps the one with
+ *        the higher lamport
+ *
+ * Slot layout:
+ *      0   int     version (0 = empty slot)
+ *      4   int     lamport
+ *      8   long    write time in epoch millis
+ *      16  short   id length
+ *      18  int     payload length
+ *      22  bytes   id (MAX_ID_BYTES)
+ *      86  bytes   payload (up to MAX_PAYLOAD_BYTES, larger records are refused with RecordTooLargeException)
+ *      SLOT_SIZE - 4   int version (must equal the first stamp)
+ *
+ * Callers must not write and read the same station concurrently - SegmentStationStore's station locks ensure this.
+ */
+public class SegmentStore {
+    static final int SLOT_SIZE = 4096;
+    static final int SLOTS_PER_SEGMENT = 4096;
+    static final int MAX_ID_BYTES = 64;
+
+    private static final int LAMPORT_OFFSET = 4;
+    private static final int WRITE_TIME_OFFSET = 8;
+    private static final int ID_LENGTH_OFFSET = 16;
+    private static final int PAYLOAD_LENGTH_OFFSET = 18;
+    private static final int ID_OFFSET = 22;
+    private static final int PAYLOAD_OFFSET = ID_OFFSET + MAX_ID_BYTES;
+    private static final int TAIL_OFFSET = SLOT_SIZE - 4;
+    static final int MAX_PAYLOAD_BYTES = TAIL_OFFSET - PAYLOAD_OFFSET;
+
+    private final File dir;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private final ConcurrentHashMap<String, Integer> index = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Integer> freeSlots = new ConcurrentLinkedQueue<>();
+    private int nextUnusedSlot = 0;
+
+    /**
+     * Opens (or creates) the segment files in a directory
+     * @param dir directory holding the segment files
+     * @throws IOException if the directory or segments can't be opened
+     */
+    public SegmentStore(File dir) throws IOException {
+        this.dir = dir;
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Failed to create segment directory " + dir);
+        }
+        for (int i = 0; new File(dir, segmentName(i)).exists(); i++) {
+            segments.add(map(i));
+        }
+        // nothing in the existing segments is reused until load() has found the free slots
+        nextUnusedSlot = segments.size() * SLOTS_PER_SEGMENT;
+    }
+
+    private static String segmentName(int segment) {
+        return String.format("segment-%04d.dat", segment);
+    }
+
+    private MappedByteBuffer map(int segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(new File(dir, segmentName(segment)).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // the mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) SLOT_SIZE * SLOTS_PER_SEGMENT);
+        }
+    }
+
+    /**
+     * Scans every slot and rebuilds the index - torn slots and older copies of a station are cleared, empty and
+     * cleared slots become free
+     *
+     * @return map of stationId : lamport for every intact record
+     */
+    public synchronized Map<String, Integer> load() {
+        index.clear();
+        freeSlots.clear();
+        Map<String, Integer> lamports = new HashMap<>();
+        int totalSlots = segments.size() * SLOTS_PER_SEGMENT;
+
+        for (int slot = 0; slot < totalSlots; slot++) {
+            ByteBuffer buf = slotBuffer(slot);
+            int version = buf.getInt(0);
+            if (version == 0) {
+                freeSlots.add(slot);
+                continue;
+            }
+            if (buf.getInt(TAIL_OFFSET) != version) {
+                System.err.println("Discarding torn record in segment slot " + slot);
+                clear(buf);
+                freeSlots.add(slot);
+                continue;
+            }
+            String stationId = readId(buf);
+            int lamport = buf.getInt(LAMPORT_OFFSET);
+            Integer other = index.get(stationId);
+            if (other != null) {
+                // the server stopped between writing an update and freeing the slot it replaced
+                if (lamport <= lamports.get(stationId)) {
+                    clear(buf);
+                    freeSlots.add(slot);
+                    continue;
+                }
+                clear(slotBuffer(other));
+                freeSlots.add(other);
+            }
+            index.put(stationId, slot);
+            lamports.put(stationId, lamport);
+        }
+        nextUnusedSlot = totalSlots;
+        return lamports;
+    }
+
+    /**
+     * Writes a station's record to a free slot, then points the index at it and frees the station's previous slot
+     *
+     * @param stationId station being written
+     * @param lamport lamport of the record - must be higher than the stored record's
+     * @param writeMillis time of the write
+     * @param payload station data as utf-8 json
+     * @throws RecordTooLargeException if the id or payload doesn't fit in a slot
+     * @throws IOException if a new segment can't be created
+     */
+    public void write(String stationId, int lamport, long writeMillis, byte[] payload) throws IOException {
+        byte[] id = stationId.getBytes(StandardCharsets.UTF_8);
+        if (id.length > MAX_ID_BYTES) {
+            throw new RecordTooLargeException("Station id longer than " + MAX_ID_BYTES + " bytes: " + stationId);
+        }
+        if (payload.length > MAX_PAYLOAD_BYTES) {
+            throw new RecordTooLargeException("Station " + stationId + " record is larger than " + MAX_PAYLOAD_BYTES
+                    + " bytes");
+        }
+
+        Integer previous = index.get(stationId);
+        int slot = allocateSlot();
+        ByteBuffer buf = slotBuffer(slot);
+        int version = (previous == null ? 0 : slotBuffer(previous).getInt(0)) + 1;
+        if (version == 0) version = 1;
+
+        // head stamp first and tail stamp last - a crash in between leaves stamps that don't match
+        buf.putInt(0, version);
+        buf.putInt(LAMPORT_OFFSET, lamport);
+        buf.putLong(WRITE_TIME_OFFSET, writeMillis);
+        buf.putShort(ID_LENGTH_OFFSET, (short) id.length);
+        buf.putInt(PAYLOAD_LENGTH_OFFSET, payload.length);
+        buf.put(ID_OFFSET, id);
+        buf.put(PAYLOAD_OFFSET, payload);
+        buf.putInt(TAIL_OFFSET, version);
+
+        index.put(stationId, slot);
+        if (previous != null) {
+            clear(slotBuffer(previous));
+            freeSlots.add(previous);
+        }
+    }
+
+    /**
+     * Returns a read only view of a station's payload inside the mapping - no bytes are copied
+     *
+     * @param stationId station to read
+     * @return the payload, or null if the station isn't stored or its record is torn
+     */
+    public ByteBuffer read(String stationId) {
+        Integer slot = index.get(stationId);
+        if (slot == null) return null;
+
+        ByteBuffer buf = slotBuffer(slot);
+        int version = buf.getInt(0);
+        if (version == 0 || buf.getInt(TAIL_OFFSET) != version) return null;
+
+        int length = buf.getInt(PAYLOAD_LENGTH_OFFSET);
+        return buf.slice(PAYLOAD_OFFSET, length).asReadOnlyBuffer();
+    }
+
+    /**
+     * @param stationId station to check
+     * @return lamport of the station's record, -1 if it isn't stored
+     */
+    public int lamport(String stationId) {
+        Integer slot = index.get(stationId);
+        return slot == null ? -1 : slotBuffer(slot).getInt(LAMPORT_OFFSET);
+    }
+
+    /**
+     * Removes a station's record and frees its slot
+     * @param stationId station to remove
+     */
+    public void remove(String stationId) {
+        Integer slot = index.remove(stationId);
+        if (slot == null) return;
+        clear(slotBuffer(slot));
+        freeSlots.add(slot);
+    }
+
+    /**
+     * Forces every segment to disk - mapped writes are already in the page cache, this protects them from an OS crash
+     */
+    public synchronized void force() {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    private synchronized int allocateSlot() throws IOException {
+        Integer free = freeSlots.poll();
+        if (free != null) return free;
+
+        int slot = nextUnusedSlot++;
+        if (slot / SLOTS_PER_SEGMENT >= segments.size()) {
+            segments.add(map(segments.size()));
+        }
+        return slot;
+    }
+
+    private ByteBuffer slotBuffer(int slot) {
+        MappedByteBuffer segment;
+        synchronized (this) {
+            segment = segments.get(slot / SLOTS_PER_SEGMENT);
+        }
+        return segment.slice((slot % SLOTS_PER_SEGMENT) * SLOT_SIZE, SLOT_SIZE);
+    }
+
+    private static String readId(ByteBuffer buf) {
+        byte[] id = new byte[buf.getShort(ID_LENGTH_OFFSET)];
+        buf.get(ID_OFFSET, id);
+        return new String(id, StandardCharsets.UTF_8);
+    }
+
+    private static void clear(ByteBuffer buf) {
+        buf.putInt(0, 0);
+        buf.putInt(TAIL_OFFSET, 0);
+    }
+}
@@ -0,0 +1,224 @@
+package com.distributedsystems.aggregationserver;
+
+import java.util.List;
+
+/**
+ * Server Config: options for an aggregation server. Parsed from the command line in the form
+ *      <port> [--option=value ...]
+ */
+public class ServerConfig {
+    public int port = 4567;
+
+    // number of threads that handle GET requests
+    public int readThreads = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+    // number of threads that handle PUT requests
+    public int writeThreads = 2;
+
+    // write behind: minimum time between disk writes of the same station, 0 writes every update immediately
+    // only the "files" storage buffers writes, fromArgs rejects it for the others
+    public long writeBehindMillis = 0;
+
+    // how station records are stored: "files" (one file per station), "segment" (memory mapped segment files),
+    // "offheap" (direct memory only, nothing written to disk), "memory" (heap only, nothing written to disk)
+    // or "log" (append only log file) - the views below keep heap state per station whatever the storage, turn them
+    // off to keep the heap flat as the number of stations grows with offheap
+    public String storage = "files";
+
+    // number of past observations kept in memory per station for /history, 0 turns history off
+    public int historySize = 32;
+
+    // append observations that no longer fit in memory to DATA_DIR/history so /history can reach further back
+    public boolean historySpill = false;
+
+    // numeric fields aggregated into minute / hour / day rollups for /rollups, empty turns rollups off
+    public List<String> rollupFields = List.of("air_temp", "apparent_t", "press", "wind_spd_kmh");
+
+    // numeric fields aggregated across stations for /aggregate, empty turns cross station aggregates off
+    public List<String> aggregateFields = List.of("air_temp", "apparent_t", "press", "wind_spd_kmh");
+
+    // station fields with a secondary index, a GET "/" can filter on these fields with ?field=value
+    public List<String> indexFields = List.of("state", "time_zone", "cloud");
+
+    // numeric fields kept in columns for /scan, empty turns columnar scans off
+    public List<String> columnFields = List.of("air_temp", "apparent_t", "dewpt", "press", "rel_hum", "wind_spd_kmh");
+
+    // sorted station ids kept for paging and streaming GET "/", without it they are read from the store per request
+    public boolean idIndex = true;
+
+    // grid of station positions for /nearest and /bbox, without it those paths answer 400
+    public boolean spatialIndex = true;
+
+    // hash tree of station lamports for anti entropy (/merkle), without it this server can't take part in anti entropy
+    public boolean merkleTree = true;
+
+    // GET "/" for every station streams the response in chunks once there are at least this many stations,
+    // smaller responses are built in memory and shared by concurrent GETs
+    public int streamThreshold = 1000;
+
+    // GET "/" bodies of at least this many bytes are gzip compressed for clients sending Accept-Encoding: gzip,
+    // negative turns compression off
+    public int gzipMinBytes = 1024;
+
+    // snapshot file (from GET /export) loaded on startup after the stored stations, null imports nothing
+    public String importFile = null;
+
+    // host:port of the primary this server is a backup of, null for a primary
+    public String replicaOf = null;
+
+    // number of recent updates and expiries kept for backups, a backup further behind gets a full snapshot
+    public int replicationLogSize = 65536;
+
+    // host:port of the servers this server compares its stations with (anti entropy), empty turns it off
+    public List<String> antiEntropyPeers = List.of();
+
+    // time between anti entropy syncs with each peer
+    public long antiEntropyMillis = 30_000;
+
+    // number of recent PUT Idempotency-Keys whose responses are kept to answer retries, 0 turns deduplication off
+    public int idempotencyKeys = 100_000;
+
+    // time the response to a PUT with an Idempotency-Key is kept for
+    public long idempotencyTtlMillis = 300_000;
+
+    // PUTs per second allowed on one connection and PUTs it may send at once, a rate of 0 turns the limit off
+    public double connectionPutRate = 0;
+    public int connectionPutBurst = 20;
+
+    // PUTs per second allowed for one station id and PUTs it may get at once, a rate of 0 turns the limit off
+    public double stationPutRate = 0;
+    public int stationPutBurst = 5;
+
+    /**
+     * Creates a config with default values for every option
+     */
+    public ServerConfig() {}
+
+    /**
+     * Creates a config with default values listening on the given port
+     * @param port port to listen on
+     */
+    public ServerConfig(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Parses command line arguments - the first argument without a leading "--" is the port,
+     * everything else must be an option of the form --name=value
+     *
+     * @param args command line arguments
+     * @return the parsed config
+     * @throws IllegalArgumentException if an option is not recognised or options don't go together
+     */
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                config.port = Integer.parseInt(arg);
+                continue;
+            }
+            int idx = arg.indexOf('=');
+            String key = idx > 0 ? arg.substring(2, idx) : arg.substring(2);
+            String value = idx > 0 ? arg.substring(idx + 1) : "true";
+
+            switch (key) {
+                case "read-threads":
+                    config.readThreads = Integer.parseInt(value);
+                    break;
+                case "write-threads":
+                    config.writeThreads = Integer.parseInt(value);
+                    break;
+                case "write-behind-ms":
+                    config.writeBehindMillis = Long.parseLong(value);
+                    break;
+                case "storage":
+                    switch (value) {
+                        case "files": case "segment": case "offheap": case "memory": case "log":
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Unknown storage: " + value);
+                    }
+                    config.storage = value;
+                    break;
+                case "history-size":
+                    config.historySize = Integer.parseInt(value);
+                    break;
+                case "history-spill":
+                    config.historySpill = Boolean.parseBoolean(value);
+                    break;
+                case "rollup-fields":
+                    config.rollupFields = value.isEmpty() ? List.of() : List.of(value.split(","));
+                    break;
+                case "aggregate-fields":
+                    config.aggregateFields = value.isEmpty() ? List.of() : List.of(value.split(","));
+                    break;
+                case "index-fields":
+                    config.indexFields = value.isEmpty() ? List.of() : List.of(value.split(","));
+                    break;
+                case "column-fields":
+                    config.columnFields = value.isEmpty() ? List.of() : List.of(value.split(","));
+                    break;
+                case "id-index":
+                    config.idIndex = Boolean.parseBoolean(value);
+                    break;
+                case "spatial-index":
+                    config.spatialIndex = Boolean.parseBoolean(value);
+                    break;
+                case "merkle-tree":
+                    config.merkleTree = Boolean.parseBoolean(value);
+                    break;
+                case "stream-threshold":
+                    config.streamThreshold = Integer.parseInt(value);
+                    break;
+                case "gzip-min-bytes":
+                    config.gzipMinBytes = Integer.parseInt(value);
+                    break;
+                case "import":
+                    config.importFile = value;
+                    break;
+                case "replica-of":
+                    if (value.lastIndexOf(':') <= 0) {
+                        throw new IllegalArgumentException("--replica-of must be host:port, got " + value);
+                    }
+                    config.replicaOf = value;
+                    break;
+                case "anti-entropy-peers":
+                    config.antiEntropyPeers = value.isEmpty() ? List.of() : List.of(value.split(","));
+                    break;
+                case "anti-entropy-ms":
+                    config.antiEntropyMillis = Long.parseLong(value);
+                    break;
+                case "replication-log-size":
+                    config.replicationLogSize = Integer.parseInt(value);
+                    break;
+                case "idempotency-keys":
+                    config.idempotencyKeys = Integer.parseInt(value);
+                    break;
+                case "idempotency-ttl-ms":
+                    config.idempotencyTtlMillis = Long.parseLong(value);
+                    break;
+                case "connection-put-rate":
+                    config.connectionPutRate = Double.parseDouble(value);
+                    break;
+                case "connection-put-burst":
+                    config.connectionPutBurst = Integer.parseInt(value);
+                    break;
+                case "station-put-rate":
+                    config.stationPutRate = Double.parseDouble(value);
+                    break;
+                case "station-put-burst":
+                    config.stationPutBurst = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        if (config.writeBehindMillis > 0 && !config.storage.equals("files")) {
+            throw new IllegalArgumentException("--write-behind-ms only applies to --storage=files, not " + config.storage);
+        }
+        if (!config.antiEntropyPeers.isEmpty() && !config.merkleTree) {
+            throw new IllegalArgumentException("--anti-entropy-peers needs the merkle tree, not --merkle-tree=false");
+        }
+        return config;
+    }
+}
@@ -0,0 +1,137 @@
+package com.distributedsystems.aggregationserver;
+
+import com.distributedsystems.shared.HashRing;
+import com.distributedsystems.shared.HttpHelper;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Shard Rebalancer: moves every station to the shard that owns it on the consistent hash ring of a list of shards.
+ * Run it after adding a shard:
+ *
+ *      1. start the new aggregation server
+ *      2. ShardRebalancer <all shards, new one included> --copy-only
+ *         copies the stations the new shard now owns to it, the old shards keep serving them
+ *      3. restart the content servers and get clients with the new shard list
+ *      4. ShardRebalancer <all shards, new one included>
+ *         copies anything updated between 2 and 3, then deletes the moved stations from the old shards
+ *
+ * Each shard is exported with GET /export, so stations keep their lamport when they are PUT on their new shard and
+ * a copy never replaces a newer version there.
+ */
+public class ShardRebalancer {
+    private final HashRing ring;
+    private final boolean copyOnly;
+
+    /**
+     * Creates a rebalancer
+     * @param shards "host:port" of every shard
+     * @param copyOnly true to leave moved stations on their old shard
+     */
+    public ShardRebalancer(List<String> shards, boolean copyOnly) {
+        this.ring = new HashRing(shards);
+        this.copyOnly = copyOnly;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: java ShardRebalancer <host:port,host:port,...> [--copy-only]");
+            System.exit(1);
+        }
+        boolean copyOnly = args.length > 1 && args[1].equals("--copy-only");
+        int moved = new ShardRebalancer(List.of(args[0].split(",")), copyOnly).rebalance();
+        System.out.println((copyOnly ? "Copied " : "Moved ") + moved + " stations");
+    }
+
+    /**
+     * Moves (or copies) every station that is not on its owning shard
+     * @return the number of stations moved
+     * @throws IOException if a shard can't be reached or refuses an update
+     */
+    public int rebalance() throws IOException {
+        int moved = 0;
+        for (String shard : ring.nodes()) {
+            File snapshot = File.createTempFile("rebalance-", ".snapshot");
+            try {
+                export(shard, snapshot);
+                List<StationSnapshot.Entry> misplaced = new ArrayList<>();
+                StationSnapshot.read(snapshot, entry -> {
+                    if (!ring.nodeFor(entry.stationId).equals(shard)) misplaced.add(entry);
+                });
+                for (StationSnapshot.Entry entry : misplaced) {
+                    move(shard, entry);
+                    moved++;
+                }
+                System.out.println(shard + ": " + misplaced.size() + " stations belong to other shards");
+            } finally {
+                if (!snapshot.delete()) {
+                    System.err.println("Failed to delete " + snapshot);
+                }
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * Downloads a shard's GET /export into a file
+     */
+    private static void export(String shard, File target) throws IOException {
+        try (Socket socket = connect(shard)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET /export HTTP/1.1\r\nHost: " + shard + "\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            HttpHelper.Response res = HttpHelper.readResponseHead(in);
+            String length = HttpHelper.header(res.headers, "Content-Length");
+            if (!res.status.startsWith("200") || length == null) {
+                throw new IOException(shard + " answered GET /export with " + res.status);
+            }
+            long remaining = Long.parseLong(length);
+            byte[] buffer = new byte[64 * 1024];
+            try (OutputStream file = new BufferedOutputStream(new FileOutputStream(target))) {
+                while (remaining > 0) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read < 0) throw new IOException(shard + " closed the connection during GET /export");
+                    file.write(buffer, 0, read);
+                    remaining -= read;
+                }
+            }
+        }
+    }
+
+    /**
+     * PUTs a station on its owning shard with its stored lamport, then deletes it from the shard it was on
+     */
+    private void move(String from, StationSnapshot.Entry entry) throws IOException {
+        String owner = ring.nodeFor(entry.stationId);
+        Map<String, String> headers = new HashMap<>();
+        headers.put("X-Lamport-Clock", String.valueOf(entry.record.lamport));
+        headers.put("Content-Type", "application/json");
+        HttpHelper.Response put;
+        try (Socket socket = connect(owner)) {
+            put = HttpHelper.sendRequest(socket, "PUT", "/", headers, entry.record.data());
+        }
+        if (!put.status.startsWith("200") && !put.status.startsWith("201")) {
+            throw new IOException(owner + " refused station " + entry.stationId + ": " + put.status);
+        }
+        if (copyOnly) return;
+
+        Map<String, String> deleteHeaders = new HashMap<>();
+        deleteHeaders.put("stationId", entry.stationId);
+        try (Socket socket = connect(from)) {
+            HttpHelper.Response delete = HttpHelper.sendRequest(socket, "DELETE", "/", deleteHeaders, "");
+            if (!delete.status.startsWith("200")) {
+                throw new IOException(from + " refused to delete station " + entry.stationId + ": " + delete.status);
+            }
+        }
+    }
+
+    private static Socket connect(String shard) throws IOException {
+        int idx = shard.lastIndexOf(':');
+        return new Socket(shard.substring(0, idx), Integer.parseInt(shard.substring(idx + 1)));
+    }
+}
@@ -0,0 +1,72 @@
+package com.distributedsystems.aggregationserver;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Single Flight: concurrent callers asking for the same key share one in-flight computation and its result.
+ * Each computation is tagged with the data version it started at - a caller only joins a computation that started
+ * at or after the version the caller saw, so a shared result never misses an update that finished before the
+ * caller arrived.
+ *
+ * @param <K> key type
+ * @param <V> result type
+ */
+public class SingleFlight<K, V> {
+    private final ConcurrentHashMap<K, Flight<V>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong shared = new AtomicLong();
+
+    private static final class Flight<V> {
+        final long version;
+        final CompletableFuture<V> result = new CompletableFuture<>();
+
+        Flight(long version) {
+            this.version = version;
+        }
+    }
+
+    /**
+     * Returns the result for key - joins a computation already in flight if it is new enough, otherwise runs
+     * computation on the calling thread and shares it with callers that arrive while it runs
+     *
+     * @param key identifies the computation
+     * @param version data version observed by the caller before calling
+     * @param computation computes the result
+     * @return the result
+     */
+    public V run(K key, long version, Supplier<V> computation) {
+        while (true) {
+            Flight<V> current = inFlight.get(key);
+            if (current != null && current.version >= version) {
+                shared.incrementAndGet();
+                return current.result.join();
+            }
+
+            Flight<V> mine = new Flight<>(version);
+            boolean installed = current == null
+                    ? inFlight.putIfAbsent(key, mine) == null
+                    : inFlight.replace(key, current, mine);
+            if (!installed) continue;
+
+            try {
+                V value = computation.get();
+                mine.result.complete(value);
+                return value;
+            } catch (RuntimeException e) {
+                mine.result.completeExceptionally(e);
+                throw e;
+            } finally {
+                inFlight.remove(key, mine);
+            }
+        }
+    }
+
+    /**
+     * @return number of calls that were answered by joining another caller's computation
+     */
+    public long sharedCount() {
+        return shared.get();
+    }
+}
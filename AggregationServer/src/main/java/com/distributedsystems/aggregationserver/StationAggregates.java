@@ -0,0 +1,191 @@
+package com.distributedsystems.aggregationserver;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Station Aggregates: min / max / avg / count of numeric fields over the current data of every station, nationwide
+ * and per state. The aggregates are kept up to date as updates are accepted and stations expire - each station's
+ * current contribution is remembered so an update replaces it and an expiry takes it out - so a query never scans
+ * the stations.
+ *
+ * count and sum are plain counters. min and max are the ends of a sorted multiset of the current values, which is
+ * what lets a value be taken out again when its station is updated or expires.
+ */
+public class StationAggregates implements StationListener {
+    private static final String ALL_STATES = "";
+
+    public enum Function { MIN, MAX, AVG, COUNT }
+
+    /**
+     * Running aggregate of one field over one group of stations
+     */
+    private static final class Accumulator {
+        long count;
+        double sum;
+        final TreeMap<Double, Integer> values = new TreeMap<>();
+
+        void add(double value) {
+            count++;
+            sum += value;
+            values.merge(value, 1, Integer::sum);
+        }
+
+        void remove(double value) {
+            count--;
+            sum -= value;
+            values.computeIfPresent(value, (v, n) -> n == 1 ? null : n - 1);
+            if (count == 0) sum = 0; // don't carry rounding error into the next value
+        }
+    }
+
+    /**
+     * What a station currently adds to the aggregates
+     */
+    private static final class Contribution {
+        final String state;
+        final double[] values;
+        final boolean[] present;
+
+        Contribution(String state, double[] values, boolean[] present) {
+            this.state = state;
+            this.values = values;
+            this.present = present;
+        }
+    }
+
+    /**
+     * Result of an aggregate query
+     */
+    public static final class Result {
+        public final long count;
+        public final Double value;
+
+        Result(long count, Double value) {
+            this.count = count;
+            this.value = value;
+        }
+    }
+
+    private final List<String> fields;
+    private final Map<String, Contribution> contributions = new HashMap<>();
+    // state ("" for every state) -> one accumulator per field
+    private final Map<String, Accumulator[]> groups = new HashMap<>();
+
+    /**
+     * Creates aggregates for a set of numeric fields
+     * @param fields station data fields to aggregate
+     */
+    public StationAggregates(List<String> fields) {
+        this.fields = List.copyOf(fields);
+    }
+
+    /**
+     * @return the fields that are aggregated
+     */
+    public List<String> fields() {
+        return fields;
+    }
+
+    @Override
+    public void stationUpdated(String stationId, int lamport, long writeMillis, Map<String, String> json) {
+        String state = json.getOrDefault("state", "").trim().toUpperCase(Locale.ROOT);
+        double[] values = new double[fields.size()];
+        boolean[] present = new boolean[fields.size()];
+        for (int f = 0; f < fields.size(); f++) {
+            String value = json.get(fields.get(f));
+            if (value == null) continue;
+            try {
+                values[f] = Double.parseDouble(value);
+                present[f] = !Double.isNaN(values[f]);
+            } catch (NumberFormatException ignored) {
+                // e.g. "-" for a missing reading
+            }
+        }
+
+        synchronized (this) {
+            Contribution previous = contributions.put(stationId, new Contribution(state, values, present));
+            if (previous != null) apply(previous, false);
+            apply(contributions.get(stationId), true);
+        }
+    }
+
+    /**
+     * Stations loaded after a restart count towards the aggregates like any update
+     */
+    @Override
+    public void stationReloaded(String stationId, Map<String, String> json) {
+        stationUpdated(stationId, 0, System.currentTimeMillis(), json);
+    }
+
+    @Override
+    public synchronized void stationExpired(String stationId) {
+        Contribution previous = contributions.remove(stationId);
+        if (previous != null) apply(previous, false);
+    }
+
+    /**
+     * Adds or removes a contribution to the nationwide group and its state's group - must be called while
+     * synchronized on this
+     */
+    private void apply(Contribution contribution, boolean add) {
+        Accumulator[] all = groups.computeIfAbsent(ALL_STATES, k -> newGroup());
+        Accumulator[] state = contribution.state.isEmpty() ? null : groups.computeIfAbsent(contribution.state, k -> newGroup());
+        for (int f = 0; f < fields.size(); f++) {
+            if (!contribution.present[f]) continue;
+            double value = contribution.values[f];
+            if (add) {
+                all[f].add(value);
+                if (state != null) state[f].add(value);
+            } else {
+                all[f].remove(value);
+                if (state != null) state[f].remove(value);
+            }
+        }
+    }
+
+    private Accumulator[] newGroup() {
+        Accumulator[] group = new Accumulator[fields.size()];
+        for (int f = 0; f < group.length; f++) {
+            group[f] = new Accumulator();
+        }
+        return group;
+    }
+
+    /**
+     * Returns an aggregate of a field over the current data of every station, or of the stations in one state
+     *
+     * @param field field to aggregate - must be one of fields()
+     * @param function aggregate function
+     * @param state state to restrict to (e.g. "SA"), null or empty for every state
+     * @return the number of stations with a value for the field and the aggregate, whose value is null if there
+     *         are no such stations
+     * @throws IllegalArgumentException if the field isn't aggregated
+     */
+    public synchronized Result query(String field, Function function, String state) {
+        int f = fields.indexOf(field);
+        if (f < 0) {
+            throw new IllegalArgumentException("Field is not aggregated: " + field);
+        }
+        String group = state == null ? ALL_STATES : state.trim().toUpperCase(Locale.ROOT);
+        Accumulator[] accumulators = groups.get(group);
+        if (accumulators == null || accumulators[f].count == 0) {
+            return new Result(0, function == Function.COUNT ? 0.0 : null);
+        }
+
+        Accumulator accumulator = accumulators[f];
+        switch (function) {
+            case MIN:
+                return new Result(accumulator.count, accumulator.values.firstKey());
+            case MAX:
+                return new Result(accumulator.count, accumulator.values.lastKey());
+            case AVG:
+                return new Result(accumulator.count, accumulator.sum / accumulator.count);
+            default:
+                return new Result(accumulator.count, (double) accumulator.count);
+        }
+    }
+}
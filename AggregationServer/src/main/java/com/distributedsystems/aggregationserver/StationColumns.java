@@ -0,0 +1,259 @@
+package com.distributedsystems.aggregationserver;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Station Columns: a columnar copy of the numeric fields of every station, for scans with predicates such as
+ * "rel_hum > 80 and wind_spd_kmh > 40" that would otherwise parse every station's data.
+ *
+ * Each station has a row. Each field is a double[] column with a validity bitmap (bit set if the station has a
+ * numeric value for the field), and an id dictionary maps rows to station ids and back. Updates overwrite the
+ * station's row in place, expired stations clear their validity bits and their row is reused.
+ *
+ * A scan evaluates one predicate at a time over whole columns, 64 rows per bitmap word, with branch free loops over
+ * primitive arrays that the JIT compiles to straight line (and where it can, vectorized) code.
+ */
+public class StationColumns implements StationListener {
+    private static final int INITIAL_ROWS = 1024;
+
+    public enum Op { GT, GE, LT, LE, EQ, NE }
+
+    /**
+     * One comparison of a field against a constant
+     */
+    public static final class Predicate {
+        public final String field;
+        public final Op op;
+        public final double value;
+
+        public Predicate(String field, Op op, double value) {
+            this.field = field;
+            this.op = op;
+            this.value = value;
+        }
+
+        /**
+         * Parses predicates in the form field:op:value separated by commas, e.g. "rel_hum:gt:80,wind_spd_kmh:ge:40"
+         *
+         * @param where predicates
+         * @return the parsed predicates
+         * @throws IllegalArgumentException if a predicate is malformed
+         */
+        public static List<Predicate> parseAll(String where) {
+            List<Predicate> predicates = new ArrayList<>();
+            for (String part : where.split(",")) {
+                String[] pieces = part.trim().split(":");
+                if (pieces.length != 3) throw new IllegalArgumentException("Predicate must be field:op:value - " + part);
+                predicates.add(new Predicate(pieces[0], Op.valueOf(pieces[1].toUpperCase(Locale.ROOT)),
+                        Double.parseDouble(pieces[2])));
+            }
+            return predicates;
+        }
+    }
+
+    private final List<String> fields;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Integer> rowOf = new HashMap<>();
+    private final ArrayDeque<Integer> freeRows = new ArrayDeque<>();
+    private String[] ids = new String[INITIAL_ROWS];
+    private double[][] columns;
+    private long[][] valid;
+    private int rows = 0; // rows in use or freed, rows past this have never been used
+
+    /**
+     * Creates columns for fields
+     * @param fields numeric station fields to keep in columns
+     */
+    public StationColumns(List<String> fields) {
+        this.fields = List.copyOf(fields);
+        this.columns = new double[this.fields.size()][INITIAL_ROWS];
+        this.valid = new long[this.fields.size()][INITIAL_ROWS / 64];
+    }
+
+    /**
+     * @return the fields kept in columns
+     */
+    public List<String> fields() {
+        return fields;
+    }
+
+    @Override
+    public void stationUpdated(String stationId, int lamport, long writeMillis, Map<String, String> json) {
+        double[] values = new double[fields.size()];
+        boolean[] present = new boolean[fields.size()];
+        for (int i = 0; i < values.length; i++) {
+            String value = json.get(fields.get(i));
+            if (value == null) continue;
+            try {
+                values[i] = Double.parseDouble(value.trim());
+                present[i] = true;
+            } catch (NumberFormatException e) {
+                // not numeric - left out of the column
+            }
+        }
+
+        lock.writeLock().lock();
+        try {
+            Integer row = rowOf.get(stationId);
+            if (row == null) {
+                row = freeRows.isEmpty() ? newRow() : freeRows.pop();
+                rowOf.put(stationId, row);
+                ids[row] = stationId;
+            }
+            int word = row >>> 6;
+            long bit = 1L << row;
+            for (int i = 0; i < values.length; i++) {
+                columns[i][row] = values[i];
+                valid[i][word] = present[i] ? valid[i][word] | bit : valid[i][word] & ~bit;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private int newRow() {
+        if (rows == ids.length) {
+            int capacity = ids.length * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            for (int i = 0; i < fields.size(); i++) {
+                columns[i] = Arrays.copyOf(columns[i], capacity);
+                valid[i] = Arrays.copyOf(valid[i], capacity / 64);
+            }
+        }
+        return rows++;
+    }
+
+    @Override
+    public void stationReloaded(String stationId, Map<String, String> json) {
+        stationUpdated(stationId, 0, System.currentTimeMillis(), json);
+    }
+
+    @Override
+    public void stationExpired(String stationId) {
+        lock.writeLock().lock();
+        try {
+            Integer row = rowOf.remove(stationId);
+            if (row == null) return;
+            ids[row] = null;
+            for (int i = 0; i < fields.size(); i++) {
+                valid[i][row >>> 6] &= ~(1L << row);
+            }
+            freeRows.push(row);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the stations matching every predicate - a station without a numeric value for a predicate's field never
+     * matches it
+     *
+     * @param predicates predicates to match
+     * @return ids of the matching stations
+     * @throws IllegalArgumentException if a predicate's field has no column
+     */
+    public List<String> scan(List<Predicate> predicates) {
+        int[] columnIndex = new int[predicates.size()];
+        for (int p = 0; p < columnIndex.length; p++) {
+            columnIndex[p] = fields.indexOf(predicates.get(p).field);
+            if (columnIndex[p] < 0) throw new IllegalArgumentException(predicates.get(p).field + " has no column");
+        }
+
+        List<String> result = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            if (columnIndex.length == 0) return new ArrayList<>(rowOf.keySet());
+            int words = (rows + 63) >>> 6;
+            long[] match = new long[words];
+            Arrays.fill(match, -1L);
+            for (int p = 0; p < columnIndex.length; p++) {
+                Predicate predicate = predicates.get(p);
+                filter(columns[columnIndex[p]], valid[columnIndex[p]], predicate.op, predicate.value, match);
+            }
+
+            for (int w = 0; w < words; w++) {
+                long bits = match[w];
+                while (bits != 0) {
+                    result.add(ids[(w << 6) + Long.numberOfTrailingZeros(bits)]);
+                    bits &= bits - 1;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    /**
+     * ANDs match with the rows whose value satisfies the comparison - one loop per operator so the comparison inside
+     * the loop is fixed
+     */
+    static void filter(double[] column, long[] valid, Op op, double value, long[] match) {
+        switch (op) {
+            case GT:
+                for (int w = 0; w < match.length; w++) {
+                    long bits = 0;
+                    int base = w << 6;
+                    for (int b = 0; b < 64; b++) bits |= (column[base + b] > value ? 1L : 0L) << b;
+                    match[w] &= bits & valid[w];
+                }
+                break;
+            case GE:
+                for (int w = 0; w < match.length; w++) {
+                    long bits = 0;
+                    int base = w << 6;
+                    for (int b = 0; b < 64; b++) bits |= (column[base + b] >= value ? 1L : 0L) << b;
+                    match[w] &= bits & valid[w];
+                }
+                break;
+            case LT:
+                for (int w = 0; w < match.length; w++) {
+                    long bits = 0;
+                    int base = w << 6;
+                    for (int b = 0; b < 64; b++) bits |= (column[base + b] < value ? 1L : 0L) << b;
+                    match[w] &= bits & valid[w];
+                }
+                break;
+            case LE:
+                for (int w = 0; w < match.length; w++) {
+                    long bits = 0;
+                    int base = w << 6;
+                    for (int b = 0; b < 64; b++) bits |= (column[base + b] <= value ? 1L : 0L) << b;
+                    match[w] &= bits & valid[w];
+                }
+                break;
+            case EQ:
+                for (int w = 0; w < match.length; w++) {
+                    long bits = 0;
+                    int base = w << 6;
+                    for (int b = 0; b < 64; b++) bits |= (column[base + b] == value ? 1L : 0L) << b;
+                    match[w] &= bits & valid[w];
+                }
+                break;
+            case NE:
+                for (int w = 0; w < match.length; w++) {
+                    long bits = 0;
+                    int base = w << 6;
+                    for (int b = 0; b < 64; b++) bits |= (column[base + b] != value ? 1L : 0L) << b;
+                    match[w] &= bits & valid[w];
+                }
+                break;
+        }
+    }
+
+    /**
+     * Builds the /scan response - {"count":"..","stations":["id",..]}
+     *
+     * @param stationIds matching stations
+     * @return the json
+     */
+    public static String toJson(List<String> stationIds) {
+        StringBuilder sb = new StringBuilder("{\"count\":\"").append(stationIds.size()).append("\",\"stations\":[");
+        for (int i = 0; i < stationIds.size(); i++) {
+            if (i > 0) sb.append(",");
+            sb.append("\"").append(stationIds.get(i)).append("\"");
+        }
+        return sb.append("]}").toString();
+    }
+}
@@ -0,0 +1,318 @@
+package com.distributedsystems.aggregationserver;
+
+import com.distributedsystems.shared.SimpleJsonUtil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Station History: keeps the last observations of every station so past values can be queried by lamport or time
+ * range. Each station has a ring buffer whose arrays are allocated once, when the station is first seen - a new
+ * observation overwrites the oldest one.
+ *
+ * With spilling turned on, observations pushed out of a ring (and the whole ring of an expired station) are appended
+ * to DATA_DIR/history/xx/yy/<id>.hist as StationRecords, and queries reaching back further than the ring read them
+ * from there. A query only touches the requested station's ring and spill file.
+ *
+ * Spilling stays off the update path: evicted observations wait in memory (where queries see them) until a background
+ * thread appends them, once every SPILL_INTERVAL_MILLIS and on flush. Reading a spill file streams it and only reads
+ * the payloads in range, and a query returns at most MAX_SPILLED_RESULTS spilled observations - the oldest ones, a
+ * client gets the rest by asking again from the last lamport it got.
+ */
+public class StationHistory implements StationListener {
+    static final long SPILL_INTERVAL_MILLIS = 1000;
+    static final int MAX_SPILLED_RESULTS = 10_000;
+    private static final int SPILL_LOCK_STRIPES = 64;
+
+    /**
+     * One past observation of a station
+     */
+    public static final class Observation {
+        public final long lamport;
+        public final long writeMillis;
+        public final String data;
+
+        Observation(long lamport, long writeMillis, String data) {
+            this.lamport = lamport;
+            this.writeMillis = writeMillis;
+            this.data = data;
+        }
+
+        boolean inRange(long fromLamport, long toLamport, long sinceMillis, long untilMillis) {
+            return lamport >= fromLamport && lamport <= toLamport && writeMillis >= sinceMillis && writeMillis <= untilMillis;
+        }
+    }
+
+    /**
+     * Fixed size ring of observations in lamport order - the oldest is at head
+     */
+    private static final class Ring {
+        final long[] lamports;
+        final long[] writeMillis;
+        final String[] data;
+        int head;
+        int size;
+
+        Ring(int capacity) {
+            lamports = new long[capacity];
+            writeMillis = new long[capacity];
+            data = new String[capacity];
+        }
+
+        /**
+         * @return the observation that was overwritten, null if the ring wasn't full
+         */
+        Observation add(long lamport, long millis, String json) {
+            Observation evicted = null;
+            int slot = (head + size) % lamports.length;
+            if (size == lamports.length) {
+                evicted = get(0);
+                head = (head + 1) % lamports.length;
+            } else {
+                size++;
+            }
+            lamports[slot] = lamport;
+            writeMillis[slot] = millis;
+            data[slot] = json;
+            return evicted;
+        }
+
+        /**
+         * @param i position from the oldest observation
+         */
+        Observation get(int i) {
+            int slot = (head + i) % lamports.length;
+            return new Observation(lamports[slot], writeMillis[slot], data[slot]);
+        }
+    }
+
+    private final int capacity;
+    private final File spillDir;
+    private final ConcurrentHashMap<String, Ring> rings = new ConcurrentHashMap<>();
+
+    // evicted observations not appended to their spill file yet, oldest first
+    private final ConcurrentHashMap<String, List<Observation>> unspilled = new ConcurrentHashMap<>();
+    // a station's spill file is appended to and read under one of these, picked by the id's hash
+    private final Object[] spillLocks = new Object[SPILL_LOCK_STRIPES];
+    private final ScheduledExecutorService spiller;
+
+    /**
+     * Creates a history
+     * @param capacity observations kept in memory per station
+     * @param spillDir directory older observations are appended to, null to drop them
+     */
+    public StationHistory(int capacity, File spillDir) {
+        this.capacity = capacity;
+        this.spillDir = spillDir;
+        for (int i = 0; i < spillLocks.length; i++) {
+            spillLocks[i] = new Object();
+        }
+        if (spillDir == null) {
+            this.spiller = null;
+        } else {
+            this.spiller = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "history-spill");
+                thread.setDaemon(true);
+                return thread;
+            });
+            spiller.scheduleWithFixedDelay(this::flush, SPILL_INTERVAL_MILLIS, SPILL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private File spillFile(String stationId) {
+        return new File(new File(spillDir, FileManager.shardPath(stationId)), stationId + ".hist");
+    }
+
+    private Object spillLockFor(String stationId) {
+        return spillLocks[(stationId.hashCode() & 0x7fffffff) % SPILL_LOCK_STRIPES];
+    }
+
+    @Override
+    public void stationUpdated(String stationId, int lamport, long writeMillis, Map<String, String> json) {
+        String data = SimpleJsonUtil.stringify(json);
+        Ring ring = rings.computeIfAbsent(stationId, k -> new Ring(capacity));
+        synchronized (ring) {
+            Observation evicted = ring.add(lamport, writeMillis, data);
+            if (evicted != null && spillDir != null) {
+                spill(stationId, List.of(evicted));
+            }
+        }
+    }
+
+    /**
+     * Drops an expired station's ring - with spilling on its observations are queued for the spill file first so they
+     * can still be queried
+     */
+    @Override
+    public void stationExpired(String stationId) {
+        Ring ring = rings.remove(stationId);
+        if (ring == null || spillDir == null) return;
+        synchronized (ring) {
+            List<Observation> observations = new ArrayList<>();
+            for (int i = 0; i < ring.size; i++) {
+                observations.add(ring.get(i));
+            }
+            spill(stationId, observations);
+        }
+    }
+
+    /**
+     * Queues observations for a station's spill file - must be called while holding the station's ring
+     */
+    private void spill(String stationId, List<Observation> observations) {
+        unspilled.compute(stationId, (id, queued) -> {
+            if (queued == null) queued = new ArrayList<>();
+            queued.addAll(observations);
+            return queued;
+        });
+    }
+
+    /**
+     * Appends every queued observation to its station's spill file - runs on the spill thread, and when the server
+     * stops
+     */
+    public void flush() {
+        for (String stationId : unspilled.keySet()) {
+            synchronized (spillLockFor(stationId)) {
+                List<Observation> observations = unspilled.remove(stationId);
+                if (observations != null) append(stationId, observations);
+            }
+        }
+    }
+
+    /**
+     * Stops the spill thread after appending what is queued
+     */
+    public void close() {
+        if (spiller == null) return;
+        spiller.shutdown();
+        flush();
+    }
+
+    private void append(String stationId, List<Observation> observations) {
+        File file = spillFile(stationId);
+        File dir = file.getParentFile();
+        try {
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw new IOException("Failed to create " + dir);
+            }
+            try (FileOutputStream out = new FileOutputStream(file, true)) {
+                for (Observation observation : observations) {
+                    out.write(new StationRecord(observation.lamport, observation.writeMillis,
+                            observation.data.getBytes(StandardCharsets.UTF_8)).encode());
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to spill history for station " + stationId + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns a station's observations within a lamport range and a time range (all bounds inclusive). Once
+     * MAX_SPILLED_RESULTS spilled observations match, only those are returned.
+     *
+     * @param stationId station to query
+     * @param fromLamport lowest lamport
+     * @param toLamport highest lamport
+     * @param sinceMillis earliest write time in epoch millis
+     * @param untilMillis latest write time in epoch millis
+     * @return matching observations oldest first
+     * @throws IOException if the spill file can't be read
+     */
+    public List<Observation> query(String stationId, long fromLamport, long toLamport, long sinceMillis, long untilMillis)
+            throws IOException {
+        List<Observation> result = new ArrayList<>();
+        Ring ring = rings.get(stationId);
+        if (ring == null) {
+            // an expired (or not yet updated) station only has its spilled observations
+            readSpill(stationId, fromLamport, toLamport, sinceMillis, untilMillis, result);
+            return result;
+        }
+
+        synchronized (ring) {
+            // spilled observations are all older than the ring's oldest
+            boolean reachesSpill = ring.size == 0 || ring.get(0).lamport > fromLamport && ring.get(0).writeMillis >= sinceMillis;
+            if (reachesSpill && !readSpill(stationId, fromLamport, toLamport, sinceMillis, untilMillis, result)) {
+                // the ring continues after observations that were left out
+                return result;
+            }
+            for (int i = 0; i < ring.size; i++) {
+                Observation observation = ring.get(i);
+                if (observation.inRange(fromLamport, toLamport, sinceMillis, untilMillis)) {
+                    result.add(observation);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds a station's spilled observations in range to result - those in the spill file, then those still queued
+     * @return false if the MAX_SPILLED_RESULTS limit left some out
+     */
+    private boolean readSpill(String stationId, long fromLamport, long toLamport, long sinceMillis, long untilMillis,
+                              List<Observation> result) throws IOException {
+        if (spillDir == null) return true;
+        int limit = result.size() + MAX_SPILLED_RESULTS;
+        boolean[] complete = {true};
+        synchronized (spillLockFor(stationId)) {
+            StationRecord.scan(spillFile(stationId), new StationRecord.Scanner() {
+                @Override
+                public boolean wants(long lamport, long writeMillis) {
+                    return lamport >= fromLamport && lamport <= toLamport && writeMillis >= sinceMillis && writeMillis <= untilMillis;
+                }
+
+                @Override
+                public boolean accept(StationRecord record) {
+                    if (result.size() == limit) {
+                        complete[0] = false;
+                        return false;
+                    }
+                    result.add(new Observation(record.lamport, record.writeMillis, record.data()));
+                    return true;
+                }
+            });
+            unspilled.computeIfPresent(stationId, (id, queued) -> {
+                for (Observation observation : queued) {
+                    if (!observation.inRange(fromLamport, toLamport, sinceMillis, untilMillis)) continue;
+                    if (result.size() == limit) {
+                        complete[0] = false;
+                        break;
+                    }
+                    result.add(observation);
+                }
+                return queued;
+            });
+        }
+        return complete[0];
+    }
+
+    /**
+     * Builds the /history response - {"stationId":"..","observations":[{"lamport":..,"time":..,"data":{..}},..]}
+     *
+     * @param stationId station the observations belong to
+     * @param observations observations to include
+     * @return the json
+     */
+    public static String toJson(String stationId, List<Observation> observations) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"stationId\":\"").append(stationId).append("\",\"observations\":[");
+        for (int i = 0; i < observations.size(); i++) {
+            Observation observation = observations.get(i);
+            if (i > 0) sb.append(",");
+            sb.append("{\"lamport\":").append(observation.lamport)
+                    .append(",\"time\":").append(observation.writeMillis)
+                    .append(",\"data\":").append(observation.data).append("}");
+        }
+        return sb.append("]}").toString();
+    }
+}
@@ -0,0 +1,103 @@
+package com.distributedsystems.aggregationserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Station Id Index: the ids of every stored station in sorted order, for paging through the stations with cursors.
+ *
+ * A cursor is the last id of the previous page, so the next page is the ids after it. Pages are stable while stations
+ * are updated - an update never moves a station - and a station that expires or is added between pages only affects
+ * the page it falls in. Cursors are opaque to clients (base64 of a versioned string) so the format can change.
+ */
+public class StationIdIndex implements StationListener {
+    private static final String CURSOR_PREFIX = "v1:";
+
+    private final ConcurrentSkipListSet<String> ids = new ConcurrentSkipListSet<>();
+
+    @Override
+    public void stationUpdated(String stationId, int lamport, long writeMillis, Map<String, String> json) {
+        ids.add(stationId);
+    }
+
+    @Override
+    public void stationReloaded(String stationId, Map<String, String> json) {
+        ids.add(stationId);
+    }
+
+    @Override
+    public void stationExpired(String stationId) {
+        ids.remove(stationId);
+    }
+
+    /**
+     * Builds an index of the stations stored right now, for a server running without one (--id-index=false)
+     * @param store the store
+     * @return the index, not kept up to date
+     */
+    public static StationIdIndex of(StationStore store) {
+        StationIdIndex index = new StationIdIndex();
+        store.forEachStation((stationId, lamport, writeMillis, data) -> index.ids.add(stationId));
+        return index;
+    }
+
+    /**
+     * @return number of stations
+     */
+    public int size() {
+        return ids.size();
+    }
+
+    /**
+     * Returns the ids of one page of stations
+     *
+     * @param after the id the page starts after, null for the first page
+     * @param limit maximum ids in the page
+     * @return up to limit ids in sorted order
+     */
+    public List<String> page(String after, int limit) {
+        return page(ids, after, limit);
+    }
+
+    /**
+     * Returns the ids of one page of a sorted set of ids
+     *
+     * @param sorted ids to page through
+     * @param after the id the page starts after, null for the first page
+     * @param limit maximum ids in the page
+     * @return up to limit ids in sorted order
+     */
+    static List<String> page(NavigableSet<String> sorted, String after, int limit) {
+        List<String> page = new ArrayList<>(Math.min(limit, 1024));
+        for (String id : after == null ? sorted : sorted.tailSet(after, false)) {
+            if (page.size() == limit) break;
+            page.add(id);
+        }
+        return page;
+    }
+
+    /**
+     * @param lastId last station id of a page
+     * @return cursor for the page after it
+     */
+    public static String encodeCursor(String lastId) {
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString((CURSOR_PREFIX + lastId).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param cursor cursor from a previous page
+     * @return the last station id of that page
+     * @throws IllegalArgumentException if cursor was not made by encodeCursor
+     */
+    public static String decodeCursor(String cursor) {
+        String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        if (!decoded.startsWith(CURSOR_PREFIX)) throw new IllegalArgumentException("Unknown cursor format");
+        return decoded.substring(CURSOR_PREFIX.length());
+    }
+}
@@ -0,0 +1,145 @@
+package com.distributedsystems.aggregationserver;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Station Indexes: secondary indexes from the value of a station field (state, time_zone, ..) to the stations that
+ * currently have that value. Kept up to date as updates are accepted and stations expire, so a filtered GET only
+ * touches the stations it returns.
+ *
+ * Values are compared trimmed and case insensitively - "sa", " SA" and "SA" are the same value.
+ */
+public class StationIndexes implements StationListener {
+    private final List<String> fields;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // field -> value -> station ids
+    private final Map<String, Map<String, Set<String>>> indexes = new HashMap<>();
+    // station id -> the value indexed for each field, null if the station doesn't have the field
+    private final Map<String, String[]> indexed = new HashMap<>();
+
+    /**
+     * Creates indexes on fields
+     * @param fields station fields to index
+     */
+    public StationIndexes(List<String> fields) {
+        this.fields = List.copyOf(fields);
+        for (String field : this.fields) {
+            indexes.put(field, new HashMap<>());
+        }
+    }
+
+    /**
+     * @return the indexed fields
+     */
+    public List<String> fields() {
+        return fields;
+    }
+
+    /**
+     * Normalises a field value for the index
+     * @param value field value
+     * @return the value as it is stored in the index
+     */
+    static String normalise(String value) {
+        return value.trim().toUpperCase(Locale.ROOT);
+    }
+
+    @Override
+    public void stationUpdated(String stationId, int lamport, long writeMillis, Map<String, String> json) {
+        String[] values = new String[fields.size()];
+        for (int i = 0; i < values.length; i++) {
+            String value = json.get(fields.get(i));
+            values[i] = value == null ? null : normalise(value);
+        }
+
+        lock.writeLock().lock();
+        try {
+            String[] previous = indexed.put(stationId, values);
+            for (int i = 0; i < values.length; i++) {
+                String old = previous == null ? null : previous[i];
+                if (Objects.equals(old, values[i])) continue;
+                Map<String, Set<String>> index = indexes.get(fields.get(i));
+                if (old != null) removeFrom(index, old, stationId);
+                if (values[i] != null) index.computeIfAbsent(values[i], v -> new HashSet<>()).add(stationId);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void stationReloaded(String stationId, Map<String, String> json) {
+        stationUpdated(stationId, 0, System.currentTimeMillis(), json);
+    }
+
+    @Override
+    public void stationExpired(String stationId) {
+        lock.writeLock().lock();
+        try {
+            String[] previous = indexed.remove(stationId);
+            if (previous == null) return;
+            for (int i = 0; i < previous.length; i++) {
+                if (previous[i] != null) removeFrom(indexes.get(fields.get(i)), previous[i], stationId);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static void removeFrom(Map<String, Set<String>> index, String value, String stationId) {
+        Set<String> stations = index.get(value);
+        stations.remove(stationId);
+        if (stations.isEmpty()) index.remove(value);
+    }
+
+    /**
+     * Finds the stations matching every filter - the smallest matching set is copied and checked against the others,
+     * so the cost depends on the number of matches rather than the number of stations
+     *
+     * @param filters field : value pairs, every field must be indexed
+     * @return ids of the stations matching every filter
+     * @throws IllegalArgumentException if a field is not indexed
+     */
+    public Set<String> find(Map<String, String> filters) {
+        for (String field : filters.keySet()) {
+            if (!indexes.containsKey(field)) throw new IllegalArgumentException(field + " is not indexed");
+        }
+
+        lock.readLock().lock();
+        try {
+            List<Set<String>> matches = new ArrayList<>();
+            for (Map.Entry<String, String> filter : filters.entrySet()) {
+                Set<String> stations = indexes.get(filter.getKey()).get(normalise(filter.getValue()));
+                if (stations == null) return new HashSet<>();
+                matches.add(stations);
+            }
+            if (matches.isEmpty()) return new HashSet<>(indexed.keySet());
+
+            matches.sort(Comparator.comparingInt(Set::size));
+            Set<String> result = new HashSet<>(matches.get(0));
+            for (int i = 1; i < matches.size(); i++) {
+                result.retainAll(matches.get(i));
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Checks a station's data against filters - a station can be updated between the index lookup and reading its
+     * data, so the data read is checked again before it is returned
+     *
+     * @param json station data
+     * @param filters field : value pairs
+     * @return true if the data matches every filter
+     */
+    public static boolean matches(Map<String, String> json, Map<String, String> filters) {
+        for (Map.Entry<String, String> filter : filters.entrySet()) {
+            String value = json.get(filter.getKey());
+            if (value == null || !normalise(value).equals(normalise(filter.getValue()))) return false;
+        }
+        return true;
+    }
+}
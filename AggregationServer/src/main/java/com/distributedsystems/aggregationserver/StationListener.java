@@ -0,0 +1,38 @@
+package com.distributedsystems.aggregationserver;
+
+import java.util.Map;
+
+/**
+ * Station Listener: told about every accepted update and every expired station - used to keep views derived from the
+ * station data (history, indexes...) up to date. See NotifyingStationStore.
+ *
+ * Calls for the same station never run concurrently, calls for different stations may. The station data is passed
+ * parsed and read only, the same map goes to every listener - a listener must not keep it, and stringifies it only if
+ * it stores the json.
+ */
+public interface StationListener {
+
+    /**
+     * Called after an update has been accepted by the store
+     *
+     * @param stationId station that was updated
+     * @param lamport lamport of the update
+     * @param writeMillis time the update was accepted
+     * @param json station data, read only
+     */
+    void stationUpdated(String stationId, int lamport, long writeMillis, Map<String, String> json);
+
+    /**
+     * Called after a station has expired and was removed from the store
+     * @param stationId station that expired
+     */
+    default void stationExpired(String stationId) {}
+
+    /**
+     * Called for every station loaded by the store's reload after a restart, before any update is accepted
+     *
+     * @param stationId station that was loaded
+     * @param json station data, read only
+     */
+    default void stationReloaded(String stationId, Map<String, String> json) {}
+}
@@ -0,0 +1,138 @@
+package com.distributedsystems.aggregationserver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Station Merkle Tree: a hash tree over the (station id, lamport) of every stored station, used by AntiEntropy to
+ * find the stations two servers disagree on without sending every station.
+ *
+ * Stations are placed in LEAVES buckets by a hash of their id. A leaf's hash is the XOR of its stations' hashes, so an
+ * update only changes one leaf and the DEPTH nodes above it. The tree is a binary heap: node 1 is the root, node n
+ * has children 2n and 2n + 1, and leaf b is node LEAVES + b.
+ */
+public class StationMerkleTree implements StationListener {
+    static final int DEPTH = 12;
+    static final int LEAVES = 1 << DEPTH;
+
+    private final long[] nodes = new long[2 * LEAVES];
+    // id : lamport of the stations in each leaf
+    private final List<Map<String, Integer>> buckets = new ArrayList<>(LEAVES);
+
+    public StationMerkleTree() {
+        for (int i = 0; i < LEAVES; i++) {
+            buckets.add(new HashMap<>());
+        }
+    }
+
+    @Override
+    public void stationUpdated(String stationId, int lamport, long writeMillis, Map<String, String> json) {
+        put(stationId, lamport);
+    }
+
+    @Override
+    public void stationExpired(String stationId) {
+        remove(stationId);
+    }
+
+    /**
+     * Adds every stored station - reload does not pass lamports to listeners, so the tree is filled from the store
+     * after a reload
+     *
+     * @param store the server's store
+     */
+    public void load(StationStore store) {
+        store.forEachStation((stationId, lamport, writeMillis, data) -> put(stationId, lamport));
+    }
+
+    /**
+     * Sets a station's lamport
+     * @param stationId station
+     * @param lamport its stored lamport
+     */
+    public synchronized void put(String stationId, int lamport) {
+        int bucket = bucketOf(stationId);
+        Integer previous = buckets.get(bucket).put(stationId, lamport);
+        long delta = entryHash(stationId, lamport);
+        if (previous != null) delta ^= entryHash(stationId, previous);
+        updateLeaf(bucket, delta);
+    }
+
+    /**
+     * Removes a station
+     * @param stationId station
+     */
+    public synchronized void remove(String stationId) {
+        int bucket = bucketOf(stationId);
+        Integer previous = buckets.get(bucket).remove(stationId);
+        if (previous != null) updateLeaf(bucket, entryHash(stationId, previous));
+    }
+
+    private void updateLeaf(int bucket, long delta) {
+        int node = LEAVES + bucket;
+        nodes[node] ^= delta;
+        for (node >>= 1; node >= 1; node >>= 1) {
+            nodes[node] = combine(nodes[2 * node], nodes[2 * node + 1]);
+        }
+    }
+
+    /**
+     * @param node heap index of a node, 1 to 2 * LEAVES - 1
+     * @return the node's hash, 0 for an empty subtree
+     * @throws IllegalArgumentException if there is no such node
+     */
+    public synchronized long hash(int node) {
+        if (node < 1 || node >= nodes.length) {
+            throw new IllegalArgumentException("No merkle node " + node);
+        }
+        return nodes[node];
+    }
+
+    /**
+     * @param leaf bucket number, 0 to LEAVES - 1
+     * @return a copy of the id : lamport of the bucket's stations
+     * @throws IllegalArgumentException if there is no such bucket
+     */
+    public synchronized Map<String, Integer> bucket(int leaf) {
+        if (leaf < 0 || leaf >= LEAVES) {
+            throw new IllegalArgumentException("No merkle bucket " + leaf);
+        }
+        return new HashMap<>(buckets.get(leaf));
+    }
+
+    /**
+     * @param stationId station
+     * @return its lamport, or null if it isn't stored
+     */
+    public synchronized Integer lamport(String stationId) {
+        return buckets.get(bucketOf(stationId)).get(stationId);
+    }
+
+    static int bucketOf(String stationId) {
+        return (int) (mix(stationId.hashCode()) & (LEAVES - 1));
+    }
+
+    private static long entryHash(String stationId, int lamport) {
+        // FNV-1a over the id, then mixed with the lamport
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < stationId.length(); i++) {
+            hash ^= stationId.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash ^ mix(lamport + 0x9e3779b97f4a7c15L));
+    }
+
+    private static long combine(long left, long right) {
+        if (left == 0 && right == 0) return 0;
+        return mix(left ^ Long.rotateLeft(right, 31) ^ 0x632be59bd9b4e019L);
+    }
+
+    // finaliser of SplitMix64, spreads every input bit over the whole result
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
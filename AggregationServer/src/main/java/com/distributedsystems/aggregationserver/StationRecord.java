@@ -0,0 +1,256 @@
+package com.distributedsystems.aggregationserver;
+
+import com.distributedsystems.shared.SimpleJsonUtil;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Station Record: the binary format of a station file. A fixed size header is followed by the station data as utf-8
+ * json, so the lamport of a stored version can be read without reading or parsing the data.
+ *
+ * Layout (big endian):
+ *      0   int     magic "STNR"
+ *      4   short   format version
+ *      6   short   reserved (0)
+ *      8   long    lamport
+ *      16  long    write time in epoch millis
+ *      24  int     CRC32 of every other byte of the record
+ *      28  int     payload length
+ *      32  bytes   payload
+ *
+ * Station files written before this format held {"lamport":"..","data":{station json}} - see fromLegacyJson.
+ */
+public class StationRecord {
+    static final int MAGIC = 0x53544e52;
+    static final short FORMAT_VERSION = 1;
+    static final int HEADER_SIZE = 32;
+
+    private static final int LAMPORT_OFFSET = 8;
+    private static final int WRITE_TIME_OFFSET = 16;
+    private static final int CRC_OFFSET = 24;
+    static final int PAYLOAD_LENGTH_OFFSET = 28;
+
+    public final long lamport;
+    public final long writeMillis;
+    public final byte[] payload;
+
+    /**
+     * Creates a record
+     * @param lamport lamport of the station version
+     * @param writeMillis time the version was written
+     * @param payload station data as utf-8 json
+     */
+    public StationRecord(long lamport, long writeMillis, byte[] payload) {
+        this.lamport = lamport;
+        this.writeMillis = writeMillis;
+        this.payload = payload;
+    }
+
+    /**
+     * @return the station data as a json string
+     */
+    public String data() {
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the record in its binary format
+     */
+    public byte[] encode() {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        buf.putInt(MAGIC);
+        buf.putShort(FORMAT_VERSION);
+        buf.putShort((short) 0);
+        buf.putLong(lamport);
+        buf.putLong(writeMillis);
+        buf.putInt(0);
+        buf.putInt(payload.length);
+        buf.put(payload);
+        buf.putInt(CRC_OFFSET, crc(buf.array(), 0, buf.capacity()));
+        return buf.array();
+    }
+
+    private static int crc(byte[] record, int start, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(record, start, CRC_OFFSET);
+        crc.update(record, start + CRC_OFFSET + 4, length - CRC_OFFSET - 4);
+        return (int) crc.getValue();
+    }
+
+    private static void checkHeader(ByteBuffer header, int start, File file) throws IOException {
+        if (header.getInt(start) != MAGIC) {
+            throw new IOException(file + " is not a station record");
+        }
+        if (header.getShort(start + 4) != FORMAT_VERSION) {
+            throw new IOException(file + " has unsupported record format version " + header.getShort(start + 4));
+        }
+    }
+
+    /**
+     * Reads only the header of a station file to get the lamport of the stored version
+     *
+     * @param file station file
+     * @return the stored lamport
+     * @throws IOException if the file can't be read or is not a station record
+     */
+    public static long readLamport(File file) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.readFully(header);
+        }
+        ByteBuffer buf = ByteBuffer.wrap(header);
+        checkHeader(buf, 0, file);
+        return buf.getLong(LAMPORT_OFFSET);
+    }
+
+    /**
+     * Decodes and checks the record starting at start
+     *
+     * @param record bytes holding the record
+     * @param start offset of the record
+     * @param file file the bytes came from, for error messages
+     * @return the record
+     * @throws IOException if the bytes are not a complete station record or fail the CRC
+     */
+    static StationRecord decode(byte[] record, int start, File file) throws IOException {
+        if (record.length - start < HEADER_SIZE) {
+            throw new IOException(file + " is shorter than a record header");
+        }
+        ByteBuffer buf = ByteBuffer.wrap(record);
+        checkHeader(buf, start, file);
+        int payloadLength = buf.getInt(start + PAYLOAD_LENGTH_OFFSET);
+        if (payloadLength < 0 || payloadLength > record.length - start - HEADER_SIZE) {
+            throw new IOException(file + " payload length " + payloadLength + " does not fit in the file");
+        }
+        if (buf.getInt(start + CRC_OFFSET) != crc(record, start, HEADER_SIZE + payloadLength)) {
+            throw new IOException(file + " failed its CRC check");
+        }
+
+        byte[] payload = new byte[payloadLength];
+        buf.get(start + HEADER_SIZE, payload);
+        return new StationRecord(buf.getLong(start + LAMPORT_OFFSET), buf.getLong(start + WRITE_TIME_OFFSET), payload);
+    }
+
+    /**
+     * @return the encoded size of the record in bytes
+     */
+    public int encodedLength() {
+        return HEADER_SIZE + payload.length;
+    }
+
+    /**
+     * Reads and checks a whole station file
+     *
+     * @param file station file
+     * @return the record
+     * @throws IOException if the file can't be read, is not a station record or fails its CRC
+     */
+    public static StationRecord read(File file) throws IOException {
+        byte[] record = Files.readAllBytes(file.toPath());
+        StationRecord decoded = decode(record, 0, file);
+        if (decoded.encodedLength() != record.length) {
+            throw new IOException(file + " payload length " + decoded.payload.length + " does not match the file size");
+        }
+        return decoded;
+    }
+
+    /**
+     * Decides, from its header, which records of a file scan reads
+     */
+    public interface Scanner {
+        /**
+         * @param lamport lamport of the record
+         * @param writeMillis write time of the record
+         * @return true to read and check the record and pass it to accept, false to skip its payload
+         */
+        boolean wants(long lamport, long writeMillis);
+
+        /**
+         * @param record a wanted record that passed its CRC check
+         * @return false to stop the scan
+         */
+        boolean accept(StationRecord record);
+    }
+
+    /**
+     * Reads a file of records written one after the other, streaming it instead of loading it whole - the payload of a
+     * record the scanner doesn't want is skipped without being read (or CRC checked). Reading stops at the first record
+     * that is torn or fails its CRC, so a crash part way through an append only loses that record.
+     *
+     * @param file file of records, a missing file has none
+     * @param scanner picks the records to read
+     * @throws IOException if the file can't be read
+     */
+    public static void scan(File file, Scanner scanner) throws IOException {
+        if (!file.exists()) return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            byte[] header = new byte[HEADER_SIZE];
+            long position = 0;
+            while (true) {
+                int read = in.readNBytes(header, 0, HEADER_SIZE);
+                if (read == 0) return;
+                ByteBuffer buf = ByteBuffer.wrap(header);
+                int payloadLength = buf.getInt(PAYLOAD_LENGTH_OFFSET);
+                if (read < HEADER_SIZE || buf.getInt(0) != MAGIC || buf.getShort(4) != FORMAT_VERSION || payloadLength < 0) {
+                    ignoreFrom(file, position, "no record header");
+                    return;
+                }
+                try {
+                    if (!scanner.wants(buf.getLong(LAMPORT_OFFSET), buf.getLong(WRITE_TIME_OFFSET))) {
+                        in.skipNBytes(payloadLength);
+                    } else {
+                        byte[] bytes = Arrays.copyOf(header, HEADER_SIZE + payloadLength);
+                        in.readFully(bytes, HEADER_SIZE, payloadLength);
+                        StationRecord record;
+                        try {
+                            record = decode(bytes, 0, file);
+                        } catch (IOException e) {
+                            ignoreFrom(file, position, e.getMessage());
+                            return;
+                        }
+                        if (!scanner.accept(record)) return;
+                    }
+                } catch (EOFException e) {
+                    ignoreFrom(file, position, "the record is torn");
+                    return;
+                }
+                position += HEADER_SIZE + payloadLength;
+            }
+        }
+    }
+
+    private static void ignoreFrom(File file, long position, String reason) {
+        System.err.println("Ignoring " + file + " from byte " + position + ": " + reason);
+    }
+
+    /**
+     * Converts a station file in the old json format - {"lamport":"..","data":{station json}}
+     *
+     * @param json content of the old file
+     * @param writeMillis write time to give the record, old files didn't store one
+     * @return the record
+     * @throws IOException if the content is not an old format station file
+     */
+    public static StationRecord fromLegacyJson(String json, long writeMillis) throws IOException {
+        Map<String, String> wrapped = SimpleJsonUtil.parse(json);
+        String data = wrapped.get("data");
+        if (data == null) {
+            throw new IOException("Old station file has no data");
+        }
+        SimpleJsonUtil.parse(data); // test that data can be parsed
+        long lamport = Long.parseLong(wrapped.getOrDefault("lamport", "0"));
+        return new StationRecord(lamport, writeMillis, data.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,236 @@
+package com.distributedsystems.aggregationserver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Station Rollups: per-station minute, hour and day aggregates (count / min / max / avg) of numeric fields, updated
+ * as each update is accepted. An update costs a constant amount of work per field and resolution and a query reads
+ * at most the retained buckets, so neither depends on how many observations a station has sent.
+ *
+ * Buckets are aligned to the epoch in UTC by the time the server accepted the update. Each resolution keeps a ring of
+ * buckets allocated when the station is first seen - a bucket slot is reset when a newer bucket lands on it, so only
+ * the last SLOTS buckets of each resolution are kept.
+ */
+public class StationRollups implements StationListener {
+
+    /**
+     * Bucket sizes and how many buckets of each are kept
+     */
+    public enum Resolution {
+        MINUTE(60_000L, 120),
+        HOUR(3_600_000L, 48),
+        DAY(86_400_000L, 31);
+
+        final long bucketMillis;
+        final int slots;
+
+        Resolution(long bucketMillis, int slots) {
+            this.bucketMillis = bucketMillis;
+            this.slots = slots;
+        }
+    }
+
+    /**
+     * Ring of buckets for one resolution - field values are stored per slot in flat arrays
+     */
+    private static final class Ring {
+        final Resolution resolution;
+        final long[] starts;
+        final long[] counts;
+        final double[] mins;
+        final double[] maxs;
+        final double[] sums;
+
+        Ring(Resolution resolution, int fields) {
+            this.resolution = resolution;
+            this.starts = new long[resolution.slots];
+            this.counts = new long[resolution.slots * fields];
+            this.mins = new double[resolution.slots * fields];
+            this.maxs = new double[resolution.slots * fields];
+            this.sums = new double[resolution.slots * fields];
+            Arrays.fill(starts, -1);
+        }
+
+        void add(long writeMillis, double[] values, boolean[] present) {
+            long start = writeMillis - Math.floorMod(writeMillis, resolution.bucketMillis);
+            int slot = (int) Math.floorMod(start / resolution.bucketMillis, (long) resolution.slots);
+            int fields = values.length;
+            int base = slot * fields;
+            if (starts[slot] != start) {
+                if (starts[slot] > start) return; // an older bucket than the slot holds has already been dropped
+                starts[slot] = start;
+                Arrays.fill(counts, base, base + fields, 0);
+            }
+            for (int f = 0; f < fields; f++) {
+                if (!present[f]) continue;
+                int i = base + f;
+                double value = values[f];
+                if (counts[i] == 0) {
+                    mins[i] = value;
+                    maxs[i] = value;
+                    sums[i] = value;
+                } else {
+                    mins[i] = Math.min(mins[i], value);
+                    maxs[i] = Math.max(maxs[i], value);
+                    sums[i] += value;
+                }
+                counts[i]++;
+            }
+        }
+    }
+
+    /**
+     * Aggregate of one field in one bucket
+     */
+    public static final class Aggregate {
+        public final String field;
+        public final long count;
+        public final double min;
+        public final double max;
+        public final double avg;
+
+        Aggregate(String field, long count, double min, double max, double avg) {
+            this.field = field;
+            this.count = count;
+            this.min = min;
+            this.max = max;
+            this.avg = avg;
+        }
+    }
+
+    /**
+     * One bucket of a query result
+     */
+    public static final class Bucket {
+        public final long start;
+        public final List<Aggregate> aggregates = new ArrayList<>();
+
+        Bucket(long start) {
+            this.start = start;
+        }
+    }
+
+    private final List<String> fields;
+    private final ConcurrentHashMap<String, Ring[]> stations = new ConcurrentHashMap<>();
+
+    /**
+     * Creates rollups for a set of numeric fields
+     * @param fields station data fields to aggregate
+     */
+    public StationRollups(List<String> fields) {
+        this.fields = List.copyOf(fields);
+    }
+
+    /**
+     * @return the fields that are aggregated
+     */
+    public List<String> fields() {
+        return fields;
+    }
+
+    @Override
+    public void stationUpdated(String stationId, int lamport, long writeMillis, Map<String, String> json) {
+        double[] values = new double[fields.size()];
+        boolean[] present = new boolean[fields.size()];
+        boolean any = false;
+        for (int f = 0; f < fields.size(); f++) {
+            String value = json.get(fields.get(f));
+            if (value == null) continue;
+            try {
+                values[f] = Double.parseDouble(value);
+                present[f] = !Double.isNaN(values[f]);
+                any |= present[f];
+            } catch (NumberFormatException ignored) {
+                // e.g. "-" for a missing reading
+            }
+        }
+        if (!any) return;
+
+        Ring[] rings = stations.computeIfAbsent(stationId, k -> {
+            Resolution[] resolutions = Resolution.values();
+            Ring[] created = new Ring[resolutions.length];
+            for (int r = 0; r < resolutions.length; r++) {
+                created[r] = new Ring(resolutions[r], fields.size());
+            }
+            return created;
+        });
+        synchronized (rings) {
+            for (Ring ring : rings) {
+                ring.add(writeMillis, values, present);
+            }
+        }
+    }
+
+    @Override
+    public void stationExpired(String stationId) {
+        stations.remove(stationId);
+    }
+
+    /**
+     * Returns a station's buckets of one resolution that start within a time range
+     *
+     * @param stationId station to query
+     * @param resolution bucket size
+     * @param field field to return, null for every field
+     * @param sinceMillis earliest bucket start (inclusive)
+     * @param untilMillis latest bucket start (inclusive)
+     * @return buckets oldest first, buckets without any value for the requested fields are left out
+     */
+    public List<Bucket> query(String stationId, Resolution resolution, String field, long sinceMillis, long untilMillis) {
+        List<Bucket> result = new ArrayList<>();
+        Ring[] rings = stations.get(stationId);
+        if (rings == null) return result;
+
+        Ring ring = rings[resolution.ordinal()];
+        synchronized (rings) {
+            for (int slot = 0; slot < resolution.slots; slot++) {
+                long start = ring.starts[slot];
+                if (start < 0 || start < sinceMillis || start > untilMillis) continue;
+
+                Bucket bucket = new Bucket(start);
+                for (int f = 0; f < fields.size(); f++) {
+                    int i = slot * fields.size() + f;
+                    if (ring.counts[i] == 0 || field != null && !field.equals(fields.get(f))) continue;
+                    bucket.aggregates.add(new Aggregate(fields.get(f), ring.counts[i], ring.mins[i], ring.maxs[i],
+                            ring.sums[i] / ring.counts[i]));
+                }
+                if (!bucket.aggregates.isEmpty()) result.add(bucket);
+            }
+        }
+        result.sort((a, b) -> Long.compare(a.start, b.start));
+        return result;
+    }
+
+    /**
+     * Builds the /rollups response -
+     * {"stationId":"..","resolution":"hour","buckets":[{"start":..,"air_temp":{"count":..,"min":..,"max":..,"avg":..}},..]}
+     *
+     * @param stationId station the buckets belong to
+     * @param resolution resolution of the buckets
+     * @param buckets buckets to include
+     * @return the json
+     */
+    public static String toJson(String stationId, Resolution resolution, List<Bucket> buckets) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"stationId\":\"").append(stationId).append("\",\"resolution\":\"")
+                .append(resolution.name().toLowerCase(Locale.ROOT)).append("\",\"buckets\":[");
+        for (int b = 0; b < buckets.size(); b++) {
+            Bucket bucket = buckets.get(b);
+            if (b > 0) sb.append(",");
+            sb.append("{\"start\":").append(bucket.start);
+            for (Aggregate aggregate : bucket.aggregates) {
+                sb.append(",\"").append(aggregate.field).append("\":{\"count\":").append(aggregate.count)
+                        .append(",\"min\":").append(aggregate.min)
+                        .append(",\"max\":").append(aggregate.max)
+                        .append(",\"avg\":").append(aggregate.avg).append("}");
+            }
+            sb.append("}");
+        }
+        return sb.append("]}").toString();
+    }
+}
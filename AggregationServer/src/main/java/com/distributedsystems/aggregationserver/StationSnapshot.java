@@ -0,0 +1,174 @@
+package com.distributedsystems.aggregationserver;
+
+import com.distributedsystems.shared.SimpleJsonUtil;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Station Snapshot: a copy of every station in a single binary file - written by GET /export, loaded by
+ * the --import option. A snapshot is a header followed by one entry per station, each entry holding the station id
+ * and a StationRecord (lamport, write time, CRC and data).
+ *
+ * Layout (big endian):
+ *      0   int     magic "STNS"
+ *      4   short   format version
+ *      6   short   reserved (0)
+ *      8   int     number of entries
+ *      12  entries: short id length, id bytes, StationRecord
+ */
+public class StationSnapshot {
+    static final int MAGIC = 0x53544e53;
+    static final short FORMAT_VERSION = 1;
+    static final int HEADER_SIZE = 12;
+
+    /**
+     * One station in a snapshot
+     */
+    public static final class Entry {
+        public final String stationId;
+        public final StationRecord record;
+
+        public Entry(String stationId, StationRecord record) {
+            this.stationId = stationId;
+            this.record = record;
+        }
+    }
+
+    /**
+     * Result of importing a snapshot
+     */
+    public static final class ImportResult {
+        public final int imported;
+        public final int stale;
+        public final int maxLamport;
+
+        ImportResult(int imported, int stale, int maxLamport) {
+            this.imported = imported;
+            this.stale = stale;
+            this.maxLamport = maxLamport;
+        }
+    }
+
+    /**
+     * Consumes the entries of a snapshot as they are read
+     */
+    public interface EntryConsumer {
+        void accept(Entry entry) throws IOException;
+    }
+
+    /**
+     * Writes a snapshot file and forces it to disk
+     *
+     * @param entries stations in the snapshot
+     * @param file file to write, replaced if it exists
+     * @return size of the file in bytes
+     * @throws IOException if the file can't be written
+     */
+    public static long write(List<Entry> entries, File file) throws IOException {
+        try (FileOutputStream fileOut = new FileOutputStream(file);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeShort(FORMAT_VERSION);
+            out.writeShort(0);
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                byte[] id = entry.stationId.getBytes(StandardCharsets.UTF_8);
+                out.writeShort(id.length);
+                out.write(id);
+                out.write(entry.record.encode());
+            }
+            out.flush();
+            fileOut.getFD().sync();
+            return out.size();
+        }
+    }
+
+    /**
+     * Reads a snapshot file - the file is memory mapped and every record's CRC is checked
+     *
+     * @param file snapshot file
+     * @param consumer called with every entry in file order
+     * @return the number of entries
+     * @throws IOException if the file can't be read, is not a snapshot or is damaged
+     */
+    public static int read(File file, EntryConsumer consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.remaining() < HEADER_SIZE || buf.getInt() != MAGIC) {
+                throw new IOException(file + " is not a station snapshot");
+            }
+            short version = buf.getShort();
+            if (version != FORMAT_VERSION) {
+                throw new IOException(file + " has unsupported snapshot format version " + version);
+            }
+            buf.getShort();
+            int count = buf.getInt();
+
+            for (int i = 0; i < count; i++) {
+                if (buf.remaining() < 2) throw new IOException(file + " ends after " + i + " of " + count + " stations");
+                byte[] id = new byte[buf.getShort()];
+                if (buf.remaining() < id.length + StationRecord.HEADER_SIZE) {
+                    throw new IOException(file + " ends after " + i + " of " + count + " stations");
+                }
+                buf.get(id);
+                int recordLength = StationRecord.HEADER_SIZE + buf.getInt(buf.position() + StationRecord.PAYLOAD_LENGTH_OFFSET);
+                if (recordLength < StationRecord.HEADER_SIZE || buf.remaining() < recordLength) {
+                    throw new IOException(file + " ends inside station " + (i + 1) + " of " + count);
+                }
+                byte[] record = new byte[recordLength];
+                buf.get(record);
+                consumer.accept(new Entry(new String(id, StandardCharsets.UTF_8), StationRecord.decode(record, 0, file)));
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Loads a snapshot into a store - each station goes through the store's normal lamport check, so a station the
+     * store already holds a newer version of is left alone
+     *
+     * @param file snapshot file
+     * @param store store to load into
+     * @return how many stations were imported and how many were stale
+     * @throws IOException if the snapshot can't be read or a station can't be stored
+     */
+    public static ImportResult importInto(File file, StationStore store) throws IOException {
+        int[] counts = new int[3]; // imported, stale, max lamport
+        read(file, entry -> {
+            int lamport = (int) entry.record.lamport;
+            StationStore.UpdateResult result = store.updateStation(entry.stationId, lamport,
+                    SimpleJsonUtil.parse(entry.record.data()));
+            counts[result == StationStore.UpdateResult.STALE ? 1 : 0]++;
+            counts[2] = Math.max(counts[2], lamport);
+        });
+        return new ImportResult(counts[0], counts[1], counts[2]);
+    }
+
+    /**
+     * Copies a whole file to a channel with FileChannel.transferTo - when target is a socket channel the OS copies
+     * the file to the socket without it passing through the JVM
+     *
+     * @param file file to send
+     * @param target channel to copy to
+     * @throws IOException if the copy fails
+     */
+    public static void transfer(File file, WritableByteChannel target) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long position = 0;
+            long size = channel.size();
+            while (position < size) {
+                position += channel.transferTo(position, size - position, target);
+            }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.distributedsystems.aggregationserver;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Station Spatial Index: a grid of CELL_DEGREES x CELL_DEGREES cells over station lat / lon, kept up to date as
+ * stations are updated and expire. Backs nearest station and bounding box queries without looking at stations far
+ * from the query.
+ *
+ *      - nearest: cells are searched in rings of growing size around the query point until the k nearest stations
+ *        found are closer than anything in the next ring could be - if that would mean looking at more cells than
+ *        there are stations every station is checked instead
+ *      - bbox: only the cells overlapping the box are checked
+ *
+ * Distances are great circle distances in km. Longitudes are not wrapped at the antimeridian.
+ */
+public class StationSpatialIndex implements StationListener {
+    static final double CELL_DEGREES = 0.25;
+    private static final double EARTH_RADIUS_KM = 6371.0088;
+    private static final double KM_PER_DEGREE = Math.PI * EARTH_RADIUS_KM / 180;
+
+    /**
+     * A station's position, and its distance from the query point in query results
+     */
+    public static final class Location {
+        public final String stationId;
+        public final double lat;
+        public final double lon;
+        public final double distanceKm;
+
+        Location(String stationId, double lat, double lon, double distanceKm) {
+            this.stationId = stationId;
+            this.lat = lat;
+            this.lon = lon;
+            this.distanceKm = distanceKm;
+        }
+    }
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Location> locations = new HashMap<>();
+    private final Map<Long, List<Location>> cells = new HashMap<>();
+
+    private static int cellOf(double degrees) {
+        return (int) Math.floor(degrees / CELL_DEGREES);
+    }
+
+    private static long cellKey(int latCell, int lonCell) {
+        return ((long) latCell << 32) | (lonCell & 0xffffffffL);
+    }
+
+    @Override
+    public void stationUpdated(String stationId, int lamport, long writeMillis, Map<String, String> json) {
+        double lat;
+        double lon;
+        try {
+            lat = Double.parseDouble(json.getOrDefault("lat", "").trim());
+            lon = Double.parseDouble(json.getOrDefault("lon", "").trim());
+        } catch (NumberFormatException e) {
+            stationExpired(stationId);
+            return;
+        }
+        if (lat < -90 || lat > 90 || lon < -180 || lon > 180) {
+            stationExpired(stationId);
+            return;
+        }
+
+        Location location = new Location(stationId, lat, lon, 0);
+        lock.writeLock().lock();
+        try {
+            Location previous = locations.put(stationId, location);
+            if (previous != null) removeFromCell(previous);
+            cells.computeIfAbsent(cellKey(cellOf(lat), cellOf(lon)), k -> new ArrayList<>()).add(location);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void stationReloaded(String stationId, Map<String, String> json) {
+        stationUpdated(stationId, 0, System.currentTimeMillis(), json);
+    }
+
+    @Override
+    public void stationExpired(String stationId) {
+        lock.writeLock().lock();
+        try {
+            Location previous = locations.remove(stationId);
+            if (previous != null) removeFromCell(previous);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void removeFromCell(Location location) {
+        long key = cellKey(cellOf(location.lat), cellOf(location.lon));
+        List<Location> cell = cells.get(key);
+        cell.remove(location);
+        if (cell.isEmpty()) cells.remove(key);
+    }
+
+    /**
+     * @return number of stations in the index
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return locations.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Great circle distance between two points
+     * @return distance in km
+     */
+    static double distanceKm(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    /**
+     * Returns the k stations nearest to a point
+     *
+     * @param lat latitude of the point
+     * @param lon longitude of the point
+     * @param k number of stations to return
+     * @return up to k stations, nearest first
+     */
+    public List<Location> nearest(double lat, double lon, int k) {
+        // max heap on distance holding the k nearest found so far
+        PriorityQueue<Location> best = new PriorityQueue<>(Comparator.comparingDouble((Location l) -> l.distanceKm).reversed());
+        lock.readLock().lock();
+        try {
+            if (k <= 0 || locations.isEmpty()) return new ArrayList<>();
+            int latCell = cellOf(lat);
+            int lonCell = cellOf(lon);
+            int cellsChecked = 0;
+            int stationsChecked = 0;
+
+            for (int ring = 0; ; ring++) {
+                for (int dLat = -ring; dLat <= ring; dLat++) {
+                    // only the cells on the edge of the ring, the inside was covered by smaller rings
+                    int step = Math.abs(dLat) == ring ? 1 : 2 * ring;
+                    for (int dLon = -ring; dLon <= ring; dLon += Math.max(1, step)) {
+                        cellsChecked++;
+                        List<Location> cell = cells.get(cellKey(latCell + dLat, lonCell + dLon));
+                        if (cell == null) continue;
+                        for (Location location : cell) {
+                            offer(best, k, location, distanceKm(lat, lon, location.lat, location.lon));
+                            stationsChecked++;
+                        }
+                    }
+                }
+
+                if (stationsChecked == locations.size()) break;
+                if (best.size() == k && best.peek().distanceKm <= minDistanceOutsideRing(lat, ring)) break;
+                if (cellsChecked > locations.size()) {
+                    // sparse area - checking every station is cheaper than growing the ring further
+                    best.clear();
+                    for (Location location : locations.values()) {
+                        offer(best, k, location, distanceKm(lat, lon, location.lat, location.lon));
+                    }
+                    break;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        List<Location> result = new ArrayList<>(best);
+        result.sort(Comparator.comparingDouble(l -> l.distanceKm));
+        return result;
+    }
+
+    private static void offer(PriorityQueue<Location> best, int k, Location location, double distance) {
+        if (best.size() < k) {
+            best.add(new Location(location.stationId, location.lat, location.lon, distance));
+        } else if (distance < best.peek().distanceKm) {
+            best.poll();
+            best.add(new Location(location.stationId, location.lat, location.lon, distance));
+        }
+    }
+
+    /**
+     * Lower bound on the distance from a point to any cell outside the ring of cells around it - the point can be
+     * anywhere in its own cell, so ring cells beyond it are at least ring cells away in both directions. A degree of
+     * longitude is shortest at the highest latitude the next ring reaches.
+     */
+    private static double minDistanceOutsideRing(double lat, int ring) {
+        double degrees = ring * CELL_DEGREES;
+        double highestLat = Math.min(90, Math.abs(lat) + (ring + 1) * CELL_DEGREES);
+        double lonKm = degrees * KM_PER_DEGREE * Math.cos(Math.toRadians(highestLat));
+        return Math.min(degrees * KM_PER_DEGREE, lonKm);
+    }
+
+    /**
+     * Returns the stations inside a bounding box (edges inclusive)
+     *
+     * @return the stations, with their distance from the box centre
+     */
+    public List<Location> inBox(double minLat, double minLon, double maxLat, double maxLon) {
+        List<Location> result = new ArrayList<>();
+        double centreLat = (minLat + maxLat) / 2;
+        double centreLon = (minLon + maxLon) / 2;
+        lock.readLock().lock();
+        try {
+            long boxCells = (long) (cellOf(maxLat) - cellOf(minLat) + 1) * (cellOf(maxLon) - cellOf(minLon) + 1);
+            if (boxCells > locations.size()) {
+                // a box covering more cells than there are stations - check the stations instead
+                for (Location location : locations.values()) {
+                    addIfInBox(result, location, minLat, minLon, maxLat, maxLon, centreLat, centreLon);
+                }
+                return result;
+            }
+            for (int latCell = cellOf(minLat); latCell <= cellOf(maxLat); latCell++) {
+                for (int lonCell = cellOf(minLon); lonCell <= cellOf(maxLon); lonCell++) {
+                    List<Location> cell = cells.get(cellKey(latCell, lonCell));
+                    if (cell == null) continue;
+                    for (Location location : cell) {
+                        addIfInBox(result, location, minLat, minLon, maxLat, maxLon, centreLat, centreLon);
+                    }
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static void addIfInBox(List<Location> result, Location location, double minLat, double minLon,
+                                   double maxLat, double maxLon, double centreLat, double centreLon) {
+        if (location.lat >= minLat && location.lat <= maxLat && location.lon >= minLon && location.lon <= maxLon) {
+            result.add(new Location(location.stationId, location.lat, location.lon,
+                    distanceKm(centreLat, centreLon, location.lat, location.lon)));
+        }
+    }
+
+    /**
+     * Builds the /nearest and /bbox response - {"stations":[{"id":..,"lat":..,"lon":..,"distance_km":..},..]}
+     *
+     * @param locations stations to include
+     * @return the json
+     */
+    public static String toJson(List<Location> locations) {
+        StringBuilder sb = new StringBuilder("{\"stations\":[");
+        for (int i = 0; i < locations.size(); i++) {
+            Location location = locations.get(i);
+            if (i > 0) sb.append(",");
+            sb.append("{\"id\":\"").append(location.stationId)
+                    .append("\",\"lat\":").append(location.lat)
+                    .append(",\"lon\":").append(location.lon)
+                    .append(",\"distance_km\":").append(String.format(Locale.ROOT, "%.3f", location.distanceKm))
+                    .append("}");
+        }
+        return sb.append("]}").toString();
+    }
+}
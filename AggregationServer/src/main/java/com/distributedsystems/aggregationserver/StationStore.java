@@ -0,0 +1,163 @@
+package com.distributedsystems.aggregationserver;
+
+import com.distributedsystems.shared.SimpleJsonUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Station Store: where the aggregation server keeps station data. A store owns lamport ordering (an update is only
+ * applied if it is newer than the stored version), persistence, expiry and reloading after a restart.
+ *
+ * Implementations:
+ *      - FileManager: one file per station
+ *      - SegmentStationStore: fixed size slots in memory mapped segment files
+ *      - OffHeapStationStore: direct memory outside the java heap, nothing survives a restart
+ *      - MemoryStationStore: heap only, nothing survives a restart
+ *      - LogStructuredStationStore: updates appended to a single log file that is replayed on startup
+ */
+public interface StationStore {
+
+    enum UpdateResult { CREATED, UPDATED, STALE }
+
+    /**
+     * Consumes a station's stored data as raw utf-8 bytes
+     */
+    interface PayloadConsumer {
+        void accept(ByteBuffer payload) throws IOException;
+    }
+
+    /**
+     * Visits one stored station
+     */
+    interface StationVisitor {
+        void visit(String stationId, int lamport, long writeMillis, String data);
+    }
+
+    /**
+     * Stores a station's data if lamport is newer than the stored version
+     *
+     * @param stationId station to update
+     * @param lamport lamport of the update
+     * @param json station data
+     * @return CREATED for a new station, UPDATED if a stored station was replaced, STALE if the update was ignored
+     * @throws IOException if the update can't be stored
+     */
+    UpdateResult updateStation(String stationId, int lamport, Map<String, String> json) throws IOException;
+
+    /**
+     * Reads data from a single station
+     *
+     * @param stationId station to read data for
+     * @return a map of stationId : data as json string, empty if the station isn't stored
+     */
+    Map<String, String> readSingleStation(String stationId);
+
+    /**
+     * Passes a station's data as utf-8 bytes to consumer - stores that keep the bytes in a buffer pass a view of it
+     * so the data can be copied without decoding it. The consumer may run under one of the store's locks, so it must
+     * copy the bytes and not block (e.g. on a socket).
+     *
+     * @param stationId station to read
+     * @param consumer called with the data if the station exists - must not keep the buffer or block
+     * @return true if the station exists and consumer was called
+     * @throws IOException if the consumer throws
+     */
+    default boolean withStationPayload(String stationId, PayloadConsumer consumer) throws IOException {
+        String data = readSingleStation(stationId).get(stationId);
+        if (data == null) return false;
+        consumer.accept(ByteBuffer.wrap(data.getBytes(StandardCharsets.UTF_8)));
+        return true;
+    }
+
+    /**
+     * Reads data from all stations
+     *
+     * @return a map of stationId : data as json string
+     */
+    Map<String, String> readAllStations();
+
+    /**
+     * Reads data from all stations as a json object of stationId : data
+     *
+     * @return json object holding every station
+     */
+    default String readAllStationsJson() {
+        return SimpleJsonUtil.stringify(readAllStations());
+    }
+
+    /**
+     * Calls visitor for every stored station with its lamport and last write time - a station updated during the
+     * walk may be visited with either version
+     *
+     * @param visitor called once per station
+     */
+    void forEachStation(StationVisitor visitor);
+
+    /**
+     * Copies every stored station with its lamport, for GET /export and backups. Updates carry on during the copy,
+     * so stations are copied as they were at slightly different moments - each one is a whole stored version.
+     *
+     * @return one entry per station
+     */
+    default List<StationSnapshot.Entry> snapshot() {
+        List<StationSnapshot.Entry> entries = new ArrayList<>();
+        forEachStation((stationId, lamport, writeMillis, data) -> entries.add(new StationSnapshot.Entry(stationId,
+                new StationRecord(lamport, writeMillis, data.getBytes(StandardCharsets.UTF_8)))));
+        return entries;
+    }
+
+    /**
+     * Removes every station that has not been updated since a point in time
+     *
+     * @param olderThanMillis epoch millis - stations last written before this are removed
+     * @return ids of the stations removed
+     */
+    List<String> expireStations(long olderThanMillis);
+
+    /**
+     * Removes one station whatever its age - a backup uses this to apply an expiry shipped from its primary
+     *
+     * @param stationId station to remove
+     * @return true if the station was stored
+     */
+    boolean removeStation(String stationId);
+
+    /**
+     * Loads the stations that were stored before a restart - called once before the server accepts requests
+     *
+     * @return the maximum lamport clock present in the stored data
+     */
+    int reload();
+
+    /**
+     * Returns the current data version - it changes whenever an update is accepted or a station expires
+     * @return the data version
+     */
+    long version();
+
+    /**
+     * @return true if reading a station is slow enough (disk io, parsing) that concurrent GETs for the same station
+     *         should share one read, false if a read is a memory copy
+     */
+    default boolean coalesceReads() {
+        return true;
+    }
+
+    /**
+     * Writes anything the store has buffered to disk
+     */
+    default void flush() {}
+
+    /**
+     * Writes anything the store has buffered to disk and stops the store's own threads - called when the server
+     * stops, the store is not used afterwards
+     */
+    default void close() {
+        flush();
+    }
+}
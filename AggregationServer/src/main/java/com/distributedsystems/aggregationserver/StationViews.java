@@ -0,0 +1,80 @@
+package com.distributedsystems.aggregationserver;
+
+import java.io.File;
+
+/**
+ * Station Views: data derived from the station updates that GET requests can query besides the stations themselves.
+ * Every view is a StationListener registered on the server's NotifyingStationStore.
+ */
+public class StationViews {
+    public final StationHistory history;
+    public final StationRollups rollups;
+    public final StationAggregates aggregates;
+    public final StationSpatialIndex spatial = new StationSpatialIndex();
+    public final StationIndexes indexes;
+    public final StationColumns columns;
+    public final StationIdIndex ids = new StationIdIndex();
+    public final StationMerkleTree merkle = new StationMerkleTree();
+    // last built bodies of cacheable GET responses, valid while the data version is unchanged
+    public final ResponseCache responses = new ResponseCache();
+    private final boolean historyEnabled;
+    // ids, spatial and merkle are always created, but only kept up to date when these are set
+    public final boolean idIndexEnabled;
+    public final boolean spatialEnabled;
+    public final boolean merkleEnabled;
+
+    /**
+     * Creates the views configured in config
+     * @param config server options
+     */
+    public StationViews(ServerConfig config) {
+        File spillDir = config.historySpill ? new File(FileManager.DATA_DIR, "history") : null;
+        this.history = new StationHistory(Math.max(1, config.historySize), spillDir);
+        this.historyEnabled = config.historySize > 0;
+        this.rollups = new StationRollups(config.rollupFields);
+        this.aggregates = new StationAggregates(config.aggregateFields);
+        this.indexes = new StationIndexes(config.indexFields);
+        this.columns = new StationColumns(config.columnFields);
+        this.idIndexEnabled = config.idIndex;
+        this.spatialEnabled = config.spatialIndex;
+        this.merkleEnabled = config.merkleTree;
+    }
+
+    /**
+     * Registers every enabled view as a listener on the store
+     * @param store the server's store
+     */
+    public void register(NotifyingStationStore store) {
+        if (historyEnabled) {
+            store.addListener(history);
+        }
+        if (!rollups.fields().isEmpty()) {
+            store.addListener(rollups);
+        }
+        if (!aggregates.fields().isEmpty()) {
+            store.addListener(aggregates);
+        }
+        if (spatialEnabled) {
+            store.addListener(spatial);
+        }
+        if (idIndexEnabled) {
+            store.addListener(ids);
+        }
+        if (merkleEnabled) {
+            store.addListener(merkle);
+        }
+        if (!indexes.fields().isEmpty()) {
+            store.addListener(indexes);
+        }
+        if (!columns.fields().isEmpty()) {
+            store.addListener(columns);
+        }
+    }
+
+    /**
+     * Appends the history observations still waiting to be spilled and stops the spill thread
+     */
+    public void close() {
+        history.close();
+    }
+}
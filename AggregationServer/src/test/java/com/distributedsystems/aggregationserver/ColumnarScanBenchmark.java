@@ -0,0 +1,69 @@
+package com.distributedsystems.aggregationserver;
+
+import java.util.*;
+
+/**
+ * Benchmark comparing a predicate scan ("rel_hum > 80 and wind_spd_kmh > 40") over StationColumns with the same scan
+ * over each station's Map<String, String> form, which has to parse both fields of every station.
+ *
+ * Run from the AggregationServer directory after mvn test-compile with:
+ *      java -cp target/classes:target/test-classes:../Shared/target/classes
+ *          com.distributedsystems.aggregationserver.ColumnarScanBenchmark [stations] [scans]
+ */
+public class ColumnarScanBenchmark {
+
+    public static void main(String[] args) {
+        int stations = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int scans = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        Random random = new Random(1);
+
+        StationColumns columns = new StationColumns(List.of("air_temp", "press", "rel_hum", "wind_spd_kmh"));
+        List<Map<String, String>> maps = new ArrayList<>();
+        for (int i = 0; i < stations; i++) {
+            Map<String, String> data = new HashMap<>();
+            data.put("id", "IDS" + i);
+            data.put("air_temp", String.valueOf(random.nextInt(400) / 10.0));
+            data.put("press", String.valueOf(990 + random.nextInt(400) / 10.0));
+            data.put("rel_hum", String.valueOf(random.nextInt(101)));
+            data.put("wind_spd_kmh", String.valueOf(random.nextInt(80)));
+            maps.add(data);
+            columns.stationUpdated("IDS" + i, 1, 0, data);
+        }
+        List<StationColumns.Predicate> predicates = StationColumns.Predicate.parseAll("rel_hum:gt:80,wind_spd_kmh:gt:40");
+
+        // first pass warms up the jit, second is timed
+        double columnMs = 0;
+        double mapMs = 0;
+        int columnMatches = 0;
+        int mapMatches = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            long start = System.nanoTime();
+            for (int s = 0; s < scans; s++) {
+                columnMatches = columns.scan(predicates).size();
+            }
+            columnMs = (System.nanoTime() - start) / 1e6 / scans;
+
+            start = System.nanoTime();
+            for (int s = 0; s < scans; s++) {
+                mapMatches = scanMaps(maps).size();
+            }
+            mapMs = (System.nanoTime() - start) / 1e6 / scans;
+        }
+        if (columnMatches != mapMatches) {
+            throw new IllegalStateException("columns matched " + columnMatches + ", maps matched " + mapMatches);
+        }
+
+        System.out.printf("%d stations, %d matches: columns %.3f ms per scan, maps %.3f ms per scan (%.1fx)%n",
+                stations, columnMatches, columnMs, mapMs, mapMs / columnMs);
+    }
+
+    private static List<String> scanMaps(List<Map<String, String>> maps) {
+        List<String> result = new ArrayList<>();
+        for (Map<String, String> data : maps) {
+            if (Double.parseDouble(data.get("rel_hum")) > 80 && Double.parseDouble(data.get("wind_spd_kmh")) > 40) {
+                result.add(data.get("id"));
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,97 @@
+package com.distributedsystems.aggregationserver;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Benchmark comparing the old flat DATA_DIR layout with the sharded layout + manifest as the number of stations grows.
+ * For each station count it reports the time to list every station and the average time to look up one station file.
+ *
+ * Run from the AggregationServer directory after mvn test-compile with:
+ *      java -cp target/classes:target/test-classes:../Shared/target/classes
+ *          com.distributedsystems.aggregationserver.DataDirLayoutBenchmark [station counts...]
+ */
+public class DataDirLayoutBenchmark {
+    private static final int LOOKUPS = 10_000;
+    private static final String RECORD = "{\"lamport\":\"1\",\"data\":{\"air_temp\":\"13.3\"}}";
+
+    public static void main(String[] args) throws IOException {
+        int[] stationCounts = args.length > 0
+                ? Arrays.stream(args).mapToInt(Integer::parseInt).toArray()
+                : new int[] {1_000, 10_000, 100_000};
+
+        System.out.printf("%10s %16s %16s %16s %16s%n",
+                "stations", "flat list ms", "manifest ms", "flat lookup us", "shard lookup us");
+        for (int count : stationCounts) {
+            run(count);
+        }
+    }
+
+    private static void run(int count) throws IOException {
+        Path root = Files.createTempDirectory("layout-bench-");
+        try {
+            List<String> ids = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                ids.add("IDS" + i);
+            }
+
+            // flat layout - every station directly in one directory
+            File flatDir = new File(root.toFile(), "flat");
+            flatDir.mkdirs();
+            for (String id : ids) {
+                writeRecord(new File(flatDir, id + ".json"));
+            }
+
+            // sharded layout - written through the file manager so the manifest is kept
+            FileManager fileManager = new FileManager(new File(root.toFile(), "sharded"));
+            Map<String, String> data = new HashMap<>();
+            data.put("air_temp", "13.3");
+            for (String id : ids) {
+                fileManager.updateStation(id, 1, data);
+            }
+
+            long start = System.nanoTime();
+            File[] listed = flatDir.listFiles((dir, name) -> name.endsWith(".json"));
+            double flatListMs = (System.nanoTime() - start) / 1e6;
+
+            start = System.nanoTime();
+            Set<String> manifest = fileManager.readManifest();
+            double manifestMs = (System.nanoTime() - start) / 1e6;
+
+            if (listed == null || listed.length != count || manifest.size() != count) {
+                throw new IllegalStateException("layouts do not hold " + count + " stations");
+            }
+
+            Random random = new Random(42);
+            start = System.nanoTime();
+            for (int i = 0; i < LOOKUPS; i++) {
+                new File(flatDir, ids.get(random.nextInt(count)) + ".json").exists();
+            }
+            double flatLookupUs = (System.nanoTime() - start) / 1e3 / LOOKUPS;
+
+            random = new Random(42);
+            start = System.nanoTime();
+            for (int i = 0; i < LOOKUPS; i++) {
+                fileManager.stationFile(ids.get(random.nextInt(count))).exists();
+            }
+            double shardLookupUs = (System.nanoTime() - start) / 1e3 / LOOKUPS;
+
+            System.out.printf("%10d %16.2f %16.2f %16.2f %16.2f%n",
+                    count, flatListMs, manifestMs, flatLookupUs, shardLookupUs);
+        } finally {
+            try (var paths = Files.walk(root)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    private static void writeRecord(File file) throws IOException {
+        try (FileWriter fw = new FileWriter(file)) {
+            fw.write(RECORD);
+        }
+    }
+}
@@ -4,7 +4,9 @@ import org.junit.jupiter.api.*;
 import org.junit.jupiter.api.io.TempDir;
 
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.time.Instant;
 import java.util.HashMap;
 import java.util.Map;
@@ -20,15 +22,21 @@ class FileManagerTest {
 
     @BeforeEach
     void setup() {
-        // Point the FileManager.DATA_DIR to our temp dir using reflection
-        try {
-            var field = FileManager.class.getDeclaredField("DATA_DIR");
-            field.setAccessible(true);
-            field.set(null, tempDir);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
-        fileManager = new FileManager();
+        fileManager = new FileManager(tempDir);
+    }
+
+    @AfterEach
+    void close() {
+        fileManager.close();
+    }
+
+    /**
+     * Replaces fileManager with a new store over the same directory, as a restart would
+     */
+    private int restart() {
+        fileManager.close();
+        fileManager = new FileManager(tempDir);
+        return fileManager.reload();
     }
 
     @Test
@@ -40,7 +48,17 @@ class FileManagerTest {
                 fileManager.updateStation("32432rwe243er", 1, data);
 
         assertEquals(FileManager.UpdateResult.CREATED, result);
-        assertTrue(new File(tempDir, "32432rwe243er.json").exists());
+        assertTrue(fileManager.stationFile("32432rwe243er").exists());
+    }
+
+    @Test
+    void testOneCharacterStationId() throws IOException {
+        Map<String, String> data = new HashMap<>();
+        data.put("key", "value");
+
+        // temp file names start with the station id, createTempFile needs a prefix of 3 or more characters
+        assertEquals(FileManager.UpdateResult.CREATED, fileManager.updateStation("a", 1, data));
+        assertEquals("{\"key\":\"value\"}", fileManager.readSingleStation("a").get("a"));
     }
 
     @Test
@@ -104,7 +122,7 @@ class FileManagerTest {
         d1.put("x", "100");
         fileManager.updateStation("reloadMe", 42, d1);
 
-        int maxLamport = FileManager.reloadStationsOnStartup();
+        int maxLamport = restart();
         assertEquals(42, maxLamport);
     }
 
@@ -120,15 +138,212 @@ class FileManagerTest {
             var field = FileManager.class.getDeclaredField("stationLastWrite");
             field.setAccessible(true);
             @SuppressWarnings("unchecked")
-            Map<String, Instant> stationLastWrite = (Map<String, Instant>) field.get(null);
+            Map<String, Instant> stationLastWrite = (Map<String, Instant>) field.get(fileManager);
             stationLastWrite.put("oldStation", Instant.now().minusSeconds(9999));
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
 
-        FileManager.StaleDataRemover remover = new FileManager.StaleDataRemover(1);
+        FileManager.StaleDataRemover remover = new FileManager.StaleDataRemover(fileManager, 1);
         remover.run();
 
-        assertFalse(new File(tempDir, "oldStation.json").exists());
+        assertFalse(fileManager.stationFile("oldStation").exists());
+    }
+
+    @Test
+    void testStaleUpdateLeavesNoTempFiles() throws IOException {
+        Map<String, String> data = new HashMap<>();
+        data.put("key", "v1");
+
+        fileManager.updateStation("tmpCheck", 5, data);
+        fileManager.updateStation("tmpCheck", 4, data);
+
+        // temp files are written to <dir>/tmp, which the first update created
+        File[] leftovers = new File(tempDir, "tmp").listFiles((dir, name) -> name.endsWith(".tmp"));
+        assertNotNull(leftovers);
+        assertEquals(0, leftovers.length);
+    }
+
+    @Test
+    void testWriteBehindUpdateVisibleBeforeFlush() throws IOException {
+        fileManager = new FileManager(tempDir, 60_000);
+        Map<String, String> data = new HashMap<>();
+        data.put("temp", "20");
+
+        FileManager.UpdateResult result = fileManager.updateStation("behind1", 1, data);
+
+        assertEquals(FileManager.UpdateResult.CREATED, result);
+        assertEquals("{\"temp\":\"20\"}", fileManager.readSingleStation("behind1").get("behind1"));
+        assertTrue(fileManager.readAllStations().containsKey("behind1"));
+    }
+
+    private static boolean flusherRunning() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .anyMatch(thread -> thread.getName().equals("write-behind-flusher"));
+    }
+
+    @Test
+    void testCloseWritesPendingUpdatesAndStopsFlusher() throws IOException {
+        fileManager = new FileManager(tempDir, 60_000);
+        Map<String, String> data = new HashMap<>();
+        data.put("temp", "20");
+        fileManager.updateStation("behind3", 1, data);
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (!fileManager.stationFile("behind3").exists() && System.currentTimeMillis() < deadline) {
+            Thread.onSpinWait();
+        }
+        // pending, its flush is scheduled a minute from now
+        data.put("temp", "21");
+        fileManager.updateStation("behind3", 2, data);
+
+        fileManager.close();
+        // the executor has terminated, its thread may take a moment to exit
+        deadline = System.currentTimeMillis() + 5_000;
+        while (flusherRunning() && System.currentTimeMillis() < deadline) {
+            Thread.onSpinWait();
+        }
+        assertFalse(flusherRunning());
+        assertEquals(2, restart());
+        assertTrue(fileManager.readSingleStation("behind3").get("behind3").contains("21"));
+    }
+
+    @Test
+    void testWriteBehindFlushWritesLatestVersionOnly() throws IOException {
+        fileManager = new FileManager(tempDir, 60_000);
+        Map<String, String> data = new HashMap<>();
+        data.put("temp", "20");
+        fileManager.updateStation("behind2", 1, data);
+        // first flush of a station is immediate - wait for it so the next updates fall inside the interval
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (!fileManager.stationFile("behind2").exists() && System.currentTimeMillis() < deadline) {
+            Thread.onSpinWait();
+        }
+        assertTrue(fileManager.stationFile("behind2").exists());
+
+        data.put("temp", "21");
+        fileManager.updateStation("behind2", 2, data);
+        data.put("temp", "22");
+        fileManager.updateStation("behind2", 3, data);
+        assertEquals(FileManager.UpdateResult.STALE, fileManager.updateStation("behind2", 2, data));
+
+        fileManager.flush();
+
+        // new state read back from disk only
+        assertEquals(3, restart());
+        assertTrue(fileManager.readSingleStation("behind2").get("behind2").contains("22"));
+    }
+
+    @Test
+    void testFailedWriteBehindFlushIsRetried() throws Exception {
+        fileManager = new FileManager(tempDir, 50);
+        // a plain file where the temp directory should be makes every flush fail
+        File blocker = new File(tempDir, "tmp");
+        assertTrue(blocker.createNewFile());
+        Map<String, String> data = new HashMap<>();
+        data.put("temp", "20");
+        fileManager.updateStation("retry1", 1, data);
+
+        Thread.sleep(300);
+        assertFalse(fileManager.stationFile("retry1").exists());
+        assertEquals("{\"temp\":\"20\"}", fileManager.readSingleStation("retry1").get("retry1"));
+
+        assertTrue(blocker.delete());
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (!fileManager.stationFile("retry1").exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(fileManager.stationFile("retry1").exists());
+        assertEquals(1, restart());
+    }
+
+    @Test
+    void testStationFilesAreShardedAndListedInManifest() throws IOException {
+        Map<String, String> data = new HashMap<>();
+        data.put("k", "v");
+        fileManager.updateStation("sharded1", 1, data);
+
+        File file = fileManager.stationFile("sharded1");
+        assertTrue(file.exists());
+        assertEquals(tempDir, file.getParentFile().getParentFile().getParentFile());
+        assertFalse(new File(tempDir, "sharded1.json").exists());
+
+        String manifest = Files.readString(new File(tempDir, "stations.manifest").toPath());
+        assertTrue(manifest.contains("+sharded1"));
+    }
+
+    @Test
+    void testReloadMigratesFlatLayout() throws IOException {
+        try (FileWriter fw = new FileWriter(new File(tempDir, "flat1.json"))) {
+            fw.write("{\"lamport\":\"7\",\"data\":{\"temp\":\"15\"}}");
+        }
+
+        assertEquals(7, fileManager.reload());
+
+        assertFalse(new File(tempDir, "flat1.json").exists());
+        assertTrue(fileManager.stationFile("flat1").exists());
+        assertEquals("{\"temp\":\"15\"}", fileManager.readSingleStation("flat1").get("flat1"));
+
+        // a second restart finds the station through the manifest
+        assertEquals(7, restart());
+        assertTrue(fileManager.readAllStations().containsKey("flat1"));
+    }
+
+    @Test
+    void testReloadConvertsJsonFiles() throws IOException {
+        File legacy = fileManager.legacyStationFile("json1");
+        assertTrue(legacy.getParentFile().mkdirs());
+        try (FileWriter fw = new FileWriter(legacy)) {
+            fw.write("{\"lamport\":\"9\",\"data\":{\"temp\":\"16\"}}");
+        }
+        try (FileWriter fw = new FileWriter(new File(tempDir, "stations.manifest"))) {
+            fw.write("+json1\n");
+        }
+
+        assertEquals(9, fileManager.reload());
+
+        assertFalse(legacy.exists());
+        assertEquals(9, StationRecord.readLamport(fileManager.stationFile("json1")));
+        assertEquals("{\"temp\":\"16\"}", fileManager.readSingleStation("json1").get("json1"));
+        assertEquals(FileManager.UpdateResult.STALE, fileManager.updateStation("json1", 9, new HashMap<>()));
+    }
+
+    @Test
+    void testCorruptRecordSkippedOnReload() throws IOException {
+        Map<String, String> data = new HashMap<>();
+        data.put("k", "v");
+        fileManager.updateStation("good", 3, data);
+        fileManager.updateStation("bad", 8, data);
+        Files.write(fileManager.stationFile("bad").toPath(), "garbage".getBytes());
+
+        assertEquals(3, restart());
+        assertEquals(1, fileManager.readAllStations().size());
+    }
+
+    @Test
+    void testExpiredStationRemovedFromManifest() throws IOException {
+        Map<String, String> data = new HashMap<>();
+        data.put("k", "v");
+        fileManager.updateStation("expireMe", 1, data);
+
+        new FileManager.StaleDataRemover(fileManager, -1).run();
+
+        assertEquals(0, restart());
+        assertTrue(fileManager.readAllStations().isEmpty());
+    }
+
+    @Test
+    void testStoresInDifferentDirectoriesAreIndependent() throws IOException {
+        Map<String, String> data = new HashMap<>();
+        data.put("k", "v");
+        FileManager other = new FileManager(new File(tempDir, "other"));
+
+        fileManager.updateStation("shared", 5, data);
+        assertEquals(FileManager.UpdateResult.CREATED, other.updateStation("shared", 1, data));
+
+        assertTrue(other.stationFile("shared").exists());
+        assertNotEquals(fileManager.stationFile("shared"), other.stationFile("shared"));
+        new FileManager.StaleDataRemover(other, -1).run();
+        assertTrue(other.readAllStations().isEmpty());
+        assertEquals(1, fileManager.readAllStations().size());
     }
 }
@@ -0,0 +1,19 @@
+package com.distributedsystems.aggregationserver;
+
+import java.io.File;
+
+/**
+ * Runs the store contract against the file per station layout - FileManagerTest covers the rest of FileManager
+ */
+class FileStationStoreTest extends StationStoreContractTest {
+
+    @Override
+    StationStore createStore(File dir) {
+        return new FileManager(dir);
+    }
+
+    @Override
+    boolean persistent() {
+        return true;
+    }
+}
@@ -0,0 +1,51 @@
+package com.distributedsystems.aggregationserver;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IdempotencyCacheTest {
+
+    private static final long MILLI = 1_000_000L;
+
+    @Test
+    void testRepeatedKeyGetsOriginalResponse() {
+        IdempotencyCache cache = new IdempotencyCache(10, 1000);
+        assertNull(cache.get("a", 0));
+        cache.put("a", "201 Created", "New station IDS1 created", 0);
+
+        IdempotencyCache.Result result = cache.get("a", 10 * MILLI);
+        assertEquals("201 Created", result.status);
+        assertEquals("New station IDS1 created", result.body);
+        assertEquals(1, cache.hitCount());
+    }
+
+    @Test
+    void testKeysExpireAfterTtl() {
+        IdempotencyCache cache = new IdempotencyCache(10, 1000);
+        cache.put("a", "200 OK", "", 0);
+        cache.put("b", "200 OK", "", 500 * MILLI);
+        assertNotNull(cache.get("a", 999 * MILLI));
+        assertNull(cache.get("a", 1000 * MILLI));
+        assertNotNull(cache.get("b", 1000 * MILLI));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    void testOldestKeyEvictedAtCapacity() {
+        IdempotencyCache cache = new IdempotencyCache(2, 1000);
+        cache.put("a", "200 OK", "", 0);
+        cache.put("b", "200 OK", "", 0);
+        cache.put("c", "200 OK", "", 0);
+        assertNull(cache.get("a", 0));
+        assertNotNull(cache.get("b", 0));
+        assertNotNull(cache.get("c", 0));
+    }
+
+    @Test
+    void testZeroCapacityKeepsNothing() {
+        IdempotencyCache cache = new IdempotencyCache(0, 1000);
+        cache.put("a", "200 OK", "", 0);
+        assertNull(cache.get("a", 0));
+    }
+}
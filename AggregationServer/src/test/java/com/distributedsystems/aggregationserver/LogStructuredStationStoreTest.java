@@ -0,0 +1,68 @@
+package com.distributedsystems.aggregationserver;
+
+import com.distributedsystems.shared.SimpleJsonUtil;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LogStructuredStationStoreTest extends StationStoreContractTest {
+
+    @Override
+    StationStore createStore(File dir) throws IOException {
+        return new LogStructuredStationStore(dir);
+    }
+
+    @Override
+    boolean persistent() {
+        return true;
+    }
+
+    @Test
+    void testTornTailIsDiscarded() throws IOException {
+        Map<String, String> data = new HashMap<>();
+        data.put("air_temp", "10");
+        store.updateStation("t1", 1, data);
+        store.updateStation("t2", 1, data);
+
+        // cut the last record in half as if the OS crashed part way through writing it
+        File log = new File(tempDir, LogStructuredStationStore.LOG_NAME);
+        try (RandomAccessFile raf = new RandomAccessFile(log, "rw")) {
+            raf.setLength(raf.length() - 5);
+        }
+
+        LogStructuredStationStore restarted = new LogStructuredStationStore(tempDir);
+        restarted.reload();
+        assertEquals(1, restarted.readAllStations().size());
+        assertFalse(restarted.readSingleStation("t1").isEmpty());
+
+        // appends continue after the last intact record
+        assertEquals(StationStore.UpdateResult.CREATED, restarted.updateStation("t2", 2, data));
+        LogStructuredStationStore again = new LogStructuredStationStore(tempDir);
+        again.reload();
+        assertEquals(2, again.readAllStations().size());
+    }
+
+    @Test
+    void testCompaction() throws IOException {
+        LogStructuredStationStore log = (LogStructuredStationStore) store;
+        Map<String, String> data = new HashMap<>();
+        data.put("payload", "x".repeat(1000));
+        for (int lamport = 1; lamport <= 3000; lamport++) {
+            log.updateStation("station" + (lamport % 10), lamport, data);
+        }
+
+        // 3000 records of ~1 KB were appended but only 10 are live
+        assertTrue(log.logSize() < 1024 * 1024 + 20_000, "log was not compacted: " + log.logSize());
+        assertEquals(10, log.readAllStations().size());
+
+        LogStructuredStationStore restarted = new LogStructuredStationStore(tempDir);
+        assertEquals(3000, restarted.reload());
+        assertEquals(SimpleJsonUtil.stringify(data), restarted.readSingleStation("station0").get("station0"));
+    }
+}
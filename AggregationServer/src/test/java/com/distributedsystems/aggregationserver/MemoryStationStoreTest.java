@@ -0,0 +1,16 @@
+package com.distributedsystems.aggregationserver;
+
+import java.io.File;
+
+class MemoryStationStoreTest extends StationStoreContractTest {
+
+    @Override
+    StationStore createStore(File dir) {
+        return new MemoryStationStore();
+    }
+
+    @Override
+    boolean persistent() {
+        return false;
+    }
+}
@@ -0,0 +1,16 @@
+package com.distributedsystems.aggregationserver;
+
+import java.io.File;
+
+class OffHeapStationStoreTest extends StationStoreContractTest {
+
+    @Override
+    StationStore createStore(File dir) {
+        return new OffHeapStationStore();
+    }
+
+    @Override
+    boolean persistent() {
+        return false;
+    }
+}
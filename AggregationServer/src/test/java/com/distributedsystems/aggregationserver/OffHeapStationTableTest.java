@@ -0,0 +1,108 @@
+package com.distributedsystems.aggregationserver;
+
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OffHeapStationTableTest {
+
+    OffHeapStationTable table;
+
+    @BeforeEach
+    void setup() {
+        table = new OffHeapStationTable(4096);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private String payload(String stationId) {
+        Map<String, String> result = new HashMap<>();
+        table.read(stationId, (id, lamport, lastWrite, payload) ->
+                result.put(id, StandardCharsets.UTF_8.decode(payload).toString()));
+        return result.get(stationId);
+    }
+
+    @Test
+    void testPutAndRead() throws IOException {
+        assertEquals(FileManager.UpdateResult.CREATED, table.putIfNewer("s1", 1, 1000, bytes("{\"a\":\"1\"}")));
+
+        assertEquals("{\"a\":\"1\"}", payload("s1"));
+        assertEquals(1, table.lamport("s1"));
+        assertEquals(-1, table.lamport("missing"));
+        assertNull(payload("missing"));
+    }
+
+    @Test
+    void testLamportOrdering() throws IOException {
+        table.putIfNewer("s1", 5, 1000, bytes("{\"a\":\"5\"}"));
+
+        assertEquals(FileManager.UpdateResult.STALE, table.putIfNewer("s1", 5, 1000, bytes("{\"a\":\"dup\"}")));
+        assertEquals(FileManager.UpdateResult.STALE, table.putIfNewer("s1", 4, 1000, bytes("{\"a\":\"old\"}")));
+        assertEquals(FileManager.UpdateResult.UPDATED, table.putIfNewer("s1", 6, 1000, bytes("{\"a\":\"6\"}")));
+        assertEquals("{\"a\":\"6\"}", payload("s1"));
+    }
+
+    @Test
+    void testRecordGrowsAndShrinks() throws IOException {
+        table.putIfNewer("s1", 1, 1000, bytes("{}"));
+        String big = "{\"a\":\"" + "x".repeat(500) + "\"}";
+        table.putIfNewer("s1", 2, 1000, bytes(big));
+        assertEquals(big, payload("s1"));
+
+        table.putIfNewer("s1", 3, 1000, bytes("{\"a\":\"small\"}"));
+        assertEquals("{\"a\":\"small\"}", payload("s1"));
+    }
+
+    @Test
+    void testManyStationsAcrossResizesAndChunks() throws IOException {
+        for (int i = 0; i < 5000; i++) {
+            table.putIfNewer("station" + i, i, 1000, bytes("{\"i\":\"" + i + "\"}"));
+        }
+        assertEquals(5000, table.size());
+        for (int i = 0; i < 5000; i += 97) {
+            assertEquals("{\"i\":\"" + i + "\"}", payload("station" + i));
+        }
+
+        Map<String, Integer> seen = new HashMap<>();
+        table.forEach((id, lamport, lastWrite, payload) -> seen.put(id, lamport));
+        assertEquals(5000, seen.size());
+        assertEquals(4999, seen.get("station4999"));
+    }
+
+    @Test
+    void testRemoveAndReuse() throws IOException {
+        table.putIfNewer("s1", 1, 1000, bytes("{\"a\":\"1\"}"));
+        table.putIfNewer("s2", 1, 1000, bytes("{\"b\":\"2\"}"));
+
+        assertTrue(table.remove("s1"));
+        assertFalse(table.remove("s1"));
+        assertNull(payload("s1"));
+        assertEquals("{\"b\":\"2\"}", payload("s2"));
+
+        // a removed station can come back with any lamport
+        assertEquals(FileManager.UpdateResult.CREATED, table.putIfNewer("s1", 1, 1000, bytes("{\"a\":\"again\"}")));
+        assertEquals("{\"a\":\"again\"}", payload("s1"));
+        assertEquals(2, table.size());
+    }
+
+    @Test
+    void testRemoveOnlyIfNotWrittenSince() throws IOException {
+        table.putIfNewer("s1", 1, 5000, bytes("{}"));
+
+        assertFalse(table.remove("s1", 5000));
+        assertTrue(table.remove("s1", 5001));
+    }
+
+    @Test
+    void testRecordLargerThanChunkRejected() {
+        byte[] payload = new byte[5000];
+        assertThrows(IOException.class, () -> table.putIfNewer("big", 1, 1000, payload));
+    }
+}
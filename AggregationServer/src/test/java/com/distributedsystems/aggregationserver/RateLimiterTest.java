@@ -0,0 +1,99 @@
+package com.distributedsystems.aggregationserver;
+
+import org.junit.jupiter.api.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RateLimiterTest {
+
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    void testBurstThenRate() {
+        RateLimiter limiter = new RateLimiter(2, 3);
+        RateLimiter.Bucket bucket = limiter.newBucket();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, limiter.tryAcquire(bucket, 0));
+        }
+        // the fourth waits one interval (1s / 2)
+        assertEquals(SECOND / 2, limiter.tryAcquire(bucket, 0));
+        assertEquals(0, limiter.tryAcquire(bucket, SECOND / 2));
+        assertTrue(limiter.tryAcquire(bucket, SECOND / 2) > 0);
+    }
+
+    @Test
+    void testRejectionTakesNoToken() {
+        RateLimiter limiter = new RateLimiter(1, 1);
+        RateLimiter.Bucket bucket = limiter.newBucket();
+        assertEquals(0, limiter.tryAcquire(bucket, 0));
+        for (int i = 0; i < 10; i++) {
+            assertTrue(limiter.tryAcquire(bucket, SECOND / 2) > 0);
+        }
+        assertEquals(0, limiter.tryAcquire(bucket, SECOND));
+    }
+
+    @Test
+    void testKeysHaveTheirOwnBuckets() {
+        RateLimiter limiter = new RateLimiter(1, 1);
+        assertSame(limiter.bucket("IDS1"), limiter.bucket("IDS1"));
+        assertEquals(0, limiter.tryAcquire(limiter.bucket("IDS1"), 0));
+        assertTrue(limiter.tryAcquire(limiter.bucket("IDS1"), 0) > 0);
+        assertEquals(0, limiter.tryAcquire(limiter.bucket("IDS2"), 0));
+    }
+
+    @Test
+    void testSweepDropsFullBuckets() {
+        RateLimiter limiter = new RateLimiter(1, 1);
+        limiter.tryAcquire(limiter.bucket("IDS1"), 0);
+        limiter.bucket("IDS2");
+        limiter.sweep(SECOND / 2);
+        assertEquals(1, limiter.size());
+        limiter.sweep(SECOND);
+        assertEquals(0, limiter.size());
+    }
+
+    @Test
+    void testSweptBucketIsNotSpent() {
+        RateLimiter limiter = new RateLimiter(1, 1);
+        RateLimiter.Bucket swept = limiter.bucket("IDS1");
+        limiter.sweep(0);
+        assertEquals(0, limiter.size());
+        assertNotSame(swept, limiter.bucket("IDS1"));
+
+        // the token is taken from the key's current bucket, so the spend is not lost with the swept one
+        assertEquals(0, limiter.tryAcquire("IDS1", 0));
+        assertTrue(limiter.tryAcquire("IDS1", 0) > 0);
+        limiter.sweep(SECOND / 2);
+        assertEquals(1, limiter.size());
+    }
+
+    @Test
+    void testRetryAfterRoundsUpToWholeSeconds() {
+        assertEquals("1", PutRateLimits.retryAfterSeconds(1));
+        assertEquals("1", PutRateLimits.retryAfterSeconds(SECOND));
+        assertEquals("2", PutRateLimits.retryAfterSeconds(SECOND + 1));
+    }
+
+    @Test
+    void testRejectionsAreCountedForBoundedClients() {
+        ServerConfig config = new ServerConfig(0);
+        config.stationPutRate = 0.001;
+        config.stationPutBurst = 1;
+        PutRateLimits limits = new PutRateLimits(config);
+        limits.checkStation("s1", "first");
+        int clients = PutRateLimits.MAX_COUNTED_CLIENTS + 10;
+        for (int i = 0; i < clients; i++) {
+            assertTrue(limits.checkStation("s1", "client" + i) > 0);
+        }
+
+        Map<String, String> metrics = new HashMap<>();
+        limits.addMetrics(metrics);
+        assertEquals(String.valueOf(clients), metrics.get("put.rejected"));
+        assertEquals("10", metrics.get("put.rejected." + PutRateLimits.OTHER_CLIENTS));
+        // one entry per counted client, one for the others and the total
+        assertEquals(PutRateLimits.MAX_COUNTED_CLIENTS + 2, metrics.size());
+    }
+}
@@ -0,0 +1,63 @@
+package com.distributedsystems.aggregationserver;
+
+import com.distributedsystems.shared.SimpleJsonUtil;
+import org.junit.jupiter.api.*;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReplicationLogTest {
+
+    @Test
+    void testEntriesReadInSequenceOrder() throws InterruptedException {
+        ReplicationLog log = new ReplicationLog(16);
+        assertEquals(0, log.lastSeq());
+
+        log.stationUpdated("s1", 3, 100, SimpleJsonUtil.parse("{\"air_temp\":\"10\"}"));
+        log.stationUpdated("s2", 4, 101, SimpleJsonUtil.parse("{\"air_temp\":\"20\"}"));
+        log.stationExpired("s1");
+        assertEquals(3, log.lastSeq());
+
+        List<ReplicationLog.Entry> entries = log.read(1, 10, 0);
+        assertEquals(3, entries.size());
+        assertEquals("s1", entries.get(0).stationId);
+        assertEquals(3, entries.get(0).lamport);
+        assertEquals(ReplicationLog.Type.UPDATE, entries.get(1).type);
+        assertEquals(ReplicationLog.Type.EXPIRE, entries.get(2).type);
+        assertEquals(3, entries.get(2).seq);
+
+        assertEquals(1, log.read(2, 1, 0).size());
+        assertEquals(2, log.read(2, 1, 0).get(0).seq);
+    }
+
+    @Test
+    void testOverwrittenEntriesNeedSnapshot() throws InterruptedException {
+        ReplicationLog log = new ReplicationLog(4);
+        for (int i = 1; i <= 10; i++) {
+            log.stationUpdated("s" + i, i, i, Map.of());
+        }
+        assertNull(log.read(6, 10, 0));
+        List<ReplicationLog.Entry> kept = log.read(7, 10, 0);
+        assertEquals(4, kept.size());
+        assertEquals(10, kept.get(3).seq);
+    }
+
+    @Test
+    void testReadWaitsForNextEntry() throws InterruptedException {
+        ReplicationLog log = new ReplicationLog(4);
+        assertTrue(log.read(1, 10, 10).isEmpty());
+
+        Thread writer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ignored) {}
+            log.stationUpdated("s1", 1, 1, Map.of());
+        });
+        writer.start();
+        List<ReplicationLog.Entry> entries = log.read(1, 10, 5000);
+        writer.join();
+        assertEquals(1, entries.size());
+    }
+}
@@ -0,0 +1,50 @@
+package com.distributedsystems.aggregationserver;
+
+import org.junit.jupiter.api.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResponseCacheTest {
+
+    @Test
+    void testBodyOnlyServedAtItsVersion() {
+        ResponseCache cache = new ResponseCache();
+        assertNull(cache.get("all", 1));
+
+        EncodedBody body = new EncodedBody(1, "{}");
+        cache.put("all", body);
+        assertSame(body, cache.get("all", 1));
+        assertNull(cache.get("all", 2));
+    }
+
+    @Test
+    void testOlderBodyDoesNotReplaceNewer() {
+        ResponseCache cache = new ResponseCache();
+        EncodedBody newer = new EncodedBody(5, "{\"a\":\"2\"}");
+        cache.put("all", newer);
+        cache.put("all", new EncodedBody(4, "{\"a\":\"1\"}"));
+        assertSame(newer, cache.get("all", 5));
+    }
+
+    @Test
+    void testGzipMadeOnceAndDecompresses() throws IOException {
+        StringBuilder json = new StringBuilder("{");
+        for (int i = 0; i < 200; i++) {
+            if (i > 0) json.append(",");
+            json.append("\"IDS").append(i).append("\":{\"local_date_time_full\":\"20230715160000\",\"wind_spd_kmh\":\"15\"}");
+        }
+        EncodedBody body = new EncodedBody(1, json.append("}").toString());
+
+        byte[] gzip = body.gzip();
+        assertSame(gzip, body.gzip());
+        assertTrue(gzip.length < body.identity.length / 4, "repetitive station json should compress well");
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzip))) {
+            assertEquals(json.toString(), new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+}
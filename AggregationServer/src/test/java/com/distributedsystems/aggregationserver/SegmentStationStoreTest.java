@@ -0,0 +1,17 @@
+package com.distributedsystems.aggregationserver;
+
+import java.io.File;
+import java.io.IOException;
+
+class SegmentStationStoreTest extends StationStoreContractTest {
+
+    @Override
+    StationStore createStore(File dir) throws IOException {
+        return new SegmentStationStore(new File(dir, "segments"));
+    }
+
+    @Override
+    boolean persistent() {
+        return true;
+    }
+}
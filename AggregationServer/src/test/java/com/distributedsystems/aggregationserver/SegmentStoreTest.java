@@ -0,0 +1,152 @@
+package com.distributedsystems.aggregationserver;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SegmentStoreTest {
+
+    @TempDir
+    File tempDir;
+
+    SegmentStore store;
+
+    @BeforeEach
+    void setup() throws IOException {
+        store = new SegmentStore(tempDir);
+        store.load();
+    }
+
+    private static String asString(ByteBuffer payload) {
+        return StandardCharsets.UTF_8.decode(payload).toString();
+    }
+
+    @Test
+    void testWriteThenRead() throws IOException {
+        store.write("s1", 3, 1000, "{\"a\":\"1\"}".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals("{\"a\":\"1\"}", asString(store.read("s1")));
+        assertEquals(3, store.lamport("s1"));
+        assertNull(store.read("missing"));
+        assertEquals(-1, store.lamport("missing"));
+    }
+
+    @Test
+    void testUpdateMovesToAnotherSlot() throws IOException {
+        store.write("s1", 1, 1000, "{\"a\":\"long first value\"}".getBytes(StandardCharsets.UTF_8));
+        store.write("s1", 2, 2000, "{\"a\":\"2\"}".getBytes(StandardCharsets.UTF_8));
+        store.write("s1", 3, 3000, "{\"a\":\"3\"}".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals("{\"a\":\"3\"}", asString(store.read("s1")));
+        assertEquals(3, store.lamport("s1"));
+        // the two slots take turns, the freed one is reused
+        assertEquals(1, tempDir.listFiles().length);
+        store.force();
+        assertEquals(Map.of("s1", 3), new SegmentStore(tempDir).load());
+    }
+
+    @Test
+    void testCrashDuringUpdateKeepsPreviousVersion() throws IOException {
+        File segment = new File(tempDir, "segment-0000.dat");
+        store.write("s1", 1, 1000, "{\"a\":\"1\"}".getBytes(StandardCharsets.UTF_8));
+        store.force();
+        byte[] firstSlot = new byte[SegmentStore.SLOT_SIZE];
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "r")) {
+            raf.readFully(firstSlot);
+        }
+        store.write("s1", 2, 2000, "{\"a\":\"2\"}".getBytes(StandardCharsets.UTF_8));
+        store.force();
+
+        // as if the server died after the head stamp of the new slot, before the old slot was freed
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.write(firstSlot);
+            raf.seek(2L * SegmentStore.SLOT_SIZE - 4);
+            raf.writeInt(99);
+        }
+
+        SegmentStore reopened = new SegmentStore(tempDir);
+        assertEquals(Map.of("s1", 1), reopened.load());
+        assertEquals("{\"a\":\"1\"}", asString(reopened.read("s1")));
+    }
+
+    @Test
+    void testNewestCopyWinsAfterCrashBeforeOldSlotFreed() throws IOException {
+        File segment = new File(tempDir, "segment-0000.dat");
+        store.write("s1", 1, 1000, "{\"a\":\"1\"}".getBytes(StandardCharsets.UTF_8));
+        store.force();
+        byte[] firstSlot = new byte[SegmentStore.SLOT_SIZE];
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "r")) {
+            raf.readFully(firstSlot);
+        }
+        store.write("s1", 2, 2000, "{\"a\":\"2\"}".getBytes(StandardCharsets.UTF_8));
+        store.force();
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.write(firstSlot);
+        }
+
+        SegmentStore reopened = new SegmentStore(tempDir);
+        assertEquals(Map.of("s1", 2), reopened.load());
+        assertEquals("{\"a\":\"2\"}", asString(reopened.read("s1")));
+
+        // the older copy was freed, so it doesn't come back on the next load either
+        reopened.force();
+        assertEquals(Map.of("s1", 2), new SegmentStore(tempDir).load());
+    }
+
+    @Test
+    void testRecordsSurviveReopen() throws IOException {
+        store.write("s1", 5, 1000, "{\"a\":\"1\"}".getBytes(StandardCharsets.UTF_8));
+        store.write("s2", 7, 1000, "{\"b\":\"2\"}".getBytes(StandardCharsets.UTF_8));
+        store.force();
+
+        SegmentStore reopened = new SegmentStore(tempDir);
+        Map<String, Integer> lamports = reopened.load();
+
+        assertEquals(Map.of("s1", 5, "s2", 7), lamports);
+        assertEquals("{\"b\":\"2\"}", asString(reopened.read("s2")));
+    }
+
+    @Test
+    void testTornRecordIsDiscardedOnLoad() throws IOException {
+        store.write("s1", 1, 1000, "{\"a\":\"1\"}".getBytes(StandardCharsets.UTF_8));
+        store.write("torn", 1, 1000, "{\"b\":\"2\"}".getBytes(StandardCharsets.UTF_8));
+        store.force();
+
+        // simulate a crash between the head and tail stamp of the second slot
+        try (RandomAccessFile raf = new RandomAccessFile(new File(tempDir, "segment-0000.dat"), "rw")) {
+            raf.seek(2L * SegmentStore.SLOT_SIZE - 4);
+            raf.writeInt(99);
+        }
+
+        SegmentStore reopened = new SegmentStore(tempDir);
+        Map<String, Integer> lamports = reopened.load();
+
+        assertEquals(Map.of("s1", 1), lamports);
+        assertNull(reopened.read("torn"));
+    }
+
+    @Test
+    void testRemovedSlotIsReused() throws IOException {
+        store.write("s1", 1, 1000, "{}".getBytes(StandardCharsets.UTF_8));
+        store.remove("s1");
+        assertNull(store.read("s1"));
+
+        store.write("s2", 1, 1000, "{\"b\":\"2\"}".getBytes(StandardCharsets.UTF_8));
+        SegmentStore reopened = new SegmentStore(tempDir);
+        assertEquals(Map.of("s2", 1), reopened.load());
+    }
+
+    @Test
+    void testOversizedRecordRejected() {
+        byte[] payload = new byte[SegmentStore.MAX_PAYLOAD_BYTES + 1];
+        assertThrows(RecordTooLargeException.class, () -> store.write("big", 1, 1000, payload));
+    }
+}
@@ -0,0 +1,89 @@
+package com.distributedsystems.aggregationserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SingleFlightTest {
+
+    @Test
+    void testConcurrentCallersShareOneComputation() throws Exception {
+        SingleFlight<String, String> flights = new SingleFlight<>();
+        AtomicInteger computations = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService pool = Executors.newFixedThreadPool(5);
+        Future<String> leader = pool.submit(() -> flights.run("all", 0, () -> {
+            computations.incrementAndGet();
+            started.countDown();
+            awaitQuietly(release);
+            return "result";
+        }));
+        started.await();
+
+        List<Future<String>> followers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            followers.add(pool.submit(() -> flights.run("all", 0, () -> {
+                computations.incrementAndGet();
+                return "other";
+            })));
+        }
+        // give the followers time to join the leader's flight
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (flights.sharedCount() < 4 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        release.countDown();
+
+        assertEquals("result", leader.get());
+        for (Future<String> f : followers) {
+            assertEquals("result", f.get());
+        }
+        assertEquals(1, computations.get());
+        assertEquals(4, flights.sharedCount());
+        pool.shutdown();
+    }
+
+    @Test
+    void testNewerVersionDoesNotJoinOlderComputation() throws Exception {
+        SingleFlight<String, String> flights = new SingleFlight<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        Future<String> old = pool.submit(() -> flights.run("all", 1, () -> {
+            started.countDown();
+            awaitQuietly(release);
+            return "old";
+        }));
+        started.await();
+
+        assertEquals("new", flights.run("all", 2, () -> "new"));
+        release.countDown();
+        assertEquals("old", old.get());
+        assertEquals(0, flights.sharedCount());
+        pool.shutdown();
+    }
+
+    @Test
+    void testDifferentKeysDoNotShare() {
+        SingleFlight<String, String> flights = new SingleFlight<>();
+        assertEquals("a", flights.run("station:a", 0, () -> "a"));
+        assertEquals("b", flights.run("station:b", 0, () -> "b"));
+        assertEquals(0, flights.sharedCount());
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.distributedsystems.aggregationserver;
+
+import com.distributedsystems.shared.SimpleJsonUtil;
+import java.util.Random;
+
+/**
+ * Benchmark for StationSpatialIndex: latency of nearest station and bounding box queries over stations spread across
+ * Australia, plus the cost of the updates that keep the index current.
+ *
+ * Run from the AggregationServer directory after mvn test-compile with:
+ *      java -cp target/classes:target/test-classes:../Shared/target/classes
+ *          com.distributedsystems.aggregationserver.SpatialIndexBenchmark [stations] [queries]
+ */
+public class SpatialIndexBenchmark {
+
+    public static void main(String[] args) {
+        int stations = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+        Random random = new Random(1);
+        StationSpatialIndex index = new StationSpatialIndex();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < stations; i++) {
+            double lat = -44 + random.nextDouble() * 34;
+            double lon = 113 + random.nextDouble() * 41;
+            index.stationUpdated("IDS" + i, 1, 0, SimpleJsonUtil.parse("{\"lat\":\"" + lat + "\",\"lon\":\"" + lon + "\"}"));
+        }
+        double updateUs = (System.nanoTime() - start) / 1e3 / stations;
+
+        // first pass warms up the jit, second is timed
+        long found = 0;
+        double nearestUs = 0;
+        double boxUs = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            start = System.nanoTime();
+            for (int i = 0; i < queries; i++) {
+                found += index.nearest(-44 + random.nextDouble() * 34, 113 + random.nextDouble() * 41, 10).size();
+            }
+            nearestUs = (System.nanoTime() - start) / 1e3 / queries;
+
+            start = System.nanoTime();
+            for (int i = 0; i < queries; i++) {
+                double lat = -44 + random.nextDouble() * 33;
+                double lon = 113 + random.nextDouble() * 40;
+                found += index.inBox(lat, lon, lat + 1, lon + 1).size();
+            }
+            boxUs = (System.nanoTime() - start) / 1e3 / queries;
+        }
+
+        System.out.printf("%d stations: update %.2f us, nearest (k=10) %.2f us, 1x1 degree bbox %.2f us (%d results)%n",
+                stations, updateUs, nearestUs, boxUs, found);
+    }
+}
@@ -0,0 +1,84 @@
+package com.distributedsystems.aggregationserver;
+
+import com.distributedsystems.shared.SimpleJsonUtil;
+import org.junit.jupiter.api.*;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StationAggregatesTest {
+
+    StationAggregates aggregates;
+
+    @BeforeEach
+    void setup() {
+        aggregates = new StationAggregates(List.of("air_temp", "press"));
+    }
+
+    private void update(String stationId, String state, String airTemp) {
+        aggregates.stationUpdated(stationId, 1, 0, SimpleJsonUtil.parse("{\"state\":\"" + state + "\",\"air_temp\":\"" + airTemp + "\"}"));
+    }
+
+    private Double value(StationAggregates.Function function, String state) {
+        return aggregates.query("air_temp", function, state).value;
+    }
+
+    @Test
+    void testNationwideAndPerState() {
+        update("a", "SA", "10");
+        update("b", "SA", "20");
+        update("c", " vic", "30");
+
+        assertEquals(10, value(StationAggregates.Function.MIN, null));
+        assertEquals(30, value(StationAggregates.Function.MAX, null));
+        assertEquals(20, value(StationAggregates.Function.AVG, null), 1e-9);
+        assertEquals(3, value(StationAggregates.Function.COUNT, null));
+
+        assertEquals(20, value(StationAggregates.Function.MAX, "SA"));
+        assertEquals(15, value(StationAggregates.Function.AVG, "sa"), 1e-9);
+        assertEquals(30, value(StationAggregates.Function.MIN, "VIC"));
+    }
+
+    @Test
+    void testUpdateReplacesContribution() {
+        update("a", "SA", "10");
+        update("b", "SA", "20");
+        update("a", "SA", "25");
+
+        assertEquals(20, value(StationAggregates.Function.MIN, "SA"));
+        assertEquals(25, value(StationAggregates.Function.MAX, "SA"));
+        assertEquals(2, aggregates.query("air_temp", StationAggregates.Function.COUNT, "SA").count);
+
+        // moving to another state takes the value out of the old one
+        update("a", "NSW", "25");
+        assertEquals(20, value(StationAggregates.Function.MAX, "SA"));
+        assertEquals(25, value(StationAggregates.Function.MAX, "NSW"));
+    }
+
+    @Test
+    void testExpiryAndDuplicateValues() {
+        update("a", "SA", "10");
+        update("b", "SA", "10");
+        update("c", "SA", "5");
+
+        aggregates.stationExpired("c");
+        assertEquals(10, value(StationAggregates.Function.MIN, "SA"));
+        aggregates.stationExpired("a");
+        assertEquals(10, value(StationAggregates.Function.MIN, "SA"));
+        aggregates.stationExpired("b");
+
+        StationAggregates.Result empty = aggregates.query("air_temp", StationAggregates.Function.MAX, "SA");
+        assertEquals(0, empty.count);
+        assertNull(empty.value);
+        assertEquals(0, value(StationAggregates.Function.COUNT, null));
+    }
+
+    @Test
+    void testMissingAndUnknownFields() {
+        update("a", "SA", "-");
+        assertEquals(0, aggregates.query("air_temp", StationAggregates.Function.COUNT, null).count);
+        assertThrows(IllegalArgumentException.class,
+                () -> aggregates.query("cloud", StationAggregates.Function.MAX, null));
+    }
+}
@@ -0,0 +1,98 @@
+package com.distributedsystems.aggregationserver;
+
+import com.distributedsystems.shared.SimpleJsonUtil;
+import org.junit.jupiter.api.*;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StationColumnsTest {
+
+    StationColumns columns;
+
+    @BeforeEach
+    void setup() {
+        columns = new StationColumns(List.of("rel_hum", "wind_spd_kmh"));
+    }
+
+    private void update(String stationId, String relHum, String windSpeed) {
+        StringBuilder data = new StringBuilder("{\"name\":\"x\"");
+        if (relHum != null) data.append(",\"rel_hum\":\"").append(relHum).append("\"");
+        if (windSpeed != null) data.append(",\"wind_spd_kmh\":\"").append(windSpeed).append("\"");
+        columns.stationUpdated(stationId, 1, 0, SimpleJsonUtil.parse(data.append("}").toString()));
+    }
+
+    private Set<String> scan(String where) {
+        return new HashSet<>(columns.scan(StationColumns.Predicate.parseAll(where)));
+    }
+
+    @Test
+    void testPredicates() {
+        update("a", "90", "50");
+        update("b", "85", "10");
+        update("c", "40", "60");
+
+        assertEquals(Set.of("a"), scan("rel_hum:gt:80,wind_spd_kmh:gt:40"));
+        assertEquals(Set.of("a", "b"), scan("rel_hum:ge:85"));
+        assertEquals(Set.of("c"), scan("rel_hum:lt:85"));
+        assertEquals(Set.of("b", "c"), scan("rel_hum:le:85,wind_spd_kmh:ne:50"));
+        assertEquals(Set.of("b"), scan("wind_spd_kmh:EQ:10"));
+    }
+
+    @Test
+    void testMissingOrNonNumericValueNeverMatches() {
+        update("a", null, "50");
+        update("b", "-", "50");
+        assertTrue(scan("rel_hum:ne:0").isEmpty());
+        assertEquals(Set.of("a", "b"), scan("wind_spd_kmh:eq:50"));
+    }
+
+    @Test
+    void testUpdateInPlaceAndExpiryReusesRow() {
+        update("a", "90", "50");
+        update("a", "10", "50");
+        assertTrue(scan("rel_hum:gt:80").isEmpty());
+
+        columns.stationExpired("a");
+        assertTrue(scan("wind_spd_kmh:eq:50").isEmpty());
+
+        // b takes a's row, nothing of a's must be left in it
+        columns.stationUpdated("b", 1, 0, SimpleJsonUtil.parse("{\"rel_hum\":\"95\"}"));
+        assertEquals(Set.of("b"), scan("rel_hum:gt:80"));
+        assertTrue(scan("wind_spd_kmh:eq:50").isEmpty());
+    }
+
+    @Test
+    void testScanMatchesMapScanAcrossGrowth() {
+        Random random = new Random(7);
+        Map<String, Double> humidity = new HashMap<>();
+        for (int i = 0; i < 5_000; i++) {
+            double value = random.nextInt(100);
+            humidity.put("s" + i, value);
+            update("s" + i, String.valueOf(value), "1");
+        }
+        for (int i = 0; i < 5_000; i += 3) {
+            columns.stationExpired("s" + i);
+            humidity.remove("s" + i);
+        }
+
+        Set<String> expected = new HashSet<>();
+        humidity.forEach((id, value) -> { if (value > 80) expected.add(id); });
+        assertEquals(expected, scan("rel_hum:gt:80"));
+        assertEquals(humidity.keySet(), new HashSet<>(columns.scan(List.of())));
+    }
+
+    @Test
+    void testBadPredicates() {
+        assertThrows(IllegalArgumentException.class, () -> StationColumns.Predicate.parseAll("rel_hum>80"));
+        assertThrows(IllegalArgumentException.class, () -> StationColumns.Predicate.parseAll("rel_hum:above:80"));
+        assertThrows(IllegalArgumentException.class, () -> StationColumns.Predicate.parseAll("rel_hum:gt:high"));
+        assertThrows(IllegalArgumentException.class, () -> scan("press:gt:1000"));
+    }
+
+    @Test
+    void testJson() {
+        assertEquals("{\"count\":\"2\",\"stations\":[\"a\",\"b\"]}", StationColumns.toJson(List.of("a", "b")));
+    }
+}
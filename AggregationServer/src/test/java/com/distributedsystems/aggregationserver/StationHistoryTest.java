@@ -0,0 +1,106 @@
+package com.distributedsystems.aggregationserver;
+
+import com.distributedsystems.shared.SimpleJsonUtil;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StationHistoryTest {
+
+    @TempDir
+    File tempDir;
+
+    private static List<Long> lamports(List<StationHistory.Observation> observations) {
+        return observations.stream().map(o -> o.lamport).toList();
+    }
+
+    @Test
+    void testRingKeepsLastObservations() throws IOException {
+        StationHistory history = new StationHistory(3, null);
+        for (int lamport = 1; lamport <= 5; lamport++) {
+            history.stationUpdated("s1", lamport, 1000L * lamport, SimpleJsonUtil.parse("{\"t\":\"" + lamport + "\"}"));
+        }
+        history.stationUpdated("s2", 9, 9000, Map.of());
+
+        assertEquals(List.of(3L, 4L, 5L), lamports(history.query("s1", 0, Long.MAX_VALUE, 0, Long.MAX_VALUE)));
+        assertEquals("{\"t\":\"5\"}", history.query("s1", 5, 5, 0, Long.MAX_VALUE).get(0).data);
+        assertTrue(history.query("missing", 0, Long.MAX_VALUE, 0, Long.MAX_VALUE).isEmpty());
+    }
+
+    @Test
+    void testLamportAndTimeRanges() throws IOException {
+        StationHistory history = new StationHistory(10, null);
+        for (int lamport = 1; lamport <= 6; lamport++) {
+            history.stationUpdated("s1", lamport, 1000L * lamport, Map.of());
+        }
+
+        assertEquals(List.of(2L, 3L, 4L), lamports(history.query("s1", 2, 4, 0, Long.MAX_VALUE)));
+        assertEquals(List.of(5L, 6L), lamports(history.query("s1", 0, Long.MAX_VALUE, 5000, Long.MAX_VALUE)));
+        assertEquals(List.of(3L), lamports(history.query("s1", 3, 6, 0, 3000)));
+    }
+
+    @Test
+    void testSpillKeepsEvictedAndExpiredObservations() throws IOException {
+        StationHistory history = new StationHistory(2, tempDir);
+        for (int lamport = 1; lamport <= 5; lamport++) {
+            history.stationUpdated("s1", lamport, 1000L * lamport, SimpleJsonUtil.parse("{\"t\":\"" + lamport + "\"}"));
+        }
+
+        assertEquals(List.of(1L, 2L, 3L, 4L, 5L), lamports(history.query("s1", 0, Long.MAX_VALUE, 0, Long.MAX_VALUE)));
+        assertEquals(List.of(2L, 3L), lamports(history.query("s1", 2, 3, 0, Long.MAX_VALUE)));
+        assertEquals("{\"t\":\"1\"}", history.query("s1", 1, 1, 0, Long.MAX_VALUE).get(0).data);
+
+        history.stationExpired("s1");
+        assertEquals(List.of(1L, 2L, 3L, 4L, 5L), lamports(history.query("s1", 0, Long.MAX_VALUE, 0, Long.MAX_VALUE)));
+    }
+
+    @Test
+    void testFlushAppendsQueuedObservations() throws IOException {
+        StationHistory history = new StationHistory(2, tempDir);
+        for (int lamport = 1; lamport <= 5; lamport++) {
+            history.stationUpdated("s1", lamport, 1000L * lamport, SimpleJsonUtil.parse("{\"t\":\"" + lamport + "\"}"));
+        }
+        history.close();
+
+        // a new history only has the spill file
+        StationHistory restarted = new StationHistory(2, tempDir);
+        assertEquals(List.of(1L, 2L, 3L), lamports(restarted.query("s1", 0, Long.MAX_VALUE, 0, Long.MAX_VALUE)));
+        assertEquals("{\"t\":\"2\"}", restarted.query("s1", 2, 2, 0, Long.MAX_VALUE).get(0).data);
+        restarted.close();
+    }
+
+    @Test
+    void testNotifyingStoreFeedsHistory() throws IOException {
+        NotifyingStationStore store = new NotifyingStationStore(new MemoryStationStore());
+        StationHistory history = new StationHistory(5, null);
+        store.addListener(history);
+
+        Map<String, String> data = new HashMap<>();
+        data.put("air_temp", "10");
+        store.updateStation("s1", 1, data);
+        store.updateStation("s1", 1, data);
+        store.updateStation("s1", 2, data);
+
+        List<StationHistory.Observation> observations = history.query("s1", 0, Long.MAX_VALUE, 0, Long.MAX_VALUE);
+        assertEquals(List.of(1L, 2L), lamports(observations));
+        assertEquals("{\"air_temp\":\"10\"}", observations.get(1).data);
+
+        assertEquals(List.of("s1"), store.expireStations(System.currentTimeMillis() + 1));
+        assertTrue(history.query("s1", 0, Long.MAX_VALUE, 0, Long.MAX_VALUE).isEmpty());
+    }
+
+    @Test
+    void testToJson() {
+        StationHistory history = new StationHistory(2, null);
+        history.stationUpdated("s1", 4, 1234, SimpleJsonUtil.parse("{\"t\":\"1\"}"));
+        assertEquals("{\"stationId\":\"s1\",\"observations\":[{\"lamport\":4,\"time\":1234,\"data\":{\"t\":\"1\"}}]}",
+                StationHistory.toJson("s1", assertDoesNotThrow(() -> history.query("s1", 0, 10, 0, Long.MAX_VALUE))));
+    }
+}
@@ -0,0 +1,98 @@
+package com.distributedsystems.aggregationserver;
+
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StationIdIndexTest {
+
+    StationIdIndex ids;
+
+    @BeforeEach
+    void setup() {
+        ids = new StationIdIndex();
+        for (String id : List.of("d", "a", "c", "b", "e")) {
+            ids.stationUpdated(id, 1, 0, Map.of());
+        }
+    }
+
+    @Test
+    void testPagesInIdOrder() {
+        assertEquals(List.of("a", "b"), ids.page(null, 2));
+        assertEquals(List.of("c", "d"), ids.page("b", 2));
+        assertEquals(List.of("e"), ids.page("d", 2));
+        assertTrue(ids.page("e", 2).isEmpty());
+    }
+
+    @Test
+    void testPagesStableAcrossChanges() {
+        List<String> first = ids.page(null, 2);
+        String cursor = StationIdIndex.encodeCursor(first.get(first.size() - 1));
+
+        // updating a returned station, expiring the cursor's own station and adding one before it change nothing after
+        ids.stationUpdated("a", 2, 0, Map.of());
+        ids.stationExpired("b");
+        ids.stationUpdated("aa", 1, 0, Map.of());
+
+        assertEquals(List.of("c", "d"), ids.page(StationIdIndex.decodeCursor(cursor), 2));
+    }
+
+    @Test
+    void testEveryStationSeenOnceWhilePaging() {
+        Set<String> seen = new HashSet<>();
+        String after = null;
+        List<String> page;
+        while (!(page = ids.page(after, 2)).isEmpty()) {
+            for (String id : page) assertTrue(seen.add(id));
+            after = StationIdIndex.decodeCursor(StationIdIndex.encodeCursor(page.get(page.size() - 1)));
+        }
+        assertEquals(Set.of("a", "b", "c", "d", "e"), seen);
+    }
+
+    @Test
+    void testPageOfSubset() {
+        assertEquals(List.of("c"), StationIdIndex.page(new TreeSet<>(List.of("a", "c")), "a", 10));
+    }
+
+    @Test
+    void testCursorRoundTripAndRejects() {
+        assertEquals("IDS60901", StationIdIndex.decodeCursor(StationIdIndex.encodeCursor("IDS60901")));
+        assertThrows(IllegalArgumentException.class, () -> StationIdIndex.decodeCursor("not base64!"));
+        assertThrows(IllegalArgumentException.class, () -> StationIdIndex.decodeCursor(
+                Base64.getUrlEncoder().encodeToString("IDS60901".getBytes())));
+    }
+
+    @Test
+    void testReloadAndExpiry() {
+        ids.stationReloaded("z", Map.of());
+        ids.stationExpired("a");
+        assertEquals(5, ids.size());
+        assertEquals(List.of("b"), ids.page(null, 1));
+    }
+
+    @Test
+    void testViewsCanBeTurnedOff() throws IOException {
+        ServerConfig config = new ServerConfig(0);
+        config.idIndex = false;
+        config.spatialIndex = false;
+        config.merkleTree = false;
+        StationViews views = new StationViews(config);
+        NotifyingStationStore store = new NotifyingStationStore(new MemoryStationStore());
+        views.register(store);
+
+        Map<String, String> data = new HashMap<>();
+        data.put("lat", "-35");
+        data.put("lon", "138");
+        store.updateStation("b", 1, data);
+        store.updateStation("a", 1, data);
+
+        assertEquals(0, views.ids.size());
+        assertEquals(0, views.spatial.size());
+        assertNull(views.merkle.lamport("a"));
+        // without the index the ids come from the store
+        assertEquals(List.of("a", "b"), StationIdIndex.of(store).page(null, 10));
+    }
+}
@@ -0,0 +1,87 @@
+package com.distributedsystems.aggregationserver;
+
+import com.distributedsystems.shared.SimpleJsonUtil;
+import org.junit.jupiter.api.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StationIndexesTest {
+
+    StationIndexes indexes;
+
+    @BeforeEach
+    void setup() {
+        indexes = new StationIndexes(List.of("state", "time_zone"));
+    }
+
+    private void update(String stationId, String state, String timeZone) {
+        indexes.stationUpdated(stationId, 1, 0,
+                SimpleJsonUtil.parse("{\"state\":\"" + state + "\",\"time_zone\":\"" + timeZone + "\",\"air_temp\":\"13.3\"}"));
+    }
+
+    @Test
+    void testFindByOneField() {
+        update("a", "SA", "CST");
+        update("b", "SA", "CST");
+        update("c", "VIC", "EST");
+
+        assertEquals(Set.of("a", "b"), indexes.find(Map.of("state", "SA")));
+        assertEquals(Set.of("c"), indexes.find(Map.of("time_zone", "est")));
+        assertTrue(indexes.find(Map.of("state", "WA")).isEmpty());
+    }
+
+    @Test
+    void testFindIntersectsFilters() {
+        update("a", "SA", "CST");
+        update("b", "NT", "CST");
+        update("c", "SA", "EST");
+
+        assertEquals(Set.of("a"), indexes.find(Map.of("state", " sa", "time_zone", "CST")));
+        assertEquals(Set.of("a", "b", "c"), indexes.find(Map.of()));
+    }
+
+    @Test
+    void testUpdateMovesStationBetweenValues() {
+        update("a", "SA", "CST");
+        update("a", "VIC", "CST");
+
+        assertTrue(indexes.find(Map.of("state", "SA")).isEmpty());
+        assertEquals(Set.of("a"), indexes.find(Map.of("state", "VIC")));
+        assertEquals(Set.of("a"), indexes.find(Map.of("time_zone", "CST")));
+    }
+
+    @Test
+    void testExpiryAndMissingField() {
+        update("a", "SA", "CST");
+        indexes.stationUpdated("b", 1, 0, SimpleJsonUtil.parse("{\"time_zone\":\"CST\"}"));
+        assertEquals(Set.of("a"), indexes.find(Map.of("state", "SA")));
+        assertEquals(Set.of("a", "b"), indexes.find(Map.of("time_zone", "CST")));
+
+        indexes.stationExpired("a");
+        assertTrue(indexes.find(Map.of("state", "SA")).isEmpty());
+        assertEquals(Set.of("b"), indexes.find(Map.of("time_zone", "CST")));
+    }
+
+    @Test
+    void testReloadedStationsIndexed() {
+        indexes.stationReloaded("a", SimpleJsonUtil.parse("{\"state\":\"SA\"}"));
+        assertEquals(Set.of("a"), indexes.find(Map.of("state", "SA")));
+    }
+
+    @Test
+    void testUnindexedFieldRejected() {
+        assertThrows(IllegalArgumentException.class, () -> indexes.find(Map.of("cloud", "Sunny")));
+    }
+
+    @Test
+    void testMatches() {
+        Map<String, String> data = Map.of("state", "SA", "time_zone", "CST");
+        assertTrue(StationIndexes.matches(data, Map.of("state", "sa")));
+        assertFalse(StationIndexes.matches(data, Map.of("state", "SA", "time_zone", "EST")));
+        assertFalse(StationIndexes.matches(data, Map.of("cloud", "Sunny")));
+    }
+}
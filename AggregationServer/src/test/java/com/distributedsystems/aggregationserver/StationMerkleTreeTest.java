@@ -0,0 +1,66 @@
+package com.distributedsystems.aggregationserver;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StationMerkleTreeTest {
+
+    @Test
+    void testSameStationsSameRootWhateverTheOrder() {
+        StationMerkleTree first = new StationMerkleTree();
+        StationMerkleTree second = new StationMerkleTree();
+        for (int i = 0; i < 500; i++) {
+            first.put("IDS" + i, i);
+        }
+        for (int i = 499; i >= 0; i--) {
+            second.put("IDS" + i, 0);
+            second.put("IDS" + i, i);
+        }
+        assertEquals(first.hash(1), second.hash(1));
+        assertNotEquals(0, first.hash(1));
+    }
+
+    @Test
+    void testOneChangeOnlyChangesItsPath() {
+        StationMerkleTree first = new StationMerkleTree();
+        StationMerkleTree second = new StationMerkleTree();
+        for (int i = 0; i < 500; i++) {
+            first.put("IDS" + i, 1);
+            second.put("IDS" + i, 1);
+        }
+        second.put("IDS42", 2);
+        assertNotEquals(first.hash(1), second.hash(1));
+
+        int leaf = StationMerkleTree.bucketOf("IDS42");
+        int differing = 0;
+        for (int node = 1; node < 2 * StationMerkleTree.LEAVES; node++) {
+            if (first.hash(node) != second.hash(node)) differing++;
+        }
+        // the leaf and every node above it
+        assertEquals(StationMerkleTree.DEPTH + 1, differing);
+        assertNotEquals(first.hash(StationMerkleTree.LEAVES + leaf), second.hash(StationMerkleTree.LEAVES + leaf));
+        assertEquals(2, second.bucket(leaf).get("IDS42"));
+    }
+
+    @Test
+    void testRemovingEveryStationEmptiesTheTree() {
+        StationMerkleTree tree = new StationMerkleTree();
+        tree.put("IDS1", 3);
+        tree.put("IDS2", 4);
+        tree.stationExpired("IDS1");
+        tree.remove("IDS2");
+        tree.remove("IDS3");
+        assertEquals(0, tree.hash(1));
+        assertNull(tree.lamport("IDS1"));
+    }
+
+    @Test
+    void testLoadFromStore() throws Exception {
+        MemoryStationStore store = new MemoryStationStore();
+        store.updateStation("IDS1", 7, java.util.Map.of("id", "IDS1"));
+        StationMerkleTree tree = new StationMerkleTree();
+        tree.load(store);
+        assertEquals(7, tree.lamport("IDS1"));
+    }
+}
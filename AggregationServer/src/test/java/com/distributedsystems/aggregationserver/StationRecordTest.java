@@ -0,0 +1,65 @@
+package com.distributedsystems.aggregationserver;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StationRecordTest {
+
+    @TempDir
+    File tempDir;
+
+    private File write(StationRecord record) throws IOException {
+        File file = new File(tempDir, "station.rec");
+        Files.write(file.toPath(), record.encode());
+        return file;
+    }
+
+    @Test
+    void testRoundTrip() throws IOException {
+        long lamport = 5_000_000_000L;
+        File file = write(new StationRecord(lamport, 1234, "{\"temp\":\"20\"}".getBytes(StandardCharsets.UTF_8)));
+
+        assertEquals(StationRecord.HEADER_SIZE + 13, file.length());
+        assertEquals(lamport, StationRecord.readLamport(file));
+
+        StationRecord read = StationRecord.read(file);
+        assertEquals(lamport, read.lamport);
+        assertEquals(1234, read.writeMillis);
+        assertEquals("{\"temp\":\"20\"}", read.data());
+    }
+
+    @Test
+    void testCorruptRecordRejected() throws IOException {
+        File file = write(new StationRecord(3, 1234, "{\"temp\":\"20\"}".getBytes(StandardCharsets.UTF_8)));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(StationRecord.HEADER_SIZE + 3);
+            raf.write('X');
+        }
+        assertThrows(IOException.class, () -> StationRecord.read(file));
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+        assertThrows(IOException.class, () -> StationRecord.read(file));
+    }
+
+    @Test
+    void testJsonFileIsNotARecord() throws IOException {
+        File file = new File(tempDir, "station.json");
+        Files.writeString(file.toPath(), "{\"lamport\":\"7\",\"data\":{\"temp\":\"15\"}}");
+        assertThrows(IOException.class, () -> StationRecord.readLamport(file));
+
+        StationRecord converted = StationRecord.fromLegacyJson(Files.readString(file.toPath()), 99);
+        assertEquals(7, converted.lamport);
+        assertEquals(99, converted.writeMillis);
+        assertEquals("{\"temp\":\"15\"}", converted.data());
+    }
+}
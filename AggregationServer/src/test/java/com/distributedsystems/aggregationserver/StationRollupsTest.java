@@ -0,0 +1,93 @@
+package com.distributedsystems.aggregationserver;
+
+import com.distributedsystems.shared.SimpleJsonUtil;
+import org.junit.jupiter.api.*;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StationRollupsTest {
+
+    private static final long HOUR = 3_600_000L;
+
+    StationRollups rollups;
+
+    @BeforeEach
+    void setup() {
+        rollups = new StationRollups(List.of("air_temp", "press"));
+    }
+
+    private void update(String stationId, long writeMillis, String airTemp, String press) {
+        rollups.stationUpdated(stationId, 1, writeMillis,
+                SimpleJsonUtil.parse("{\"air_temp\":\"" + airTemp + "\",\"press\":\"" + press + "\",\"name\":\"Adelaide\"}"));
+    }
+
+    @Test
+    void testAggregatesWithinBucket() {
+        long base = 100 * HOUR;
+        update("s1", base + 1_000, "10", "1000");
+        update("s1", base + 2_000, "14", "1010");
+        update("s1", base + 3_000, "12", "-");
+
+        List<StationRollups.Bucket> buckets = rollups.query("s1", StationRollups.Resolution.HOUR, null, 0, Long.MAX_VALUE);
+        assertEquals(1, buckets.size());
+        assertEquals(base, buckets.get(0).start);
+
+        StationRollups.Aggregate airTemp = buckets.get(0).aggregates.get(0);
+        assertEquals("air_temp", airTemp.field);
+        assertEquals(3, airTemp.count);
+        assertEquals(10, airTemp.min);
+        assertEquals(14, airTemp.max);
+        assertEquals(12, airTemp.avg, 1e-9);
+
+        // "-" is not a number so only two pressures were aggregated
+        assertEquals(2, buckets.get(0).aggregates.get(1).count);
+    }
+
+    @Test
+    void testBucketsPerResolutionAndRange() {
+        long base = 100 * HOUR;
+        update("s1", base, "10", "1000");
+        update("s1", base + 61_000, "20", "1000");
+        update("s1", base + HOUR, "30", "1000");
+
+        assertEquals(3, rollups.query("s1", StationRollups.Resolution.MINUTE, "air_temp", 0, Long.MAX_VALUE).size());
+        assertEquals(2, rollups.query("s1", StationRollups.Resolution.HOUR, "air_temp", 0, Long.MAX_VALUE).size());
+        List<StationRollups.Bucket> days = rollups.query("s1", StationRollups.Resolution.DAY, "air_temp", 0, Long.MAX_VALUE);
+        assertEquals(1, days.size());
+        assertEquals(20, days.get(0).aggregates.get(0).avg, 1e-9);
+        assertEquals(1, days.get(0).aggregates.size());
+
+        assertEquals(1, rollups.query("s1", StationRollups.Resolution.HOUR, null, base + 1, Long.MAX_VALUE).size());
+    }
+
+    @Test
+    void testOldBucketsAreReplaced() {
+        // 48 hour buckets are kept - hour 0 and hour 48 share a slot
+        update("s1", 0, "10", "1000");
+        update("s1", 48 * HOUR, "30", "1000");
+        update("s1", 0, "50", "1000"); // late update for a bucket that has been dropped
+
+        List<StationRollups.Bucket> hours = rollups.query("s1", StationRollups.Resolution.HOUR, "air_temp", 0, Long.MAX_VALUE);
+        assertEquals(1, hours.size());
+        assertEquals(48 * HOUR, hours.get(0).start);
+        assertEquals(30, hours.get(0).aggregates.get(0).max);
+    }
+
+    @Test
+    void testExpiredStationDropped() {
+        update("s1", HOUR, "10", "1000");
+        rollups.stationExpired("s1");
+        assertTrue(rollups.query("s1", StationRollups.Resolution.HOUR, null, 0, Long.MAX_VALUE).isEmpty());
+    }
+
+    @Test
+    void testToJson() {
+        update("s1", HOUR, "10", "1000");
+        String json = StationRollups.toJson("s1", StationRollups.Resolution.HOUR,
+                rollups.query("s1", StationRollups.Resolution.HOUR, "air_temp", 0, Long.MAX_VALUE));
+        assertEquals("{\"stationId\":\"s1\",\"resolution\":\"hour\",\"buckets\":[{\"start\":3600000,"
+                + "\"air_temp\":{\"count\":1,\"min\":10.0,\"max\":10.0,\"avg\":10.0}}]}", json);
+    }
+}
@@ -0,0 +1,129 @@
+package com.distributedsystems.aggregationserver;
+
+import com.distributedsystems.shared.SimpleJsonUtil;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StationSnapshotTest {
+
+    @TempDir
+    File tempDir;
+
+    private static Map<String, String> data(String temp) {
+        Map<String, String> data = new HashMap<>();
+        data.put("air_temp", temp);
+        return data;
+    }
+
+    private File export(StationStore store) throws IOException {
+        File file = new File(tempDir, "stations.snapshot");
+        StationSnapshot.write(store.snapshot(), file);
+        return file;
+    }
+
+    @Test
+    void testRoundTrip() throws IOException {
+        MemoryStationStore source = new MemoryStationStore();
+        for (int i = 0; i < 500; i++) {
+            source.updateStation("IDS" + i, i + 1, data(String.valueOf(i)));
+        }
+        File file = export(source);
+
+        Map<String, StationSnapshot.Entry> read = new HashMap<>();
+        assertEquals(500, StationSnapshot.read(file, entry -> read.put(entry.stationId, entry)));
+        assertEquals(500, read.size());
+        assertEquals(43, read.get("IDS42").record.lamport);
+
+        MemoryStationStore target = new MemoryStationStore();
+        StationSnapshot.ImportResult result = StationSnapshot.importInto(file, target);
+        assertEquals(500, result.imported);
+        assertEquals(0, result.stale);
+        assertEquals(500, result.maxLamport);
+        assertEquals(source.readAllStations(), target.readAllStations());
+    }
+
+    @Test
+    void testImportRespectsLamport() throws IOException {
+        MemoryStationStore source = new MemoryStationStore();
+        source.updateStation("old", 5, data("snapshot"));
+        source.updateStation("new", 5, data("snapshot"));
+        File file = export(source);
+
+        MemoryStationStore target = new MemoryStationStore();
+        target.updateStation("old", 3, data("target"));
+        target.updateStation("new", 8, data("target"));
+
+        StationSnapshot.ImportResult result = StationSnapshot.importInto(file, target);
+        assertEquals(1, result.imported);
+        assertEquals(1, result.stale);
+        assertEquals("snapshot", SimpleJsonUtil.parse(target.readSingleStation("old").get("old")).get("air_temp"));
+        assertEquals("target", SimpleJsonUtil.parse(target.readSingleStation("new").get("new")).get("air_temp"));
+    }
+
+    @Test
+    void testTruncatedOrDamagedSnapshotRejected() throws IOException {
+        MemoryStationStore source = new MemoryStationStore();
+        source.updateStation("a", 1, data("1"));
+        source.updateStation("b", 2, data("2"));
+        File file = export(source);
+        long length = file.length();
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length - 3);
+        }
+        assertThrows(IOException.class, () -> StationSnapshot.importInto(file, new MemoryStationStore()));
+
+        File notSnapshot = new File(tempDir, "other");
+        Files.writeString(notSnapshot.toPath(), "{\"a\":\"1\"}");
+        assertThrows(IOException.class, () -> StationSnapshot.read(notSnapshot, entry -> {}));
+    }
+
+    @Test
+    void testTransferCopiesWholeFile() throws IOException {
+        MemoryStationStore source = new MemoryStationStore();
+        for (int i = 0; i < 100; i++) {
+            source.updateStation("IDS" + i, 1, data("13.3"));
+        }
+        File file = export(source);
+
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        StationSnapshot.transfer(file, Channels.newChannel(sent));
+        assertArrayEquals(Files.readAllBytes(file.toPath()), sent.toByteArray());
+    }
+
+    @Test
+    void testSnapshotDuringUpdatesHoldsWholeVersions() throws Exception {
+        NotifyingStationStore store = new NotifyingStationStore(new MemoryStationStore());
+        store.addListener((stationId, lamport, writeMillis, json) -> {});
+
+        // every version of a station holds its own lamport, a copied entry must never pair one lamport with another's data
+        Thread writer = new Thread(() -> {
+            try {
+                for (int lamport = 1; lamport <= 20_000; lamport++) {
+                    store.updateStation("a", lamport, data(String.valueOf(lamport)));
+                    store.updateStation("b", lamport, data(String.valueOf(lamport)));
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        writer.start();
+        while (writer.isAlive()) {
+            for (StationSnapshot.Entry entry : store.snapshot()) {
+                assertEquals(String.valueOf(entry.record.lamport),
+                        SimpleJsonUtil.parse(entry.record.data()).get("air_temp"));
+            }
+        }
+        writer.join();
+    }
+}
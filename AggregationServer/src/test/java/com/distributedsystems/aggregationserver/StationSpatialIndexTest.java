@@ -0,0 +1,119 @@
+package com.distributedsystems.aggregationserver;
+
+import com.distributedsystems.shared.SimpleJsonUtil;
+import org.junit.jupiter.api.*;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StationSpatialIndexTest {
+
+    StationSpatialIndex index;
+
+    @BeforeEach
+    void setup() {
+        index = new StationSpatialIndex();
+    }
+
+    private void update(String stationId, double lat, double lon) {
+        index.stationUpdated(stationId, 1, 0, SimpleJsonUtil.parse("{\"lat\":\"" + lat + "\",\"lon\":\"" + lon + "\"}"));
+    }
+
+    private static List<String> ids(List<StationSpatialIndex.Location> locations) {
+        return locations.stream().map(l -> l.stationId).collect(Collectors.toList());
+    }
+
+    @Test
+    void testNearestOrder() {
+        update("adelaide", -34.9, 138.6);
+        update("melbourne", -37.8, 145.0);
+        update("sydney", -33.9, 151.2);
+        update("perth", -31.9, 115.9);
+
+        List<StationSpatialIndex.Location> nearest = index.nearest(-35.0, 138.5, 3);
+        assertEquals(List.of("adelaide", "melbourne", "sydney"), ids(nearest));
+        assertTrue(nearest.get(0).distanceKm < 20);
+        // Adelaide to Melbourne is about 650 km
+        assertEquals(650, nearest.get(1).distanceKm, 30);
+    }
+
+    @Test
+    void testNearestFewerStationsThanK() {
+        update("a", -34.9, 138.6);
+        assertEquals(List.of("a"), ids(index.nearest(10, 10, 5)));
+        assertTrue(new StationSpatialIndex().nearest(0, 0, 5).isEmpty());
+    }
+
+    @Test
+    void testNearestMatchesBruteForce() {
+        Random random = new Random(42);
+        for (int i = 0; i < 5_000; i++) {
+            update("s" + i, -44 + random.nextDouble() * 34, 113 + random.nextDouble() * 41);
+        }
+        Map<String, double[]> points = new HashMap<>();
+        for (StationSpatialIndex.Location location : index.inBox(-90, -180, 90, 180)) {
+            points.put(location.stationId, new double[]{location.lat, location.lon});
+        }
+        assertEquals(5_000, points.size());
+
+        for (int q = 0; q < 50; q++) {
+            // includes points far outside the stations to exercise the sparse fallback
+            double lat = -60 + random.nextDouble() * 70;
+            double lon = 90 + random.nextDouble() * 90;
+            List<String> expected = points.entrySet().stream()
+                    .sorted(Comparator.comparingDouble(e ->
+                            StationSpatialIndex.distanceKm(lat, lon, e.getValue()[0], e.getValue()[1])))
+                    .limit(10).map(Map.Entry::getKey).collect(Collectors.toList());
+            assertEquals(expected, ids(index.nearest(lat, lon, 10)), "query " + lat + "," + lon);
+        }
+    }
+
+    @Test
+    void testBoundingBox() {
+        update("in", -35, 138);
+        update("edge", -34, 139);
+        update("outLat", -33, 138.5);
+        update("outLon", -34.5, 140);
+
+        Set<String> found = new HashSet<>(ids(index.inBox(-36, 137, -34, 139)));
+        assertEquals(Set.of("in", "edge"), found);
+    }
+
+    @Test
+    void testMoveAndExpire() {
+        update("a", -35, 138);
+        update("a", -20, 120);
+        assertEquals(1, index.size());
+        assertTrue(index.inBox(-36, 137, -34, 139).isEmpty());
+        assertEquals(List.of("a"), ids(index.inBox(-21, 119, -19, 121)));
+
+        index.stationExpired("a");
+        assertEquals(0, index.size());
+        assertTrue(index.nearest(-20, 120, 1).isEmpty());
+    }
+
+    @Test
+    void testMissingOrInvalidCoordinatesRemoveStation() {
+        update("a", -35, 138);
+        index.stationUpdated("a", 2, 0, SimpleJsonUtil.parse("{\"name\":\"no position\"}"));
+        assertEquals(0, index.size());
+
+        index.stationUpdated("b", 1, 0, SimpleJsonUtil.parse("{\"lat\":\"95\",\"lon\":\"10\"}"));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    void testReloadedStationsIndexed() {
+        index.stationReloaded("a", SimpleJsonUtil.parse("{\"lat\":\"-35\",\"lon\":\"138\"}"));
+        assertEquals(List.of("a"), ids(index.nearest(-35, 138, 1)));
+    }
+
+    @Test
+    void testJson() {
+        update("a", -35, 138);
+        assertEquals("{\"stations\":[{\"id\":\"a\",\"lat\":-35.0,\"lon\":138.0,\"distance_km\":0.000}]}",
+                StationSpatialIndex.toJson(index.nearest(-35, 138, 1)));
+    }
+}
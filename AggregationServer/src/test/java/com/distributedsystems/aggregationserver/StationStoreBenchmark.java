@@ -0,0 +1,122 @@
+package com.distributedsystems.aggregationserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Benchmark comparing the station stores (every --storage option) on the same workload: concurrent updates to random
+ * stations, concurrent single station reads and full scans. StationStoreContractTest checks they behave the same,
+ * this shows what each costs.
+ *
+ * Run from the AggregationServer directory after mvn test-compile with:
+ *      java -cp target/classes:target/test-classes:../Shared/target/classes
+ *          com.distributedsystems.aggregationserver.StationStoreBenchmark [stations] [operations] [threads]
+ */
+public class StationStoreBenchmark {
+    private static final String[] STORAGES = {"files", "segment", "offheap", "memory", "log"};
+
+    public static void main(String[] args) throws Exception {
+        int stations = args.length > 0 ? Integer.parseInt(args[0]) : 1_000;
+        int operations = args.length > 1 ? Integer.parseInt(args[1]) : 50_000;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+        System.out.printf("%d stations, %d operations per phase, %d threads%n", stations, operations, threads);
+        System.out.printf("%10s %14s %14s %14s %12s %s%n",
+                "storage", "updates/s", "reads/s", "scans/s", "reload ms", "durability");
+        for (String storage : STORAGES) {
+            run(storage, stations, operations, threads);
+        }
+    }
+
+    private static void run(String storage, int stations, int operations, int threads) throws Exception {
+        Path root = Files.createTempDirectory("store-bench-");
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            FileManager.DATA_DIR = root.toFile();
+            ServerConfig config = new ServerConfig();
+            config.storage = storage;
+            StationStore store = AggregationServer.createStore(config);
+            store.reload();
+
+            Map<String, String> data = new HashMap<>();
+            data.put("air_temp", "13.3");
+            data.put("name", "Adelaide (West Terrace /  ngayirdapira)");
+            data.put("local_date_time_full", "20230715160000");
+            for (int i = 0; i < stations; i++) {
+                store.updateStation("IDS" + i, 1, data);
+            }
+
+            // lamports grow with i so almost every update is newer than the stored version
+            double updatesPerSecond = timed(pool, threads, operations, (thread, i) ->
+                    store.updateStation("IDS" + (i % stations), 2 + i * threads + thread, data));
+
+            double readsPerSecond = timed(pool, threads, operations, (thread, i) -> {
+                if (store.readSingleStation("IDS" + ((i * 7919) % stations)).isEmpty()) {
+                    throw new IllegalStateException(storage + " lost a station");
+                }
+            });
+
+            int scans = Math.max(10, operations / stations);
+            double scansPerSecond = timed(pool, threads, scans, (thread, i) -> store.readAllStationsJson());
+
+            store.flush();
+            config = new ServerConfig();
+            config.storage = storage;
+            long start = System.nanoTime();
+            AggregationServer.createStore(config).reload();
+            double reloadMs = (System.nanoTime() - start) / 1e6;
+
+            System.out.printf("%10s %14.0f %14.0f %14.1f %12.1f %s%n",
+                    storage, updatesPerSecond, readsPerSecond, scansPerSecond, reloadMs, durability(storage));
+        } finally {
+            pool.shutdownNow();
+            try (var paths = Files.walk(root)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    private interface Operation {
+        void run(int thread, int i) throws IOException;
+    }
+
+    /**
+     * Runs operations split over threads and returns the throughput
+     */
+    private static double timed(ExecutorService pool, int threads, int operations, Operation operation) throws Exception {
+        List<Future<?>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            futures.add(pool.submit(() -> {
+                for (int i = thread; i < operations; i += threads) {
+                    operation.run(thread, i);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        return operations / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private static String durability(String storage) {
+        switch (storage) {
+            case "files":
+                return "each update renamed into place";
+            case "segment":
+                return "page cache, forced on stop";
+            case "log":
+                return "page cache, forced on stop, replayed on start";
+            default:
+                return "none - lost on restart";
+        }
+    }
+}
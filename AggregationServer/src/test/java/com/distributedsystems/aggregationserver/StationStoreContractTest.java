@@ -0,0 +1,168 @@
+package com.distributedsystems.aggregationserver;
+
+import com.distributedsystems.shared.SimpleJsonUtil;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Behaviour every StationStore must have - each store has a subclass that creates it
+ */
+abstract class StationStoreContractTest {
+
+    @TempDir
+    File tempDir;
+
+    StationStore store;
+
+    /**
+     * Creates the store under test, keeping anything it persists in dir
+     * @param dir empty directory for the store's files
+     * @return the store
+     */
+    abstract StationStore createStore(File dir) throws IOException;
+
+    /**
+     * @return true if stations survive a restart of the store
+     */
+    abstract boolean persistent();
+
+    @BeforeEach
+    void setup() throws IOException {
+        store = createStore(tempDir);
+        store.reload();
+    }
+
+    private static Map<String, String> data(String temp) {
+        Map<String, String> data = new HashMap<>();
+        data.put("air_temp", temp);
+        return data;
+    }
+
+    @Test
+    void testCreateUpdateAndStale() throws IOException {
+        assertEquals(StationStore.UpdateResult.CREATED, store.updateStation("c1", 2, data("10")));
+        assertEquals(StationStore.UpdateResult.UPDATED, store.updateStation("c1", 3, data("11")));
+        assertEquals(StationStore.UpdateResult.STALE, store.updateStation("c1", 3, data("12")));
+        assertEquals(StationStore.UpdateResult.STALE, store.updateStation("c1", 1, data("13")));
+
+        assertEquals("11", SimpleJsonUtil.parse(store.readSingleStation("c1").get("c1")).get("air_temp"));
+    }
+
+    @Test
+    void testReadMissingStation() throws IOException {
+        assertTrue(store.readSingleStation("missing").isEmpty());
+        assertFalse(store.withStationPayload("missing", payload -> fail("no payload expected")));
+    }
+
+    @Test
+    void testReadAllAndPayload() throws IOException {
+        store.updateStation("c1", 1, data("10"));
+        store.updateStation("c2", 1, data("20"));
+
+        Map<String, String> all = store.readAllStations();
+        assertEquals(2, all.size());
+        assertEquals("20", SimpleJsonUtil.parse(all.get("c2")).get("air_temp"));
+        assertEquals(SimpleJsonUtil.parse(SimpleJsonUtil.stringify(all)), SimpleJsonUtil.parse(store.readAllStationsJson()));
+
+        StringBuilder seen = new StringBuilder();
+        assertTrue(store.withStationPayload("c1", payload -> seen.append(StandardCharsets.UTF_8.decode(payload))));
+        assertEquals(all.get("c1"), seen.toString());
+    }
+
+    @Test
+    void testVersionChangesOnUpdateAndExpiry() throws IOException {
+        long start = store.version();
+        store.updateStation("c1", 1, data("10"));
+        long afterUpdate = store.version();
+        assertNotEquals(start, afterUpdate);
+
+        store.updateStation("c1", 1, data("10"));
+        assertEquals(afterUpdate, store.version());
+
+        store.expireStations(System.currentTimeMillis() + 1);
+        assertNotEquals(afterUpdate, store.version());
+    }
+
+    @Test
+    void testExpiry() throws IOException {
+        store.updateStation("old", 1, data("10"));
+        assertTrue(store.expireStations(System.currentTimeMillis() - 60_000).isEmpty());
+        assertEquals(List.of("old"), store.expireStations(System.currentTimeMillis() + 1));
+
+        assertTrue(store.readSingleStation("old").isEmpty());
+        assertTrue(store.readAllStations().isEmpty());
+        // an expired station is created again by its next update
+        assertEquals(StationStore.UpdateResult.CREATED, store.updateStation("old", 1, data("10")));
+    }
+
+    @Test
+    void testReloadAfterRestart() throws IOException {
+        store.updateStation("r1", 5, data("10"));
+        store.updateStation("gone", 1, data("30"));
+        store.updateStation("r1", 7, data("15"));
+        // everything stored so far expires, so "gone" must stay gone after the restart
+        store.expireStations(System.currentTimeMillis() + 1);
+        store.updateStation("r1", 8, data("16"));
+        store.updateStation("r2", 10, data("21"));
+        store.flush();
+
+        StationStore restarted = createStore(tempDir);
+        int maxLamport = restarted.reload();
+        if (!persistent()) {
+            assertEquals(0, maxLamport);
+            assertTrue(restarted.readAllStations().isEmpty());
+            return;
+        }
+        assertEquals(10, maxLamport);
+        assertEquals(2, restarted.readAllStations().size());
+        assertEquals("16", SimpleJsonUtil.parse(restarted.readSingleStation("r1").get("r1")).get("air_temp"));
+        assertEquals(StationStore.UpdateResult.STALE, restarted.updateStation("r1", 8, data("17")));
+    }
+
+    @Test
+    void testForEachStationAndSnapshot() throws IOException {
+        store.updateStation("s1", 4, data("10"));
+        store.updateStation("s2", 7, data("20"));
+        store.updateStation("s2", 9, data("21"));
+
+        Map<String, Integer> lamports = new HashMap<>();
+        store.forEachStation((stationId, lamport, writeMillis, json) -> {
+            lamports.put(stationId, lamport);
+            assertTrue(writeMillis > 0);
+        });
+        assertEquals(Map.of("s1", 4, "s2", 9), lamports);
+
+        Map<String, StationSnapshot.Entry> entries = new HashMap<>();
+        for (StationSnapshot.Entry entry : store.snapshot()) {
+            entries.put(entry.stationId, entry);
+        }
+        assertEquals(2, entries.size());
+        assertEquals(9, entries.get("s2").record.lamport);
+        assertEquals("21", SimpleJsonUtil.parse(entries.get("s2").record.data()).get("air_temp"));
+    }
+
+    @Test
+    void testRemoveStation() throws IOException {
+        store.updateStation("s1", 4, data("10"));
+        store.updateStation("s2", 5, data("20"));
+        long version = store.version();
+
+        assertTrue(store.removeStation("s1"));
+        assertFalse(store.removeStation("s1"));
+        assertTrue(store.readSingleStation("s1").isEmpty());
+        assertEquals(Set.of("s2"), store.readAllStations().keySet());
+        assertNotEquals(version, store.version());
+
+        assertEquals(StationStore.UpdateResult.CREATED, store.updateStation("s1", 1, data("11")));
+    }
+}
@@ -5,29 +5,100 @@ import com.distributedsystems.shared.HttpHelper;
 import com.distributedsystems.shared.SimpleJsonUtil;
 
 import java.io.*;
+import java.net.Socket;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 
 /**
  * ContentServer sends data stored in specified file to an aggregation server
+ *
+ * Each observation read from the file is first added to an on-disk Outbox and then sent from it, oldest first. While
+ * the aggregation server is down observations keep being read into the outbox. Once it is back they are sent in
+ * batches at a limited rate, so content servers that reconnect together don't all send their backlog at once.
  */
 public class ContentServer extends AggregationServerClient {
+    // time between reads of the data file
+    static final long SEND_INTERVAL_MS = 5000;
+    // observations sent per batch when draining the outbox, the journal is updated once per batch
+    static final int DEFAULT_DRAIN_BATCH = 10;
+    // observations sent per second when draining the outbox
+    static final int DEFAULT_DRAIN_RATE = 20;
+    // refused sends after which an observation is moved to the outbox's dead letter journal
+    static final int MAX_SEND_ATTEMPTS = 10;
+
+    private final Outbox outbox;
+    private final int drainBatch;
+    private final int drainRate;
+
+    /**
+     * Creates a content server that sends each observation directly with sendData
+     */
+    public ContentServer() {
+        this(null, DEFAULT_DRAIN_BATCH, DEFAULT_DRAIN_RATE);
+    }
+
+    /**
+     * Creates a content server that keeps observations in an outbox until the aggregation server accepts them
+     * @param outbox pending observations
+     * @param drainBatch observations sent per batch
+     * @param drainRate observations sent per second
+     */
+    public ContentServer(Outbox outbox, int drainBatch, int drainRate) {
+        this.outbox = outbox;
+        this.drainBatch = drainBatch;
+        this.drainRate = drainRate;
+        // observations read after a restart must be ordered after those still pending
+        if (outbox != null) clock.update(outbox.maxLamport());
+    }
+
     public static void main(String[] args) {
         if (args.length < 2) {
-            System.err.println("Usage: java ContentServer <server:port | http://host:port[/path]> <local-data-file>");
+            System.err.println("Usage: java ContentServer <server:port[|server:port...][,...]> <local-data-file>"
+                    + " [--outbox=<file>] [--drain-batch=<n>] [--drain-rate=<per second>]");
             System.exit(1);
         }
 
-        String[] urlSplit = args[0].split(":");
-        String host = urlSplit[0];
-        int port = Integer.parseInt(urlSplit[1]);
+        // several servers separated by "," are shards, each station is sent to the shard that owns it
+        // servers separated by "|" serve the same shard, updates fail over to the next one
+        List<String> shards = List.of(args[0].split(","));
 
         String filePath = args[1];
+        String outboxPath = filePath + ".outbox";
+        int drainBatch = DEFAULT_DRAIN_BATCH;
+        int drainRate = DEFAULT_DRAIN_RATE;
+        for (int i = 2; i < args.length; i++) {
+            String arg = args[i];
+            int idx = arg.indexOf('=');
+            String value = idx > 0 ? arg.substring(idx + 1) : "";
+            switch (idx > 0 ? arg.substring(0, idx) : arg) {
+                case "--outbox":
+                    outboxPath = value;
+                    break;
+                case "--drain-batch":
+                    drainBatch = Integer.parseInt(value);
+                    break;
+                case "--drain-rate":
+                    drainRate = Integer.parseInt(value);
+                    break;
+                default:
+                    System.err.println("Unknown option: " + arg);
+                    System.exit(1);
+            }
+        }
 
-        ContentServer contentServer = new ContentServer();
+        ContentServer contentServer = null;
         try {
-            contentServer.startConnection(host, port);
+            Outbox outbox = new Outbox(new File(outboxPath));
+            if (outbox.size() > 0) {
+                System.out.println(outbox.size() + " observations pending in " + outboxPath);
+            }
+            contentServer = new ContentServer(outbox, drainBatch, drainRate);
+            contentServer.useShards(shards);
+            boolean connected = false;
             while (true) {
 
                 File dataFile = new File(filePath);
@@ -36,62 +107,150 @@ public class ContentServer extends AggregationServerClient {
                     System.exit(1);
                 }
 
-                HttpHelper.Response response = null;
                 try {
-                    response = contentServer.sendData(dataFile);
-                } catch (IOException e) {
-                    System.err.println("Lost connection to server. Attempting to reconnect...");
-                    // close old socket
-                    contentServer.stopConnection();
-                    contentServer.connectWithRetry(host, port);
+                    contentServer.record(dataFile);
+                } catch (FileNotFoundException e) {
+                    System.err.println(e.getMessage());
+                }
+
+                if (!connected) {
+                    connected = contentServer.tryReconnect();
+                    // content servers reconnecting together start draining at different times
+                    if (connected && outbox.size() > 1) {
+                        Thread.sleep((long) (Math.random() * SEND_INTERVAL_MS));
+                    }
                 }
 
-                if (response != null && response.status.contains("201")){
-                    System.out.println("Successfully updated data");
-                    // would probably wait until another thread sent a message notifying of file update
-                } else if (response != null && response.status.contains("200")){
-                    System.out.println("Successfully updated data");
-                    // would probably wait until another thread sent a message notifying of file update
+                if (connected) {
+                    try {
+                        int sent = contentServer.drainOutbox(SEND_INTERVAL_MS);
+                        System.out.println("Successfully updated data (" + sent + " sent, "
+                                + outbox.size() + " pending)");
+                    } catch (IOException e) {
+                        System.err.println("Lost connection to server. Attempting to reconnect...");
+                        connected = false;
+                    }
                 } else {
-                    System.out.println("Failed to make request retrying...");
+                    System.out.println("Server unavailable, " + outbox.size() + " observations kept in the outbox");
                 }
-                Thread.sleep(5000);
+                Thread.sleep(SEND_INTERVAL_MS);
             }
+        } catch (IOException e) {
+            System.err.println("Can't use outbox " + outboxPath + ": " + e.getMessage());
+            System.exit(1);
         } catch (InterruptedException e ){
             System.err.println("Client has been terminated");
         } finally {
-            contentServer.stopConnection();
+            if (contentServer != null) contentServer.stopConnection();
         }
     }
 
     /**
-     * Read the data file, build JSON, and send a single PUT to the aggregation server.
+     * Read the data file, build JSON, and send a single PUT to the aggregation server (the shard owning the station).
      */
     public HttpHelper.Response sendData(File dataFile) throws IOException {
-        Map<String, String> data = readKeyValueFile(dataFile);
-        if (data.isEmpty()) {
-            System.err.println("No data parsed from file; nothing to send.");
-            throw new FileNotFoundException("Data File is empty or not found");
-        }
+        Map<String, String> data = readData(dataFile);
+        System.out.println("sending data");
+        // every attempt carries the same key, the server answers a retry of a PUT it already applied from its cache
+        return put(data.get("id"), SimpleJsonUtil.stringify(data), UUID.randomUUID().toString());
+    }
 
-        // Ensure there is an id if possible (aggregation server expects station id)
-        if (!data.containsKey("id")) {
-            System.err.println("Warning: data does not contain an 'id' key. Aggregation server may reject or treat differently.");
+    /**
+     * Reads the data file and adds it to the outbox, unless it is the same as the newest pending observation
+     *
+     * @param dataFile data file
+     * @return the pending observation
+     * @throws IOException if the file is empty or the outbox can't be written
+     */
+    public Outbox.Entry record(File dataFile) throws IOException {
+        String json = SimpleJsonUtil.stringify(readData(dataFile));
+        Outbox.Entry last = outbox.last();
+        if (last != null && last.json.equals(json)) return last;
+        clock.tick();
+        return outbox.append(clock.get(), json);
+    }
+
+    /**
+     * Sends pending observations oldest first, drainBatch at a time and no faster than drainRate per second. Stops
+     * when the outbox is empty, maxMillis have passed, or the server keeps refusing an observation.
+     *
+     * @param maxMillis time after which no new batch is started
+     * @return number of observations the server accepted
+     * @throws IOException if the connection fails, observations not acknowledged stay in the outbox
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public int drainOutbox(long maxMillis) throws IOException, InterruptedException {
+        long batchNanos = drainBatch * 1_000_000_000L / Math.max(1, drainRate);
+        long deadline = System.nanoTime() + maxMillis * 1_000_000L;
+        int sent = 0;
+        while (outbox.size() > 0 && System.nanoTime() < deadline) {
+            long batchStart = System.nanoTime();
+            List<Outbox.Entry> batch = outbox.peek(drainBatch);
+            int accepted = 0;
+            try {
+                for (Outbox.Entry entry : batch) {
+                    if (!send(entry)) break;
+                    accepted++;
+                }
+            } finally {
+                outbox.acknowledge(accepted);
+            }
+            sent += accepted;
+            if (accepted < batch.size()) break;
+
+            long wait = batchStart + batchNanos - System.nanoTime();
+            if (wait > 0 && outbox.size() > 0) TimeUnit.NANOSECONDS.sleep(wait);
         }
+        return sent;
+    }
 
-        System.out.println("sending data");
-        String jsonBody = SimpleJsonUtil.stringify(data);
+    /**
+     * Sends one pending observation. An observation refused MAX_SEND_ATTEMPTS times (e.g. one that always gets a 500)
+     * is moved to the dead letter journal so the observations behind it are still sent - 429 and 503 don't count, they
+     * are about the server, not the observation.
+     *
+     * @return true if the server accepted it, rejected it as malformed or too large (so it is dropped) or it was moved
+     *         to the dead letter journal, false to keep it
+     */
+    private boolean send(Outbox.Entry entry) throws IOException {
+        HttpHelper.Response response = put(SimpleJsonUtil.parse(entry.json).get("id"), entry.json, entry.idempotencyKey);
+        if (response.status.contains("200") || response.status.contains("201")) return true;
+        if (response.status.contains("400") || response.status.contains("413")) {
+            System.err.println("Server rejected observation " + entry.json + ": " + response.body + ", dropping it");
+            return true;
+        }
+        if (response.status.contains("429") || response.status.contains("503")) return false;
+        if (outbox.refused(entry) >= MAX_SEND_ATTEMPTS) {
+            outbox.deadLetter(entry);
+            System.err.println("Server refused observation " + entry.json + " " + MAX_SEND_ATTEMPTS + " times ("
+                    + response.status + "), moved it to the dead letter journal");
+            return true;
+        }
+        return false;
+    }
 
+    /**
+     * Sends a PUT to the shard owning the station, retrying up to MAX_REQUEST_ATTEMPTS times with a new lamport
+     * value each time
+     *
+     * @param stationId station the observation is for
+     * @param jsonBody the observation
+     * @param idempotencyKey sent with every attempt
+     * @return the last response
+     * @throws IOException if the connection fails
+     */
+    private HttpHelper.Response put(String stationId, String jsonBody, String idempotencyKey) throws IOException {
         HttpHelper.Response response = null;
         for (int i = 0; i < MAX_REQUEST_ATTEMPTS; i++) {
-            System.out.println("sending data");
             clock.tick(); // advance before sending
             Map<String, String> headers = new HashMap<>();
             headers.put("X-Lamport-Clock", String.valueOf(clock.get()));
             headers.put("Content-Type", "application/json");
+            headers.put("Idempotency-Key", idempotencyKey);
 
+            Socket socket = socketFor(stationId);
             response = HttpHelper.sendRequest(
-                    clientSocket,
+                    socket,
                     "PUT",
                     "/",
                     headers,
@@ -106,11 +265,50 @@ public class ContentServer extends AggregationServerClient {
 
             System.out.println("Request Failed: " + response.status);
 
+            // over the server's rate limit, wait as long as it asks before trying again
+            if (response.status.contains("429")) {
+                String retryAfter = HttpHelper.header(response.headers, "Retry-After");
+                try {
+                    Thread.sleep(1000L * (retryAfter == null ? 1 : Long.parseLong(retryAfter)));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+
+            // a backup refuses updates, try the shard's next server in case it has been promoted
+            if (response.status.contains("503")) {
+                try {
+                    failover(socket);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+
         }
 
         return response;
     }
 
+    /**
+     * Reads the data file into a map
+     * @throws FileNotFoundException if the file holds no data
+     */
+    private static Map<String, String> readData(File dataFile) throws IOException {
+        Map<String, String> data = readKeyValueFile(dataFile);
+        if (data.isEmpty()) {
+            System.err.println("No data parsed from file; nothing to send.");
+            throw new FileNotFoundException("Data File is empty or not found");
+        }
+
+        // Ensure there is an id if possible (aggregation server expects station id)
+        if (!data.containsKey("id")) {
+            System.err.println("Warning: data does not contain an 'id' key. Aggregation server may reject or treat differently.");
+        }
+        return data;
+    }
+
     /**
      * File parser split lines based on :, = or just use line as key
      */
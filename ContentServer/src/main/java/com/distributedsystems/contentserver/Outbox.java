@@ -0,0 +1,239 @@
+package com.distributedsystems.contentserver;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * Outbox: observations a content server has read but the aggregation server hasn't accepted yet, kept in an append
+ * only journal so they survive a server outage and a restart of the content server.
+ *
+ * Every line of the journal is "<crc32 hex> <record>", the record is either
+ *      P <lamport> <idempotency key> <json>    an observation
+ *      A <count>                               the oldest count observations were accepted
+ * Appends are forced to disk before they return. A line torn by a crash fails its CRC and the journal is cut off
+ * before it. Once every observation has been accepted the journal is truncated. On startup, and once COMPACT_AFTER
+ * A records have been appended, it is rewritten with only the observations still pending.
+ *
+ * An observation the server keeps refusing can be moved to the dead letter journal <file>.dead (same line format,
+ * P records only) so it no longer holds up the ones behind it.
+ */
+public class Outbox {
+    // A records appended before the journal is rewritten, so a journal that never empties doesn't grow forever
+    static final int COMPACT_AFTER = 1000;
+
+    /**
+     * One pending observation
+     */
+    public static final class Entry {
+        // local lamport time the observation was read at, sets the order observations are sent in
+        public final int lamport;
+        // sent with every attempt so the server applies the observation once
+        public final String idempotencyKey;
+        public final String json;
+        // attempts the server refused since the outbox was opened
+        int failures;
+
+        Entry(int lamport, String idempotencyKey, String json) {
+            this.lamport = lamport;
+            this.idempotencyKey = idempotencyKey;
+            this.json = json;
+        }
+    }
+
+    private final File file;
+    private final File deadLetters;
+    private final ArrayDeque<Entry> pending = new ArrayDeque<>();
+    private FileChannel journal;
+    // A records in the journal since it was last rewritten
+    private int acknowledgements;
+
+    /**
+     * Opens the journal at file, creating it if needed, and loads the observations still pending
+     * @param file journal file
+     * @throws IOException if the journal can't be read or written
+     */
+    public Outbox(File file) throws IOException {
+        this.file = file;
+        this.deadLetters = new File(file.getPath() + ".dead");
+        List<Entry> loaded = load(file);
+        // observations are appended in lamport order, sorting only matters for a journal written by an older clock
+        loaded.sort(Comparator.comparingInt(entry -> entry.lamport));
+        pending.addAll(loaded);
+        rewrite();
+    }
+
+    private static List<Entry> load(File file) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        if (!file.exists()) return entries;
+        try (BufferedReader in = new BufferedReader(new FileReader(file, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int space = line.indexOf(' ');
+                if (space < 0) break;
+                String record = line.substring(space + 1);
+                CRC32 crc = new CRC32();
+                crc.update(record.getBytes(StandardCharsets.UTF_8));
+                if (!line.substring(0, space).equals(Long.toHexString(crc.getValue()))) {
+                    System.err.println("Outbox journal " + file + " is torn, ignoring it from: " + line);
+                    break;
+                }
+                String[] parts = record.split(" ", 4);
+                if (parts[0].equals("P")) {
+                    entries.add(new Entry(Integer.parseInt(parts[1]), parts[2], parts[3]));
+                } else {
+                    entries.subList(0, Math.min(entries.size(), Integer.parseInt(parts[1]))).clear();
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Replaces the journal with one holding only the pending observations
+     */
+    private void rewrite() throws IOException {
+        if (journal != null) journal.close();
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Entry entry : pending) {
+                write(out, observation(entry));
+            }
+            out.force(true);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        journal = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        acknowledgements = 0;
+    }
+
+    private static String observation(Entry entry) {
+        return "P " + entry.lamport + " " + entry.idempotencyKey + " " + entry.json;
+    }
+
+    private static void write(FileChannel out, String record) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] bytes = record.getBytes(StandardCharsets.UTF_8);
+        crc.update(bytes);
+        ByteBuffer line = ByteBuffer.wrap((Long.toHexString(crc.getValue()) + " " + record + "\n")
+                .getBytes(StandardCharsets.UTF_8));
+        while (line.hasRemaining()) {
+            out.write(line);
+        }
+    }
+
+    /**
+     * Adds an observation, it is on disk when this returns
+     * @param lamport local lamport time of the observation
+     * @param json the observation
+     * @return the pending entry
+     * @throws IOException if the journal can't be written
+     */
+    public synchronized Entry append(int lamport, String json) throws IOException {
+        Entry entry = new Entry(lamport, UUID.randomUUID().toString(), json);
+        write(journal, observation(entry));
+        journal.force(false);
+        pending.addLast(entry);
+        return entry;
+    }
+
+    /**
+     * @param max most observations returned
+     * @return the oldest pending observations, in the order they are to be sent
+     */
+    public synchronized List<Entry> peek(int max) {
+        List<Entry> batch = new ArrayList<>(Math.min(max, pending.size()));
+        for (Entry entry : pending) {
+            if (batch.size() == max) break;
+            batch.add(entry);
+        }
+        return batch;
+    }
+
+    /**
+     * Marks the oldest count observations as accepted by the server
+     * @param count number of observations accepted
+     * @throws IOException if the journal can't be written
+     */
+    public synchronized void acknowledge(int count) throws IOException {
+        if (count <= 0) return;
+        for (int i = 0; i < count && !pending.isEmpty(); i++) {
+            pending.removeFirst();
+        }
+        if (pending.isEmpty()) {
+            journal.truncate(0);
+            acknowledgements = 0;
+        } else if (++acknowledgements >= COMPACT_AFTER) {
+            rewrite();
+            return;
+        } else {
+            write(journal, "A " + count);
+        }
+        journal.force(false);
+    }
+
+    /**
+     * Counts a refused attempt to send an observation
+     * @param entry a pending observation
+     * @return attempts refused so far, counting this one
+     */
+    public synchronized int refused(Entry entry) {
+        return ++entry.failures;
+    }
+
+    /**
+     * Appends an observation to the dead letter journal, it is on disk when this returns. The observation stays
+     * pending until it is acknowledged.
+     * @param entry a pending observation
+     * @throws IOException if the dead letter journal can't be written
+     */
+    public synchronized void deadLetter(Entry entry) throws IOException {
+        try (FileChannel out = FileChannel.open(deadLetters.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            write(out, observation(entry));
+            out.force(false);
+        }
+    }
+
+    /**
+     * @return the newest pending observation, null if none are pending
+     */
+    public synchronized Entry last() {
+        return pending.peekLast();
+    }
+
+    /**
+     * @return number of observations pending
+     */
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * @return the highest lamport of the pending observations, 0 if none are pending
+     */
+    public synchronized int maxLamport() {
+        return pending.isEmpty() ? 0 : pending.peekLast().lamport;
+    }
+
+    /**
+     * Closes the journal, pending observations stay in it
+     * @throws IOException if closing fails
+     */
+    public synchronized void close() throws IOException {
+        journal.close();
+    }
+}
@@ -7,6 +7,7 @@ import com.distributedsystems.shared.SimpleJsonUtil;
 import java.net.*;
 import java.io.*;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class GetClient extends AggregationServerClient {
@@ -18,19 +19,21 @@ public class GetClient extends AggregationServerClient {
             Map<String, String> headers = new HashMap<>();
             headers.put("X-Lamport-Clock", String.valueOf(clock.get()));
             if (stationId != null) headers.put("stationId", stationId);
+            // large responses come back compressed, HttpHelper decompresses them
+            headers.put("Accept-Encoding", "gzip");
 
             // initially 0 seconds of sleep
             int sleepTime = (int) (BASE_WAIT_TIME_MS * (Math.pow(2,i)-1) * (Math.random()));
 
             Thread.sleep(sleepTime);
 
-            response = HttpHelper.sendRequest(
-                    clientSocket,
-                    "GET",
-                    "/",
-                    headers,
-                    ""
-            );
+            // one station is read from the shard that owns it, every station from every shard
+            // both are hedged to a second endpoint of the shard if the first is slow
+            if (stationId != null) {
+                response = read(stationId, "/", headers);
+            } else {
+                response = scatterGather("/", headers);
+            }
 
             updateLamportWithResponse(response);
 
@@ -68,13 +71,12 @@ public class GetClient extends AggregationServerClient {
             return;
         }
 
-        String[] urlSplit = args[0].split(":");
-        String host = urlSplit[0];
-        int port = Integer.parseInt(urlSplit[1]);
+        // several servers separated by "," are shards, servers separated by "|" serve the same shard
+        List<String> shards = List.of(args[0].split(","));
 
         GetClient client = new GetClient();
         try {
-            client.startConnection(host, port);
+            client.startConnection(shards);
             while (true) {
                 String stationId = null;
                 if (args.length == 2) {
@@ -85,9 +87,7 @@ public class GetClient extends AggregationServerClient {
                     response = client.requestStationData(stationId);
                 } catch (IOException e) {
                     System.err.println("Lost connection to server. Attempting to reconnect...");
-                    client.stopConnection(); // ensure old socket is closed
-
-                    client.connectWithRetry(host, port);
+                    client.reconnect(); // closes the old sockets first, fails over to another endpoint if needed
                 }
 
                 if (response != null && response.status.contains("200")){
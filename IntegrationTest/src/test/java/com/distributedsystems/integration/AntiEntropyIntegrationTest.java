@@ -0,0 +1,123 @@
+package com.distributedsystems.integration;
+
+import com.distributedsystems.aggregationserver.*;
+import com.distributedsystems.shared.HttpHelper;
+import com.distributedsystems.shared.LamportClock;
+import com.distributedsystems.shared.SimpleJsonUtil;
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Syncs a store in this test with an aggregation server (in memory store) running in this process
+ */
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class AntiEntropyIntegrationTest {
+
+    private static final int STATIONS = 100;
+
+    private String peer;
+    private AggregationServer server;
+    private final ExecutorService serverExecutor = Executors.newSingleThreadExecutor();
+
+    @BeforeAll
+    void startServer() throws IOException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        ServerConfig config = new ServerConfig(port);
+        config.storage = "memory";
+        server = new AggregationServer(config);
+        peer = "localhost:" + port;
+        serverExecutor.submit(() -> {
+            try {
+                server.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    @AfterAll
+    void stopServer() {
+        server.stop();
+        serverExecutor.shutdownNow();
+    }
+
+    private static Map<String, String> station(String stationId, String airTemp) {
+        Map<String, String> json = new HashMap<>();
+        json.put("id", stationId);
+        json.put("air_temp", airTemp);
+        return json;
+    }
+
+    private HttpHelper.Response send(String method, Map<String, String> headers, String body)
+            throws IOException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            try (Socket socket = new Socket("localhost", Integer.parseInt(peer.substring(peer.indexOf(':') + 1)))) {
+                return HttpHelper.sendRequest(socket, method, "/", headers, body);
+            } catch (IOException e) {
+                // the server may still be starting
+                if (attempt == 50) throw e;
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private String peerAirTemp(String stationId) throws IOException, InterruptedException {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("stationId", stationId);
+        String data = SimpleJsonUtil.parse(send("GET", headers, "").body).get(stationId);
+        return data == null ? null : SimpleJsonUtil.parse(data).get("air_temp");
+    }
+
+    @Test
+    void testSyncMovesOnlyDifferences() throws IOException, InterruptedException {
+        send("GET", null, ""); // waits for the server to accept connections
+
+        NotifyingStationStore store = new NotifyingStationStore(new MemoryStationStore());
+        StationMerkleTree tree = new StationMerkleTree();
+        store.addListener(tree);
+        AntiEntropy antiEntropy = new AntiEntropy(tree, store, new LamportClock());
+        for (int i = 0; i < STATIONS; i++) {
+            store.updateStation("AE" + i, 1, station("AE" + i, "10"));
+        }
+
+        AntiEntropy.SyncResult first = antiEntropy.syncWith(peer);
+        assertEquals(STATIONS, first.pushed);
+        assertEquals(0, first.pulled);
+        assertEquals("10", peerAirTemp("AE42"));
+
+        AntiEntropy.SyncResult same = antiEntropy.syncWith(peer);
+        assertEquals(0, same.differingBuckets);
+        assertEquals(1, same.requests);
+
+        // the peer has a newer AE5, this side a newer AE7 and a station the peer never saw
+        Map<String, String> headers = new HashMap<>();
+        headers.put("X-Lamport-Clock", "10");
+        send("PUT", headers, SimpleJsonUtil.stringify(station("AE5", "55")));
+        store.updateStation("AE7", 5, station("AE7", "77"));
+        store.updateStation("AE-NEW", 1, station("AE-NEW", "1"));
+
+        AntiEntropy.SyncResult diverged = antiEntropy.syncWith(peer);
+        assertEquals(1, diverged.pulled);
+        assertEquals(2, diverged.pushed);
+        assertTrue(diverged.differingBuckets <= 3);
+        // one request per tree level (13), the buckets, the records and two PUTs
+        assertTrue(diverged.requests <= 17, diverged.toString());
+        assertEquals("55", SimpleJsonUtil.parse(store.readSingleStation("AE5").get("AE5")).get("air_temp"));
+        assertEquals("77", peerAirTemp("AE7"));
+        assertEquals("1", peerAirTemp("AE-NEW"));
+
+        assertEquals(0, antiEntropy.syncWith(peer).differingBuckets);
+    }
+}
@@ -0,0 +1,122 @@
+package com.distributedsystems.integration;
+
+import com.distributedsystems.aggregationserver.AggregationServer;
+import com.distributedsystems.aggregationserver.ServerConfig;
+import com.distributedsystems.contentserver.ContentServer;
+import com.distributedsystems.contentserver.Outbox;
+import com.distributedsystems.getclient.GetClient;
+import com.distributedsystems.shared.HttpHelper;
+import com.distributedsystems.shared.SimpleJsonUtil;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Fills a content server's outbox while no aggregation server is running, then drains it once one (in memory store)
+ * starts in this process
+ */
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class OutboxIntegrationTest {
+
+    private int port;
+    private AggregationServer server;
+    private final ExecutorService serverExecutor = Executors.newSingleThreadExecutor();
+
+    @BeforeAll
+    void pickPort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+    }
+
+    @AfterAll
+    void stopServer() {
+        if (server != null) server.stop();
+        serverExecutor.shutdownNow();
+    }
+
+    private static File stationFile(Path dir, int airTemp) throws IOException {
+        File file = dir.resolve("station.txt").toFile();
+        try (PrintWriter writer = new PrintWriter(file)) {
+            writer.println("id:OUTBOX1");
+            writer.println("air_temp:" + airTemp);
+        }
+        return file;
+    }
+
+    @Test
+    void testObservationsKeptDuringOutageAreDrainedInOrder(@TempDir Path dir) throws Exception {
+        File journal = dir.resolve("station.outbox").toFile();
+        Outbox outbox = new Outbox(journal);
+        ContentServer contentServer = new ContentServer(outbox, 1, 10);
+        for (int airTemp = 1; airTemp <= 3; airTemp++) {
+            contentServer.record(stationFile(dir, airTemp));
+        }
+        // an unchanged file is not a new observation
+        contentServer.record(stationFile(dir, 3));
+        assertEquals(3, outbox.size());
+
+        // the outbox survives a restart, and a line torn by a crash is ignored
+        outbox.close();
+        Files.write(journal.toPath(), "1234 P 9 torn {\"id\":".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        outbox = new Outbox(journal);
+        assertEquals(3, outbox.size());
+        contentServer = new ContentServer(outbox, 1, 10);
+
+        ServerConfig config = new ServerConfig(port);
+        config.storage = "memory";
+        server = new AggregationServer(config);
+        serverExecutor.submit(() -> {
+            try {
+                server.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        contentServer.startConnection(List.of("localhost:" + port));
+
+        long start = System.nanoTime();
+        assertEquals(3, contentServer.drainOutbox(10_000));
+        // one observation per batch at 10 per second
+        assertTrue(System.nanoTime() - start >= 200_000_000L);
+        assertEquals(0, outbox.size());
+        assertEquals(0, journal.length());
+        contentServer.stopConnection();
+
+        GetClient getClient = new GetClient();
+        getClient.startConnection("localhost", port);
+        HttpHelper.Response response = getClient.requestStationData("OUTBOX1");
+        getClient.stopConnection();
+        assertEquals("3", SimpleJsonUtil.parse(SimpleJsonUtil.parse(response.body).get("OUTBOX1")).get("air_temp"));
+    }
+
+    @Test
+    void testDeadLetterKeepsRefusedObservation(@TempDir Path dir) throws Exception {
+        File journal = dir.resolve("station.outbox").toFile();
+        Outbox outbox = new Outbox(journal);
+        Outbox.Entry refused = outbox.append(1, "{\"id\":\"OUTBOX2\",\"air_temp\":\"1\"}");
+        outbox.append(2, "{\"id\":\"OUTBOX2\",\"air_temp\":\"2\"}");
+
+        outbox.deadLetter(refused);
+        outbox.acknowledge(1);
+        outbox.close();
+
+        outbox = new Outbox(journal);
+        assertEquals(1, outbox.size());
+        assertEquals(2, outbox.last().lamport);
+        outbox.close();
+        String deadLetters = Files.readString(dir.resolve("station.outbox.dead"));
+        assertTrue(deadLetters.contains(" P 1 " + refused.idempotencyKey + " " + refused.json));
+    }
+}
@@ -0,0 +1,115 @@
+package com.distributedsystems.integration;
+
+import com.distributedsystems.aggregationserver.AggregationServer;
+import com.distributedsystems.aggregationserver.ServerConfig;
+import com.distributedsystems.shared.HttpHelper;
+import com.distributedsystems.shared.SimpleJsonUtil;
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Sends PUTs faster than the limits of an aggregation server (in memory store) running in this process
+ */
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class RateLimitIntegrationTest {
+
+    private int port;
+    private AggregationServer server;
+    private final ExecutorService serverExecutor = Executors.newSingleThreadExecutor();
+
+    @BeforeAll
+    void startServer() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        ServerConfig config = new ServerConfig(port);
+        config.storage = "memory";
+        config.stationPutRate = 0.5;
+        config.stationPutBurst = 2;
+        config.connectionPutRate = 0.5;
+        config.connectionPutBurst = 4;
+        server = new AggregationServer(config);
+        serverExecutor.submit(() -> {
+            try {
+                server.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    @AfterAll
+    void stopServer() {
+        server.stop();
+        serverExecutor.shutdownNow();
+    }
+
+    private Socket connect() throws IOException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return new Socket("localhost", port);
+            } catch (IOException e) {
+                // the server may still be starting
+                if (attempt == 50) throw e;
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static HttpHelper.Response put(Socket socket, String stationId) throws IOException {
+        return HttpHelper.sendRequest(socket, "PUT", "/", null, "{\"id\":\"" + stationId + "\",\"air_temp\":\"1\"}");
+    }
+
+    @Test
+    void testStationAndConnectionLimits() throws IOException, InterruptedException {
+        try (Socket socket = connect()) {
+            // a station gets its burst, then 429 until a token is back in 2 seconds
+            assertTrue(put(socket, "LIMIT1").status.startsWith("201"));
+            assertTrue(put(socket, "LIMIT1").status.startsWith("200"));
+            HttpHelper.Response limited = put(socket, "LIMIT1");
+            assertTrue(limited.status.startsWith("429"), limited.status);
+            assertEquals("2", HttpHelper.header(limited.headers, "Retry-After"));
+
+            // other stations are not held back by it, until the connection's own burst is used up
+            assertTrue(put(socket, "LIMIT2").status.startsWith("201"));
+            assertTrue(put(socket, "LIMIT3").status.startsWith("429"));
+
+            // a new connection has a full bucket
+            try (Socket other = connect()) {
+                assertTrue(put(other, "LIMIT3").status.startsWith("201"));
+            }
+
+            Map<String, String> metrics = SimpleJsonUtil.parse(
+                    HttpHelper.sendRequest(socket, "GET", "/metrics", new HashMap<>(), "").body);
+            assertEquals("2", metrics.get("put.rejected"));
+            assertEquals("2", metrics.get("put.rejected." + socket.getLocalAddress().getHostAddress()));
+        }
+    }
+
+    @Test
+    void testRetryOfAppliedPutIsAnsweredOverTheLimit() throws IOException, InterruptedException {
+        try (Socket socket = connect()) {
+            Map<String, String> headers = new HashMap<>();
+            headers.put("Idempotency-Key", "limit-retry-1");
+            String body = "{\"id\":\"LIMIT4\",\"air_temp\":\"1\"}";
+            assertTrue(HttpHelper.sendRequest(socket, "PUT", "/", headers, body).status.startsWith("201"));
+            // the rest of the connection's burst
+            for (int i = 5; i <= 7; i++) {
+                assertTrue(put(socket, "LIMIT" + i).status.startsWith("201"));
+            }
+
+            // the retry doesn't touch the store, so the limit doesn't apply to it
+            HttpHelper.Response retried = HttpHelper.sendRequest(socket, "PUT", "/", headers, body);
+            assertTrue(retried.status.startsWith("201"), retried.status);
+        }
+    }
+}
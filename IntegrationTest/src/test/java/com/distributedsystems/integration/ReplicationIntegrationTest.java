@@ -0,0 +1,133 @@
+package com.distributedsystems.integration;
+
+import com.distributedsystems.aggregationserver.AggregationServer;
+import com.distributedsystems.aggregationserver.ServerConfig;
+import com.distributedsystems.shared.HttpHelper;
+import com.distributedsystems.shared.SimpleJsonUtil;
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs a primary and a backup aggregation server in this process, both with in memory stores
+ */
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class ReplicationIntegrationTest {
+
+    private int primaryPort;
+    private int backupPort;
+    private AggregationServer primary;
+    private AggregationServer backup;
+    private final ExecutorService serverExecutor = Executors.newFixedThreadPool(2);
+
+    @BeforeAll
+    void startServers() throws IOException {
+        primaryPort = freePort();
+        backupPort = freePort();
+
+        ServerConfig primaryConfig = new ServerConfig(primaryPort);
+        primaryConfig.storage = "memory";
+        primary = new AggregationServer(primaryConfig);
+
+        ServerConfig backupConfig = new ServerConfig(backupPort);
+        backupConfig.storage = "memory";
+        backupConfig.replicaOf = "localhost:" + primaryPort;
+        backup = new AggregationServer(backupConfig);
+
+        for (AggregationServer server : new AggregationServer[]{primary, backup}) {
+            serverExecutor.submit(() -> {
+                try {
+                    server.start();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+    }
+
+    @AfterAll
+    void stopServers() {
+        backup.stop();
+        primary.stop();
+        serverExecutor.shutdownNow();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static HttpHelper.Response request(int port, String method, String path, Map<String, String> headers,
+                                               String body) throws IOException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            try (Socket socket = new Socket("localhost", port)) {
+                return HttpHelper.sendRequest(socket, method, path, headers, body);
+            } catch (IOException e) {
+                // the server may still be starting
+                if (attempt == 50) throw e;
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static HttpHelper.Response put(int port, String stationId, int lamport, String airTemp)
+            throws IOException, InterruptedException {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("X-Lamport-Clock", String.valueOf(lamport));
+        headers.put("Content-Type", "application/json");
+        return request(port, "PUT", "/weather.json", headers,
+                "{\"id\":\"" + stationId + "\",\"air_temp\":\"" + airTemp + "\"}");
+    }
+
+    /**
+     * Waits for a station to reach a port with the given air_temp
+     */
+    private static void awaitStation(int port, String stationId, String airTemp) throws IOException, InterruptedException {
+        String seen = null;
+        for (int attempt = 0; attempt < 100; attempt++) {
+            Map<String, String> headers = new HashMap<>();
+            headers.put("stationId", stationId);
+            String data = SimpleJsonUtil.parse(request(port, "GET", "/", headers, null).body).get(stationId);
+            seen = data == null ? null : SimpleJsonUtil.parse(data).get("air_temp");
+            if (airTemp.equals(seen)) return;
+            Thread.sleep(50);
+        }
+        fail("station " + stationId + " has air_temp " + seen + " on port " + port + ", expected " + airTemp);
+    }
+
+    @Test
+    void testBackupAppliesUpdatesAndPromotes() throws IOException, InterruptedException {
+        assertTrue(put(primaryPort, "REPL1", 5, "10").status.startsWith("201"));
+        assertTrue(put(primaryPort, "REPL1", 6, "11").status.startsWith("200"));
+        put(primaryPort, "REPL2", 7, "20");
+        awaitStation(backupPort, "REPL1", "11");
+        awaitStation(backupPort, "REPL2", "20");
+
+        // a backup refuses updates until it is promoted
+        assertTrue(put(backupPort, "REPL3", 8, "30").status.startsWith("503"));
+
+        Map<String, String> metrics = SimpleJsonUtil.parse(request(backupPort, "GET", "/metrics", null, null).body);
+        assertEquals("backup", metrics.get("replication.role"));
+        assertEquals("0", metrics.get("replication.lag_updates"));
+
+        HttpHelper.Response promoted = request(backupPort, "POST", "/promote", null, null);
+        assertTrue(promoted.status.startsWith("200"));
+        assertEquals("true", SimpleJsonUtil.parse(promoted.body).get("promoted"));
+
+        assertTrue(put(backupPort, "REPL3", 9, "30").status.startsWith("201"));
+        awaitStation(backupPort, "REPL3", "30");
+        // the promoted server's clock is past every replicated lamport, so an older update is stale
+        assertTrue(put(backupPort, "REPL1", 6, "99").body.contains("Stale"));
+        metrics = SimpleJsonUtil.parse(request(backupPort, "GET", "/metrics", null, null).body);
+        assertEquals("primary", metrics.get("replication.role"));
+    }
+}
@@ -10,9 +10,11 @@ import org.junit.jupiter.api.*;
 
 import java.io.*;
 import java.net.ServerSocket;
+import java.net.Socket;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.*;
 
@@ -230,6 +232,53 @@ public class ServerIntegrationTest {
                 "Data should have been removed as stale");
     }
 
+    /**
+     * Test that a PUT repeating an Idempotency-Key gets the first response and doesn't update the station again
+     *
+     * @throws IOException when socket fails
+     * @throws InterruptedException when sleep interrupted
+     */
+    @Test
+    void testRepeatedIdempotencyKeyIsNotAppliedTwice() throws IOException, InterruptedException {
+        try (Socket socket = connect()) {
+            Map<String, String> headers = new HashMap<>();
+            headers.put("Idempotency-Key", "retry-test-key");
+            headers.put("X-Lamport-Clock", "1");
+            HttpHelper.Response first = HttpHelper.sendRequest(socket, "PUT", "/", headers,
+                    "{\"id\":\"IDEMPOTENT1\",\"air_temp\":\"10\"}");
+            assertTrue(first.status.contains("201"));
+
+            // a retry ticks the lamport, the server must still recognise it by its key
+            headers.put("X-Lamport-Clock", "2");
+            HttpHelper.Response retry = HttpHelper.sendRequest(socket, "PUT", "/", headers,
+                    "{\"id\":\"IDEMPOTENT1\",\"air_temp\":\"20\"}");
+            assertEquals(first.status, retry.status);
+            assertEquals(first.body, retry.body);
+
+            Map<String, String> getHeaders = new HashMap<>();
+            getHeaders.put("stationId", "IDEMPOTENT1");
+            HttpHelper.Response get = HttpHelper.sendRequest(socket, "GET", "/", getHeaders, "");
+            assertEquals("10", SimpleJsonUtil.parse(SimpleJsonUtil.parse(get.body).get("IDEMPOTENT1")).get("air_temp"));
+        }
+    }
+
+    /**
+     * Helper function = connects to the aggregation server, waiting for it to start
+     * @return the connected socket
+     * @throws IOException if the server doesn't accept connections
+     * @throws InterruptedException when sleep interrupted
+     */
+    private Socket connect() throws IOException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return new Socket("localhost", TEST_PORT);
+            } catch (IOException e) {
+                if (attempt == 50) throw e;
+                Thread.sleep(100);
+            }
+        }
+    }
+
     /**
      * Helper function = creates a temporary station file
      * @param id stationId
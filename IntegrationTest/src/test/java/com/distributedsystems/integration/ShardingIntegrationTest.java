@@ -0,0 +1,131 @@
+package com.distributedsystems.integration;
+
+import com.distributedsystems.aggregationserver.AggregationServer;
+import com.distributedsystems.aggregationserver.ServerConfig;
+import com.distributedsystems.aggregationserver.ShardRebalancer;
+import com.distributedsystems.contentserver.ContentServer;
+import com.distributedsystems.getclient.GetClient;
+import com.distributedsystems.shared.HashRing;
+import com.distributedsystems.shared.HttpHelper;
+import com.distributedsystems.shared.SimpleJsonUtil;
+import org.junit.jupiter.api.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs three aggregation servers in this process, with in memory stores, as shards of one deployment
+ */
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class ShardingIntegrationTest {
+
+    private static final int STATIONS = 30;
+
+    private final List<String> shards = new ArrayList<>();
+    private final List<AggregationServer> servers = new ArrayList<>();
+    private final ExecutorService serverExecutor = Executors.newCachedThreadPool();
+
+    @BeforeAll
+    void startServers() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            int port;
+            try (ServerSocket socket = new ServerSocket(0)) {
+                port = socket.getLocalPort();
+            }
+            ServerConfig config = new ServerConfig(port);
+            config.storage = "memory";
+            AggregationServer server = new AggregationServer(config);
+            servers.add(server);
+            shards.add("localhost:" + port);
+            serverExecutor.submit(() -> {
+                try {
+                    server.start();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+    }
+
+    @AfterAll
+    void stopServers() {
+        for (AggregationServer server : servers) {
+            server.stop();
+        }
+        serverExecutor.shutdownNow();
+    }
+
+    private static File stationFile(String stationId, int airTemp) throws IOException {
+        File file = File.createTempFile("station-", ".txt");
+        file.deleteOnExit();
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write("id:" + stationId + "\nair_temp:" + airTemp + "\n");
+        }
+        return file;
+    }
+
+    /**
+     * @return the ids stored on one shard, read directly from it
+     */
+    private static Set<String> stationsOn(String shard) throws IOException {
+        int idx = shard.lastIndexOf(':');
+        try (Socket socket = new Socket(shard.substring(0, idx), Integer.parseInt(shard.substring(idx + 1)))) {
+            return SimpleJsonUtil.parse(HttpHelper.sendRequest(socket, "GET", "/", null, "").body).keySet();
+        }
+    }
+
+    @Test
+    void testRoutingScatterGatherAndRebalance() throws IOException, InterruptedException {
+        List<String> firstTwo = shards.subList(0, 2);
+        ContentServer contentServer = new ContentServer();
+        contentServer.startConnection(firstTwo);
+        for (int i = 0; i < STATIONS; i++) {
+            HttpHelper.Response response = contentServer.sendData(stationFile("SHARD" + i, i));
+            assertTrue(response.status.startsWith("201"), response.status);
+        }
+        contentServer.stopConnection();
+
+        // every station is on the shard that owns it, and only there
+        HashRing ring = new HashRing(firstTwo);
+        Set<String> first = stationsOn(firstTwo.get(0));
+        Set<String> second = stationsOn(firstTwo.get(1));
+        assertEquals(STATIONS, first.size() + second.size());
+        for (String stationId : first) {
+            assertEquals(firstTwo.get(0), ring.nodeFor(stationId));
+        }
+
+        GetClient getClient = new GetClient();
+        getClient.startConnection(firstTwo);
+        assertEquals(STATIONS, SimpleJsonUtil.parse(getClient.requestStationData(null).body).size());
+        Map<String, String> one = SimpleJsonUtil.parse(getClient.requestStationData("SHARD7").body);
+        assertEquals("7", SimpleJsonUtil.parse(one.get("SHARD7")).get("air_temp"));
+        getClient.stopConnection();
+
+        // add the third shard - only the stations it now owns move, and they move to it
+        int moved = new ShardRebalancer(shards, false).rebalance();
+        HashRing grown = new HashRing(shards);
+        Set<String> third = stationsOn(shards.get(2));
+        assertEquals(moved, third.size());
+        assertTrue(moved > 0);
+        for (String shard : shards) {
+            for (String stationId : stationsOn(shard)) {
+                assertEquals(shard, grown.nodeFor(stationId));
+            }
+        }
+
+        getClient = new GetClient();
+        getClient.startConnection(shards);
+        assertEquals(STATIONS, SimpleJsonUtil.parse(getClient.requestStationData(null).body).size());
+        String movedId = third.iterator().next();
+        assertTrue(getClient.requestStationData(movedId).body.contains(movedId));
+        getClient.stopConnection();
+    }
+}
@@ -1,15 +1,62 @@
 package com.distributedsystems.shared;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class AggregationServerClient {
     protected Socket clientSocket;
     protected final LamportClock clock = new LamportClock();
 
+    // with more than one shard, stations are spread over the shards by a consistent hash of their id
+    // clientSocket is the connection to the first shard
+    protected HashRing ring;
+    protected final Map<String, Shard> shards = new LinkedHashMap<>();
+
     protected static final int BASE_WAIT_TIME_MS = 10;
     protected static final int MAX_REQUEST_ATTEMPTS = 10;
 
+    // a server that doesn't accept the connection within this time is treated as down and the next endpoint is tried
+    protected static final int CONNECT_TIMEOUT_MS = 1000;
+
+    // a read still unanswered after the p95 of recent reads is sent again to the shard's next endpoint
+    protected static final double HEDGE_PERCENTILE = 95;
+    // until this many reads have been timed the hedge waits DEFAULT_HEDGE_MS
+    protected static final int MIN_HEDGE_SAMPLES = 20;
+    protected static final long DEFAULT_HEDGE_MS = 50;
+    protected static final long MIN_HEDGE_NANOS = 1_000_000;
+
+    private final LatencyRecorder readLatency = new LatencyRecorder();
+    private final AtomicLong hedgedReads = new AtomicLong();
+    private final AtomicLong hedgesWon = new AtomicLong();
+
+    // sends the requests of a scatter-gather and hedged reads
+    private static final ExecutorService requestPool = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "client-request");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * One shard - the endpoints serving it (a primary and its backups) and the connection to the one in use
+     */
+    protected static final class Shard {
+        final String name;
+        final List<String> endpoints;
+        int current = 0;
+        Socket socket;
+
+        Shard(List<String> endpoints) {
+            this.name = endpoints.get(0);
+            this.endpoints = endpoints;
+        }
+    }
+
     /**
      * Attempts to connect to the server with unlimited retries
      *      - client will attempt to connect to server
@@ -21,21 +68,70 @@ public class AggregationServerClient {
      * @throws InterruptedException if client is interrupted we pass the interruption down to main.
      */
     protected void connectWithRetry(String host, int port) throws InterruptedException {
+        startConnection(List.of(host + ":" + port));
+    }
+
+    /**
+     * Connects a shard, trying its endpoints in turn from startIndex - an endpoint that refuses or doesn't accept
+     * within CONNECT_TIMEOUT_MS is skipped at once, the client only sleeps (exponential backoff + jitter) once every
+     * endpoint has failed, and retries without limit
+     *
+     * @param shard shard to connect
+     * @param startIndex endpoint tried first
+     * @throws InterruptedException if client is interrupted we pass the interruption down to main.
+     */
+    protected void connectShard(Shard shard, int startIndex) throws InterruptedException {
         int attempts = 0;
         while (true) {
+            if (tryConnectShard(shard, startIndex)) return;
+            attempts++;
+            int sleepTime = (int) (BASE_WAIT_TIME_MS * (Math.pow(2, Math.min(attempts, MAX_REQUEST_ATTEMPTS)) - 1) * Math.random());
+            System.err.println("Connection failed (attempt " + attempts + "). Retrying in " + sleepTime + "ms...");
+            Thread.sleep(sleepTime);
+        }
+    }
+
+    /**
+     * Tries each endpoint of a shard once, from startIndex, without sleeping
+     *
+     * @param shard shard to connect
+     * @param startIndex endpoint tried first
+     * @return true if an endpoint accepted the connection
+     * @throws InterruptedException if client is interrupted we pass the interruption down to main.
+     */
+    private boolean tryConnectShard(Shard shard, int startIndex) throws InterruptedException {
+        for (int i = 0; i < shard.endpoints.size(); i++) {
+            int index = (startIndex + i) % shard.endpoints.size();
+            String endpoint = shard.endpoints.get(index);
             clock.tick();
             try {
-                this.clientSocket = new Socket(host, port);
-                updateClockViaRequest();
-                System.out.println("Connected to server at " + host + ":" + port);
-                return;
+                Socket socket = open(endpoint);
+                updateClockViaRequest(socket);
+                shard.socket = socket;
+                shard.current = index;
+                if (shard == shards.values().iterator().next()) clientSocket = socket;
+                System.out.println("Connected to server at " + endpoint);
+                return true;
             } catch (IOException e) {
-                attempts++;
-                int sleepTime = (int) (BASE_WAIT_TIME_MS * (Math.pow(2, Math.min(attempts, MAX_REQUEST_ATTEMPTS)) - 1) * Math.random());
-                System.err.println("Connection failed (attempt " + attempts + "). Retrying in " + sleepTime + "ms...");
-                Thread.sleep(sleepTime);
+                System.err.println("Connection to " + endpoint + " failed: " + e.getMessage());
             }
         }
+        return false;
+    }
+
+    private static Socket open(String endpoint) throws IOException {
+        int idx = endpoint.lastIndexOf(':');
+        Socket socket = new Socket();
+        // requests are written a line at a time, don't let Nagle hold them back past the hedge budget
+        socket.setTcpNoDelay(true);
+        try {
+            socket.connect(new InetSocketAddress(endpoint.substring(0, idx), Integer.parseInt(endpoint.substring(idx + 1))),
+                    CONNECT_TIMEOUT_MS);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
     }
 
     /**
@@ -45,6 +141,10 @@ public class AggregationServerClient {
      * @throws IOException if Socket fails or disconnects
      */
     public void updateClockViaRequest() throws InterruptedException, IOException {
+        updateClockViaRequest(clientSocket);
+    }
+
+    private void updateClockViaRequest(Socket socket) throws InterruptedException, IOException {
         HttpHelper.Response response = null;
         for (int i = 0; i < MAX_REQUEST_ATTEMPTS; i++) {
             clock.tick();
@@ -54,7 +154,7 @@ public class AggregationServerClient {
             Thread.sleep(sleepTime);
 
             response = HttpHelper.sendRequest(
-                    clientSocket,
+                    socket,
                     "GET",
                     "/lamport",
                     null,
@@ -80,6 +180,270 @@ public class AggregationServerClient {
         connectWithRetry(host, port);
     }
 
+    /**
+     * Connects to every shard of a deployment. Each shard is "host:port" or a list of endpoints serving the same
+     * stations, "host:port|host:port|..", primary first. Stations are placed on shards by the first endpoint of each
+     * shard, so every client must list the same shards, in any order.
+     *
+     * @param shardSpecs one entry per shard
+     * @throws InterruptedException if interrupted while sleeping
+     */
+    public void startConnection(List<String> shardSpecs) throws InterruptedException {
+        useShards(shardSpecs);
+        for (Shard shard : shards.values()) {
+            connectShard(shard, 0);
+        }
+    }
+
+    /**
+     * Sets the shards requests are sent to without connecting, see startConnection(List) for the format
+     *
+     * @param shardSpecs one entry per shard
+     */
+    protected void useShards(List<String> shardSpecs) {
+        shards.clear();
+        for (String spec : shardSpecs) {
+            Shard shard = new Shard(List.of(spec.split("\\|")));
+            shards.put(shard.name, shard);
+        }
+        ring = new HashRing(shards.keySet());
+    }
+
+    /**
+     * Closes every connection and connects again, e.g. after a request failed with an IOException - each shard tries
+     * the endpoint it was using first and fails over to its other endpoints if that one is down
+     *
+     * @throws InterruptedException if interrupted while sleeping
+     */
+    public void reconnect() throws InterruptedException {
+        stopConnection();
+        for (Shard shard : shards.values()) {
+            connectShard(shard, shard.current);
+        }
+    }
+
+    /**
+     * Closes every connection and tries each endpoint of every shard once, without the retry backoff - for callers
+     * that have other work to do while the servers are down
+     *
+     * @return true if every shard is connected
+     * @throws InterruptedException if interrupted
+     */
+    public boolean tryReconnect() throws InterruptedException {
+        stopConnection();
+        for (Shard shard : shards.values()) {
+            if (!tryConnectShard(shard, shard.current)) {
+                stopConnection();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves the shard whose connection is socket on to its next endpoint - e.g. when its server is a backup that
+     * refuses updates
+     *
+     * @param socket connection the request was sent on
+     * @throws InterruptedException if interrupted while sleeping
+     */
+    protected void failover(Socket socket) throws InterruptedException {
+        for (Shard shard : shards.values()) {
+            if (shard.socket != socket) continue;
+            close(shard.socket);
+            connectShard(shard, shard.current + 1);
+            return;
+        }
+    }
+
+    /**
+     * @param stationId station a request is about, null for none
+     * @return the connection to the shard that owns the station
+     */
+    protected Socket socketFor(String stationId) {
+        if (ring == null || stationId == null) return clientSocket;
+        return shards.get(ring.nodeFor(stationId)).socket;
+    }
+
+    /**
+     * @return number of reads that were sent a second time because the first endpoint was slow
+     */
+    public long hedgedReads() {
+        return hedgedReads.get();
+    }
+
+    /**
+     * @return number of hedged reads answered by the second endpoint while the first was still pending - not
+     *         counting reads the second endpoint answered because the first failed
+     */
+    public long hedgesWon() {
+        return hedgesWon.get();
+    }
+
+    /**
+     * @return latency of reads as seen by the caller, hedging included
+     */
+    public LatencyRecorder readLatency() {
+        return readLatency;
+    }
+
+    /**
+     * Sends a GET for one station (or every station if stationId is null and there is one shard) to the shard that
+     * owns it, hedged across the shard's endpoints
+     *
+     * @param stationId station read, null for none
+     * @param path request path
+     * @param headers request headers
+     * @return the response
+     * @throws IOException if every endpoint tried failed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    protected HttpHelper.Response read(String stationId, String path, Map<String, String> headers)
+            throws IOException, InterruptedException {
+        if (ring == null) {
+            return HttpHelper.sendRequest(clientSocket, "GET", path, headers, "");
+        }
+        Shard shard = stationId == null ? shards.values().iterator().next() : shards.get(ring.nodeFor(stationId));
+        return hedgedRead(shard, path, headers);
+    }
+
+    /**
+     * Sends a GET to the shard's current endpoint. If it hasn't answered within the p95 of recent reads and the shard
+     * has another endpoint, the same GET is sent there on a new connection and the first answer is used. When the
+     * hedge wins, the shard switches to the faster endpoint and the slow connection is closed (it still owes a
+     * response, so it can't be reused).
+     */
+    private HttpHelper.Response hedgedRead(Shard shard, String path, Map<String, String> headers)
+            throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        Socket socket = shard.socket;
+        CompletableFuture<HttpHelper.Response> first = send(socket, path, headers);
+        try {
+            if (shard.endpoints.size() < 2) {
+                HttpHelper.Response response = first.get();
+                readLatency.record(System.nanoTime() - start);
+                return response;
+            }
+            try {
+                HttpHelper.Response response = first.get(hedgeBudgetNanos(), TimeUnit.NANOSECONDS);
+                readLatency.record(System.nanoTime() - start);
+                return response;
+            } catch (TimeoutException slow) {
+                hedgedReads.incrementAndGet();
+            } catch (ExecutionException failed) {
+                // fall through and hedge at once, the reconnect below picks a working endpoint
+            }
+
+            int hedgeIndex = (shard.current + 1) % shard.endpoints.size();
+            Socket hedgeSocket;
+            try {
+                hedgeSocket = open(shard.endpoints.get(hedgeIndex));
+            } catch (IOException down) {
+                // nothing to hedge with, wait for the first endpoint
+                HttpHelper.Response response = first.get();
+                readLatency.record(System.nanoTime() - start);
+                return response;
+            }
+            CompletableFuture<HttpHelper.Response> hedge = send(hedgeSocket, path, headers);
+
+            CompletableFuture<HttpHelper.Response> winner = new CompletableFuture<>();
+            AtomicInteger failures = new AtomicInteger();
+            // only a hedge answering while the first request is still in flight is a win, after a failed first
+            // request it is failover. Set before completing the winner, so the reader below sees it
+            AtomicBoolean firstPending = new AtomicBoolean();
+            for (CompletableFuture<HttpHelper.Response> attempt : List.of(first, hedge)) {
+                attempt.whenComplete((response, error) -> {
+                    if (error == null) {
+                        if (attempt == hedge && !first.isDone()) firstPending.set(true);
+                        winner.complete(response);
+                    } else if (failures.incrementAndGet() == 2) {
+                        winner.completeExceptionally(error);
+                    }
+                });
+            }
+            HttpHelper.Response response;
+            try {
+                response = winner.get();
+            } catch (ExecutionException bothFailed) {
+                close(hedgeSocket);
+                throw bothFailed;
+            }
+            readLatency.record(System.nanoTime() - start);
+
+            if (first.isDone() && !first.isCompletedExceptionally() && first.getNow(null) == response) {
+                close(hedgeSocket);
+            } else {
+                // the hedge answered first, or the first endpoint failed - keep its connection and drop the other
+                if (firstPending.get()) hedgesWon.incrementAndGet();
+                close(socket);
+                updateClockViaRequest(hedgeSocket);
+                shard.socket = hedgeSocket;
+                shard.current = hedgeIndex;
+                if (shard == shards.values().iterator().next()) clientSocket = hedgeSocket;
+            }
+            return response;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException("Request failed", e.getCause());
+        }
+    }
+
+    private long hedgeBudgetNanos() {
+        if (readLatency.count() < MIN_HEDGE_SAMPLES) return TimeUnit.MILLISECONDS.toNanos(DEFAULT_HEDGE_MS);
+        return Math.max(MIN_HEDGE_NANOS, readLatency.percentileNanos(HEDGE_PERCENTILE));
+    }
+
+    private static CompletableFuture<HttpHelper.Response> send(Socket socket, String path, Map<String, String> headers) {
+        Map<String, String> requestHeaders = headers == null ? new HashMap<>() : new HashMap<>(headers);
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return HttpHelper.sendRequest(socket, "GET", path, requestHeaders, "");
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, requestPool);
+    }
+
+    /**
+     * Sends a GET to every shard at once and merges the json object bodies of the responses - used for requests
+     * that cover every station. A request that fails on any shard returns that shard's response.
+     *
+     * @param path request path
+     * @param headers request headers, the same for every shard
+     * @return the merged response, or the first failed one
+     * @throws IOException if a shard's connection fails
+     * @throws InterruptedException if interrupted while waiting for the shards
+     */
+    protected HttpHelper.Response scatterGather(String path, Map<String, String> headers)
+            throws IOException, InterruptedException {
+        if (shards.size() <= 1) {
+            return read(null, path, headers);
+        }
+        List<Future<HttpHelper.Response>> futures = new ArrayList<>();
+        for (Shard shard : shards.values()) {
+            futures.add(requestPool.submit(() -> hedgedRead(shard, path, headers)));
+        }
+
+        HttpHelper.Response merged = null;
+        Map<String, String> stations = new HashMap<>();
+        for (Future<HttpHelper.Response> future : futures) {
+            HttpHelper.Response response;
+            try {
+                response = future.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                throw new IOException("Shard request failed", e.getCause());
+            }
+            updateLamportWithResponse(response);
+            if (!response.status.contains("200")) return response;
+            stations.putAll(SimpleJsonUtil.parse(response.body));
+            if (merged == null) merged = response;
+        }
+        merged.body = SimpleJsonUtil.stringify(stations);
+        merged.headers.put("X-Lamport-Clock", String.valueOf(clock.get()));
+        return merged;
+    }
+
     /**
      * Helper function that tries to update the lamport clock using a request
      * @param response The response sent from the Aggregation Server
@@ -92,14 +456,22 @@ public class AggregationServerClient {
         }
     }
 
+    private static void close(Socket socket) {
+        if (socket == null) return;
+        try {
+            socket.close();
+        } catch (IOException ignored){
+            // already closed swallowing error
+        }
+    }
+
     /**
      * Attempts to stop the connection - can be used without checking connection status etc.
      */
     public void stopConnection() {
-        try {
-            clientSocket.close();
-        } catch (IOException ignored){
-            // already closed swallowing error
+        close(clientSocket);
+        for (Shard shard : shards.values()) {
+            close(shard.socket);
         }
     }
 }
@@ -0,0 +1,78 @@
+package com.distributedsystems.shared;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Consistent hash ring mapping station ids to the aggregation server (shard) that owns them.
+ *
+ * Each node is placed on the ring at VIRTUAL_NODES points and a key belongs to the first point at or after its
+ * hash, wrapping around. Adding a node only moves the keys that now fall just before its points, about 1 / N of
+ * them, and every moved key moves to the new node. Hashes are the first 8 bytes of MD5 so every client (and every
+ * JVM) places keys the same way.
+ */
+public class HashRing {
+    static final int VIRTUAL_NODES = 160;
+
+    private final TreeMap<Long, String> points = new TreeMap<>();
+    private final List<String> nodes = new ArrayList<>();
+
+    /**
+     * Creates a ring
+     * @param nodes node names, e.g. "host:port"
+     */
+    public HashRing(Collection<String> nodes) {
+        for (String node : nodes) {
+            addNode(node);
+        }
+    }
+
+    /**
+     * Adds a node to the ring, nothing happens if it is already there
+     * @param node node name
+     */
+    public void addNode(String node) {
+        if (nodes.contains(node)) return;
+        nodes.add(node);
+        for (int i = 0; i < VIRTUAL_NODES; i++) {
+            // on a (very unlikely) collision the smaller name keeps the point, so the order nodes are added in doesn't matter
+            points.merge(hash(node + "#" + i), node, (current, added) -> current.compareTo(added) <= 0 ? current : added);
+        }
+    }
+
+    /**
+     * @return the nodes in the order they were added
+     */
+    public List<String> nodes() {
+        return Collections.unmodifiableList(nodes);
+    }
+
+    /**
+     * Returns the node that owns a key
+     * @param key station id
+     * @return the owning node
+     * @throws IllegalStateException if the ring has no nodes
+     */
+    public String nodeFor(String key) {
+        if (points.isEmpty()) {
+            throw new IllegalStateException("Hash ring has no nodes");
+        }
+        Map.Entry<Long, String> point = points.ceilingEntry(hash(key));
+        return point != null ? point.getValue() : points.firstEntry().getValue();
+    }
+
+    static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
+}
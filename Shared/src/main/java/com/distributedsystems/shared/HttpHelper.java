@@ -2,8 +2,13 @@ package com.distributedsystems.shared;
 
 import java.io.*;
 import java.net.Socket;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.zip.GZIPInputStream;
 
 /**
  * HTTP Helper class that contains utility functions and classes
@@ -14,6 +19,8 @@ public class HttpHelper {
         public String path;
         public String version;
         public Map<String, String> headers = new HashMap<>();
+        // query string parameters, the query string itself is not part of path
+        public Map<String, String> query = new HashMap<>();
         public String body;
 
         @Override
@@ -22,6 +29,24 @@ public class HttpHelper {
         }
     }
 
+    /**
+     * Parses a query string ("a=1&b=2") into its url decoded parameters - a parameter without "=" gets the value ""
+     *
+     * @param queryString query string without the leading "?"
+     * @return map of parameter : value
+     */
+    public static Map<String, String> parseQuery(String queryString) {
+        Map<String, String> query = new HashMap<>();
+        for (String param : queryString.split("&")) {
+            if (param.isEmpty()) continue;
+            int idx = param.indexOf('=');
+            String key = idx >= 0 ? param.substring(0, idx) : param;
+            String value = idx >= 0 ? param.substring(idx + 1) : "";
+            query.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return query;
+    }
+
     public static class Response {
         public String version;
         public String status;
@@ -73,6 +98,148 @@ public class HttpHelper {
     }
 
 
+    /**
+     * Reads a response from a byte stream - the body is read as bytes (Content-Length counts bytes, not chars) and
+     * decoded as utf-8, a Transfer-Encoding: chunked body is read chunk by chunk until the last chunk and a
+     * Content-Encoding: gzip body is decompressed
+     *
+     * @param in the socket's input stream, buffered by the caller
+     * @return the response
+     * @throws IOException if the connection closes or the response is malformed
+     */
+    public static Response readResponse(InputStream in) throws IOException {
+        Response res = readResponseHead(in);
+        String contentLength = header(res.headers, "Content-Length");
+        boolean chunked = "chunked".equalsIgnoreCase(header(res.headers, "Transfer-Encoding"));
+        byte[] body = chunked ? readChunkedBody(in)
+                : readFully(in, contentLength == null ? 0 : Integer.parseInt(contentLength.trim()));
+        if ("gzip".equalsIgnoreCase(header(res.headers, "Content-Encoding"))) {
+            try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(body))) {
+                body = gzip.readAllBytes();
+            }
+        }
+        res.body = new String(body, StandardCharsets.UTF_8);
+        return res;
+    }
+
+    /**
+     * Reads the status line and headers of a response from a byte stream, leaving the body unread - for responses
+     * whose body is read as a stream, e.g. replication
+     *
+     * @param in the socket's input stream, buffered by the caller
+     * @return the response with an empty body
+     * @throws IOException if the connection closes or the response is malformed
+     */
+    public static Response readResponseHead(InputStream in) throws IOException {
+        Response res = new Response();
+        String statusLine = readLine(in);
+        if (statusLine == null || statusLine.isEmpty()) {
+            throw new IOException("Not Connected to Server");
+        }
+
+        String[] parts = statusLine.split(" ", 3);
+        if (parts.length >= 2) {
+            res.version = parts[0];
+            res.status = parts[1] + (parts.length == 3 ? " " + parts[2] : "");
+        }
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            int idx = line.indexOf(":");
+            if (idx > 0) {
+                res.headers.put(line.substring(0, idx).trim(), line.substring(idx + 1).trim());
+            }
+        }
+        res.body = "";
+        return res;
+    }
+
+    /**
+     * Reads a chunked body - hex chunk sizes each followed by that many bytes, ending with a 0 size chunk and
+     * optional trailer lines
+     */
+    private static byte[] readChunkedBody(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        while (true) {
+            String sizeLine = readLine(in);
+            if (sizeLine == null) throw new IOException("Connection closed inside a chunked body");
+            int extension = sizeLine.indexOf(';');
+            int size = Integer.parseInt((extension >= 0 ? sizeLine.substring(0, extension) : sizeLine).trim(), 16);
+            if (size == 0) break;
+            body.write(readFully(in, size));
+            readLine(in); // CRLF after the chunk data
+        }
+        String trailer;
+        while ((trailer = readLine(in)) != null && !trailer.isEmpty()) {
+            // trailers are not used
+        }
+        return body.toByteArray();
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] bytes = in.readNBytes(length);
+        if (bytes.length != length) throw new IOException("Connection closed after " + bytes.length + " of " + length + " bytes");
+        return bytes;
+    }
+
+    /**
+     * Reads a line ending in "\n" or "\r\n" from a byte stream
+     * @return the line without its line ending, null if the stream ended before any byte
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) return null;
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Looks up a header ignoring the case of its name
+     *
+     * @param headers headers of a request or response
+     * @param name header name
+     * @return the header value, null if the header is not present
+     */
+    public static String header(Map<String, String> headers, String name) {
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            if (entry.getKey().equalsIgnoreCase(name)) return entry.getValue();
+        }
+        return null;
+    }
+
+    /**
+     * Checks whether a request's Accept-Encoding allows a gzip body - "gzip" or "*" without q=0
+     *
+     * @param headers request headers
+     * @return true if the response may be gzip encoded
+     */
+    public static boolean acceptsGzip(Map<String, String> headers) {
+        String acceptEncoding = header(headers, "Accept-Encoding");
+        if (acceptEncoding == null) return false;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] params = coding.split(";");
+            String name = params[0].trim();
+            if (!name.equalsIgnoreCase("gzip") && !name.equals("*")) continue;
+            boolean refused = false;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        refused = Double.parseDouble(param.substring(2)) == 0;
+                    } catch (NumberFormatException e) {
+                        refused = true;
+                    }
+                }
+            }
+            if (!refused) return true;
+        }
+        return false;
+    }
+
     public static Request readRequest(BufferedReader in) throws IOException {
         Request req = new Request();
 
@@ -86,6 +253,12 @@ public class HttpHelper {
             req.method = parts[0];
             req.path = parts[1];
             req.version = parts[2];
+
+            int queryStart = req.path.indexOf('?');
+            if (queryStart >= 0) {
+                req.query = parseQuery(req.path.substring(queryStart + 1));
+                req.path = req.path.substring(0, queryStart);
+            }
         }
 
         // Headers
@@ -115,25 +288,216 @@ public class HttpHelper {
     }
 
     public static void sendResponse(PrintWriter out, String status, int lamport, String body) {
+        sendResponse(out, status, lamport, null, body);
+    }
+
+    /**
+     * Sends a response with headers besides the usual ones, e.g. Retry-After
+     *
+     * @param out the output stream to respond on
+     * @param status the status e.g. "429 Too Many Requests"
+     * @param lamport lamport clock value to send
+     * @param headers extra headers, null for none
+     * @param body the body
+     */
+    public static void sendResponse(PrintWriter out, String status, int lamport, Map<String, String> headers, String body) {
         if (body == null) body = "";
         byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
 
         out.println("HTTP/1.1 " + status);
         out.println("Content-Type: application/json; charset=UTF-8");
         out.println("X-Lamport-Clock: " + lamport);
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                out.println(header.getKey() + ": " + header.getValue());
+            }
+        }
         out.println("Content-Length: " + bodyBytes.length);
         out.println();
         out.write(body);
         out.flush();
     }
 
+    /**
+     * Sends a response whose body is made of raw byte buffers - lets callers send stored bytes without decoding
+     * them into a String first. The buffers' positions are not changed.
+     *
+     * @param out the socket's output stream - anything buffered in a writer on the same stream must be flushed first
+     * @param status the status e.g. "200 OK"
+     * @param lamport lamport clock value to send
+     * @param bodyParts buffers that are sent one after the other as the body
+     * @throws IOException if writing to the stream fails
+     */
+    public static void sendResponse(OutputStream out, String status, int lamport, ByteBuffer... bodyParts) throws IOException {
+        sendResponse(out, status, lamport, null, bodyParts);
+    }
+
+    /**
+     * Sends a response whose body is made of raw byte buffers that are already encoded, e.g. gzip compressed
+     *
+     * @param out the socket's output stream - anything buffered in a writer on the same stream must be flushed first
+     * @param status the status e.g. "200 OK"
+     * @param lamport lamport clock value to send
+     * @param contentEncoding Content-Encoding of the body, null if it is not encoded
+     * @param bodyParts buffers that are sent one after the other as the body
+     * @throws IOException if writing to the stream fails
+     */
+    public static void sendResponse(OutputStream out, String status, int lamport, String contentEncoding,
+                                    ByteBuffer... bodyParts) throws IOException {
+        long contentLength = 0;
+        for (ByteBuffer part : bodyParts) {
+            contentLength += part.remaining();
+        }
+
+        String head = "HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: application/json; charset=UTF-8\r\n"
+                + "X-Lamport-Clock: " + lamport + "\r\n"
+                + (contentEncoding == null ? "" : "Content-Encoding: " + contentEncoding + "\r\nVary: Accept-Encoding\r\n")
+                + "Content-Length: " + contentLength + "\r\n"
+                + "\r\n";
+        out.write(head.getBytes(StandardCharsets.UTF_8));
+
+        WritableByteChannel channel = Channels.newChannel(out);
+        for (ByteBuffer part : bodyParts) {
+            ByteBuffer view = part.duplicate();
+            while (view.hasRemaining()) {
+                channel.write(view);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Sends only the status line and headers of a response - the caller then writes exactly contentLength bytes of
+     * body, e.g. by transferring a file
+     *
+     * @param out the socket's output stream - anything buffered in a writer on the same stream must be flushed first
+     * @param status the status e.g. "200 OK"
+     * @param lamport lamport clock value to send
+     * @param contentType Content-Type of the body
+     * @param contentLength length of the body in bytes
+     * @throws IOException if writing to the stream fails
+     */
+    public static void sendResponseHead(OutputStream out, String status, int lamport, String contentType,
+                                        long contentLength) throws IOException {
+        String head = "HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "X-Lamport-Clock: " + lamport + "\r\n"
+                + "Content-Length: " + contentLength + "\r\n"
+                + "\r\n";
+        out.write(head.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Output stream for a Transfer-Encoding: chunked body - bytes are buffered and sent as one chunk when the buffer
+     * fills or on flush(), close() sends the last (empty) chunk. Closing does not close the socket stream.
+     */
+    public static class ChunkedOutputStream extends OutputStream {
+        private static final byte[] CRLF = {'\r', '\n'};
+        private final OutputStream out;
+        private final byte[] buffer;
+        private int count = 0;
+        private boolean closed = false;
+
+        ChunkedOutputStream(OutputStream out, int bufferSize) {
+            this.out = out;
+            this.buffer = new byte[bufferSize];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) writeChunk();
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buffer.length) writeChunk();
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void writeChunk() throws IOException {
+            if (count == 0) return;
+            out.write(Integer.toHexString(count).getBytes(StandardCharsets.US_ASCII));
+            out.write(CRLF);
+            out.write(buffer, 0, count);
+            out.write(CRLF);
+            count = 0;
+        }
+
+        /**
+         * Sends everything written so far as a chunk
+         */
+        @Override
+        public void flush() throws IOException {
+            writeChunk();
+            out.flush();
+        }
+
+        /**
+         * Sends the remaining bytes and the last chunk
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            writeChunk();
+            out.write('0');
+            out.write(CRLF);
+            out.write(CRLF);
+            out.flush();
+        }
+    }
+
+    /**
+     * Starts a response whose body is sent with Transfer-Encoding: chunked - for bodies that are produced a piece at
+     * a time, so the length isn't known when the headers are sent
+     *
+     * @param out the socket's output stream - anything buffered in a writer on the same stream must be flushed first
+     * @param status the status e.g. "200 OK"
+     * @param lamport lamport clock value to send
+     * @return stream for the body - must be closed to end the response
+     * @throws IOException if writing to the stream fails
+     */
+    public static ChunkedOutputStream startChunkedResponse(OutputStream out, String status, int lamport) throws IOException {
+        return startChunkedResponse(out, status, lamport, null);
+    }
+
+    /**
+     * Starts a chunked response whose body is encoded, e.g. gzip compressed - the caller encodes what it writes
+     *
+     * @param out the socket's output stream - anything buffered in a writer on the same stream must be flushed first
+     * @param status the status e.g. "200 OK"
+     * @param lamport lamport clock value to send
+     * @param contentEncoding Content-Encoding of the body, null if it is not encoded
+     * @return stream for the body - must be closed to end the response
+     * @throws IOException if writing to the stream fails
+     */
+    public static ChunkedOutputStream startChunkedResponse(OutputStream out, String status, int lamport,
+                                                           String contentEncoding) throws IOException {
+        String head = "HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: application/json; charset=UTF-8\r\n"
+                + "X-Lamport-Clock: " + lamport + "\r\n"
+                + (contentEncoding == null ? "" : "Content-Encoding: " + contentEncoding + "\r\nVary: Accept-Encoding\r\n")
+                + "Transfer-Encoding: chunked\r\n"
+                + "\r\n";
+        out.write(head.getBytes(StandardCharsets.UTF_8));
+        return new ChunkedOutputStream(out, 16 * 1024);
+    }
+
     public static Response sendRequest(Socket socket, String method, String path, Map<String, String> headers, String body) throws IOException {
         if (body == null) body = "";
         byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
         if (headers == null) headers = new HashMap<>();
 
         PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
-        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        InputStream in = new BufferedInputStream(socket.getInputStream());
 
         out.println(method + " " + path + " HTTP/1.1");
 
@@ -0,0 +1,74 @@
+package com.distributedsystems.shared;
+
+import java.util.Arrays;
+
+/**
+ * Records latency samples in a fixed size window and reports percentiles over the most recent samples
+ */
+public class LatencyRecorder {
+    private static final int DEFAULT_WINDOW = 1024;
+
+    private final long[] samplesNanos;
+    private int next = 0;
+    private int size = 0;
+    private long count = 0;
+
+    /**
+     * Creates a recorder that keeps the last 1024 samples
+     */
+    public LatencyRecorder() {
+        this(DEFAULT_WINDOW);
+    }
+
+    /**
+     * Creates a recorder that keeps the last windowSize samples
+     * @param windowSize number of samples percentiles are calculated over
+     */
+    public LatencyRecorder(int windowSize) {
+        this.samplesNanos = new long[windowSize];
+    }
+
+    /**
+     * Adds a sample, overwriting the oldest one once the window is full
+     * @param nanos the latency in nanoseconds
+     */
+    public synchronized void record(long nanos) {
+        samplesNanos[next] = nanos;
+        next = (next + 1) % samplesNanos.length;
+        size = Math.min(size + 1, samplesNanos.length);
+        count++;
+    }
+
+    /**
+     * @return total number of samples ever recorded
+     */
+    public synchronized long count() {
+        return count;
+    }
+
+    /**
+     * Returns the latency at a percentile of the samples currently in the window
+     *
+     * @param percentile value between 0 and 100
+     * @return the latency in nanoseconds, 0 if nothing has been recorded
+     */
+    public long percentileNanos(double percentile) {
+        long[] sorted;
+        synchronized (this) {
+            if (size == 0) return 0;
+            sorted = Arrays.copyOf(samplesNanos, size);
+        }
+        Arrays.sort(sorted);
+        int idx = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(idx, sorted.length - 1))];
+    }
+
+    /**
+     * Helper for reporting - returns a percentile in milliseconds
+     * @param percentile value between 0 and 100
+     * @return the latency in milliseconds
+     */
+    public double percentileMillis(double percentile) {
+        return percentileNanos(percentile) / 1_000_000.0;
+    }
+}
@@ -0,0 +1,131 @@
+package com.distributedsystems.shared;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for AggregationServerClient failover and hedged reads, against fake servers
+ */
+public class AggregationServerClientTest {
+
+    private final List<ServerSocket> servers = new ArrayList<>();
+
+    /**
+     * Starts a fake server answering /lamport at once and every other GET with its name after a delay, or dropping
+     * the connection instead when the delay is negative
+     * @return "localhost:port"
+     */
+    private String fakeServer(String name, long getDelayMillis) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(0);
+        servers.add(serverSocket);
+        Thread acceptor = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket client = serverSocket.accept();
+                    Thread handler = new Thread(() -> serve(client, name, getDelayMillis));
+                    handler.setDaemon(true);
+                    handler.start();
+                } catch (IOException ignored) {}
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return "localhost:" + serverSocket.getLocalPort();
+    }
+
+    private static void serve(Socket client, String name, long getDelayMillis) {
+        try (Socket socket = client;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true)) {
+            HttpHelper.Request req;
+            while ((req = HttpHelper.readRequest(in)) != null) {
+                if (!req.path.equals("/lamport")) {
+                    if (getDelayMillis < 0) return;
+                    Thread.sleep(getDelayMillis);
+                }
+                HttpHelper.sendResponse(out, "200 OK", 1, "{\"server\":\"" + name + "\"}");
+            }
+        } catch (IOException | InterruptedException ignored) {}
+    }
+
+    private static String deadEndpoint() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return "localhost:" + socket.getLocalPort();
+        }
+    }
+
+    @After
+    public void stopServers() throws IOException {
+        for (ServerSocket server : servers) {
+            server.close();
+        }
+    }
+
+    private static String server(HttpHelper.Response response) {
+        return SimpleJsonUtil.parse(response.body).get("server");
+    }
+
+    @Test
+    public void testFailsOverPastDeadEndpoint() throws Exception {
+        String live = fakeServer("live", 0);
+        AggregationServerClient client = new AggregationServerClient();
+        long start = System.nanoTime();
+        client.startConnection(List.of(deadEndpoint() + "|" + live));
+        // a refused connection moves on at once, without the retry backoff
+        assertTrue(System.nanoTime() - start < 2_000_000_000L);
+        assertEquals("live", server(client.read(null, "/", null)));
+        client.stopConnection();
+    }
+
+    @Test
+    public void testSlowReadIsHedgedToFasterEndpoint() throws Exception {
+        String slow = fakeServer("slow", 1000);
+        String fast = fakeServer("fast", 0);
+        AggregationServerClient client = new AggregationServerClient();
+        client.startConnection(List.of(slow + "|" + fast));
+
+        long start = System.nanoTime();
+        assertEquals("fast", server(client.read(null, "/", null)));
+        assertTrue(System.nanoTime() - start < 800_000_000L);
+        assertEquals(1, client.hedgedReads());
+        assertEquals(1, client.hedgesWon());
+
+        // the client now reads from the faster endpoint
+        assertEquals("fast", server(client.read(null, "/", null)));
+        assertEquals(1, client.hedgesWon());
+        client.stopConnection();
+    }
+
+    @Test
+    public void testFailoverAfterFailedReadIsNotCountedAsHedgeWin() throws Exception {
+        String broken = fakeServer("broken", -1);
+        String healthy = fakeServer("healthy", 0);
+        AggregationServerClient client = new AggregationServerClient();
+        client.startConnection(List.of(broken + "|" + healthy));
+
+        assertEquals("healthy", server(client.read(null, "/", null)));
+        assertEquals(0, client.hedgedReads());
+        assertEquals(0, client.hedgesWon());
+        client.stopConnection();
+    }
+
+    @Test
+    public void testSingleEndpointIsNeverHedged() throws Exception {
+        String only = fakeServer("only", 100);
+        AggregationServerClient client = new AggregationServerClient();
+        client.startConnection(List.of(only));
+        assertEquals("only", server(client.read(null, "/", null)));
+        assertEquals(0, client.hedgedReads());
+        assertEquals(1, client.readLatency().count());
+        client.stopConnection();
+    }
+}
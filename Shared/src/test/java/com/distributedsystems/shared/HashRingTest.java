@@ -0,0 +1,64 @@
+package com.distributedsystems.shared;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for HashRing
+ */
+public class HashRingTest {
+
+    private static final int KEYS = 20_000;
+
+    @Test
+    public void testSameOwnerWhateverTheNodeOrder() {
+        HashRing ring = new HashRing(List.of("a:1", "b:2", "c:3"));
+        HashRing reordered = new HashRing(List.of("c:3", "a:1", "b:2"));
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(ring.nodeFor("IDS" + i), reordered.nodeFor("IDS" + i));
+        }
+    }
+
+    @Test
+    public void testKeysSpreadEvenly() {
+        HashRing ring = new HashRing(List.of("a:1", "b:2", "c:3", "d:4"));
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            counts.merge(ring.nodeFor("IDS" + i), 1, Integer::sum);
+        }
+        assertEquals(4, counts.size());
+        for (int count : counts.values()) {
+            // within 25% of an even share
+            assertTrue("uneven share " + counts, Math.abs(count - KEYS / 4) < KEYS / 16);
+        }
+    }
+
+    @Test
+    public void testAddingNodeOnlyMovesKeysToIt() {
+        HashRing ring = new HashRing(List.of("a:1", "b:2", "c:3"));
+        Map<String, String> before = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            before.put("IDS" + i, ring.nodeFor("IDS" + i));
+        }
+
+        ring.addNode("d:4");
+        int moved = 0;
+        for (Map.Entry<String, String> key : before.entrySet()) {
+            String owner = ring.nodeFor(key.getKey());
+            if (!owner.equals(key.getValue())) {
+                assertEquals("d:4", owner);
+                moved++;
+            }
+        }
+        // about a quarter of the keys move to the new node
+        assertTrue("moved " + moved, moved > KEYS / 5 && moved < KEYS / 3);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testEmptyRingHasNoOwner() {
+        new HashRing(List.of()).nodeFor("IDS1");
+    }
+}
@@ -5,8 +5,10 @@ import org.junit.*;
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.zip.GZIPOutputStream;
 
 import static org.junit.Assert.*;
 
@@ -49,6 +51,23 @@ public class HttpHelperTest {
         assertEquals("Hello", req.body);
     }
 
+    @Test
+    public void testReadRequestWithQuery() throws IOException {
+        String httpRequest =
+                "GET /history?stationId=IDS60901&from=3&name=West%20Terrace&flag HTTP/1.1\r\n" +
+                        "Host: localhost\r\n" +
+                        "\r\n";
+
+        BufferedReader in = new BufferedReader(new StringReader(httpRequest));
+        HttpHelper.Request req = HttpHelper.readRequest(in);
+
+        assertEquals("/history", req.path);
+        assertEquals("IDS60901", req.query.get("stationId"));
+        assertEquals("3", req.query.get("from"));
+        assertEquals("West Terrace", req.query.get("name"));
+        assertEquals("", req.query.get("flag"));
+    }
+
     @Test
     public void testSendResponse() throws IOException {
         StringWriter sw = new StringWriter();
@@ -62,6 +81,112 @@ public class HttpHelperTest {
         assertTrue(result.contains("{\"msg\":\"hi\"}"));
     }
 
+    @Test
+    public void testSendResponseFromByteBuffers() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ByteBuffer payload = ByteBuffer.wrap("{\"a\":\"1\"}".getBytes(StandardCharsets.UTF_8));
+
+        HttpHelper.sendResponse(bytes, "200 OK", 3,
+                ByteBuffer.wrap("{\"s1\":".getBytes(StandardCharsets.UTF_8)), payload, ByteBuffer.wrap("}".getBytes(StandardCharsets.UTF_8)));
+
+        BufferedReader in = new BufferedReader(new StringReader(bytes.toString(StandardCharsets.UTF_8)));
+        HttpHelper.Response res = HttpHelper.readResponse(in);
+        assertEquals("200 OK", res.status);
+        assertEquals("3", res.headers.get("X-Lamport-Clock"));
+        assertEquals("{\"s1\":{\"a\":\"1\"}}", res.body);
+        assertEquals(0, payload.position());
+    }
+
+    @Test
+    public void testReadResponseFromBytesCountsBytes() throws IOException {
+        String body = "{\"name\":\"Ad\u00e9la\u00efde\"}";
+        byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+        String head = "HTTP/1.1 200 OK\r\nContent-Length: " + bodyBytes.length + "\r\n\r\n";
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(head.getBytes(StandardCharsets.UTF_8));
+        bytes.write(bodyBytes);
+        bytes.write("HTTP/1.1 200 OK\r\n".getBytes(StandardCharsets.UTF_8)); // next response must be left unread
+
+        InputStream in = new ByteArrayInputStream(bytes.toByteArray());
+        HttpHelper.Response res = HttpHelper.readResponse(in);
+        assertEquals("200 OK", res.status);
+        assertEquals(body, res.body);
+        assertEquals('H', in.read());
+    }
+
+    @Test
+    public void testChunkedResponseRoundTrip() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        StringBuilder expected = new StringBuilder();
+        try (HttpHelper.ChunkedOutputStream body = HttpHelper.startChunkedResponse(bytes, "200 OK", 9)) {
+            for (int i = 0; i < 5000; i++) {
+                String part = "\"station" + i + "\":\"\u00e9\",";
+                expected.append(part);
+                body.write(part.getBytes(StandardCharsets.UTF_8));
+                if (i % 1000 == 0) body.flush();
+            }
+        }
+
+        String raw = bytes.toString(StandardCharsets.UTF_8);
+        assertTrue(raw.contains("Transfer-Encoding: chunked"));
+        assertFalse(raw.contains("Content-Length"));
+        assertTrue(raw.endsWith("\r\n0\r\n\r\n"));
+
+        HttpHelper.Response res = HttpHelper.readResponse(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals("9", res.headers.get("X-Lamport-Clock"));
+        assertEquals(expected.toString(), res.body);
+    }
+
+    @Test
+    public void testReadChunkedResponseWithExtensionsAndTrailers() throws IOException {
+        String raw = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "5;name=value\r\nHello\r\n"
+                + "6\r\n World\r\n"
+                + "0\r\nX-Trailer: 1\r\n\r\n";
+        HttpHelper.Response res = HttpHelper.readResponse(new ByteArrayInputStream(raw.getBytes(StandardCharsets.UTF_8)));
+        assertEquals("Hello World", res.body);
+    }
+
+    @Test
+    public void testAcceptsGzip() {
+        assertTrue(HttpHelper.acceptsGzip(Collections.singletonMap("Accept-Encoding", "gzip, deflate")));
+        assertTrue(HttpHelper.acceptsGzip(Collections.singletonMap("accept-encoding", "br;q=1.0, gzip;q=0.5")));
+        assertTrue(HttpHelper.acceptsGzip(Collections.singletonMap("Accept-Encoding", "*")));
+        assertFalse(HttpHelper.acceptsGzip(Collections.singletonMap("Accept-Encoding", "gzip;q=0")));
+        assertFalse(HttpHelper.acceptsGzip(Collections.singletonMap("Accept-Encoding", "identity")));
+        assertFalse(HttpHelper.acceptsGzip(Collections.emptyMap()));
+    }
+
+    @Test
+    public void testGzipResponseDecompressed() throws IOException {
+        String json = "{\"IDS60901\":{\"wind_spd_kmh\":\"15\"}}";
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(json.getBytes(StandardCharsets.UTF_8));
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        HttpHelper.sendResponse(bytes, "200 OK", 1, "gzip", ByteBuffer.wrap(compressed.toByteArray()));
+        assertTrue(bytes.toString(StandardCharsets.ISO_8859_1).contains("Content-Encoding: gzip"));
+
+        HttpHelper.Response res = HttpHelper.readResponse(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(json, res.body);
+    }
+
+    @Test
+    public void testChunkedGzipResponseDecompressed() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (HttpHelper.ChunkedOutputStream chunked = HttpHelper.startChunkedResponse(bytes, "200 OK", 1, "gzip");
+             GZIPOutputStream gzip = new GZIPOutputStream(chunked, 512, true)) {
+            gzip.write("{\"a\":".getBytes(StandardCharsets.UTF_8));
+            gzip.flush();
+            gzip.write("\"1\"}".getBytes(StandardCharsets.UTF_8));
+        }
+
+        HttpHelper.Response res = HttpHelper.readResponse(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals("{\"a\":\"1\"}", res.body);
+    }
+
     @Test
     public void testSendRequestEndToEnd() throws Exception {
         // Start a simple server socket in another thread
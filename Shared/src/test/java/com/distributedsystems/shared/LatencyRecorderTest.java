@@ -0,0 +1,41 @@
+package com.distributedsystems.shared;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for LatencyRecorder
+ */
+public class LatencyRecorderTest {
+
+    @Test
+    public void testEmptyRecorderReportsZero() {
+        LatencyRecorder recorder = new LatencyRecorder();
+        assertEquals(0, recorder.count());
+        assertEquals(0, recorder.percentileNanos(99));
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyRecorder recorder = new LatencyRecorder(100);
+        for (int i = 1; i <= 100; i++) {
+            recorder.record(i);
+        }
+        assertEquals(50, recorder.percentileNanos(50));
+        assertEquals(99, recorder.percentileNanos(99));
+        assertEquals(100, recorder.percentileNanos(100));
+    }
+
+    @Test
+    public void testWindowDropsOldestSamples() {
+        LatencyRecorder recorder = new LatencyRecorder(4);
+        recorder.record(1_000);
+        for (int i = 0; i < 4; i++) {
+            recorder.record(5);
+        }
+        // the 1000ns sample has been overwritten
+        assertEquals(5, recorder.percentileNanos(100));
+        assertEquals(5, recorder.count());
+    }
+}